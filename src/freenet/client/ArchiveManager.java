@@ -34,7 +34,6 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.compress.CompressionOutputSizeException;
-import freenet.support.compress.Compressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
@@ -308,9 +307,10 @@ public class ArchiveManager {
 				if(logMINOR) Logger.minor(this, "dealing with GZIP");
 				is = new GZIPInputStream(data.getInputStream());
 				wrapper = null;
-			} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW) {
+			} else if(ctype == COMPRESSOR_TYPE.LZMA_NEW || ctype == COMPRESSOR_TYPE.LZMA_NEW_CHUNKED) {
 				// LZMA internally uses pipe streams, so we may as well do it here.
 				// In fact we need to for LZMA_NEW, because of the properties bytes.
+				final COMPRESSOR_TYPE decompressor = ctype;
 				PipedInputStream pis = new PipedInputStream();
 				final PipedOutputStream pos = new PipedOutputStream();
 				pis.connect(pos);
@@ -320,7 +320,7 @@ public class ArchiveManager {
 					public void run() {
 						InputStream is = null;
 						try {
-							Compressor.COMPRESSOR_TYPE.LZMA_NEW.decompress(is = data.getInputStream(), pos, data.size(), expectedSize);
+							decompressor.decompress(is = data.getInputStream(), pos, data.size(), expectedSize);
 						} catch (CompressionOutputSizeException e) {
 							Logger.error(this, "Failed to decompress archive: "+e, e);
 							wrapper.set(e);
@@ -0,0 +1,111 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Keeps the big buffers used for FEC stripes and blocks when a job has finished with them, so
+ * that the next job can reuse them rather than allocating several megabytes of its own. Only
+ * a limited number of bytes are kept; beyond that, released buffers are left to the garbage
+ * collector.
+ *
+ * Threads which do nothing but FEC, i.e. the FECQueue runners, can also keep the biggest buffer they
+ * have released for themselves, see enableThreadCache(). A runner uses the same size of stripe buffer
+ * job after job, so it rarely needs to touch the shared pool at all.
+ */
+class FECBufferPool {
+
+	private final long maxPooledBytes;
+	private long pooledBytes;
+	private final HashMap<Integer, ArrayList<byte[]>> free = new HashMap<Integer, ArrayList<byte[]>>();
+	/** The buffer kept by each thread which has called enableThreadCache(). */
+	private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>();
+
+	private static class ThreadCache {
+		byte[] buf;
+	}
+
+	FECBufferPool(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	/** @return A buffer of exactly the given size. Its contents are undefined. */
+	byte[] get(int size) {
+		ThreadCache cache = threadCache.get();
+		if(cache != null && cache.buf != null && cache.buf.length == size) {
+			byte[] buf = cache.buf;
+			cache.buf = null;
+			return buf;
+		}
+		synchronized(this) {
+			ArrayList<byte[]> list = free.get(size);
+			if(list != null && !list.isEmpty()) {
+				pooledBytes -= size;
+				return list.remove(list.size()-1);
+			}
+		}
+		return new byte[size];
+	}
+
+	/** Give back a buffer. The caller must not use it afterwards. */
+	void release(byte[] buf) {
+		if(buf == null) return;
+		ThreadCache cache = threadCache.get();
+		if(cache != null) {
+			// Keep the biggest, which is usually the stripe buffer.
+			byte[] old = cache.buf;
+			if(old == null || old.length < buf.length) {
+				cache.buf = buf;
+				if(old == null) return;
+				buf = old;
+			}
+		}
+		releaseShared(buf);
+	}
+
+	private synchronized void releaseShared(byte[] buf) {
+		if(pooledBytes + buf.length > maxPooledBytes) return;
+		ArrayList<byte[]> list = free.get(buf.length);
+		if(list == null) {
+			list = new ArrayList<byte[]>();
+			free.put(buf.length, list);
+		}
+		list.add(buf);
+		pooledBytes += buf.length;
+	}
+
+	/** Keep the biggest buffer released by this thread for this thread, until disableThreadCache(). */
+	void enableThreadCache() {
+		if(threadCache.get() == null)
+			threadCache.set(new ThreadCache());
+	}
+
+	/** Give the buffer kept by this thread back to the shared pool, e.g. before going idle. */
+	void flushThreadCache() {
+		ThreadCache cache = threadCache.get();
+		if(cache == null || cache.buf == null) return;
+		byte[] buf = cache.buf;
+		cache.buf = null;
+		releaseShared(buf);
+	}
+
+	void disableThreadCache() {
+		flushThreadCache();
+		threadCache.remove();
+	}
+
+	/** Drop all the pooled buffers, e.g. when we are low on memory. Buffers kept by busy
+	 * threads come back to the shared pool when they go idle. */
+	synchronized void clear() {
+		free.clear();
+		pooledBytes = 0;
+	}
+
+	synchronized long pooledBytes() {
+		return pooledBytes;
+	}
+
+}
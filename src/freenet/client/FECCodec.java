@@ -34,6 +34,8 @@ public abstract class FECCodec {
 	// Striping is very costly I/O wise.
 	// So set a maximum buffer size and calculate the stripe size accordingly.
 	static final int MAX_MEMORY_BUFFER = 8*1024*1024;
+	/** Stripe buffers are reused between jobs. Keep enough for a couple of jobs. */
+	static final FECBufferPool bufferPool = new FECBufferPool(2 * MAX_MEMORY_BUFFER);
 
         private static volatile boolean logMINOR;
 	static {
@@ -45,6 +47,9 @@ public abstract class FECCodec {
 		});
 	}
 
+	/** Use PureJavaFECCodec rather than the onion code where possible? */
+	private static volatile boolean usePureJava;
+
 	protected abstract void loadFEC();
 	
 	protected FECCodec(int k, int n) {
@@ -64,7 +69,7 @@ public abstract class FECCodec {
 		if(splitfileType == Metadata.SPLITFILE_NONREDUNDANT)
 			return null;
 		if(splitfileType == Metadata.SPLITFILE_ONION_STANDARD)
-			return StandardOnionFECCodec.getInstance(dataBlocks, checkBlocks);
+			return getOnionCodec(dataBlocks, checkBlocks);
 		else
 			return null;
 	}
@@ -78,12 +83,27 @@ public abstract class FECCodec {
 			return null;
 		if(splitfileType == Metadata.SPLITFILE_ONION_STANDARD) {
 			int checkBlocks = standardOnionCheckBlocks(dataBlocks, compatibilityMode);
-			return StandardOnionFECCodec.getInstance(dataBlocks, checkBlocks);
+			return getOnionCodec(dataBlocks, checkBlocks);
 		}
 		else
 			return null;
 	}
 	
+	/** The two codecs produce the same blocks, but PureJavaFECCodec only does 8-bit codes. */
+	private static FECCodec getOnionCodec(int dataBlocks, int checkBlocks) {
+		if(usePureJava && dataBlocks + checkBlocks <= 256)
+			return PureJavaFECCodec.getInstance(dataBlocks, checkBlocks);
+		return StandardOnionFECCodec.getInstance(dataBlocks, checkBlocks);
+	}
+
+	public static void setUsePureJava(boolean val) {
+		usePureJava = val;
+	}
+
+	public static boolean getUsePureJava() {
+		return usePureJava;
+	}
+
 	private static int standardOnionCheckBlocks(int dataBlocks, CompatibilityMode compatibilityMode) {
 		/**
 		 * ALCHEMY: What we do know is that redundancy by FEC is much more efficient than 
@@ -123,6 +143,15 @@ public abstract class FECCodec {
 	 */
 	public abstract int countCheckBlocks();
 
+	/**
+	 * The encoding matrix, for ProgressiveFECDecoder: n rows of k coefficients in GF(2^8), the
+	 * first k rows being the identity. Must not be modified.
+	 * @return The matrix, or null if the codec is not an 8-bit Reed-Solomon code.
+	 */
+	public byte[][] getEncodeMatrix() {
+		return null;
+	}
+
 	protected void realDecode(SplitfileBlock[] dataBlockStatus, SplitfileBlock[] checkBlockStatus, int blockLength, BucketFactory bf) throws IOException {
 		loadFEC();
 		if(logMINOR)
@@ -131,7 +160,6 @@ public abstract class FECCodec {
 			throw new IllegalArgumentException();
 		if(dataBlockStatus.length != k)
 			throw new IllegalArgumentException();
-		Buffer[] packets = new Buffer[k];
 		Bucket[] buckets = new Bucket[n];
 		DataInputStream[] readers = new DataInputStream[n];
 		OutputStream[] writers = new OutputStream[k];
@@ -145,10 +173,13 @@ public abstract class FECCodec {
 		if((k > 256 || n > 256) && ((stripeSize & 1) == 1))
 			stripeSize++;
 		if(stripeSize != 32768) System.out.println("Stripe size is "+stripeSize);
+		// The last stripe may be shorter, but the packets stay where they are.
+		final int stride = stripeSize;
 
+		byte[] realBuffer = null;
 		try {
 
-			byte[] realBuffer = new byte[k * stripeSize];
+			realBuffer = bufferPool.get(k * stride);
 
 			int[] packetIndexes = new int[k];
 			for(int i = 0; i < packetIndexes.length; i++)
@@ -156,10 +187,6 @@ public abstract class FECCodec {
 
 			int idx = 0;
 
-			for(int i = 0; i < k; i++)
-				packets[i] = new Buffer(realBuffer, i * stripeSize,
-					stripeSize);
-
 			// Shortcut.
 			// Due to the not-fetching-last-block code, we need to check here,
 			// rather than relying on numberToDecode (since the last data block won't be part of numberToDecode).
@@ -236,17 +263,13 @@ public abstract class FECCodec {
 							dis = new DataInputStream(buckets[x].getInputStream());
 						else
 							dis = readers[x];
-						dis.readFully(realBuffer, i * stripeSize,
+						dis.readFully(realBuffer, i * stride,
 							stripeSize);
 						if(stripeSize == blockLength)
 							dis.close();
 					}
 					// Do the decode
-					// Not shuffled
-					int[] disposableIndexes = new int[packetIndexes.length];
-					System.arraycopy(packetIndexes, 0, disposableIndexes, 0,
-						packetIndexes.length);
-					fec.decode(packets, disposableIndexes);
+					decodeStripe(realBuffer, stride, stripeSize, packetIndexes);
 					// packets now contains an array of decoded blocks, in order
 					// Write the data out
 					for(int i = 0; i < k; i++) {
@@ -256,7 +279,7 @@ public abstract class FECCodec {
 								os = buckets[i].getOutputStream();
 							else
 								os = writers[i];
-							os.write(realBuffer, i * stripeSize,
+							os.write(realBuffer, i * stride,
 								stripeSize);
 							if(stripeSize == blockLength)
 								os.close();
@@ -270,6 +293,7 @@ public abstract class FECCodec {
 				Closer.close(writers[i]);
 			for(int i = 0; i < n; i++)
 				Closer.close(readers[i]);
+			bufferPool.release(realBuffer);
 		}
 		// Set new buckets only after have a successful decode.
 		// Note that the last data bucket will be overwritten padded.
@@ -305,11 +329,10 @@ public abstract class FECCodec {
 		if((dataBlockStatus.length + checkBlockStatus.length != n) ||
 			(dataBlockStatus.length != k))
 			throw new IllegalArgumentException("Data blocks: " + dataBlockStatus.length + ", Check blocks: " + checkBlockStatus.length + ", n: " + n + ", k: " + k);
-		Buffer[] dataPackets = new Buffer[k];
-		Buffer[] checkPackets;
 		Bucket[] buckets = new Bucket[n];
 		DataInputStream[] readers = new DataInputStream[k];
 		OutputStream[] writers = null;
+		byte[] realBuffer = null;
 		
 		try {
 
@@ -327,7 +350,6 @@ public abstract class FECCodec {
 			}
 			
 			toEncode = new int[numberToEncode];
-			checkPackets = new Buffer[numberToEncode];
 			writers = new OutputStream[numberToEncode];
 			
 			int stripeSize = MAX_MEMORY_BUFFER / (k + numberToEncode);
@@ -337,24 +359,21 @@ public abstract class FECCodec {
 			if((k > 256 || n > 256) && ((stripeSize & 1) == 1))
 				stripeSize++;
 			if(stripeSize != 32768) System.out.println("Stripe size is "+stripeSize);
+			// The last stripe may be shorter, but the packets stay where they are.
+			final int stride = stripeSize;
 
-			byte[] realBuffer = new byte[(k + numberToEncode) * stripeSize];
+			realBuffer = bufferPool.get((k + numberToEncode) * stride);
 			
 			int x = 0;
 			for(int i = 0; i < checkBlockStatus.length; i++) {
 				if(checkBlockStatus[i] == null) {
 					toEncode[x] = i + k;
-					checkPackets[x] = new Buffer(realBuffer, (x + k) * stripeSize, stripeSize);
 					if(stripeSize != blockLength)
 						writers[x] = buckets[i + k].getOutputStream();
 					x++;
 				}
 			}
 			
-			for(int i = 0; i < k; i++)
-				dataPackets[i] = new Buffer(realBuffer, i * stripeSize,
-					stripeSize);
-
 			for(int i = 0; i < dataBlockStatus.length; i++) {
 				buckets[i] = dataBlockStatus[i];
 				if(buckets[i] == null)
@@ -399,7 +418,7 @@ public abstract class FECCodec {
 							dis = new DataInputStream(buckets[i].getInputStream());
 						else
 							dis = readers[i];
-						dis.readFully(realBuffer, i * stripeSize,
+						dis.readFully(realBuffer, i * stride,
 							stripeSize);
 						if(stripeSize == blockLength)
 							dis.close();
@@ -414,7 +433,7 @@ public abstract class FECCodec {
 					long memUsedBeforeStripe = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
 					if(logMINOR)
 						Logger.minor(this, "Memory in use before stripe: " + memUsedBeforeStripe);
-					fec.encode(dataPackets, checkPackets, toEncode);
+					encodeStripe(realBuffer, stride, stripeSize, toEncode);
 					//					Runtime.getRuntime().gc();
 //					Runtime.getRuntime().runFinalization();
 //					Runtime.getRuntime().gc();
@@ -433,7 +452,7 @@ public abstract class FECCodec {
 							os = buckets[toEncode[i]].getOutputStream();
 						else
 							os = writers[i];
-						os.write(realBuffer, (i + k) * stripeSize, stripeSize);
+						os.write(realBuffer, (i + k) * stride, stripeSize);
 						if(stripeSize == blockLength)
 							os.close();
 					}
@@ -447,6 +466,7 @@ public abstract class FECCodec {
 				for(int i = 0; i < writers.length; i++)
 					Closer.close(writers[i]);
 			}
+			bufferPool.release(realBuffer);
 		}
 		// Set new buckets only after have a successful decode.
 		for(int i = 0; i < checkBlockStatus.length; i++) {
@@ -457,6 +477,36 @@ public abstract class FECCodec {
 		}
 	}
 
+	/**
+	 * Decode one stripe. Packet i is at buffer[i * stride], and is the next length bytes of
+	 * block packetIndexes[i]. Afterwards, packet i must be data block i, for each data block
+	 * which was not one of the packets.
+	 */
+	protected void decodeStripe(byte[] buffer, int stride, int length, int[] packetIndexes) {
+		Buffer[] packets = new Buffer[k];
+		for(int i = 0; i < k; i++)
+			packets[i] = new Buffer(buffer, i * stride, stride);
+		// Not shuffled
+		int[] disposableIndexes = new int[packetIndexes.length];
+		System.arraycopy(packetIndexes, 0, disposableIndexes, 0,
+			packetIndexes.length);
+		fec.decode(packets, disposableIndexes);
+	}
+
+	/**
+	 * Encode one stripe. Data block i is at buffer[i * stride], and check block toEncode[x]
+	 * is to be written at buffer[(k + x) * stride], length bytes each.
+	 */
+	protected void encodeStripe(byte[] buffer, int stride, int length, int[] toEncode) {
+		Buffer[] dataPackets = new Buffer[k];
+		for(int i = 0; i < k; i++)
+			dataPackets[i] = new Buffer(buffer, i * stride, stride);
+		Buffer[] checkPackets = new Buffer[toEncode.length];
+		for(int x = 0; x < toEncode.length; x++)
+			checkPackets[x] = new Buffer(buffer, (x + k) * stride, stride);
+		fec.encode(dataPackets, checkPackets, toEncode);
+	}
+
 	/**
 	 * The method used to submit {@link FECJob}s to the pool
 	 * 
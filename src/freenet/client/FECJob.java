@@ -41,6 +41,8 @@ public class FECJob {
 	// A persistent hash code helps with debugging.
 	private final int hashCode;
 	transient boolean running;
+	/** If set, the blocks have been reduced as they arrived, so the decode is mostly done. */
+	transient ProgressiveFECDecoder progressiveDecoder;
 	
 	@Override
 	public int hashCode() {
@@ -118,6 +120,11 @@ public class FECJob {
 		this.persistent = persistent;
 	}
 
+	/** Use a progressive decoder for this (transient) decoding job. It is freed when the job finishes. */
+	public void setProgressiveDecoder(ProgressiveFECDecoder decoder) {
+		this.progressiveDecoder = decoder;
+	}
+
 	public FECCodec getCodec() {
 		if(codec == null) {
 			codec = FECCodec.getCodec(fecAlgo, dataBlocks.length, checkBlocks.length);
@@ -33,6 +33,12 @@ import freenet.support.io.NativeThread;
  * a persistent queue (kept in the database), and a transient cache of the persistent queue.
  * Sorted by priority and then by time added.
  * 
+ * The non-persistent queue has a lane for each priority, each with its own lock, so the runners
+ * can take transient jobs without contending on the FECQueue, which the cache filler uses while
+ * loading persistent jobs. The cache filler is a prefetcher: it is queued on the database thread
+ * as soon as the cache is half empty, so the runners never wait for the database. Each runner
+ * keeps its stripe buffer between jobs, see FECBufferPool.enableThreadCache().
+ * 
  * Note that the FECQueue must be pulled from the database, because FECJob's are queried based
  * on their referring to it.
  * @author toad
@@ -47,7 +53,10 @@ public class FECQueue implements OOMHook {
 	private transient DBJobRunner databaseJobRunner;
 	private transient Executor executor;
 	private transient ClientContext clientContext;
-	private transient int runningFECThreads;
+	private transient volatile int runningFECThreads;
+	/** Number of jobs in persistentQueueCache, so the runners only lock the FECQueue when there
+	 * might be a persistent job to run. */
+	private transient volatile int persistentQueueCacheSize;
 	private transient int fecPoolCounter;
 	private transient PrioRunnable runner;
 	private transient DBJob cacheFillerJob;
@@ -149,10 +158,14 @@ public class FECQueue implements OOMHook {
 			job.activateForExecution(container);
 			container.store(job);
 		}
+		if(!job.persistent) {
+			LinkedList<FECJob> lane = transientQueue[job.priority];
+			synchronized(lane) {
+				lane.addLast(job);
+			}
+		}
 		synchronized(this) {
-			if(!job.persistent) {
-				transientQueue[job.priority].addLast(job);
-			} else {
+			if(job.persistent) {
 				int totalAbove = 0;
 				for(int i=0;i<job.priority;i++) {
 					totalAbove += persistentQueueCache[i].size();
@@ -180,6 +193,7 @@ public class FECQueue implements OOMHook {
 						}
 					}
 				}
+				persistentQueueCacheChanged();
 			}
 			// Do not deactivate the job.
 			// Two jobs may overlap in cross-segment decoding, resulting in very bad things.
@@ -200,31 +214,31 @@ public class FECQueue implements OOMHook {
 		 */
 		public void run() {
 			freenet.support.Logger.OSThread.logPID(this);
+			FECCodec.bufferPool.enableThreadCache();
 			try {
 				while(true) {
-					final FECJob job;
 					// Get a job
-					synchronized (FECQueue.this) {
-						job = getFECJobBlockingNoDBAccess();
-						if(job == null) {
-							// Too many jobs running.
-							return;
-						}
-						if(job.running) {
-							Logger.error(this, "Job already running: "+job);
-							continue;
-						}
-						job.running = true;
+					final FECJob job = getFECJobBlockingNoDBAccess();
+					if(job == null) {
+						// Too many jobs running.
+						return;
 					}
 
 					if(logMINOR)
 						Logger.minor(this, "Running job "+job);
 					// Encode it
 					try {
-						if (job.isADecodingJob)
-							job.getCodec().realDecode(job.dataBlockStatus, job.checkBlockStatus, job.blockLength,
-							        job.bucketFactory);
-						else {
+						if (job.isADecodingJob) {
+							ProgressiveFECDecoder decoder = job.progressiveDecoder;
+							job.progressiveDecoder = null;
+							try {
+								if(decoder == null || !decoder.finish(job.dataBlockStatus, job.checkBlockStatus, job.bucketFactory))
+									job.getCodec().realDecode(job.dataBlockStatus, job.checkBlockStatus, job.blockLength,
+									        job.bucketFactory);
+							} finally {
+								if(decoder != null) decoder.free();
+							}
+						} else {
 							job.getCodec().realEncode(job.dataBlocks, job.checkBlocks, job.blockLength, job.bucketFactory);
 							// Update SplitFileBlocks from buckets if necessary
 							if ((job.dataBlockStatus != null) || (job.checkBlockStatus != null)) {
@@ -377,6 +391,7 @@ public class FECQueue implements OOMHook {
 				Logger.error(this, "Caught "+t+" in "+this, t);
 			}
 			finally {
+				FECCodec.bufferPool.disableThreadCache();
 				synchronized (FECQueue.this) {
 					runningFECThreads--;
 				}
@@ -476,6 +491,7 @@ public class FECQueue implements OOMHook {
 									}
 								}
 								if(!added) persistentQueueCache[prio].addLast(job);
+								persistentQueueCacheChanged();
 								if(logMINOR) Logger.minor(this, "Added "+job);
 								addedAny = true;
 							}
@@ -512,7 +528,7 @@ public class FECQueue implements OOMHook {
 		
 	}
 	
-	private int maxRunningFECThreads = -1;
+	private volatile int maxRunningFECThreads = -1;
 
 	private synchronized int getMaxRunningFECThreads() {
 		if (maxRunningFECThreads != -1)
@@ -542,34 +558,91 @@ public class FECQueue implements OOMHook {
 	}
 
 	/**
-	 * Find a FEC job to run.
+	 * Find a FEC job to run, and mark it as running. Waits if there are none.
 	 * @return null only if there are too many FEC threads running.
 	 */
-	protected synchronized FECJob getFECJobBlockingNoDBAccess() {
+	protected FECJob getFECJobBlockingNoDBAccess() {
 		while(true) {
-			if(runningFECThreads > getMaxRunningFECThreads())
+			// Set by init(), so we don't need to lock to read it.
+			if(runningFECThreads > maxRunningFECThreads)
 				return null;
-			for(int i=0;i<priorities;i++) {
-				if(!transientQueue[i].isEmpty())
-					return transientQueue[i].removeFirst();
-				if(!persistentQueueCache[i].isEmpty())
-					return persistentQueueCache[i].removeFirst();
-			}
+			FECJob job = pollJob();
+			if(job != null) return job;
+			// Give our buffer back while we have nothing to do.
+			FECCodec.bufferPool.flushThreadCache();
 			queueCacheFiller();
-			try {
-				wait();
-			} catch (InterruptedException e) {
-				// Ignore
+			synchronized(this) {
+				if(runningFECThreads > getMaxRunningFECThreads())
+					return null;
+				// A job may have been added since we looked. addToQueue() adds it before
+				// notifying, so we can't miss it.
+				job = pollJob();
+				if(job != null) return job;
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	/** Take the first job, by priority, then transient before persistent, then oldest first. */
+	private FECJob pollJob() {
+		for(int i=0;i<priorities;i++) {
+			LinkedList<FECJob> lane = transientQueue[i];
+			synchronized(lane) {
+				while(!lane.isEmpty()) {
+					FECJob job = lane.removeFirst();
+					if(startJob(job)) return job;
+				}
+			}
+			if(persistentQueueCacheSize == 0) continue;
+			FECJob job = null;
+			synchronized(this) {
+				while(!persistentQueueCache[i].isEmpty()) {
+					job = persistentQueueCache[i].removeFirst();
+					if(startJob(job)) break;
+					job = null;
+				}
+				persistentQueueCacheChanged();
+			}
+			if(job != null) {
+				// Load more before the cache runs out, rather than when a runner is waiting.
+				if(persistentQueueCacheSize <= maxPersistentQueueCacheSize / 2)
+					queueCacheFiller();
+				return job;
 			}
 		}
+		return null;
+	}
+
+	/** Called holding the lock on the queue the job came from, so cancel() sees it as running. */
+	private boolean startJob(FECJob job) {
+		if(job.running) {
+			Logger.error(this, "Job already running: "+job);
+			return false;
+		}
+		job.running = true;
+		return true;
+	}
+
+	/** Called whenever persistentQueueCache changes. */
+	private synchronized void persistentQueueCacheChanged() {
+		int total = 0;
+		for(int i=0;i<priorities;i++)
+			total += persistentQueueCache[i].size();
+		persistentQueueCacheSize = total;
 	}
 
 	public synchronized void handleLowMemory() throws Exception {
+		FECCodec.bufferPool.clear();
 		maxRunningFECThreads = Math.max(1, maxRunningFECThreads - 1);
 		notify(); // not notifyAll()
 	}
 
 	public synchronized void handleOutOfMemory() throws Exception {
+		FECCodec.bufferPool.clear();
 		maxRunningFECThreads = 1;
 		notifyAll();
 	}
@@ -590,9 +663,13 @@ public class FECQueue implements OOMHook {
 				return proxy.cancel(job, container, context);
 			}
 			for(int i=0;i<priorities;i++) {
-				transientQueue[i].remove(job);
+				LinkedList<FECJob> lane = transientQueue[i];
+				synchronized(lane) {
+					lane.remove(job);
+				}
 				persistentQueueCache[i].remove(job);
 			}
+			persistentQueueCacheChanged();
 		}
 		synchronized(job) {
 			if(job.running) return false;
@@ -0,0 +1,128 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+/**
+ * Arithmetic in GF(2^8), and the Reed-Solomon encoding matrix, exactly as the onion FEC code
+ * (Luigi Rizzo's Vandermonde code) computes them for k and n up to 256. We need our own copy to
+ * work on the decode matrix one block at a time, which the onion code can't do.
+ */
+final class GF256 {
+
+	/** x^8 + x^4 + x^3 + x^2 + 1, the onion code's polynomial for 8 bits. */
+	private static final int POLYNOMIAL = 0x11d;
+
+	/** EXP[i] = alpha^i, twice over so that EXP[LOG[a] + LOG[b]] needs no modulo. */
+	static final byte[] EXP = new byte[510];
+	static final int[] LOG = new int[256];
+	static final byte[] INVERSE = new byte[256];
+	/** MUL[a][b] = a * b */
+	static final byte[][] MUL = new byte[256][256];
+
+	static {
+		int x = 1;
+		for(int i = 0; i < 255; i++) {
+			EXP[i] = EXP[i + 255] = (byte) x;
+			LOG[x] = i;
+			x <<= 1;
+			if(x >= 256) x ^= POLYNOMIAL;
+		}
+		for(int a = 1; a < 256; a++) {
+			INVERSE[a] = EXP[255 - LOG[a]];
+			for(int b = 1; b < 256; b++)
+				MUL[a][b] = EXP[LOG[a] + LOG[b]];
+		}
+	}
+
+	private GF256() {
+		// Static methods only.
+	}
+
+	static int mul(int a, int b) {
+		return MUL[a][b] & 0xff;
+	}
+
+	static int inverse(int a) {
+		if(a == 0) throw new ArithmeticException("Zero has no inverse");
+		return INVERSE[a] & 0xff;
+	}
+
+	/** dst[dstOffset...] += c * src[srcOffset...] */
+	static void addMul(byte[] dst, int dstOffset, byte[] src, int srcOffset, int c, int length) {
+		if(c == 0) return;
+		if(c == 1) {
+			for(int i = 0; i < length; i++)
+				dst[dstOffset + i] ^= src[srcOffset + i];
+			return;
+		}
+		byte[] table = MUL[c];
+		for(int i = 0; i < length; i++)
+			dst[dstOffset + i] ^= table[src[srcOffset + i] & 0xff];
+	}
+
+	/** buf[offset...] *= c */
+	static void mul(byte[] buf, int offset, int c, int length) {
+		if(c == 1) return;
+		byte[] table = MUL[c];
+		for(int i = 0; i < length; i++)
+			buf[offset + i] = table[buf[offset + i] & 0xff];
+	}
+
+	/**
+	 * The encoding matrix for a (k,n) code: n rows of k coefficients. Block i is the sum over
+	 * j of matrix[i][j] times data block j, so the first k rows are the identity. The check
+	 * rows are a Vandermonde matrix, with the first row for the point 0 and the rest for the
+	 * powers of alpha, multiplied by the inverse of its top k rows.
+	 */
+	static byte[][] encodeMatrix(int k, int n) {
+		if(k <= 0 || n < k || n > 256)
+			throw new IllegalArgumentException("Invalid: k="+k+" n="+n);
+		byte[][] vandermonde = new byte[n][k];
+		vandermonde[0][0] = 1;
+		for(int row = 1; row < n; row++)
+			for(int col = 0; col < k; col++)
+				vandermonde[row][col] = EXP[((row - 1) * col) % 255];
+		byte[][] top = new byte[k][];
+		for(int i = 0; i < k; i++)
+			top[i] = vandermonde[i].clone();
+		invert(top);
+		byte[][] matrix = new byte[n][k];
+		for(int i = 0; i < k; i++)
+			matrix[i][i] = 1;
+		for(int row = k; row < n; row++)
+			for(int i = 0; i < k; i++)
+				addMul(matrix[row], 0, top[i], 0, vandermonde[row][i] & 0xff, k);
+		return matrix;
+	}
+
+	/** Invert a square matrix in place, by Gauss-Jordan elimination. */
+	static void invert(byte[][] matrix) {
+		int size = matrix.length;
+		byte[][] inverse = new byte[size][size];
+		for(int i = 0; i < size; i++)
+			inverse[i][i] = 1;
+		for(int col = 0; col < size; col++) {
+			int pivot = col;
+			while(pivot < size && matrix[pivot][col] == 0) pivot++;
+			if(pivot == size) throw new IllegalArgumentException("Singular matrix");
+			if(pivot != col) {
+				byte[] t = matrix[pivot]; matrix[pivot] = matrix[col]; matrix[col] = t;
+				t = inverse[pivot]; inverse[pivot] = inverse[col]; inverse[col] = t;
+			}
+			int c = inverse(matrix[col][col] & 0xff);
+			mul(matrix[col], 0, c, size);
+			mul(inverse[col], 0, c, size);
+			for(int row = 0; row < size; row++) {
+				if(row == col) continue;
+				c = matrix[row][col] & 0xff;
+				if(c == 0) continue;
+				addMul(matrix[row], 0, matrix[col], 0, c, size);
+				addMul(inverse[row], 0, inverse[col], 0, c, size);
+			}
+		}
+		for(int i = 0; i < size; i++)
+			matrix[i] = inverse[i];
+	}
+
+}
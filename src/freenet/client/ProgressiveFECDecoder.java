@@ -0,0 +1,336 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import freenet.support.Logger;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.Closer;
+
+/**
+ * Decodes a segment a block at a time, as the blocks are fetched, rather than all at once
+ * when we have enough of them. Each check block is reduced against the blocks we already have
+ * (Gauss-Jordan elimination on the decode matrix and the block data together), and each data
+ * block is eliminated from the check blocks we already have. So when the last block arrives,
+ * there is little left to do, rather than reading every block and inverting the whole matrix.
+ *
+ * Every check block we keep costs a block of memory, as does every data block we keep to
+ * eliminate from check blocks arriving later. There is a global limit on this memory. Blocks we
+ * can't keep are dealt with by finish(), reading them from their buckets, as the normal decode
+ * would.
+ *
+ * Only for transient segments, and only for 8-bit codes, see FECCodec.getEncodeMatrix().
+ */
+public class ProgressiveFECDecoder {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(ProgressiveFECDecoder.class);
+	}
+
+	/** Maximum memory used by all the decoders. */
+	static final long MAX_BUFFERED_BYTES = 16*1024*1024;
+	private static long bufferedBytes;
+
+	private final int k;
+	private final int n;
+	private final int blockLength;
+	private final byte[][] matrix;
+	/** The blocks we have been given, data and check. */
+	private final boolean[] added;
+	/** The data blocks we have been given. */
+	private final boolean[] known;
+	/** Some of the known data blocks, kept to eliminate them from check blocks arriving later. */
+	private final byte[][] kept;
+	/** Number of data blocks not known. */
+	private int unknown;
+	/** Reduced check blocks. Each has a 1 in its pivot column and a 0 in every other row's.
+	 * Columns of known data blocks which are not kept may also be non-zero. */
+	private final ArrayList<Row> rows = new ArrayList<Row>();
+	private boolean freed;
+
+	private static class Row {
+		final byte[] coeffs;
+		final byte[] data;
+		/** Does data count against MAX_BUFFERED_BYTES? */
+		final boolean reserved;
+		int pivot;
+
+		Row(byte[] coeffs, byte[] data, boolean reserved) {
+			this.coeffs = coeffs;
+			this.data = data;
+			this.reserved = reserved;
+		}
+	}
+
+	/**
+	 * @return A decoder for the codec, or null if it can't decode progressively.
+	 */
+	public static ProgressiveFECDecoder create(FECCodec codec, int blockLength) {
+		byte[][] matrix = codec.getEncodeMatrix();
+		if(matrix == null) return null;
+		return new ProgressiveFECDecoder(codec.k, codec.n, matrix, blockLength);
+	}
+
+	ProgressiveFECDecoder(int k, int n, byte[][] matrix, int blockLength) {
+		this.k = k;
+		this.n = n;
+		this.matrix = matrix;
+		this.blockLength = blockLength;
+		added = new boolean[n];
+		known = new boolean[k];
+		kept = new byte[k][];
+		unknown = k;
+	}
+
+	private static synchronized boolean reserve(int bytes) {
+		if(bufferedBytes + bytes > MAX_BUFFERED_BYTES) return false;
+		bufferedBytes += bytes;
+		return true;
+	}
+
+	private static synchronized void unreserve(int bytes) {
+		bufferedBytes -= bytes;
+	}
+
+	static synchronized long bufferedBytes() {
+		return bufferedBytes;
+	}
+
+	/**
+	 * Reduce a block we have just fetched. Blocks which are not the full size are ignored.
+	 * @param blockNo [0,k[ for data blocks, [k,n[ for check blocks.
+	 */
+	public synchronized void addBlock(int blockNo, Bucket data) {
+		if(freed || added[blockNo]) return;
+		if(data.size() != blockLength) return;
+		boolean check = blockNo >= k;
+		// Surplus check block.
+		if(check && canSolve()) return;
+		boolean reserved = reserve(blockLength);
+		// Leave it to finish().
+		if(check && !reserved) return;
+		byte[] buf;
+		try {
+			buf = read(data);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to read block "+blockNo+" : "+e, e);
+			if(reserved) unreserve(blockLength);
+			return;
+		}
+		addBlock(blockNo, buf, reserved);
+	}
+
+	/** Add a block. Takes ownership of buf. */
+	synchronized void addBlock(int blockNo, byte[] buf, boolean reserved) {
+		added[blockNo] = true;
+		if(blockNo < k)
+			addDataBlock(blockNo, buf, reserved);
+		else
+			addCheckBlock(blockNo, buf, reserved);
+		if(logMINOR)
+			Logger.minor(this, "Added block "+blockNo+" : "+rows.size()+" rows, "+unknown+" unknown on "+this);
+	}
+
+	private void addDataBlock(int blockNo, byte[] buf, boolean keep) {
+		known[blockNo] = true;
+		unknown--;
+		Row displaced = null;
+		for(Iterator<Row> it = rows.iterator(); it.hasNext();) {
+			Row row = it.next();
+			int c = row.coeffs[blockNo] & 0xff;
+			if(c == 0) continue;
+			GF256.addMul(row.data, 0, buf, 0, c, blockLength);
+			row.coeffs[blockNo] = 0;
+			if(row.pivot == blockNo) {
+				it.remove();
+				displaced = row;
+			}
+		}
+		// The row solved for this block, now it must solve for a different one, if it can.
+		if(displaced != null)
+			insert(displaced);
+		if(keep)
+			kept[blockNo] = buf;
+		else
+			FECCodec.bufferPool.release(buf);
+	}
+
+	private void addCheckBlock(int blockNo, byte[] buf, boolean reserved) {
+		Row row = new Row(matrix[blockNo].clone(), buf, reserved);
+		for(int i = 0; i < k; i++) {
+			int c = row.coeffs[i] & 0xff;
+			if(c == 0 || kept[i] == null) continue;
+			GF256.addMul(row.data, 0, kept[i], 0, c, blockLength);
+			row.coeffs[i] = 0;
+		}
+		insert(row);
+	}
+
+	private void insert(Row row) {
+		for(Row r : rows) {
+			int c = row.coeffs[r.pivot] & 0xff;
+			if(c == 0) continue;
+			GF256.addMul(row.coeffs, 0, r.coeffs, 0, c, k);
+			GF256.addMul(row.data, 0, r.data, 0, c, blockLength);
+		}
+		int pivot = -1;
+		for(int i = 0; i < k; i++) {
+			if(row.coeffs[i] != 0 && !known[i]) {
+				pivot = i;
+				break;
+			}
+		}
+		if(pivot == -1) {
+			// Redundant.
+			release(row);
+			return;
+		}
+		int c = GF256.inverse(row.coeffs[pivot] & 0xff);
+		GF256.mul(row.coeffs, 0, c, k);
+		GF256.mul(row.data, 0, c, blockLength);
+		for(Row r : rows) {
+			c = r.coeffs[pivot] & 0xff;
+			if(c == 0) continue;
+			GF256.addMul(r.coeffs, 0, row.coeffs, 0, c, k);
+			GF256.addMul(r.data, 0, row.data, 0, c, blockLength);
+		}
+		row.pivot = pivot;
+		rows.add(row);
+	}
+
+	private void release(Row row) {
+		FECCodec.bufferPool.release(row.data);
+		if(row.reserved) unreserve(blockLength);
+	}
+
+	/** Do we have enough blocks to solve for all the missing data blocks? */
+	synchronized boolean canSolve() {
+		return rows.size() == unknown;
+	}
+
+	/**
+	 * Reconstruct the missing data blocks, after reducing any blocks we weren't given, and
+	 * set them on the data blocks, as realDecode() does. If it returns false, the caller must
+	 * fall back to realDecode(), which will do the same work from scratch.
+	 * @return False if we can't decode, for instance because some blocks are not the full size.
+	 */
+	public synchronized boolean finish(SplitfileBlock[] dataBlockStatus, SplitfileBlock[] checkBlockStatus, BucketFactory bf) throws IOException {
+		if(freed) return false;
+		if(dataBlockStatus.length != k || dataBlockStatus.length + checkBlockStatus.length != n)
+			throw new IllegalArgumentException();
+		int caughtUp = 0;
+		Bucket[] dataBuckets = new Bucket[k];
+		for(int i = 0; i < k; i++) {
+			dataBuckets[i] = dataBlockStatus[i].getData();
+			if(dataBuckets[i] == null) {
+				// Can't have been cleared since, except the last block if it is too short.
+				if(known[i]) return false;
+				continue;
+			}
+			if(dataBuckets[i].size() != blockLength) return false;
+			if(!added[i]) {
+				addBlock(i, read(dataBuckets[i]), false);
+				caughtUp++;
+			}
+		}
+		for(int i = 0; i < checkBlockStatus.length && !canSolve(); i++) {
+			if(added[i + k]) continue;
+			Bucket data = checkBlockStatus[i].getData();
+			if(data == null || data.size() != blockLength) continue;
+			addBlock(i + k, read(data), false);
+			caughtUp++;
+		}
+		if(!canSolve()) {
+			Logger.error(this, "Unable to decode progressively: "+rows.size()+" rows for "+unknown+" missing blocks on "+this);
+			return false;
+		}
+		// Eliminate the data blocks that we didn't keep from the check blocks that came after them.
+		int read = 0;
+		for(int i = 0; i < k; i++) {
+			if(!known[i] || kept[i] != null) continue;
+			boolean needed = false;
+			for(Row row : rows)
+				if(row.coeffs[i] != 0) needed = true;
+			if(!needed) continue;
+			byte[] buf = read(dataBuckets[i]);
+			read++;
+			for(Row row : rows) {
+				GF256.addMul(row.data, 0, buf, 0, row.coeffs[i] & 0xff, blockLength);
+				row.coeffs[i] = 0;
+			}
+			FECCodec.bufferPool.release(buf);
+		}
+		if(logMINOR)
+			Logger.minor(this, "Finishing progressive decode: "+rows.size()+" blocks to decode, caught up on "+caughtUp+", read "+read+" data blocks on "+this);
+		// Each row is now a missing data block.
+		Bucket[] decoded = new Bucket[k];
+		try {
+			for(Row row : rows) {
+				Bucket bucket = bf.makeBucket(blockLength);
+				decoded[row.pivot] = bucket;
+				OutputStream os = bucket.getOutputStream();
+				try {
+					os.write(row.data, 0, blockLength);
+				} finally {
+					os.close();
+				}
+			}
+		} catch (IOException e) {
+			for(Bucket bucket : decoded)
+				if(bucket != null) bucket.free();
+			throw e;
+		}
+		// Set new buckets only after have a successful decode.
+		for(int i = 0; i < k; i++) {
+			Bucket data = decoded[i];
+			if(data == null) continue;
+			Bucket existingData = dataBlockStatus[i].trySetData(data);
+			if(existingData != null && existingData != data) {
+				if(logMINOR) Logger.minor(this, "Discarding block "+i+" as now unneeded");
+				data.free();
+			}
+		}
+		return true;
+	}
+
+	private byte[] read(Bucket data) throws IOException {
+		byte[] buf = FECCodec.bufferPool.get(blockLength);
+		DataInputStream dis = new DataInputStream(data.getInputStream());
+		try {
+			dis.readFully(buf);
+		} finally {
+			Closer.close(dis);
+		}
+		return buf;
+	}
+
+	/** Release the memory used. The decoder can't be used afterwards. */
+	public synchronized void free() {
+		if(freed) return;
+		freed = true;
+		for(Row row : rows)
+			release(row);
+		rows.clear();
+		for(int i = 0; i < k; i++) {
+			if(kept[i] == null) continue;
+			FECCodec.bufferPool.release(kept[i]);
+			unreserve(blockLength);
+			kept[i] = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":k="+k+",n="+n;
+	}
+
+}
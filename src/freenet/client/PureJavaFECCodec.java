@@ -0,0 +1,254 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import freenet.support.LRUHashtable;
+
+/**
+ * FECCodec for the standard onion splitfile algorithm, in pure Java, for k and n up to 256.
+ * It produces exactly the same check blocks as the onion PureCode (using the same matrix, see
+ * GF256), but is several times faster.
+ *
+ * PureCode multiplies the blocks a byte at a time, looking each byte up in a 256-byte table for
+ * the coefficient. We work on 8 bytes at once in a long instead. For each input block, and for
+ * a window of the stripe small enough to stay in the CPU cache, we compute the block times each
+ * of the 16 low nibbles (0 to 15) and each of the 16 high nibbles (0, 16, ... 240). Multiplying
+ * by 2 is a few shifts and masks on a whole long, and the rest are XORs of those. Then adding
+ * the input times c to each output is just output ^= low[c & 15] ^ high[c >> 4]: two XORs per
+ * long, in a simple loop which the JIT can vectorise. The tables cost about 30 passes over the
+ * window per input, which is worth it as long as there are several outputs to compute.
+ */
+public class PureJavaFECCodec extends FECCodec {
+
+	private static final int MAX_CACHED_CODECS = 8;
+
+	private static final LRUHashtable<Integer, PureJavaFECCodec> recentlyUsedCodecs = new LRUHashtable<Integer, PureJavaFECCodec>();
+
+	/** Longs per window. 32 tables plus the outputs for the window should fit in the cache. */
+	static final int WINDOW = 256;
+	/** With fewer outputs than this, multiply a byte at a time, rather than build the tables. */
+	static final int MIN_TABLE_OUTPUTS = 4;
+
+	private static final long LOW_BITS = 0x7f7f7f7f7f7f7f7fL;
+	private static final long HIGH_BIT = 0x0101010101010101L;
+
+	private final byte[][] matrix;
+
+	public synchronized static FECCodec getInstance(int dataBlocks, int checkBlocks) {
+		if(checkBlocks == 0 || dataBlocks == 0)
+			throw new IllegalArgumentException("data blocks "+dataBlocks+" check blocks "+checkBlocks);
+		Integer key = ((dataBlocks + checkBlocks) << 16) + dataBlocks;
+		PureJavaFECCodec codec = recentlyUsedCodecs.get(key);
+		if(codec == null)
+			codec = new PureJavaFECCodec(dataBlocks, checkBlocks + dataBlocks);
+		recentlyUsedCodecs.push(key, codec);
+		while(recentlyUsedCodecs.size() > MAX_CACHED_CODECS) {
+			recentlyUsedCodecs.popKey();
+		}
+		return codec;
+	}
+
+	public PureJavaFECCodec(int k, int n) {
+		super(k, n);
+		if(k >= n) throw new IllegalArgumentException("n must be >k: n = "+n+" k = "+k);
+		matrix = GF256.encodeMatrix(k, n);
+	}
+
+	@Override
+	protected void loadFEC() {
+		// Nothing to load.
+	}
+
+	@Override
+	protected void encodeStripe(byte[] buffer, int stride, int length, int[] toEncode) {
+		int[] inputs = new int[k];
+		for(int i = 0; i < k; i++)
+			inputs[i] = i * stride;
+		byte[][] rows = new byte[toEncode.length][];
+		int[] outputs = new int[toEncode.length];
+		for(int x = 0; x < toEncode.length; x++) {
+			rows[x] = matrix[toEncode[x]];
+			outputs[x] = (k + x) * stride;
+		}
+		multiply(buffer, inputs, rows, outputs, length);
+	}
+
+	@Override
+	protected void decodeStripe(byte[] buffer, int stride, int length, int[] packetIndexes) {
+		// Packet i is the sum over j of matrix[packetIndexes[i]][j] times data block j.
+		byte[][] decodeMatrix = new byte[k][];
+		boolean[] present = new boolean[k];
+		int missing = k;
+		for(int i = 0; i < k; i++) {
+			int index = packetIndexes[i];
+			if(index < k) {
+				if(present[index]) throw new IllegalArgumentException("Duplicate packet "+index);
+				present[index] = true;
+				missing--;
+			}
+			decodeMatrix[i] = matrix[index].clone();
+		}
+		if(missing == 0) return;
+		// So data block j is the sum over i of inverse[j][i] times packet i.
+		GF256.invert(decodeMatrix);
+		int[] inputs = new int[k];
+		for(int i = 0; i < k; i++)
+			inputs[i] = i * stride;
+		byte[][] rows = new byte[missing][];
+		int[] outputs = new int[missing];
+		int x = 0;
+		for(int j = 0; j < k; j++) {
+			if(present[j]) continue;
+			rows[x] = decodeMatrix[j];
+			outputs[x] = j * stride;
+			x++;
+		}
+		multiply(buffer, inputs, rows, outputs, length);
+	}
+
+	/**
+	 * Output r is the sum over j of rows[r][j] times input j. The outputs may overwrite the
+	 * inputs: we only write each window once we have read all the inputs for it.
+	 * @param inputs The offset of each input in buffer.
+	 * @param outputs The offset of each output in buffer.
+	 */
+	private void multiply(byte[] buffer, int[] inputs, byte[][] rows, int[] outputs, int length) {
+		int count = rows.length;
+		if(count == 0) return;
+		boolean useTables = count >= MIN_TABLE_OUTPUTS;
+		long[][] sums = null;
+		long[][] low = null;
+		long[][] high = null;
+		if(useTables) {
+			sums = new long[count][WINDOW];
+			low = new long[16][WINDOW];
+			high = new long[16][WINDOW];
+		}
+		int windowBytes = WINDOW * 8;
+		byte[][] byteSums = new byte[count][useTables ? 8 : windowBytes];
+		for(int offset = 0; offset < length; offset += windowBytes) {
+			int bytes = Math.min(windowBytes, length - offset);
+			int words = useTables ? bytes >>> 3 : 0;
+			// Any bytes left over are done a byte at a time.
+			int byteStart = words << 3;
+			int byteCount = bytes - byteStart;
+			for(int r = 0; r < count; r++) {
+				if(useTables)
+					for(int i = 0; i < words; i++) sums[r][i] = 0;
+				for(int i = 0; i < byteCount; i++) byteSums[r][i] = 0;
+			}
+			for(int j = 0; j < inputs.length; j++) {
+				int start = inputs[j] + offset;
+				if(words > 0 && makeTables(buffer, start, words, rows, j, low, high)) {
+					for(int r = 0; r < count; r++) {
+						int c = rows[r][j] & 0xff;
+						if(c == 0) continue;
+						long[] sum = sums[r];
+						long[] l = low[c & 15];
+						long[] h = high[c >>> 4];
+						for(int i = 0; i < words; i++)
+							sum[i] ^= l[i] ^ h[i];
+					}
+				}
+				if(byteCount > 0) {
+					for(int r = 0; r < count; r++)
+						GF256.addMul(byteSums[r], 0, buffer, start + byteStart, rows[r][j] & 0xff, byteCount);
+				}
+			}
+			for(int r = 0; r < count; r++) {
+				int start = outputs[r] + offset;
+				for(int i = 0; i < words; i++)
+					putLong(buffer, start + (i << 3), sums[r][i]);
+				System.arraycopy(byteSums[r], 0, buffer, start + byteStart, byteCount);
+			}
+		}
+	}
+
+	/**
+	 * Compute low[v] = v times the input, and high[v] = (v << 4) times the input, for v in
+	 * [0, 16), for words longs of the input starting at buffer[start].
+	 * @return False if no output uses this input.
+	 */
+	private static boolean makeTables(byte[] buffer, int start, int words, byte[][] rows, int j, long[][] low, long[][] high) {
+		boolean used = false;
+		for(byte[] row : rows) {
+			if(row[j] != 0) {
+				used = true;
+				break;
+			}
+		}
+		if(!used) return false;
+		// low[0] and high[0] are never written so are always 0.
+		long[] one = low[1];
+		for(int i = 0; i < words; i++)
+			one[i] = getLong(buffer, start + (i << 3));
+		for(int v = 2; v < 16; v++) {
+			if((v & 1) == 0)
+				times2(low[v >> 1], low[v], words);
+			else
+				xor(low[v - 1], one, low[v], words);
+		}
+		times2(low[8], high[1], words);
+		one = high[1];
+		for(int v = 2; v < 16; v++) {
+			if((v & 1) == 0)
+				times2(high[v >> 1], high[v], words);
+			else
+				xor(high[v - 1], one, high[v], words);
+		}
+		return true;
+	}
+
+	/** Multiply each of the 8 bytes in each long by 2, modulo the polynomial. */
+	private static void times2(long[] from, long[] to, int words) {
+		for(int i = 0; i < words; i++) {
+			long x = from[i];
+			to[i] = ((x & LOW_BITS) << 1) ^ (((x >>> 7) & HIGH_BIT) * 0x1d);
+		}
+	}
+
+	private static void xor(long[] a, long[] b, long[] to, int words) {
+		for(int i = 0; i < words; i++)
+			to[i] = a[i] ^ b[i];
+	}
+
+	/** The byte order doesn't matter, since we work on each byte separately, so long as it's
+	 * the same both ways. */
+	private static long getLong(byte[] buf, int offset) {
+		return (buf[offset] & 0xffL) | (buf[offset + 1] & 0xffL) << 8 | (buf[offset + 2] & 0xffL) << 16
+			| (buf[offset + 3] & 0xffL) << 24 | (buf[offset + 4] & 0xffL) << 32 | (buf[offset + 5] & 0xffL) << 40
+			| (buf[offset + 6] & 0xffL) << 48 | (buf[offset + 7] & 0xffL) << 56;
+	}
+
+	private static void putLong(byte[] buf, int offset, long x) {
+		buf[offset] = (byte) x;
+		buf[offset + 1] = (byte) (x >>> 8);
+		buf[offset + 2] = (byte) (x >>> 16);
+		buf[offset + 3] = (byte) (x >>> 24);
+		buf[offset + 4] = (byte) (x >>> 32);
+		buf[offset + 5] = (byte) (x >>> 40);
+		buf[offset + 6] = (byte) (x >>> 48);
+		buf[offset + 7] = (byte) (x >>> 56);
+	}
+
+	@Override
+	public byte[][] getEncodeMatrix() {
+		return matrix;
+	}
+
+	@Override
+	public int countCheckBlocks() {
+		return n-k;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":n="+n+",k="+k;
+	}
+
+	@Override
+	public short getAlgorithm() {
+		return Metadata.SPLITFILE_ONION_STANDARD;
+	}
+}
@@ -74,6 +74,8 @@ public class StandardOnionFECCodec extends FECCodec {
 		return codec;
 	}
 
+	private transient byte[][] encodeMatrix;
+
 	public StandardOnionFECCodec(int k, int n) {
 		super(k, n);
 
@@ -134,6 +136,15 @@ public class StandardOnionFECCodec extends FECCodec {
 		return n-k;
 	}
 
+	/** The same matrix as PureCode uses, if it is an 8-bit code. */
+	@Override
+	public synchronized byte[][] getEncodeMatrix() {
+		if(n > 256) return null;
+		if(encodeMatrix == null)
+			encodeMatrix = GF256.encodeMatrix(k, n);
+		return encodeMatrix;
+	}
+
 	@Override
 	public String toString() {
 		return super.toString()+":n="+n+",k="+k;
@@ -1106,14 +1106,19 @@ public class ClientRequestScheduler implements RequestScheduler {
 		return selector.hasKey(key, null, false, null);
 	}
 
+	/** Count the keys the persistent requests are waiting for. Only uses the in-memory key
+	 * listeners, so can be called from any thread, including a ReadOnlyDBJob. */
 	public long countPersistentWaitingKeys(ObjectContainer container) {
 		if(schedCore == null) return 0;
 		return schedCore.countWaitingKeys(container);
 	}
 	
+	/** Count the persistent queued requests. Can be called from a ReadOnlyDBJob. */
 	public long countPersistentQueuedRequests(ObjectContainer container) {
 		if(schedCore == null) return 0;
-		return schedCore.countQueuedRequests(container, clientContext);
+		ClientRequestSchedulerCore core = schedCore.inSession(container);
+		if(core == null) return 0;
+		return core.countQueuedRequests(container, clientContext);
 	}
 
 	public boolean isQueueAlmostEmpty() {
@@ -5,7 +5,10 @@ package freenet.client.async;
 
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.Map;
 
 import com.db4o.ObjectContainer;
 
@@ -21,6 +24,8 @@ import freenet.node.RequestStarter;
 import freenet.node.SendableGet;
 import freenet.node.SendableInsert;
 import freenet.node.SendableRequest;
+import freenet.support.BloomFilter;
+import freenet.support.ByteArrayWrapper;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.RandomGrabArray;
@@ -80,8 +85,25 @@ abstract class ClientRequestSchedulerBase {
 	 */
 	protected SectoredRandomGrabArray[] newPriorities;
 	protected transient ClientRequestScheduler sched;
-	/** Transient even for persistent scheduler. */
+	/** Transient even for persistent scheduler. Listeners which don't fit any of the indexes
+	 * below. These are scanned on every lookup. */
 	protected transient ArrayList<KeyListener> keyListeners;
+	/** Transient. Splitfile listeners. These only have Bloom filters, so we still check every
+	 * one of them, but we compute the hashes of the key for their main filters once for all of
+	 * them, rather than once each, which is most of the cost of a check. */
+	private transient ArrayList<SplitFileFetcherKeyListener> splitfileKeyListeners;
+	/** Transient. USKFetcher's by the public key hash of their USK, since they only want SSKs
+	 * with that hash. Values as for singleKeyListeners. */
+	private transient HashMap<ByteArrayWrapper, Object> uskKeyListeners;
+	private transient int uskKeyListenerCount;
+	/** Transient. SingleKeyListener's by the one key they want. There are usually far more of
+	 * these than of anything else, so we look them up rather than scanning. The value is either
+	 * a KeyListener or a KeyListener[] if several listeners want the same key. */
+	private transient HashMap<Key, Object> singleKeyListeners;
+	/** Transient. The same listeners by owner, for removePendingKeys(HasKeyListener). By
+	 * identity, because that is how the owner was always compared. */
+	private transient IdentityHashMap<HasKeyListener, Object> singleKeyListenersByOwner;
+	private transient int singleKeyListenerCount;
 
 	abstract boolean persistent();
 	
@@ -89,7 +111,7 @@ abstract class ClientRequestSchedulerBase {
 		this.isInsertScheduler = forInserts;
 		this.isSSKScheduler = forSSKs;
 		this.isRTScheduler = forRT;
-		keyListeners = new ArrayList<KeyListener>();
+		initKeyListeners();
 		priorities = null;
 		newPriorities = new SectoredRandomGrabArray[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
 		globalSalt = new byte[32];
@@ -248,60 +270,248 @@ abstract class ClientRequestSchedulerBase {
 		// Do nothing.
 	}
 
+	private synchronized void initKeyListeners() {
+		keyListeners = new ArrayList<KeyListener>();
+		splitfileKeyListeners = new ArrayList<SplitFileFetcherKeyListener>();
+		uskKeyListeners = new HashMap<ByteArrayWrapper, Object>();
+		uskKeyListenerCount = 0;
+		singleKeyListeners = new HashMap<Key, Object>();
+		singleKeyListenersByOwner = new IdentityHashMap<HasKeyListener, Object>();
+		singleKeyListenerCount = 0;
+	}
+
 	public void addPendingKeys(KeyListener listener) {
 		if(listener == null) throw new NullPointerException();
 		synchronized (this) {
 			// We have to register before checking the disk, so it may well get registered twice.
-			if(keyListeners.contains(listener))
-				return;
-			keyListeners.add(listener);
+			if(listener instanceof SingleKeyListener) {
+				SingleKeyListener single = (SingleKeyListener) listener;
+				HasKeyListener owner = single.getHasKeyListener();
+				if(contains(singleKeyListenersByOwner.get(owner), listener))
+					return;
+				addTo(singleKeyListeners, single.getKey(), listener);
+				addTo(singleKeyListenersByOwner, owner, listener);
+				singleKeyListenerCount++;
+			} else if(listener instanceof USKFetcher) {
+				ByteArrayWrapper hash = new ByteArrayWrapper(((USKFetcher) listener).getPubKeyHash());
+				if(contains(uskKeyListeners.get(hash), listener))
+					return;
+				addTo(uskKeyListeners, hash, listener);
+				uskKeyListenerCount++;
+			} else if(listener instanceof SplitFileFetcherKeyListener) {
+				if(splitfileKeyListeners.contains(listener))
+					return;
+				splitfileKeyListeners.add((SplitFileFetcherKeyListener) listener);
+			} else {
+				if(keyListeners.contains(listener))
+					return;
+				keyListeners.add(listener);
+			}
 		}
 		if (logMINOR)
-			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
+			Logger.minor(this, "Added pending keys to "+this+" : size now "+countKeyListeners()+" : "+listener);
 	}
 	
 	public boolean removePendingKeys(KeyListener listener) {
 		boolean ret;
 		synchronized (this) {
-			ret = keyListeners.remove(listener);
-			while(logMINOR && keyListeners.remove(listener))
+			ret = removeKeyListener(listener);
+			while(logMINOR && removeKeyListener(listener))
 				Logger.error(this, "Still in pending keys after removal, must be in twice or more: "+listener, new Exception("error"));
 			listener.onRemove();
 		}
 		if (logMINOR)
-			Logger.minor(this, "Removed pending keys from "+this+" : size now "+keyListeners.size()+" : "+listener, new Exception("debug"));
+			Logger.minor(this, "Removed pending keys from "+this+" : size now "+countKeyListeners()+" : "+listener, new Exception("debug"));
 		return ret;
 	}
 	
 	public synchronized boolean removePendingKeys(HasKeyListener hasListener) {
 		boolean found = false;
-		for(Iterator<KeyListener> i = keyListeners.iterator();i.hasNext();) {
-			KeyListener listener = i.next();
+		Object singles = singleKeyListenersByOwner.remove(hasListener);
+		if(singles != null) {
+			for(KeyListener listener : toArray(singles)) {
+				found = true;
+				removeFrom(singleKeyListeners, ((SingleKeyListener) listener).getKey(), listener);
+				singleKeyListenerCount--;
+				listener.onRemove();
+				Logger.normal(this, "Removed pending keys from "+this+" : size now "+countKeyListeners()+" : "+listener);
+			}
+		}
+		if(hasListener instanceof USKFetcher) {
+			USKFetcher fetcher = (USKFetcher) hasListener;
+			if(removeFrom(uskKeyListeners, new ByteArrayWrapper(fetcher.getPubKeyHash()), fetcher)) {
+				found = true;
+				uskKeyListenerCount--;
+				fetcher.onRemove();
+				Logger.normal(this, "Removed pending keys from "+this+" : size now "+countKeyListeners()+" : "+fetcher);
+			}
+		}
+		if(removePendingKeys(splitfileKeyListeners.iterator(), hasListener))
+			found = true;
+		if(removePendingKeys(keyListeners.iterator(), hasListener))
+			found = true;
+		return found;
+	}
+	
+	/** Caller must hold the lock. */
+	private boolean removePendingKeys(Iterator<? extends KeyListener> it, HasKeyListener hasListener) {
+		boolean found = false;
+		while(it.hasNext()) {
+			KeyListener listener = it.next();
 			if(listener == null) {
-				i.remove();
+				it.remove();
 				Logger.error(this, "Null KeyListener in removePendingKeys()");
 				continue;
 			}
 			if(listener.getHasKeyListener() == hasListener) {
 				found = true;
-				i.remove();
+				it.remove();
 				listener.onRemove();
-				Logger.normal(this, "Removed pending keys from "+this+" : size now "+keyListeners.size()+" : "+listener);
+				Logger.normal(this, "Removed pending keys from "+this+" : size now "+countKeyListeners()+" : "+listener);
 			}
 		}
 		return found;
 	}
 	
-	public short getKeyPrio(Key key, short priority, ObjectContainer container, ClientContext context) {
-		assert(key instanceof NodeSSK == isSSKScheduler);
-		byte[] saltedKey = saltKey(key);
+	/** Caller must hold the lock. */
+	private boolean removeKeyListener(KeyListener listener) {
+		if(listener instanceof SingleKeyListener) {
+			SingleKeyListener single = (SingleKeyListener) listener;
+			if(!removeFrom(singleKeyListenersByOwner, single.getHasKeyListener(), listener))
+				return false;
+			removeFrom(singleKeyListeners, single.getKey(), listener);
+			singleKeyListenerCount--;
+			return true;
+		}
+		if(listener instanceof USKFetcher) {
+			if(!removeFrom(uskKeyListeners, new ByteArrayWrapper(((USKFetcher) listener).getPubKeyHash()), listener))
+				return false;
+			uskKeyListenerCount--;
+			return true;
+		}
+		if(listener instanceof SplitFileFetcherKeyListener)
+			return splitfileKeyListeners.remove(listener);
+		return keyListeners.remove(listener);
+	}
+	
+	private synchronized int countKeyListeners() {
+		return keyListeners.size() + splitfileKeyListeners.size() + uskKeyListenerCount + singleKeyListenerCount;
+	}
+	
+	/**
+	 * Find the listeners which probably want a key: one lookup each for the single key 
+	 * listeners and the USKs, the Bloom filters of the splitfiles with the key's hashes 
+	 * computed once, then anything else. Caller must hold the lock.
+	 * @param firstOnly If true, stop at the first match.
+	 * @return The matching listeners, or null if there are none.
+	 */
+	private ArrayList<KeyListener> probablyWantKey(Key key, byte[] saltedKey, boolean firstOnly) {
 		ArrayList<KeyListener> matches = null;
-		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
+		Object singles = singleKeyListeners.get(key);
+		if(singles != null) {
+			for(KeyListener listener : toArray(singles)) {
 				if(!listener.probablyWantKey(key, saltedKey)) continue;
 				if(matches == null) matches = new ArrayList<KeyListener> ();
 				matches.add(listener);
+				if(firstOnly) return matches;
+			}
+		}
+		if(key instanceof NodeSSK && uskKeyListenerCount > 0) {
+			Object usks = uskKeyListeners.get(new ByteArrayWrapper(((NodeSSK) key).getPubKeyHash()));
+			if(usks != null) {
+				for(KeyListener listener : toArray(usks)) {
+					if(!listener.probablyWantKey(key, saltedKey)) continue;
+					if(matches == null) matches = new ArrayList<KeyListener> ();
+					matches.add(listener);
+					if(firstOnly) return matches;
+				}
+			}
+		}
+		if(!splitfileKeyListeners.isEmpty()) {
+			BloomFilter.KeyHashes hashes = new BloomFilter.KeyHashes(saltedKey);
+			for(SplitFileFetcherKeyListener listener : splitfileKeyListeners) {
+				if(!listener.probablyWantKey(key, hashes)) continue;
+				if(matches == null) matches = new ArrayList<KeyListener> ();
+				if(matches.contains(listener)) {
+					Logger.error(this, "In matches twice, presumably in splitfileKeyListeners twice?: "+listener);
+					continue;
+				}
+				matches.add(listener);
+				if(firstOnly) return matches;
+			}
+		}
+		for(KeyListener listener : keyListeners) {
+			if(!listener.probablyWantKey(key, saltedKey)) continue;
+			if(matches == null) matches = new ArrayList<KeyListener> ();
+			if(matches.contains(listener)) {
+				Logger.error(this, "In matches twice, presumably in keyListeners twice?: "+listener);
+				continue;
 			}
+			matches.add(listener);
+			if(firstOnly) return matches;
+		}
+		return matches;
+	}
+	
+	private static <K> void addTo(Map<K, Object> map, K k, KeyListener listener) {
+		Object o = map.get(k);
+		if(o == null) {
+			map.put(k, listener);
+		} else if(o instanceof KeyListener) {
+			map.put(k, new KeyListener[] { (KeyListener) o, listener });
+		} else {
+			KeyListener[] old = (KeyListener[]) o;
+			KeyListener[] listeners = new KeyListener[old.length+1];
+			System.arraycopy(old, 0, listeners, 0, old.length);
+			listeners[old.length] = listener;
+			map.put(k, listeners);
+		}
+	}
+	
+	private static <K> boolean removeFrom(Map<K, Object> map, K k, KeyListener listener) {
+		Object o = map.get(k);
+		if(o == null) return false;
+		if(o instanceof KeyListener) {
+			if(o != listener) return false;
+			map.remove(k);
+			return true;
+		}
+		KeyListener[] old = (KeyListener[]) o;
+		for(int i=0;i<old.length;i++) {
+			if(old[i] != listener) continue;
+			if(old.length == 2) {
+				map.put(k, old[1-i]);
+			} else {
+				KeyListener[] listeners = new KeyListener[old.length-1];
+				System.arraycopy(old, 0, listeners, 0, i);
+				System.arraycopy(old, i+1, listeners, i, old.length-i-1);
+				map.put(k, listeners);
+			}
+			return true;
+		}
+		return false;
+	}
+	
+	private static boolean contains(Object o, KeyListener listener) {
+		if(o == null) return false;
+		if(o == listener) return true;
+		if(o instanceof KeyListener) return false;
+		for(KeyListener l : (KeyListener[]) o)
+			if(l == listener) return true;
+		return false;
+	}
+	
+	private static KeyListener[] toArray(Object o) {
+		if(o instanceof KeyListener) return new KeyListener[] { (KeyListener) o };
+		return (KeyListener[]) o;
+	}
+	
+	public short getKeyPrio(Key key, short priority, ObjectContainer container, ClientContext context) {
+		assert(key instanceof NodeSSK == isSSKScheduler);
+		byte[] saltedKey = saltKey(key);
+		ArrayList<KeyListener> matches;
+		synchronized(this) {
+			matches = probablyWantKey(key, saltedKey, false);
 		}
 		if(matches == null) return priority;
 		for(KeyListener listener : matches) {
@@ -316,19 +526,23 @@ abstract class ClientRequestSchedulerBase {
 		long count = 0;
 		for(KeyListener listener : keyListeners)
 			count += listener.countKeys();
+		for(KeyListener listener : splitfileKeyListeners)
+			count += listener.countKeys();
+		for(Object o : uskKeyListeners.values())
+			for(KeyListener listener : toArray(o))
+				count += listener.countKeys();
+		for(Object o : singleKeyListeners.values())
+			for(KeyListener listener : toArray(o))
+				count += listener.countKeys();
 		return count;
 	}
 	
 	public boolean anyWantKey(Key key, ObjectContainer container, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
+		ArrayList<KeyListener> matches;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				matches.add(listener);
-			}
+			matches = probablyWantKey(key, saltedKey, false);
 		}
 		if(matches != null) {
 			for(KeyListener listener : matches) {
@@ -342,11 +556,7 @@ abstract class ClientRequestSchedulerBase {
 	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		for(KeyListener listener : keyListeners) {
-			if(listener.probablyWantKey(key, saltedKey))
-				return true;
-		}
-		return false;
+		return probablyWantKey(key, saltedKey, true) != null;
 	}
 	
 	private long persistentTruePositives;
@@ -360,17 +570,9 @@ abstract class ClientRequestSchedulerBase {
 		}
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
+		ArrayList<KeyListener> matches;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				if(matches.contains(listener)) {
-					Logger.error(this, "In matches twice, presumably in keyListeners twice?: "+listener);
-					continue;
-				}
-				matches.add(listener);
-			}
+			matches = probablyWantKey(key, saltedKey, false);
 		}
 		boolean ret = false;
 		if(matches != null) {
@@ -379,7 +581,7 @@ abstract class ClientRequestSchedulerBase {
 					ret = true;
 				if(listener.isEmpty()) {
 					synchronized(this) {
-						keyListeners.remove(listener);
+						removeKeyListener(listener);
 					}
 					listener.onRemove();
 				}
@@ -447,8 +649,9 @@ abstract class ClientRequestSchedulerBase {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
 		synchronized(this) {
-		for(KeyListener listener : keyListeners) {
-			if(!listener.probablyWantKey(key, saltedKey)) continue;
+		ArrayList<KeyListener> matches = probablyWantKey(key, saltedKey, false);
+		if(matches == null) return null;
+		for(KeyListener listener : matches) {
 			SendableGet[] reqs = listener.getRequestsForKey(key, saltedKey, container, context);
 			if(reqs == null) continue;
 			if(list == null) list = new ArrayList<SendableGet>();
@@ -460,7 +663,7 @@ abstract class ClientRequestSchedulerBase {
 	}
 	
 	public void onStarted(ObjectContainer container, ClientContext context) {
-		keyListeners = new ArrayList<KeyListener>();
+		initKeyListeners();
 		if(newPriorities == null) {
 			newPriorities = new SectoredRandomGrabArray[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
 			if(persistent()) container.store(this);
@@ -506,19 +709,19 @@ abstract class ClientRequestSchedulerBase {
 						retryTracker.removeFrom(container);
 					}
 					retryList.remove(retryCount, container);
-					if(persistent()) container.commit();
+					if(persistent()) DBCommitLock.commit(container);
 					System.out.println("Migrated retry count "+retryCount+" on priority "+prio);
 				}
 			}
 			retryList.removeFrom(container);
 			priorities[prio] = null;
-			if(persistent()) container.commit();
+			if(persistent()) DBCommitLock.commit(container);
 			System.out.println("Migrated priority "+prio);
 		}
 		if(persistent()) {
 			priorities = null;
 			container.store(this);
-			container.commit();
+			DBCommitLock.commit(container);
 			System.out.println("Migrated all priorities");
 		}
 	}
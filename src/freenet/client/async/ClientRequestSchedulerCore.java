@@ -55,20 +55,8 @@ class ClientRequestSchedulerCore extends ClientRequestSchedulerBase {
 		if(selectorContainer == null) {
 			return null;
 		}
-		ObjectSet<ClientRequestSchedulerCore> results = selectorContainer.query(new Predicate<ClientRequestSchedulerCore>() {
-			final private static long serialVersionUID = -7517827015509774396L;
-			@Override
-			public boolean match(ClientRequestSchedulerCore core) {
-				if(core.nodeDBHandle != nodeDBHandle) return false;
-				if(core.isInsertScheduler != forInserts) return false;
-				if(core.isSSKScheduler != forSSKs) return false;
-				if(core.isRTScheduler != forRT) return false;
-				return true;
-			}
-		});
-		ClientRequestSchedulerCore core;
-		if(results.hasNext()) {
-			core = results.next();
+		ClientRequestSchedulerCore core = find(selectorContainer, nodeDBHandle, forInserts, forSSKs, forRT);
+		if(core != null) {
 			selectorContainer.activate(core, 2);
 			System.err.println("Loaded core...");
 			if(core.nodeDBHandle != nodeDBHandle) throw new IllegalStateException("Wrong nodeDBHandle");
@@ -83,6 +71,36 @@ class ClientRequestSchedulerCore extends ClientRequestSchedulerBase {
 		return core;
 	}
 
+	private static ClientRequestSchedulerCore find(ObjectContainer container, final long nodeDBHandle, final boolean forInserts, final boolean forSSKs, final boolean forRT) {
+		ObjectSet<ClientRequestSchedulerCore> results = container.query(new Predicate<ClientRequestSchedulerCore>() {
+			final private static long serialVersionUID = -7517827015509774396L;
+			@Override
+			public boolean match(ClientRequestSchedulerCore core) {
+				if(core.nodeDBHandle != nodeDBHandle) return false;
+				if(core.isInsertScheduler != forInserts) return false;
+				if(core.isSSKScheduler != forSSKs) return false;
+				if(core.isRTScheduler != forRT) return false;
+				return true;
+			}
+		});
+		if(results.hasNext())
+			return results.next();
+		return null;
+	}
+
+	/**
+	 * Get this core as seen by another session of the database, e.g. the snapshot a
+	 * ReadOnlyDBJob runs on. That is a different instance, which must be used instead of this
+	 * one with that session.
+	 * @return The session's copy, activated, or null if it isn't in the session.
+	 */
+	ClientRequestSchedulerCore inSession(ObjectContainer container) {
+		if(container.ext().isStored(this)) return this;
+		ClientRequestSchedulerCore core = find(container, nodeDBHandle, isInsertScheduler, isSSKScheduler, isRTScheduler);
+		if(core != null) container.activate(core, 2);
+		return core;
+	}
+
 	ClientRequestSchedulerCore(Node node, boolean forInserts, boolean forSSKs, boolean forRT, ObjectContainer selectorContainer, long cooldownTime) {
 		super(forInserts, forSSKs, forRT, node.random);
 		this.nodeDBHandle = node.nodeDBHandle;
@@ -421,7 +421,7 @@ public abstract class ClientRequester {
 						if(logMINOR) Logger.minor(req, "Request is clean.");
 					else {
 						WrapperManager.signalStarting(5*60*1000);
-						container.commit();
+						DBCommitLock.commit(container);
 					}
 				}
 			} catch (Throwable t) {
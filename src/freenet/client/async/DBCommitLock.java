@@ -0,0 +1,43 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.db4o.ObjectContainer;
+
+/**
+ * Keeps commits of the client database apart from ReadOnlyDBJob's running on snapshots. A
+ * snapshot job holds the read lock while it runs, and every commit of the node's database,
+ * whether at the end of a job or part way through one, goes through commit(), which takes the
+ * write lock. So a snapshot job only ever sees one commit.
+ */
+public final class DBCommitLock {
+
+	private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	private DBCommitLock() {
+		// Static only.
+	}
+
+	/** Commit the node's database. Waits for any snapshot jobs which are running to finish,
+	 * and stops new ones starting until the commit is done. Must be called instead of
+	 * container.commit() for the node's database. */
+	public static void commit(ObjectContainer container) {
+		Lock l = lock.writeLock();
+		l.lock();
+		try {
+			container.commit();
+		} finally {
+			l.unlock();
+		}
+	}
+
+	/** The lock a snapshot job holds while it runs. */
+	public static Lock readLock() {
+		return lock.readLock();
+	}
+
+}
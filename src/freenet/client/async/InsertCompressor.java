@@ -1,8 +1,10 @@
 package freenet.client.async;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
@@ -23,6 +25,7 @@ import freenet.support.api.BucketFactory;
 import freenet.support.compress.CompressJob;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.InvalidCompressionCodecException;
+import freenet.support.compress.RealCompressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketChainBucketFactory;
 import freenet.support.io.Closer;
@@ -129,6 +132,12 @@ public class InsertCompressor implements CompressJob {
 		try {
 			BucketChainBucketFactory bucketFactory2 = new BucketChainBucketFactory(bucketFactory, CHKBlock.DATA_LENGTH, persistent ? context.jobRunner : null, 1024, true);
 			COMPRESSOR_TYPE[] comps = COMPRESSOR_TYPE.getCompressorsArray(compressorDescriptor, pre1254);
+			if(comps.length > 1 && context.rc.getParallelCodecs()) {
+				CompressionOutput output = compressParallel(comps, bucketFactory2, origSize, context);
+				bestCompressedData = output.data;
+				onCompressed(output, context);
+				return;
+			}
 			boolean first = true;
 			for (final COMPRESSOR_TYPE comp : comps) {
 				boolean shouldFreeOnFinally = true;
@@ -136,32 +145,7 @@ public class InsertCompressor implements CompressJob {
 				try {
 					if(logMINOR)
 						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					final int phase = comp.metadataID;
-					if(persistent) {
-						context.jobRunner.queue(new DBJob() {
-
-							public boolean run(ObjectContainer container, ClientContext context) {
-								if(!container.ext().isStored(inserter)) {
-									if(InsertCompressor.logMINOR) Logger.minor(this, "Already deleted (start compression): "+inserter+" for "+InsertCompressor.this);
-									return false;
-								}
-								if(container.ext().isActive(inserter))
-									Logger.error(this, "ALREADY ACTIVE in start compression callback: "+inserter);
-								container.activate(inserter, 1);
-								inserter.onStartCompression(comp, container, context);
-								container.deactivate(inserter, 1);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1, false);
-					} else {
-						try {
-							inserter.onStartCompression(comp, null, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
+					onStartCompression(comp, context);
 
 					InputStream is = null;
 					OutputStream os = null;
@@ -228,46 +212,7 @@ public class InsertCompressor implements CompressJob {
 				}
 			}
 			
-			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec, hashes);
-			
-			if(persistent) {
-			
-				context.jobRunner.queue(new DBJob() {
-					
-					public boolean run(ObjectContainer container, ClientContext context) {
-						if(!container.ext().isStored(inserter)) {
-							if(InsertCompressor.logMINOR) Logger.minor(this, "Already deleted: "+inserter+" for "+InsertCompressor.this);
-							container.delete(InsertCompressor.this);
-							return false;
-						}
-						if(container.ext().isActive(inserter))
-							Logger.error(this, "ALREADY ACTIVE in compressed callback: "+inserter);
-						container.activate(inserter, 1);
-						inserter.onCompressed(output, container, context);
-						container.deactivate(inserter, 1);
-						container.delete(InsertCompressor.this);
-						return true;
-					}
-					
-				}, NativeThread.NORM_PRIORITY+1, false);
-			} else {
-				// We do it off thread so that RealCompressor can release the semaphore
-				context.mainExecutor.execute(new PrioRunnable() {
-
-					public int getPriority() {
-						return NativeThread.NORM_PRIORITY;
-					}
-
-					public void run() {
-						try {
-							inserter.onCompressed(output, null, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Caught "+t+" running compression job", t);
-						}
-					}
-					
-				}, "Insert thread for "+this);
-			}
+			onCompressed(new CompressionOutput(bestCompressedData, bestCodec, hashes), context);
 		} catch (DatabaseDisabledException e) {
 			Logger.error(this, "Database disabled compressing data", new Exception("error"));
 			if(bestCompressedData != null && bestCompressedData != origData)
@@ -279,6 +224,284 @@ public class InsertCompressor implements CompressJob {
 		}	
 	}
 
+	/**
+	 * State shared by the codecs compressing the same data in parallel: the best output so far,
+	 * and whether any codec has already got the data into a single block.
+	 */
+	private class CodecRace {
+		private final BucketChainBucketFactory bf;
+		private final long origSize;
+		/** Size of the best output so far. Other codecs give up as soon as they exceed it. */
+		private volatile long bestSize;
+		/** Set when a codec has fitted the data in one block. Other codecs give up. */
+		private volatile boolean finished;
+		private Bucket best;
+		private COMPRESSOR_TYPE bestCodec;
+		private HashResult[] hashes;
+		private int running;
+		private IOException error;
+		private boolean databaseDisabled;
+
+		CodecRace(BucketChainBucketFactory bf, long origSize) {
+			this.bf = bf;
+			this.origSize = origSize;
+			this.bestSize = origSize;
+		}
+
+		/**
+		 * Compress the original data with one codec.
+		 * @param hash If true, compute the hashes, and run to the end even if we can't win.
+		 */
+		void compress(COMPRESSOR_TYPE comp, ClientContext context, boolean hash) {
+			Bucket result = null;
+			boolean won = false;
+			try {
+				if(finished && !hash) return;
+				if(logMINOR)
+					Logger.minor(InsertCompressor.this, "Attempt to compress using " + comp + " in parallel");
+				onStartCompression(comp, context);
+				InputStream is = null;
+				OutputStream os = null;
+				MultiHashInputStream hasher = null;
+				try {
+					is = origData.getInputStream();
+					if(hash) {
+						if(logMINOR) Logger.minor(InsertCompressor.this, "Generating hashes: "+generateHashes);
+						is = hasher = new MultiHashInputStream(is, generateHashes);
+					}
+					result = bf.makeBucket(-1);
+					os = new RaceOutputStream(result.getOutputStream(), hash ? null : this);
+					try {
+						comp.compress(is, os, origSize, hash ? Long.MAX_VALUE : origSize);
+					} catch (RuntimeException e) {
+						// ArithmeticException has been seen in bzip2 codec.
+						Logger.error(InsertCompressor.this, "Compression failed with codec "+comp+" : "+e, e);
+						return;
+					}
+				} finally {
+					Closer.close(is);
+					Closer.close(os);
+				}
+				if(hasher != null) {
+					synchronized(this) {
+						hashes = hasher.getResults();
+					}
+				}
+				won = offer(comp, result, result.size());
+			} catch (CompressionOutputSizeException e) {
+				// Lost.
+				if(logMINOR) Logger.minor(InsertCompressor.this, "Giving up on "+comp+" : bigger than "+bestSize+" finished="+finished);
+			} catch (DatabaseDisabledException e) {
+				synchronized(this) {
+					databaseDisabled = true;
+				}
+			} catch (IOException e) {
+				synchronized(this) {
+					if(error == null) error = e;
+				}
+				finished = true;
+			} finally {
+				if(!won && result != null)
+					result.free();
+			}
+		}
+
+		/** @return True if the result is the new best, and we must not free it. */
+		private synchronized boolean offer(COMPRESSOR_TYPE comp, Bucket result, long resultSize) {
+			if(resultSize >= bestSize) return false;
+			if(logMINOR)
+				Logger.minor(InsertCompressor.this, "New size "+resultSize+" from "+comp+" better than old best "+bestSize);
+			if(best != null)
+				best.free();
+			best = result;
+			bestSize = resultSize;
+			bestCodec = comp;
+			// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
+			if(resultSize <= minSize) {
+				if(logMINOR)
+					Logger.minor(InsertCompressor.this, "New size "+resultSize+" smaller then minSize "+minSize);
+				finished = true;
+			}
+			return true;
+		}
+
+		synchronized void addRunning() {
+			running++;
+		}
+
+		synchronized void removeRunning() {
+			running--;
+			notifyAll();
+		}
+
+		/** Wait for the codecs running on other threads, then return the winner. */
+		synchronized CompressionOutput waitForResult() throws IOException, DatabaseDisabledException {
+			while(running > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			if(error != null || databaseDisabled) {
+				if(best != null) best.free();
+				if(databaseDisabled) throw new DatabaseDisabledException();
+				throw error;
+			}
+			if(best == null)
+				return new CompressionOutput(origData, null, hashes);
+			return new CompressionOutput(best, bestCodec, hashes);
+		}
+
+	}
+
+	/**
+	 * Counts the compressed output and throws CompressionOutputSizeException as soon as it is
+	 * bigger than the best so far, or another codec has finished, so losing codecs stop early.
+	 */
+	private static class RaceOutputStream extends FilterOutputStream {
+
+		private final CodecRace race;
+		private long written;
+
+		/** @param race If null, never give up. */
+		RaceOutputStream(OutputStream os, CodecRace race) {
+			super(os);
+			this.race = race;
+		}
+
+		private void check(int length) throws CompressionOutputSizeException {
+			written += length;
+			if(race != null && (race.finished || written >= race.bestSize))
+				throw new CompressionOutputSizeException(written);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			check(1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			check(length);
+			out.write(buf, offset, length);
+		}
+
+	}
+
+	/**
+	 * Try all the codecs at once, on up to as many threads as RealCompressor allows, and keep
+	 * the smallest output. Codecs give up as soon as their output is bigger than the best
+	 * complete output so far, and all of them stop as soon as one fits the data in a single
+	 * block. The first codec runs on this thread, and computes the hashes if we want them.
+	 */
+	private CompressionOutput compressParallel(COMPRESSOR_TYPE[] comps, BucketChainBucketFactory bf, long origSize, final ClientContext context) throws IOException, DatabaseDisabledException {
+		final CodecRace race = new CodecRace(bf, origSize);
+		ArrayList<COMPRESSOR_TYPE> local = new ArrayList<COMPRESSOR_TYPE>();
+		for(int i = 1; i < comps.length; i++) {
+			final COMPRESSOR_TYPE comp = comps[i];
+			// We already hold one permit, for this thread.
+			if(!RealCompressor.compressorSemaphore.tryAcquire()) {
+				local.add(comp);
+				continue;
+			}
+			race.addRunning();
+			context.mainExecutor.execute(new PrioRunnable() {
+
+				public void run() {
+					freenet.support.Logger.OSThread.logPID(this);
+					try {
+						race.compress(comp, context, false);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" compressing with "+comp, t);
+					} finally {
+						RealCompressor.compressorSemaphore.release();
+						race.removeRunning();
+					}
+				}
+
+				public int getPriority() {
+					return NativeThread.MIN_PRIORITY;
+				}
+
+			}, "Parallel compressor ("+comp+") for "+this);
+		}
+		race.compress(comps[0], context, generateHashes != 0);
+		for(COMPRESSOR_TYPE comp : local)
+			race.compress(comp, context, false);
+		return race.waitForResult();
+	}
+
+	private void onStartCompression(final COMPRESSOR_TYPE comp, ClientContext context) throws DatabaseDisabledException {
+		// Only produce if we are compressing *the original data*
+		if(persistent) {
+			context.jobRunner.queue(new DBJob() {
+
+				public boolean run(ObjectContainer container, ClientContext context) {
+					if(!container.ext().isStored(inserter)) {
+						if(InsertCompressor.logMINOR) Logger.minor(this, "Already deleted (start compression): "+inserter+" for "+InsertCompressor.this);
+						return false;
+					}
+					if(container.ext().isActive(inserter))
+						Logger.error(this, "ALREADY ACTIVE in start compression callback: "+inserter);
+					container.activate(inserter, 1);
+					inserter.onStartCompression(comp, container, context);
+					container.deactivate(inserter, 1);
+					return false;
+				}
+
+			}, NativeThread.NORM_PRIORITY+1, false);
+		} else {
+			try {
+				inserter.onStartCompression(comp, null, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+
+	private void onCompressed(final CompressionOutput output, final ClientContext context) throws DatabaseDisabledException {
+		if(persistent) {
+		
+			context.jobRunner.queue(new DBJob() {
+				
+				public boolean run(ObjectContainer container, ClientContext context) {
+					if(!container.ext().isStored(inserter)) {
+						if(InsertCompressor.logMINOR) Logger.minor(this, "Already deleted: "+inserter+" for "+InsertCompressor.this);
+						container.delete(InsertCompressor.this);
+						return false;
+					}
+					if(container.ext().isActive(inserter))
+						Logger.error(this, "ALREADY ACTIVE in compressed callback: "+inserter);
+					container.activate(inserter, 1);
+					inserter.onCompressed(output, container, context);
+					container.deactivate(inserter, 1);
+					container.delete(InsertCompressor.this);
+					return true;
+				}
+				
+			}, NativeThread.NORM_PRIORITY+1, false);
+		} else {
+			// We do it off thread so that RealCompressor can release the semaphore
+			context.mainExecutor.execute(new PrioRunnable() {
+
+				public int getPriority() {
+					return NativeThread.NORM_PRIORITY;
+				}
+
+				public void run() {
+					try {
+						inserter.onCompressed(output, null, context);
+					} catch (Throwable t) {
+						Logger.error(this, "Caught "+t+" running compression job", t);
+					}
+				}
+				
+			}, "Insert thread for "+this);
+		}
+	}
+
 	private void fail(final InsertException ie, ClientContext context, Bucket bestCompressedData) {
 		if(persistent) {
 			try {
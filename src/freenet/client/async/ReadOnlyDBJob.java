@@ -0,0 +1,28 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+/**
+ * A database job which only reads, e.g. a listing or a status query for the UI. If the node
+ * allows it, DBJobRunner.queue() runs these on a separate pool of threads, concurrently with
+ * each other and with the database thread, rather than waiting behind everything else on the
+ * database thread.
+ *
+ * The container passed in is then a separate db4o session, which sees the database as of the
+ * last commit, and no commit happens while the job is running, so the job sees a consistent
+ * snapshot. This means:
+ * - The job must not store or delete anything. Anything it does change is rolled back.
+ * - The objects it gets from the container are not the same instances as the database
+ *   thread's. It must get everything it needs through the container, e.g. by a query, and
+ *   must not use persistent objects it got from elsewhere, nor pass the ones it gets to
+ *   other jobs.
+ * - It is not on the database thread, so it must not call anything which checks for that.
+ * - It must not wait for other database jobs, e.g. with runBlocking(): the database thread
+ *   may be waiting for it to finish before it can commit.
+ * If the pool is disabled, the job runs on the database thread like any other job, and sees
+ * uncommitted changes.
+ */
+public interface ReadOnlyDBJob extends DBJob {
+
+}
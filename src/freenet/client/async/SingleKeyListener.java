@@ -74,6 +74,11 @@ public class SingleKeyListener implements KeyListener {
 		return new Key[] { key };
 	}
 
+	/** The only key we want. Never changes, so the scheduler can index us by it. */
+	Key getKey() {
+		return key;
+	}
+
 	public boolean persistent() {
 		return persistent;
 	}
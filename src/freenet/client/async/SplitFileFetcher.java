@@ -302,17 +302,27 @@ public class SplitFileFetcher implements ClientGetState, HasKeyListener {
 		boolean pre1250 = (minCompatMode == CompatibilityMode.COMPAT_UNKNOWN || minCompatMode == CompatibilityMode.COMPAT_1250_EXACT);
 		
 		int maxRetries = blockFetchContext.maxSplitfileBlockRetries;
+		for(SplitFileSegmentKeys keys : segmentKeys) {
+			if((keys.getDataBlocks() > fetchContext.maxDataBlocksPerSegment)
+					|| (keys.getCheckBlocks() > fetchContext.maxCheckBlocksPerSegment))
+				throw new FetchException(FetchException.TOO_MANY_BLOCKS_PER_SEGMENT, "Too many blocks per segment: "+blocksPerSegment+" data, "+checkBlocksPerSegment+" check");
+		}
+		// Keep the keys and the retry counts in a file rather than in the database.
+		SplitFileStateFile stateFile = null;
+		if(persistent && context.persistentFG != null) {
+			try {
+				stateFile = SplitFileStateFile.create(context.persistentFG.makeRandomFile(), segmentKeys);
+			} catch (IOException e) {
+				throw new FetchException(FetchException.BUCKET_ERROR, "Unable to write splitfile state file: "+e);
+			}
+			container.store(stateFile);
+		}
 		for(int i=0;i<segments.length;i++) {
 			// splitfile* will be overwritten, this is bad
 			// so copy them
 			SplitFileSegmentKeys keys = segmentKeys[i];
-			int dataBlocks = keys.getDataBlocks();
-			int checkBlocks = keys.getCheckBlocks();
-			if((dataBlocks > fetchContext.maxDataBlocksPerSegment)
-					|| (checkBlocks > fetchContext.maxCheckBlocksPerSegment))
-				throw new FetchException(FetchException.TOO_MANY_BLOCKS_PER_SEGMENT, "Too many blocks per segment: "+blocksPerSegment+" data, "+checkBlocksPerSegment+" check");
 			segments[i] = new SplitFileFetcherSegment(splitfileType, keys,
-					this, archiveContext, blockFetchContext, maxTempLength, recursionLevel, parent, i, pre1250, pre1254, crossCheckBlocks, metadata.getSplitfileCryptoAlgorithm(), metadata.getSplitfileCryptoKey(), maxRetries, realTimeFlag);
+					this, archiveContext, blockFetchContext, maxTempLength, recursionLevel, parent, i, pre1250, pre1254, crossCheckBlocks, metadata.getSplitfileCryptoAlgorithm(), metadata.getSplitfileCryptoKey(), maxRetries, realTimeFlag, stateFile);
 			int data = keys.getDataBlocks();
 			int check = keys.getCheckBlocks();
 			for(int j=0;j<(data+check);j++) {
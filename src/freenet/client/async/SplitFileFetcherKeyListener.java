@@ -15,6 +15,7 @@ import freenet.keys.Key;
 import freenet.keys.KeyBlock;
 import freenet.node.SendableGet;
 import freenet.support.BinaryBloomFilter;
+import freenet.support.BloomFilter;
 import freenet.support.CountingBloomFilter;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
@@ -201,8 +202,16 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 	}
 
 	public boolean probablyWantKey(Key key, byte[] saltedKey) {
+		return probablyWantKey(key, new BloomFilter.KeyHashes(saltedKey));
+	}
+
+	/**
+	 * As probablyWantKey(), but with the hashes of saltedKey for the main filter shared with
+	 * the other splitfiles, so checking a key against many splitfiles is cheap.
+	 */
+	boolean probablyWantKey(Key key, BloomFilter.KeyHashes saltedKeyHashes) {
 		if(filter == null) Logger.error(this, "Probably want key: filter = null for "+this+ " fetcher = "+fetcher);
-		if(filter.checkFilter(saltedKey)) {
+		if(filter.checkFilter(saltedKeyHashes)) {
 			byte[] salted = localSaltKey(key);
 			for(int i=0;i<segmentFilters.length;i++) {
 				if(segmentFilters[i].checkFilter(salted)) {
@@ -18,6 +18,7 @@ import freenet.client.ArchiveContext;
 import freenet.client.FECCallback;
 import freenet.client.FECCodec;
 import freenet.client.FECJob;
+import freenet.client.ProgressiveFECDecoder;
 import freenet.client.FECQueue;
 import freenet.client.FailureCodeTracker;
 import freenet.client.FetchContext;
@@ -76,6 +77,14 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	final MinimalSplitfileBlock[] checkBuckets;
 	final int[] dataRetries;
 	final int[] checkRetries;
+	/** If not null, the keys and the retry counts are kept in this file rather than in the
+	 * database, and keys, dataRetries and checkRetries are null. The file is shared by all the
+	 * segments of the splitfile; this is segment segNum in it. */
+	private final SplitFileStateFile stateFile;
+	/** Read from the state file when first needed, see getKeys(). */
+	private transient SplitFileSegmentKeys stateKeys;
+	private transient int[] stateDataRetries;
+	private transient int[] stateCheckRetries;
 	// FIXME remove eventually, needed for back compat for now
 	final Vector<SplitFileFetcherSubSegment> subSegments;
 	private SplitFileFetcherSegmentGet getter;
@@ -153,10 +162,17 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	}
 	
 	private transient FECCodec codec;
+	/** Transient only: reduces the blocks as they arrive, so the decode is quick. */
+	private transient ProgressiveFECDecoder progressiveDecoder;
 	
-	public SplitFileFetcherSegment(short splitfileType, SplitFileSegmentKeys keys, SplitFileFetcher fetcher, ArchiveContext archiveContext, FetchContext blockFetchContext, long maxTempLength, int recursionLevel, ClientRequester requester, int segNum, boolean ignoreLastDataBlock, boolean pre1254, int crossCheckBlocks, byte cryptoAlgorithm, byte[] forceCryptoKey, int maxRetries, boolean realTimeFlag) throws MetadataParseException, FetchException {
+	public SplitFileFetcherSegment(short splitfileType, SplitFileSegmentKeys keys, SplitFileFetcher fetcher, ArchiveContext archiveContext, FetchContext blockFetchContext, long maxTempLength, int recursionLevel, ClientRequester requester, int segNum, boolean ignoreLastDataBlock, boolean pre1254, int crossCheckBlocks, byte cryptoAlgorithm, byte[] forceCryptoKey, int maxRetries, boolean realTimeFlag, SplitFileStateFile stateFile) throws MetadataParseException, FetchException {
 		this.crossCheckBlocks = crossCheckBlocks;
-		this.keys = keys;
+		this.stateFile = stateFile;
+		if(stateFile != null) {
+			this.keys = null;
+			this.stateKeys = keys;
+		} else
+			this.keys = keys;
 		this.realTimeFlag = realTimeFlag;
 		int dataBlocks = keys.getDataBlocks();
 		int checkBlocks = keys.getCheckBlocks();
@@ -188,7 +204,12 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 		}
 		for(int i=0;i<checkBuckets.length;i++)
 			checkBuckets[i] = new MinimalSplitfileBlock(i+dataBuckets.length);
-		if(maxRetries != -1) {
+		if(stateFile != null) {
+			dataRetries = null;
+			checkRetries = null;
+			stateDataRetries = new int[dataBlocks];
+			stateCheckRetries = new int[checkBlocks];
+		} else if(maxRetries != -1) {
 			dataRetries = new int[dataBlocks];
 			checkRetries = new int[checkBlocks];
 		} else {
@@ -369,6 +390,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 					return -1;
 				}
 				setFoundKey(blockNo, container, context);
+				writeStatus(blockNo, SplitFileStateFile.STATUS_SUCCEEDED);
 				if(persistent) {
 					data.storeTo(container);
 					container.store(dataBuckets[blockNo]);
@@ -400,6 +422,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 					return -1;
 				}
 				setFoundKey(blockNo, container, context);
+				writeStatus(blockNo, SplitFileStateFile.STATUS_SUCCEEDED);
 				if(persistent) {
 					data.storeTo(container);
 					container.store(checkBuckets[checkNo]);
@@ -458,10 +481,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	}
 	
 	private void setFoundKey(int blockNo, ObjectContainer container, ClientContext context) {
-		if(keys == null) migrateToKeys(container);
-		else {
-			if(persistent) container.activate(keys, 1);
-		}
+		SplitFileSegmentKeys keys = getKeys(container);
 		synchronized(this) {
 			if(foundKeys[blockNo]) return;
 			foundKeys[blockNo] = true;
@@ -477,10 +497,76 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	}
 
 	private boolean haveFoundKey(int blockNo, ObjectContainer container) {
-		if(keys == null) migrateToKeys(container);
+		if(stateFile == null && keys == null) migrateToKeys(container);
 		return foundKeys[blockNo];
 	}
 
+	/** Get the keys, reading them from the state file, activating them, or migrating them
+	 * from the old format, as needed. */
+	private synchronized SplitFileSegmentKeys getKeys(ObjectContainer container) {
+		if(stateFile != null) {
+			if(stateKeys == null) loadState(container);
+			return stateKeys;
+		}
+		if(keys == null) migrateToKeys(container);
+		else if(persistent) container.activate(keys, 1);
+		return keys;
+	}
+
+	/** The persistent retry counts for the data blocks. Not used if the retry counts are only
+	 * kept in RAM, see getMaxRetries(). */
+	private synchronized int[] getDataRetries(ObjectContainer container) {
+		if(stateFile == null) return dataRetries;
+		if(stateKeys == null) loadState(container);
+		return stateDataRetries;
+	}
+
+	/** The persistent retry counts for the check blocks. */
+	private synchronized int[] getCheckRetries(ObjectContainer container) {
+		if(stateFile == null) return checkRetries;
+		if(stateKeys == null) loadState(container);
+		return stateCheckRetries;
+	}
+
+	private synchronized void loadState(ObjectContainer container) {
+		if(persistent) container.activate(stateFile, 1);
+		try {
+			int[] data = new int[dataBuckets.length];
+			int[] check = new int[checkBuckets.length];
+			for(int i=0;i<data.length;i++)
+				data[i] = stateFile.getRetries(segNum, i);
+			for(int i=0;i<check.length;i++)
+				check[i] = stateFile.getRetries(segNum, i+data.length);
+			stateKeys = stateFile.readKeys(segNum);
+			stateDataRetries = data;
+			stateCheckRetries = check;
+		} catch (IOException e) {
+			// Corrupt or missing, we can't carry on without the keys.
+			Logger.error(this, "Unable to read splitfile state file "+stateFile+" for "+this+" : "+e, e);
+			throw new IllegalStateException("Unable to read splitfile state file: "+e, e);
+		}
+	}
+
+	private void writeRetries(int blockNo, int tries) {
+		try {
+			stateFile.setRetries(segNum, blockNo, tries);
+		} catch (IOException e) {
+			// Not fatal, we still have them in RAM.
+			Logger.error(this, "Unable to write retry count to "+stateFile+" for "+this+" : "+e, e);
+		}
+	}
+
+	/** Record that a block has been fetched or has failed, if we have a state file. */
+	private void writeStatus(int blockNo, byte status) {
+		if(stateFile == null) return;
+		try {
+			stateFile.setStatus(segNum, blockNo, status);
+		} catch (IOException e) {
+			// Not fatal, foundKeys is what we go by.
+			Logger.error(this, "Unable to write block status to "+stateFile+" for "+this+" : "+e, e);
+		}
+	}
+
 	private synchronized void migrateToKeys(ObjectContainer container) {
 		if(logMINOR) Logger.minor(this, "Migrating keys on "+this);
 		keys = new SplitFileSegmentKeys(dataKeys.length, checkBuckets.length, forceCryptoKey, cryptoAlgorithm);
@@ -637,10 +723,41 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 		// No need to unregister key, because it will be cleared in tripPendingKey().
 		short result = onSuccessInner(data, blockNo, container, context);
 		if(result == (short)-1) return false;
+		if(!persistent)
+			addToProgressiveDecoder(blockNo, data);
 		finishOnSuccess(result, container, context);
 		return true;
 	}
 
+	/** Reduce the block now, on the thread that fetched it, so there is less to do when we decode. */
+	private void addToProgressiveDecoder(int blockNo, Bucket data) {
+		ProgressiveFECDecoder decoder;
+		synchronized(this) {
+			if(finished || splitfileType != Metadata.SPLITFILE_ONION_STANDARD) return;
+			if(progressiveDecoder == null) {
+				if(startedDecode) return;
+				if(codec == null)
+					codec = FECCodec.getCodec(splitfileType, dataBuckets.length, checkBuckets.length);
+				progressiveDecoder = ProgressiveFECDecoder.create(codec, CHKBlock.DATA_LENGTH);
+				if(progressiveDecoder == null) return;
+			}
+			decoder = progressiveDecoder;
+		}
+		decoder.addBlock(blockNo, data);
+	}
+
+	/** @return The progressive decoder, if any, which the caller must free. */
+	private synchronized ProgressiveFECDecoder takeProgressiveDecoder() {
+		ProgressiveFECDecoder decoder = progressiveDecoder;
+		progressiveDecoder = null;
+		return decoder;
+	}
+
+	private void freeProgressiveDecoder() {
+		ProgressiveFECDecoder decoder = takeProgressiveDecoder();
+		if(decoder != null) decoder.free();
+	}
+
 	private void finishOnSuccess(short result, ObjectContainer container, ClientContext context) {
 		boolean dontNotify = (result & ON_SUCCESS_DONT_NOTIFY) == ON_SUCCESS_DONT_NOTIFY;
 		boolean allFailed = (result & ON_SUCCESS_ALL_FAILED) == ON_SUCCESS_ALL_FAILED;
@@ -721,6 +838,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 			synchronized(this) {
 				startedDecode = true;
 			}
+			freeProgressiveDecoder();
 			onDecodedSegment(container, context, null, null, null, dataBuckets, checkBuckets);
 			return;
 		}
@@ -801,6 +919,8 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 			if(codec == null)
 				codec = FECCodec.getCodec(splitfileType, dataBuckets.length, checkBuckets.length);
 			FECJob job = new FECJob(codec, queue, dataBuckets, checkBuckets, CHKBlock.DATA_LENGTH, context.getBucketFactory(persistent), this, true, parent.getPriorityClass(), persistent);
+			if(!persistent)
+				job.setProgressiveDecoder(takeProgressiveDecoder());
 			codec.addToQueue(job, 
 					queue, container);
 			if(logMINOR)
@@ -874,7 +994,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 			}
 		}
 		
-		int[] dataRetries = this.dataRetries;
+		int[] dataRetries = getDataRetries(container);
 		MyCooldownTrackerItem tracker = makeCooldownTrackerItem(container, context);
 		if(getMaxRetries(container) == -1) {
 			// Cooldown and retry counts entirely kept in RAM.
@@ -1073,7 +1193,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 				}
 				
 			}
-			int[] checkRetries = this.checkRetries;
+			int[] checkRetries = getCheckRetries(container);
 			MyCooldownTrackerItem tracker = makeCooldownTrackerItem(container, context);
 			if(getMaxRetries(container) == -1) {
 				// Cooldown and retry counts entirely kept in RAM.
@@ -1315,9 +1435,11 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 			}
 			if(e.isFatal()) {
 				fatallyFailedBlocks++;
+				writeStatus(blockNo, SplitFileStateFile.STATUS_FATAL);
 				parent.fatallyFailedBlock(container, context);
 			} else {
 				failedBlocks++;
+				writeStatus(blockNo, SplitFileStateFile.STATUS_FAILED);
 				parent.failedBlock(container, context);
 			}
 			if(deactivateParent)
@@ -1413,8 +1535,8 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 		boolean failed = false;
 		boolean cooldown = false;
 		ClientCHK key;
-		int[] dataRetries = this.dataRetries;
-		int[] checkRetries = this.checkRetries;
+		int[] dataRetries = getDataRetries(container);
+		int[] checkRetries = getCheckRetries(container);
 		MyCooldownTrackerItem tracker = makeCooldownTrackerItem(container, context);
 		long[] dataCooldownTimes = tracker.dataCooldownTimes;
 		long[] checkCooldownTimes = tracker.checkCooldownTimes;
@@ -1429,6 +1551,10 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 			if(blockNo < dataBuckets.length) {
 				key = this.getBlockKey(blockNo, container);
 				tries = ++dataRetries[blockNo];
+				if(stateFile != null && maxTries != -1) {
+					writeRetries(blockNo, tries);
+					callStore = false;
+				}
 				if(tries > maxTries && maxTries >= 0) failed = true;
 				else {
 					if(tries % RequestScheduler.COOLDOWN_RETRIES == 0) {
@@ -1451,6 +1577,10 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 				if(persistent)
 					container.activate(key, 5);
 				tries = ++checkRetries[checkNo];
+				if(stateFile != null && maxTries != -1) {
+					writeRetries(blockNo, tries);
+					callStore = false;
+				}
 				if(tries > maxTries && maxTries >= 0) failed = true;
 				else {
 					if(tries % RequestScheduler.COOLDOWN_RETRIES == 0) {
@@ -1567,10 +1697,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	}
 
 	public synchronized ClientCHK getBlockKey(int blockNum, ObjectContainer container) {
-		if(keys == null) migrateToKeys(container);
-		else {
-			if(persistent) container.activate(keys, 1);
-		}
+		SplitFileSegmentKeys keys = getKeys(container);
 		return keys.getKey(blockNum, foundKeys, persistent);
 	}
 	
@@ -1624,8 +1751,8 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	}
 	
 	private int getRetries(int blockNum, int maxTries, ObjectContainer container, ClientContext context) {
-		int[] dataRetries = this.dataRetries;
-		int[] checkRetries = this.checkRetries;
+		int[] dataRetries = getDataRetries(container);
+		int[] checkRetries = getCheckRetries(container);
 		if(maxTries == -1) {
 			// Cooldown and retry counts entirely kept in RAM.
 			MyCooldownTrackerItem tracker = makeCooldownTrackerItem(container, context);
@@ -1652,11 +1779,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 			container.activate(blockFetchContext, 1);
 		}
 		int maxTries = blockFetchContext.maxNonSplitfileRetries;
-		if(keys == null) 
-			migrateToKeys(container);
-		else {
-			if(persistent) container.activate(keys, 1);
-		}
+		SplitFileSegmentKeys keys = getKeys(container);
 		int[] matches = keys.getBlockNumbers((NodeCHK)key, foundKeys);
 		for(int i : matches) {
 			ClientCHK k = keys.getKey(i, foundKeys, persistent);
@@ -1686,35 +1809,23 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	}
 
 	public synchronized long getCooldownWakeupByKey(Key key, ObjectContainer container, ClientContext context) {
-		if(keys == null) 
-			migrateToKeys(container);
-		else {
-			if(persistent) container.activate(keys, 1);
-		}
+		SplitFileSegmentKeys keys = getKeys(container);
 		int blockNo = keys.getBlockNumber((NodeCHK)key, foundKeys);
 		if(blockNo == -1) return -1;
 		return getCooldownWakeup(blockNo, getMaxRetries(container), container, context);
 	}
 
 	public synchronized int getBlockNumber(Key key, ObjectContainer container) {
-		if(keys == null) 
-			migrateToKeys(container);
-		else {
-			if(persistent) container.activate(keys, 1);
-		}
+		SplitFileSegmentKeys keys = getKeys(container);
 		return keys.getBlockNumber((NodeCHK)key, foundKeys);
 	}
 
 	public synchronized Integer[] getKeyNumbersAtRetryLevel(int retryCount, ObjectContainer container, ClientContext context) {
 		Vector<Integer> v = new Vector<Integer>();
-		if(keys == null) 
-			migrateToKeys(container);
-		else {
-			if(persistent) container.activate(keys, 1);
-		}
+		SplitFileSegmentKeys keys = getKeys(container);
 		int maxTries = getMaxRetries(container);
-		int[] dataRetries = this.dataRetries;
-		int[] checkRetries = this.checkRetries;
+		int[] dataRetries = getDataRetries(container);
+		int[] checkRetries = getCheckRetries(container);
 		if(maxTries == -1) {
 			// Cooldown and retry counts entirely kept in RAM.
 			MyCooldownTrackerItem tracker = makeCooldownTrackerItem(container, context);
@@ -1787,11 +1898,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	}
 
 	public Key[] listKeys(ObjectContainer container) {
-		if(keys == null) 
-			migrateToKeys(container);
-		else {
-			if(persistent) container.activate(keys, 1);
-		}
+		SplitFileSegmentKeys keys = getKeys(container);
 		return keys.listNodeKeys(foundKeys, persistent);
 	}
 
@@ -1946,7 +2053,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	}
 
 	public void deactivateKeys(ObjectContainer container) {
-		container.deactivate(keys, 1);
+		if(keys != null) container.deactivate(keys, 1);
 	}
 
 	public void freeDecodedData(ObjectContainer container, boolean noStore) {
@@ -2023,6 +2130,10 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 			container.activate(keys, 1);
 			keys.removeFrom(container);
 		}
+		if(stateFile != null) {
+			container.activate(stateFile, 1);
+			stateFile.release(container);
+		}
 		if(getter != null) {
 			container.activate(getter, 1);
 			Logger.error(this, "Getter still exists: "+getter+" for "+this);
@@ -2053,6 +2164,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	
 	public void fetcherFinished(ObjectContainer container, ClientContext context) {
 		context.cooldownTracker.remove(this, persistent, container);
+		freeProgressiveDecoder();
 		synchronized(this) {
 			if(fetcherFinished) return;
 			fetcherFinished = true;
@@ -2075,6 +2187,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	
 	private void encoderFinished(ObjectContainer container, ClientContext context) {
 		context.cooldownTracker.remove(this, persistent, container);
+		freeProgressiveDecoder();
 		boolean finish = false;
 		boolean half = false;
 		synchronized(this) {
@@ -2150,11 +2263,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	public ArrayList<Integer> validBlockNumbers(KeysFetchingLocally fetching, boolean onlyLowestTries,
 			ObjectContainer container, ClientContext context) {
 		long now = System.currentTimeMillis();
-		if(keys == null) 
-			migrateToKeys(container);
-		else {
-			if(persistent) container.activate(keys, 1);
-		}
+		SplitFileSegmentKeys keys = getKeys(container);
 		int maxTries = getMaxRetries(container);
 		synchronized(this) {
 			int minRetries = Integer.MAX_VALUE;
@@ -2199,11 +2308,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 			ObjectContainer container, ClientContext context) {
 		long now = System.currentTimeMillis();
 		ArrayList<PersistentChosenBlock> list = null;
-		if(keys == null) 
-			migrateToKeys(container);
-		else {
-			if(persistent) container.activate(keys, 1);
-		}
+		SplitFileSegmentKeys keys = getKeys(container);
 		int maxTries = getMaxRetries(container);
 		synchronized(this) {
 			if(startedDecode || isFinishing(container)) return null;
@@ -2225,11 +2330,7 @@ public class SplitFileFetcherSegment implements FECCallback, HasCooldownTrackerI
 	}
 	
 	public long getCooldownTime(ObjectContainer container, ClientContext context, HasCooldownCacheItem parentRGA, long now) {
-		if(keys == null) 
-			migrateToKeys(container);
-		else {
-			if(persistent) container.activate(keys, 1);
-		}
+		SplitFileSegmentKeys keys = getKeys(container);
 		int maxTries = getMaxRetries(container);
 		KeysFetchingLocally fetching = context.getChkFetchScheduler(realTimeFlag).fetchingKeys();
 		long cooldownWakeup = Long.MAX_VALUE;
@@ -333,17 +333,18 @@ public class SplitFileInserter implements ClientPutState {
 	 * Group the blocks into segments.
 	 * @param deductBlocksFromSegments 
 	 */
-	private SplitFileInserterSegment[] splitIntoSegments(int segmentSize, int crossCheckBlocks, int segCount, int deductBlocksFromSegments, Bucket[] origDataBlocks, Executor executor, ObjectContainer container, ClientContext context, boolean persistent, BaseClientPutter putter, byte cryptoAlgorithm, byte[] splitfileCryptoKey) {
+	private SplitFileInserterSegment[] splitIntoSegments(int segmentSize, int crossCheckBlocks, int segCount, int deductBlocksFromSegments, Bucket[] origDataBlocks, Executor executor, ObjectContainer container, ClientContext context, boolean persistent, BaseClientPutter putter, byte cryptoAlgorithm, byte[] splitfileCryptoKey) throws InsertException {
 		int dataBlocks = origDataBlocks.length;
 
-		ArrayList<SplitFileInserterSegment> segs = new ArrayList<SplitFileInserterSegment>();
+		ArrayList<Bucket[]> segData = new ArrayList<Bucket[]>();
+		ArrayList<Integer> segCheck = new ArrayList<Integer>();
 
 		CompatibilityMode cmode = ctx.getCompatibilityMode();
 		// First split the data up
 		if(segCount == 1) {
 			// Single segment
-			SplitFileInserterSegment onlySeg = new SplitFileInserterSegment(this, persistent, realTimeFlag, putter, splitfileAlgorithm, crossCheckBlocks, FECCodec.getCheckBlocks(splitfileAlgorithm, origDataBlocks.length + crossCheckBlocks, cmode), origDataBlocks, ctx, getCHKOnly, 0, cryptoAlgorithm, splitfileCryptoKey, container);
-			segs.add(onlySeg);
+			segData.add(origDataBlocks);
+			segCheck.add(FECCodec.getCheckBlocks(splitfileAlgorithm, origDataBlocks.length + crossCheckBlocks, cmode));
 		} else {
 			int j = 0;
 			int segNo = 0;
@@ -362,8 +363,8 @@ public class SplitFileInserter implements ClientPutState {
 				j = i;
 				for(int x=0;x<seg.length;x++)
 					if(seg[x] == null) throw new NullPointerException("In splitIntoSegs: "+x+" is null of "+seg.length+" of "+segNo);
-				SplitFileInserterSegment s = new SplitFileInserterSegment(this, persistent, realTimeFlag, putter, splitfileAlgorithm, crossCheckBlocks, check, seg, ctx, getCHKOnly, segNo, cryptoAlgorithm, splitfileCryptoKey, container);
-				segs.add(s);
+				segData.add(seg);
+				segCheck.add(check);
 				
 				if(deductBlocksFromSegments != 0)
 					if(logMINOR) Logger.minor(this, "INSERTING: Segment "+segNo+" of "+segCount+" : "+data+" data blocks "+check+" check blocks");
@@ -379,10 +380,30 @@ public class SplitFileInserter implements ClientPutState {
 			}
 			assert(segNo == segCount);
 		}
+		// Keep the keys, the status of each block and the retry counts in a file rather than
+		// in the database.
+		SplitFileStateFile stateFile = null;
+		if(persistent && context.persistentFG != null) {
+			int[] stateData = new int[segData.size()];
+			int[] stateCheck = new int[segData.size()];
+			for(int i=0;i<stateData.length;i++) {
+				stateData[i] = segData.get(i).length + crossCheckBlocks;
+				stateCheck[i] = segCheck.get(i);
+			}
+			try {
+				stateFile = SplitFileStateFile.createForInsert(context.persistentFG.makeRandomFile(), stateData, stateCheck);
+			} catch (IOException e) {
+				throw new InsertException(InsertException.BUCKET_ERROR, e, null);
+			}
+			container.store(stateFile);
+		}
+		SplitFileInserterSegment[] segs = new SplitFileInserterSegment[segData.size()];
+		for(int i=0;i<segs.length;i++)
+			segs[i] = new SplitFileInserterSegment(this, persistent, realTimeFlag, putter, splitfileAlgorithm, crossCheckBlocks, segCheck.get(i), segData.get(i), ctx, getCHKOnly, i, cryptoAlgorithm, splitfileCryptoKey, stateFile, container);
 		if(persistent)
 			container.activate(parent, 1);
 		parent.notifyClients(container, context);
-		return segs.toArray(new SplitFileInserterSegment[segs.size()]);
+		return segs;
 	}
 
 	public void start(ObjectContainer container, final ClientContext context) throws InsertException {
@@ -483,10 +504,10 @@ public class SplitFileInserter implements ClientPutState {
 			for(int i=0;i<segments.length;i++) {
 				if(persistent)
 					container.activate(segments[i], 1);
-				ClientCHK[] data = segments[i].getDataCHKs();
+				ClientCHK[] data = segments[i].getDataCHKs(container);
 				System.arraycopy(data, 0, dataURIs, dpos, data.length);
 				dpos += data.length;
-				ClientCHK[] check = segments[i].getCheckCHKs();
+				ClientCHK[] check = segments[i].getCheckCHKs(container);
 				System.arraycopy(check, 0, checkURIs, cpos, check.length);
 				cpos += check.length;
 				if(persistent && segments[i] != dontDeactivateSegment)
@@ -64,6 +64,7 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 
 	final Bucket[] checkBlocks;
 
+	// The per-block state. All null if we use a state file, see below.
 	final ClientCHK[] dataURIs;
 
 	final ClientCHK[] checkURIs;
@@ -83,6 +84,14 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 	final boolean[] dataFailed;
 	final boolean[] checkFailed;
 
+	/** If not null, the keys, the status of each block and the retry counts are kept in this
+	 * file rather than in the arrays above. The file is shared by all the segments of the
+	 * splitfile; this is segment segNo in it. */
+	private final SplitFileStateFile stateFile;
+	/** Consecutive RNFs for each block, if we use a state file. These are not kept, so they
+	 * start again from 0 after a restart. */
+	private transient int[] consecutiveRNFs;
+
 	final int maxRetries;
 
 	final InsertContext blockInsertContext;
@@ -129,7 +138,7 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 
 	public SplitFileInserterSegment(SplitFileInserter parent, boolean persistent, boolean realTimeFlag, BaseClientPutter putter,
 			short splitfileAlgo, int crossCheckBlocks, int checkBlockCount, Bucket[] origDataBlocks,
-			InsertContext blockInsertContext, boolean getCHKOnly, int segNo, byte cryptoAlgorithm, byte[] cryptoKey, ObjectContainer container) {
+			InsertContext blockInsertContext, boolean getCHKOnly, int segNo, byte cryptoAlgorithm, byte[] cryptoKey, SplitFileStateFile stateFile, ObjectContainer container) {
 		super(persistent, realTimeFlag);
 		this.crossCheckBlocks = crossCheckBlocks;
 		this.crossSegmentsByBlock = new SplitFileInserterCrossSegment[origDataBlocks.length + crossCheckBlocks];
@@ -148,19 +157,33 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 			this.dataBlocks = origDataBlocks;
 		}
 		checkBlocks = new Bucket[checkBlockCount];
-		checkURIs = new ClientCHK[checkBlockCount];
-		dataURIs = new ClientCHK[origDataBlocks.length];
-		dataRetries = new int[origDataBlocks.length];
-		checkRetries = new int[checkBlockCount];
-		dataFinished = new boolean[origDataBlocks.length];
-		checkFinished = new boolean[checkBlockCount];
-		dataFailed = new boolean[origDataBlocks.length];
-		checkFailed = new boolean[checkBlockCount];
-		dataConsecutiveRNFs = new int[origDataBlocks.length];
-		checkConsecutiveRNFs = new int[checkBlockCount];
+		this.stateFile = stateFile;
+		if(stateFile != null) {
+			checkURIs = null;
+			dataURIs = null;
+			dataRetries = null;
+			checkRetries = null;
+			dataFinished = null;
+			checkFinished = null;
+			dataFailed = null;
+			checkFailed = null;
+			dataConsecutiveRNFs = null;
+			checkConsecutiveRNFs = null;
+		} else {
+			checkURIs = new ClientCHK[checkBlockCount];
+			dataURIs = new ClientCHK[origDataBlocks.length];
+			dataRetries = new int[origDataBlocks.length];
+			checkRetries = new int[checkBlockCount];
+			dataFinished = new boolean[origDataBlocks.length];
+			checkFinished = new boolean[checkBlockCount];
+			dataFailed = new boolean[origDataBlocks.length];
+			checkFailed = new boolean[checkBlockCount];
+			dataConsecutiveRNFs = new int[origDataBlocks.length];
+			checkConsecutiveRNFs = new int[checkBlockCount];
+		}
 		blocks = new ArrayList<Integer>();
-		putter.addMustSucceedBlocks(dataURIs.length, container);
-		putter.addRedundantBlocks(checkURIs.length, container);
+		putter.addMustSucceedBlocks(origDataBlocks.length, container);
+		putter.addRedundantBlocks(checkBlockCount, container);
 		this.segNo = segNo;
 		if(persistent) container.activate(blockInsertContext, 1);
 		maxRetries = blockInsertContext.maxInsertRetries;
@@ -305,7 +328,7 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 		}
 		byte cryptoAlgorithm = getCryptoAlgorithm(container);
 		for(int i=0;i<dataBlocks.length;i++) {
-			if(dataURIs[i] == null && dataBlocks[i] != null) {
+			if(dataBlocks[i] != null && getURI(i, container) == null) {
 				try {
 					boolean deactivate = false;
 					if(persistent) {
@@ -320,13 +343,13 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 				} catch (IOException e) {
 					fail(new InsertException(InsertException.BUCKET_ERROR, e, null), container, context);
 				}
-			} else if(dataURIs[i] == null && dataBlocks[i] == null) {
+			} else if(dataBlocks[i] == null && getURI(i, container) == null) {
 				fail(new InsertException(InsertException.INTERNAL_ERROR, "Data block "+i+" cannot be encoded: no data", null), container, context);
 			}
 		}
 		if(encoded) {
 			for(int i=0;i<checkBlocks.length;i++) {
-				if(checkURIs[i] == null && checkBlocks[i] != null) {
+				if(checkBlocks[i] != null && getURI(i+dataBlocks.length, container) == null) {
 					try {
 						boolean deactivate = false;
 						if(persistent) {
@@ -341,7 +364,7 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 					} catch (IOException e) {
 						fail(new InsertException(InsertException.BUCKET_ERROR, e, null), container, context);
 					}
-				} else if(checkURIs[i] == null && checkBlocks[i] == null) {
+				} else if(checkBlocks[i] == null && getURI(i+dataBlocks.length, container) == null) {
 					fail(new InsertException(InsertException.INTERNAL_ERROR, "Data block "+i+" cannot be encoded: no data", null), container, context);
 				}
 			}
@@ -505,20 +528,18 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 				if(logMINOR) Logger.minor(this, "Already finished");
 				return false;
 			}
-			if (x >= dataBlocks.length) {
-				if (checkURIs[x - dataBlocks.length] != null) {
-					if(logMINOR) Logger.minor(this, "Already encoded check block");
-					return false;
-				}
-				checkURIs[x - dataBlocks.length] = key;
-			} else {
-				if (dataURIs[x] != null) {
-					if(logMINOR) Logger.minor(this, "Already encoded data block");
-					return false;
-				}
-				dataURIs[x] = key;
+			boolean had = getURI(x, container) != null;
+			// With a state file, we may have written the key but crashed before committing
+			// the database, so if we don't have all the keys yet, count them again.
+			if (had && (stateFile == null || hasURIs)) {
+				if(logMINOR) Logger.minor(this, "Already encoded "+(x >= dataBlocks.length ? "check" : "data")+" block");
+				return false;
 			}
-			blocksGotURI++;
+			if(!had) setURI(x, key, container);
+			if(stateFile != null)
+				blocksGotURI = countURIs(container);
+			else
+				blocksGotURI++;
 			if(persistent)
 				container.store(this);
 			if(logMINOR)
@@ -526,15 +547,12 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 			if (blocksGotURI != dataBlocks.length + checkBlocks.length)
 				return false;
 			// Double check
-			for (int i = 0; i < checkURIs.length; i++) {
-				if (checkURIs[i] == null) {
-					Logger.error(this, "Check URI " + i + " is null");
-					return false;
-				}
-			}
-			for (int i = 0; i < dataURIs.length; i++) {
-				if (dataURIs[i] == null) {
-					Logger.error(this, "Data URI " + i + " is null");
+			for (int i = 0; i < dataBlocks.length + checkBlocks.length; i++) {
+				if (getURI(i, container) == null) {
+					if(i >= dataBlocks.length)
+						Logger.error(this, "Check URI " + (i - dataBlocks.length) + " is null");
+					else
+						Logger.error(this, "Data URI " + i + " is null");
 					return false;
 				}
 			}
@@ -576,13 +594,168 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 		return dataBlocks.length;
 	}
 
-	public ClientCHK[] getCheckCHKs() {
-		return checkURIs;
+	public ClientCHK[] getCheckCHKs(ObjectContainer container) {
+		if(stateFile == null) return checkURIs;
+		ClientCHK[] keys = new ClientCHK[checkBlocks.length];
+		for(int i=0;i<keys.length;i++)
+			keys[i] = getURI(i + dataBlocks.length, container);
+		return keys;
 	}
 
 	/** Note that this includes cross-check blocks. */
-	public ClientCHK[] getDataCHKs() {
-		return dataURIs;
+	public ClientCHK[] getDataCHKs(ObjectContainer container) {
+		if(stateFile == null) return dataURIs;
+		ClientCHK[] keys = new ClientCHK[dataBlocks.length];
+		for(int i=0;i<keys.length;i++)
+			keys[i] = getURI(i, container);
+		return keys;
+	}
+
+	/** @return The key for a block, or null if we haven't encoded it yet. */
+	private ClientCHK getURI(int blockNum, ObjectContainer container) {
+		if(stateFile == null) {
+			if(blockNum >= dataBlocks.length)
+				return checkURIs[blockNum - dataBlocks.length];
+			else
+				return dataURIs[blockNum];
+		}
+		try {
+			return stateFile(container).getKey(segNo, blockNum);
+		} catch (IOException e) {
+			throw stateFileError(e);
+		}
+	}
+
+	private void setURI(int blockNum, ClientCHK key, ObjectContainer container) {
+		if(stateFile == null) {
+			if(blockNum >= dataBlocks.length)
+				checkURIs[blockNum - dataBlocks.length] = key;
+			else
+				dataURIs[blockNum] = key;
+			return;
+		}
+		try {
+			SplitFileStateFile state = stateFile(container);
+			state.setKey(segNo, blockNum, key);
+			// Make sure the key is on disk before we commit anything that depends on it.
+			state.force();
+		} catch (IOException e) {
+			throw stateFileError(e);
+		}
+	}
+
+	/** Only used with a state file. */
+	private int countURIs(ObjectContainer container) {
+		try {
+			return stateFile(container).countKeys(segNo);
+		} catch (IOException e) {
+			throw stateFileError(e);
+		}
+	}
+
+	/**
+	 * @return True if the block has already succeeded or failed. With a state file, a block
+	 * may be recorded as finished there but still be in blocks, if we crashed before committing
+	 * the database. We go by blocks then, so the block is inserted and finished again, and the
+	 * counts stay right.
+	 */
+	private boolean isBlockFinished(int blockNum, ObjectContainer container) {
+		if(stateFile == null) {
+			if(blockNum >= dataBlocks.length)
+				return checkFinished[blockNum - dataBlocks.length];
+			else
+				return dataFinished[blockNum];
+		}
+		if(getBlockStatus(blockNum, container) == SplitFileStateFile.STATUS_WAITING) return false;
+		if(persistent) container.activate(blocks, 2);
+		return !blocks.contains(Integer.valueOf(blockNum));
+	}
+
+	/** Only meaningful if isBlockFinished(). */
+	private boolean isBlockFailed(int blockNum, ObjectContainer container) {
+		if(stateFile == null) {
+			if(blockNum >= dataBlocks.length)
+				return checkFailed[blockNum - dataBlocks.length];
+			else
+				return dataFailed[blockNum];
+		}
+		return getBlockStatus(blockNum, container) == SplitFileStateFile.STATUS_FAILED;
+	}
+
+	/** Only used with a state file. */
+	private byte getBlockStatus(int blockNum, ObjectContainer container) {
+		try {
+			return stateFile(container).getStatus(segNo, blockNum);
+		} catch (IOException e) {
+			throw stateFileError(e);
+		}
+	}
+
+	private void setBlockFinished(int blockNum, boolean failed, ObjectContainer container) {
+		if(stateFile == null) {
+			if(blockNum >= dataBlocks.length) {
+				checkFinished[blockNum - dataBlocks.length] = true;
+				checkFailed[blockNum - dataBlocks.length] = failed;
+			} else {
+				dataFinished[blockNum] = true;
+				dataFailed[blockNum] = failed;
+			}
+			return;
+		}
+		try {
+			SplitFileStateFile state = stateFile(container);
+			state.setStatus(segNo, blockNum, failed ? SplitFileStateFile.STATUS_FAILED : SplitFileStateFile.STATUS_SUCCEEDED);
+			state.force();
+		} catch (IOException e) {
+			throw stateFileError(e);
+		}
+	}
+
+	/** @return The number of times the block has failed, including this one. */
+	private int incrementRetries(int blockNum, ObjectContainer container) {
+		if(stateFile == null) {
+			if(blockNum >= dataBlocks.length)
+				return ++checkRetries[blockNum - dataBlocks.length];
+			else
+				return ++dataRetries[blockNum];
+		}
+		try {
+			return stateFile(container).incrementRetries(segNo, blockNum);
+		} catch (IOException e) {
+			throw stateFileError(e);
+		}
+	}
+
+	/** Count a failure.
+	 * @return The number of consecutive RNFs for the block, 0 if this failure wasn't one. */
+	private int countConsecutiveRNFs(int blockNum, boolean isRNF) {
+		int[] rnfs;
+		int i = blockNum;
+		if(stateFile != null) {
+			if(consecutiveRNFs == null)
+				consecutiveRNFs = new int[dataBlocks.length + checkBlocks.length];
+			rnfs = consecutiveRNFs;
+		} else if(blockNum >= dataBlocks.length) {
+			rnfs = checkConsecutiveRNFs;
+			i -= dataBlocks.length;
+		} else
+			rnfs = dataConsecutiveRNFs;
+		if(isRNF)
+			return ++rnfs[i];
+		rnfs[i] = 0;
+		return 0;
+	}
+
+	/** The state file, activated. */
+	private SplitFileStateFile stateFile(ObjectContainer container) {
+		if(persistent) container.activate(stateFile, 1);
+		return stateFile;
+	}
+
+	private IllegalStateException stateFileError(IOException e) {
+		// Corrupt or missing, we can't carry on.
+		Logger.error(this, "Unable to use splitfile state file "+stateFile+" for "+this+" : "+e, e);
+		return new IllegalStateException("Unable to use splitfile state file: "+e, e);
 	}
 
 	/** Get the InsertException for this segment.
@@ -843,31 +1016,28 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 			if(blockNum >= dataBlocks.length) {
 				// Check block.
 				int checkNum = blockNum - dataBlocks.length;
-				if(checkFinished[checkNum]) {
-					if(checkFailed[checkNum])
+				if(isBlockFinished(blockNum, container)) {
+					if(isBlockFailed(blockNum, container))
 						Logger.error(this, "Got onFailure() but block has already failed! Check block "+checkNum+" on "+this);
 					else
 						Logger.error(this, "Got onFailure() but block has already succeeded: Check block "+checkNum+" on "+this);
 					return;
 				}
+				int rnfs = countConsecutiveRNFs(blockNum, isRNF);
 				if(isRNF) {
-					checkConsecutiveRNFs[checkNum]++;
 					if(persistent) container.activate(blockInsertContext, 1);
-					if(logMINOR) Logger.minor(this, "Consecutive RNFs: "+checkConsecutiveRNFs[checkNum]+" / "+blockInsertContext.consecutiveRNFsCountAsSuccess);
-					if(checkConsecutiveRNFs[checkNum] == blockInsertContext.consecutiveRNFsCountAsSuccess) {
+					if(logMINOR) Logger.minor(this, "Consecutive RNFs: "+rnfs+" / "+blockInsertContext.consecutiveRNFsCountAsSuccess);
+					if(rnfs == blockInsertContext.consecutiveRNFsCountAsSuccess) {
 						// Treat as success
 						treatAsSuccess = true;
 					}
-				} else {
-					checkConsecutiveRNFs[checkNum] = 0;
 				}
 				if(!treatAsSuccess) {
-					checkRetries[checkNum]++;
-					if(checkRetries[checkNum] > maxRetries && maxRetries != -1) {
+					int retries = incrementRetries(blockNum, container);
+					if(retries > maxRetries && maxRetries != -1) {
 						failedBlock = true;
 						// Treat as failed.
-						checkFinished[checkNum] = true;
-						checkFailed[checkNum] = true;
+						setBlockFinished(blockNum, true, container);
 						blocksCompleted++;
 						if(persistent) container.activate(blocks, 2);
 						blocks.remove(Integer.valueOf(blockNum));
@@ -888,8 +1058,7 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 					// This is okay!
 				} else {
 					// Better handle it here to minimize race conditions. :|
-					checkFinished[checkNum] = true;
-					checkFailed[checkNum] = false; // Treating as succeeded
+					setBlockFinished(blockNum, false, container); // Treating as succeeded
 					blocksCompleted++;
 					blocksSucceeded++;
 					if(persistent) container.activate(blocks, 2);
@@ -907,31 +1076,28 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 				}
 			} else {
 				// Data block.
-				if(dataFinished[blockNum]) {
-					if(dataFailed[blockNum])
+				if(isBlockFinished(blockNum, container)) {
+					if(isBlockFailed(blockNum, container))
 						Logger.error(this, "Got onFailure() but block has already failed! Data block "+blockNum+" on "+this);
 					else
 						Logger.error(this, "Got onFailure() but block has already succeeded: Data block "+blockNum+" on "+this);
 					return;
 				}
+				int rnfs = countConsecutiveRNFs(blockNum, isRNF);
 				if(isRNF) {
-					dataConsecutiveRNFs[blockNum]++;
 					if(persistent) container.activate(blockInsertContext, 1);
-					if(logMINOR) Logger.minor(this, "Consecutive RNFs: "+dataConsecutiveRNFs[blockNum]+" / "+blockInsertContext.consecutiveRNFsCountAsSuccess);
-					if(dataConsecutiveRNFs[blockNum] == blockInsertContext.consecutiveRNFsCountAsSuccess) {
+					if(logMINOR) Logger.minor(this, "Consecutive RNFs: "+rnfs+" / "+blockInsertContext.consecutiveRNFsCountAsSuccess);
+					if(rnfs == blockInsertContext.consecutiveRNFsCountAsSuccess) {
 						// Treat as success
 						treatAsSuccess = true;
 					}
-				} else {
-					dataConsecutiveRNFs[blockNum] = 0;
 				}
 				if(!treatAsSuccess) {
-					dataRetries[blockNum]++;
-					if(dataRetries[blockNum] > maxRetries && maxRetries != -1) {
+					int retries = incrementRetries(blockNum, container);
+					if(retries > maxRetries && maxRetries != -1) {
 						failedBlock = true;
 						// Treat as failed.
-						dataFinished[blockNum] = true;
-						dataFailed[blockNum] = true;
+						setBlockFinished(blockNum, true, container);
 						blocksCompleted++;
 						if(persistent) container.activate(blocks, 2);
 						blocks.remove(Integer.valueOf(blockNum));
@@ -952,8 +1118,7 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 					// This is okay!
 				} else {
 					// Better handle it here to minimize race conditions. :|
-					dataFinished[blockNum] = true;
-					dataFailed[blockNum] = false; // Treating as succeeded
+					setBlockFinished(blockNum, false, container); // Treating as succeeded
 					blocksCompleted++;
 					blocksSucceeded++;
 					if(persistent) container.activate(blocks, 2);
@@ -1006,16 +1171,15 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 			if(blockNum >= dataBlocks.length) {
 				// Check block.
 				int checkNum = blockNum - dataBlocks.length;
-				if(!checkFinished[checkNum]) {
-					checkFinished[checkNum] = true;
-					checkFailed[checkNum] = false;
+				if(!isBlockFinished(blockNum, container)) {
+					setBlockFinished(blockNum, false, container);
 					blocksCompleted++;
 					blocksSucceeded++;
 					if(persistent) container.activate(blocks, 2);
 					blocks.remove(Integer.valueOf(blockNum));
 					if(persistent) container.store(blocks);
 				} else {
-					if(checkFailed[checkNum])
+					if(isBlockFailed(blockNum, container))
 						Logger.error(this, "Got onSuccess() but block has already failed! Check block "+checkNum+" on "+this);
 					else
 						Logger.error(this, "Got onSuccess() but block has already succeeded: Check block "+checkNum+" on "+this);
@@ -1031,16 +1195,15 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 				}
 			} else {
 				// Data block
-				if(!dataFinished[blockNum]) {
-					dataFinished[blockNum] = true;
-					dataFailed[blockNum] = false;
+				if(!isBlockFinished(blockNum, container)) {
+					setBlockFinished(blockNum, false, container);
 					blocksCompleted++;
 					blocksSucceeded++;
 					if(persistent) container.activate(blocks, 2);
 					blocks.remove(Integer.valueOf(blockNum));
 					if(persistent) container.store(blocks);
 				} else {
-					if(dataFailed[blockNum])
+					if(isBlockFailed(blockNum, container))
 						Logger.error(this, "Got onSuccess() but block has already failed! Data block "+blockNum+" on "+this);
 					else
 						Logger.error(this, "Got onSuccess() but block has already succeeded: Data block "+blockNum+" on "+this);
@@ -1333,22 +1496,27 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 		// parent, putter can deal with themselves
 		freeBucketsArray(container, dataBlocks);
 		freeBucketsArray(container, checkBlocks);
-		for(int i=0;i<dataURIs.length;i++) {
-			ClientCHK chk = dataURIs[i];
-			if(chk != null) {
-				container.activate(chk, 5);
-				chk.removeFrom(container);
-			} else {
-				if(logMINOR) Logger.minor(this, "dataURI "+i+" is null on "+this);
+		if(stateFile != null) {
+			container.activate(stateFile, 1);
+			stateFile.release(container);
+		} else {
+			for(int i=0;i<dataURIs.length;i++) {
+				ClientCHK chk = dataURIs[i];
+				if(chk != null) {
+					container.activate(chk, 5);
+					chk.removeFrom(container);
+				} else {
+					if(logMINOR) Logger.minor(this, "dataURI "+i+" is null on "+this);
+				}
 			}
-		}
-		for(int i=0;i<checkURIs.length;i++) {
-			ClientCHK chk = checkURIs[i];
-			if(chk != null) {
-				container.activate(chk, 5);
-				chk.removeFrom(container);
-			} else {
-				if(logMINOR) Logger.minor(this, "checkURI "+i+" is null on "+this);
+			for(int i=0;i<checkURIs.length;i++) {
+				ClientCHK chk = checkURIs[i];
+				if(chk != null) {
+					container.activate(chk, 5);
+					chk.removeFrom(container);
+				} else {
+					if(logMINOR) Logger.minor(this, "checkURI "+i+" is null on "+this);
+				}
 			}
 		}
 		container.activate(blocks, 5);
@@ -1439,7 +1607,7 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 	 */
 	private void freeFinishedDataBlocks(ObjectContainer container) {
 		for(int i=0;i<dataBlocks.length;i++) {
-			if(dataFinished[i] && dataBlocks[i] != null) {
+			if(dataBlocks[i] != null && isBlockFinished(i, container)) {
 				if(logMINOR) Logger.minor(this, "Freeing data block "+i+" delayed for encode");
 				if(persistent) container.activate(dataBlocks[i], 1);
 				dataBlocks[i].free();
@@ -1453,8 +1621,10 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 	public boolean isStorageBroken(ObjectContainer container) {
 		if(putter == null) return true;
 		if(parent == null) return true;
-		if(dataRetries == null) return true;
-		if(checkRetries == null) return true;
+		if(stateFile == null) {
+			if(dataRetries == null) return true;
+			if(checkRetries == null) return true;
+		}
 		return false;
 	}
 
@@ -1477,9 +1647,9 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 				if(log) System.err.println(data.toString()+" : "+data.size());
 				container.deactivate(data, 5);
 			}
-			if(dataURIs[i] != null)
+			if(getURI(i, container) != null)
 				dataKeys++;
-			if(dataFinished[i])
+			if(isBlockFinished(i, container))
 				dataDone++;
 		}
 		if(dataCount == dataBlocks.length)
@@ -1501,9 +1671,9 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 					checkCount++;
 				}
 			}
-			if(checkURIs[i] != null)
+			if(getURI(i + dataBlocks.length, container) != null)
 				checkKeys++;
-			if(checkFinished[i])
+			if(isBlockFinished(i + dataBlocks.length, container))
 				checkDone++;
 		}
 		System.out.println("Check count: "+checkCount+" keys: "+checkKeys+" done: "+checkDone);
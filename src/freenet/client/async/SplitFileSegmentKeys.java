@@ -4,6 +4,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 
@@ -257,6 +258,55 @@ outer:	for(int i=0;i<(dataBlocks + checkBlocks);i++) {
 		}
 	}
 
+	/** @return The number of bytes writeTo() will write. */
+	int storedLength() {
+		int blocks = dataBlocks + checkBlocks;
+		if(commonDecryptKey != null)
+			return 1 + ClientCHK.CRYPTO_KEY_LENGTH + EXTRA_BYTES_LENGTH + blocks * NodeCHK.KEY_LENGTH;
+		else
+			return 1 + blocks * (NodeCHK.KEY_LENGTH + ClientCHK.CRYPTO_KEY_LENGTH + EXTRA_BYTES_LENGTH);
+	}
+
+	/** Write all the keys to a buffer, at its current position, in one contiguous block of
+	 * storedLength() bytes. Unlike writeKeys(), this includes the common key, if any. */
+	void writeTo(ByteBuffer buf) {
+		if(commonDecryptKey != null) {
+			buf.put((byte)1);
+			buf.put(commonDecryptKey);
+			buf.put(commonExtraBytes);
+			buf.put(routingKeys);
+		} else {
+			buf.put((byte)0);
+			buf.put(routingKeys);
+			buf.put(decryptKeys);
+			buf.put(extraBytesForKeys);
+		}
+	}
+
+	/** Read keys written by writeTo(). 
+	 * @throws IOException If the keys are not in the expected format. */
+	static SplitFileSegmentKeys readFrom(ByteBuffer buf, int dataBlocks, int checkBlocks) throws IOException {
+		byte type = buf.get();
+		SplitFileSegmentKeys keys;
+		if(type == 1) {
+			byte[] decryptKey = new byte[ClientCHK.CRYPTO_KEY_LENGTH];
+			buf.get(decryptKey);
+			byte[] extra = new byte[EXTRA_BYTES_LENGTH];
+			buf.get(extra);
+			keys = new SplitFileSegmentKeys(dataBlocks, checkBlocks, decryptKey, ClientCHK.getCryptoAlgorithmFromExtra(extra));
+			if(!Arrays.equals(extra, keys.commonExtraBytes))
+				throw new IOException("Unexpected common extra bytes");
+			buf.get(keys.routingKeys);
+		} else if(type == 0) {
+			keys = new SplitFileSegmentKeys(dataBlocks, checkBlocks, null, (byte)0);
+			buf.get(keys.routingKeys);
+			buf.get(keys.decryptKeys);
+			buf.get(keys.extraBytesForKeys);
+		} else
+			throw new IOException("Unknown keys type "+type);
+		return keys;
+	}
+
 	public int getDataBlocks() {
 		return dataBlocks;
 	}
@@ -0,0 +1,550 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.zip.CRC32;
+
+import com.db4o.ObjectContainer;
+
+import freenet.keys.ClientCHK;
+import freenet.keys.NodeCHK;
+import freenet.support.Logger;
+
+/**
+ * The keys and the per-block state of a splitfile, in a single memory-mapped file rather than
+ * in the database. A segment's keys are stored contiguously, as SplitFileSegmentKeys.writeTo()
+ * writes them, followed by a fixed-size record for each block (data blocks first, then check
+ * blocks), holding its status and its retry count. Records are updated in place, so changing
+ * a block's state doesn't mean storing anything in the database; if this object is persistent,
+ * the database only holds the file name and the number of segments still using it.
+ *
+ * Layout:
+ * - Header: magic, version, flags, number of segments.
+ * - For each segment: data blocks, check blocks, offset, length and CRC32 of the keys, offset
+ *   of the records.
+ * - CRC32 of all of the above.
+ * - For each segment: the keys, then the records.
+ * Each record is a status byte, a flags byte, 2 bytes of padding, the retry count, and a CRC32
+ * of the rest of the record. If a record doesn't match its checksum when we open the file,
+ * e.g. because we crashed while writing it, we reset it to STATUS_WAITING with no retries, so
+ * at worst we fetch or insert the block again. If the header doesn't match its checksum, we
+ * can't continue the request, and open() throws.
+ *
+ * When fetching, we know all the keys up front, create() writes them, and they never change;
+ * if a segment's keys don't match their checksum, open() throws. When inserting, we only know
+ * a block's key once we have encoded it, so createForInsert() leaves room for every key, and
+ * setKey() fills them in one at a time. Each is then covered by its block's record checksum
+ * rather than by the segment's, so a torn write only loses that block's key, and the inserter
+ * encodes the block again if it still has the data.
+ *
+ * SplitFileFetcherSegment keeps its keys and retry counts here, and records which blocks have
+ * been fetched or have failed. Its own record of which blocks have been found stays in the
+ * database, because it must be committed together with the block's data.
+ * SplitFileInserterSegment keeps its keys, the status of each block and the retry counts here.
+ */
+public class SplitFileStateFile {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SplitFileStateFile.class);
+	}
+
+	static final long MAGIC = 0x53464b5354415445L;
+	static final int VERSION = 1;
+	/** Magic, version, flags, number of segments. */
+	private static final int HEADER_LENGTH = 8 + 4 + 4 + 4;
+	/** Header flag: the keys are filled in by setKey(), see createForInsert(). */
+	private static final int FLAG_INSERT = 1;
+	/** Data blocks, check blocks, keys offset, keys length, keys checksum, records offset. */
+	private static final int SEGMENT_ENTRY_LENGTH = 6 * 4;
+	/** Status, flags, padding, retries, checksum. */
+	static final int RECORD_LENGTH = 4 + 4 + 4;
+	/** Record flag: setKey() has written the block's key. Only used by inserts. */
+	private static final byte RECORD_HAS_KEY = 1;
+
+	/** We haven't fetched or inserted the block yet. */
+	public static final byte STATUS_WAITING = 0;
+	/** We have fetched or inserted the block. */
+	public static final byte STATUS_SUCCEEDED = 1;
+	/** We have run out of retries for the block. */
+	public static final byte STATUS_FAILED = 2;
+	/** The block failed with an error which retrying won't fix. */
+	public static final byte STATUS_FATAL = 3;
+
+	private final File file;
+	/** The number of segments which haven't called release() yet. */
+	private int users;
+	private transient RandomAccessFile raf;
+	private transient MappedByteBuffer buf;
+	private transient boolean insert;
+	private transient int[] dataBlocks;
+	private transient int[] checkBlocks;
+	private transient int[] keysOffsets;
+	private transient int[] recordsOffsets;
+
+	private SplitFileStateFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Create a state file for a splitfile, with every block waiting and no retries.
+	 * @param file The file to write. Will be overwritten if it exists.
+	 * @param segments The keys for each segment.
+	 * @throws IOException If we can't write the file, or it would be too big to map.
+	 */
+	public static SplitFileStateFile create(File file, SplitFileSegmentKeys[] segments) throws IOException {
+		return create(file, segments, 0);
+	}
+
+	/**
+	 * Create a state file for inserting a splitfile, with every block waiting, no retries and
+	 * no keys yet.
+	 * @param file The file to write. Will be overwritten if it exists.
+	 * @param dataBlocks The number of data blocks in each segment, including any cross-check
+	 * blocks.
+	 * @param checkBlocks The number of check blocks in each segment.
+	 * @throws IOException If we can't write the file, or it would be too big to map.
+	 */
+	public static SplitFileStateFile createForInsert(File file, int[] dataBlocks, int[] checkBlocks) throws IOException {
+		SplitFileSegmentKeys[] segments = new SplitFileSegmentKeys[dataBlocks.length];
+		for(int i=0;i<segments.length;i++)
+			// No common key, so there is room for each block's own decrypt key and extra bytes.
+			segments[i] = new SplitFileSegmentKeys(dataBlocks[i], checkBlocks[i], null, (byte)0);
+		return create(file, segments, FLAG_INSERT);
+	}
+
+	private static SplitFileStateFile create(File file, SplitFileSegmentKeys[] segments, int flags) throws IOException {
+		long length = HEADER_LENGTH + (long)SEGMENT_ENTRY_LENGTH * segments.length + 4;
+		for(SplitFileSegmentKeys keys : segments)
+			length += keys.storedLength() + (long)RECORD_LENGTH * (keys.dataBlocks + keys.checkBlocks);
+		if(length > Integer.MAX_VALUE) throw new IOException("Splitfile state file too big: "+length);
+		SplitFileStateFile state = new SplitFileStateFile(file);
+		state.users = segments.length;
+		boolean success = false;
+		try {
+			state.map((int)length, true);
+			ByteBuffer buf = state.buf;
+			buf.putLong(0, MAGIC);
+			buf.putInt(8, VERSION);
+			buf.putInt(12, flags);
+			buf.putInt(16, segments.length);
+			int offset = HEADER_LENGTH + SEGMENT_ENTRY_LENGTH * segments.length + 4;
+			byte[] waiting = emptyRecord();
+			for(int i=0;i<segments.length;i++) {
+				SplitFileSegmentKeys keys = segments[i];
+				int blocks = keys.dataBlocks + keys.checkBlocks;
+				int keysLength = keys.storedLength();
+				buf.position(offset);
+				keys.writeTo(buf);
+				int recordsOffset = offset + keysLength;
+				for(int j=0;j<blocks;j++)
+					buf.put(waiting);
+				int entry = HEADER_LENGTH + SEGMENT_ENTRY_LENGTH * i;
+				buf.putInt(entry, keys.dataBlocks);
+				buf.putInt(entry + 4, keys.checkBlocks);
+				buf.putInt(entry + 8, offset);
+				buf.putInt(entry + 12, keysLength);
+				// The keys of an insert change, and are checked by the records instead.
+				buf.putInt(entry + 16, (flags & FLAG_INSERT) != 0 ? 0 : checksum(buf, offset, keysLength));
+				buf.putInt(entry + 20, recordsOffset);
+				offset = recordsOffset + RECORD_LENGTH * blocks;
+			}
+			int headerLength = HEADER_LENGTH + SEGMENT_ENTRY_LENGTH * segments.length;
+			buf.putInt(headerLength, checksum(buf, 0, headerLength));
+			state.buf.force();
+			state.readHeader();
+			success = true;
+			return state;
+		} finally {
+			if(!success) state.close();
+		}
+	}
+
+	/**
+	 * Open an existing state file, checking the checksums.
+	 * @throws IOException If we can't read the file, or it is corrupt.
+	 */
+	public static SplitFileStateFile open(File file) throws IOException {
+		SplitFileStateFile state = new SplitFileStateFile(file);
+		state.ensureOpen();
+		return state;
+	}
+
+	/** Map the file and read the header, if we haven't already, e.g. because we have just
+	 * been activated from the database. */
+	private synchronized void ensureOpen() throws IOException {
+		if(buf != null) return;
+		if(!file.exists()) throw new IOException("Splitfile state file does not exist: "+file);
+		long length = file.length();
+		if(length > Integer.MAX_VALUE || length < HEADER_LENGTH + 4)
+			throw new IOException("Splitfile state file is the wrong length: "+length);
+		boolean success = false;
+		try {
+			map((int)length, false);
+			readHeader();
+			checkKeys();
+			checkRecords();
+			success = true;
+		} finally {
+			if(!success) close();
+		}
+	}
+
+	private void map(int length, boolean create) throws IOException {
+		raf = new RandomAccessFile(file, "rw");
+		if(create) raf.setLength(length);
+		buf = raf.getChannel().map(MapMode.READ_WRITE, 0, length);
+	}
+
+	private void readHeader() throws IOException {
+		int length = buf.capacity();
+		if(buf.getLong(0) != MAGIC) throw new IOException("Not a splitfile state file: "+file);
+		int version = buf.getInt(8);
+		if(version != VERSION) throw new IOException("Unknown splitfile state file version "+version);
+		int flags = buf.getInt(12);
+		int segments = buf.getInt(16);
+		if(segments < 0 || HEADER_LENGTH + (long)SEGMENT_ENTRY_LENGTH * segments + 4 > length)
+			throw new IOException("Bad segment count "+segments);
+		int headerLength = HEADER_LENGTH + SEGMENT_ENTRY_LENGTH * segments;
+		if(buf.getInt(headerLength) != checksum(buf, 0, headerLength))
+			throw new IOException("Splitfile state file header is corrupt: "+file);
+		insert = (flags & FLAG_INSERT) != 0;
+		dataBlocks = new int[segments];
+		checkBlocks = new int[segments];
+		keysOffsets = new int[segments];
+		recordsOffsets = new int[segments];
+		for(int i=0;i<segments;i++) {
+			int entry = HEADER_LENGTH + SEGMENT_ENTRY_LENGTH * i;
+			dataBlocks[i] = buf.getInt(entry);
+			checkBlocks[i] = buf.getInt(entry + 4);
+			keysOffsets[i] = buf.getInt(entry + 8);
+			recordsOffsets[i] = buf.getInt(entry + 20);
+			if(dataBlocks[i] < 0 || checkBlocks[i] < 0 || keysOffsets[i] < headerLength + 4 ||
+					(long)keysOffsets[i] + buf.getInt(entry + 12) != recordsOffsets[i] ||
+					recordsOffsets[i] + (long)RECORD_LENGTH * (dataBlocks[i] + checkBlocks[i]) > length)
+				throw new IOException("Bad segment entry "+i+" in "+file);
+		}
+	}
+
+	private void checkKeys() throws IOException {
+		if(insert) return;
+		for(int i=0;i<dataBlocks.length;i++) {
+			int entry = HEADER_LENGTH + SEGMENT_ENTRY_LENGTH * i;
+			int keysLength = recordsOffsets[i] - keysOffsets[i];
+			if(buf.getInt(entry + 16) != checksum(buf, keysOffsets[i], keysLength))
+				throw new IOException("Keys for segment "+i+" are corrupt in "+file);
+		}
+	}
+
+	/** Reset any records which don't match their checksums. */
+	private void checkRecords() {
+		int bad = 0;
+		for(int i=0;i<dataBlocks.length;i++) {
+			int blocks = dataBlocks[i] + checkBlocks[i];
+			for(int j=0;j<blocks;j++) {
+				int offset = recordsOffsets[i] + RECORD_LENGTH * j;
+				if(buf.getInt(offset + 8) != recordChecksum(i, j, buf.get(offset), buf.get(offset + 1), buf.getInt(offset + 4))) {
+					writeRecord(i, j, STATUS_WAITING, (byte)0, 0);
+					bad++;
+				}
+			}
+		}
+		if(bad > 0) {
+			Logger.error(this, "Reset "+bad+" corrupt block records in "+file);
+			buf.force();
+		} else if(logMINOR)
+			Logger.minor(this, "Opened "+file+" with "+dataBlocks.length+" segments");
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public synchronized int countSegments() throws IOException {
+		ensureOpen();
+		return dataBlocks.length;
+	}
+
+	public synchronized int getDataBlocks(int segment) throws IOException {
+		ensureOpen();
+		return dataBlocks[segment];
+	}
+
+	public synchronized int getCheckBlocks(int segment) throws IOException {
+		ensureOpen();
+		return checkBlocks[segment];
+	}
+
+	/** Read the keys for a segment. The caller may keep them, they are not backed by the file. */
+	public synchronized SplitFileSegmentKeys readKeys(int segment) throws IOException {
+		ensureOpen();
+		ByteBuffer b = buf.duplicate();
+		b.position(keysOffsets[segment]);
+		return SplitFileSegmentKeys.readFrom(b, dataBlocks[segment], checkBlocks[segment]);
+	}
+
+	public synchronized byte getStatus(int segment, int block) throws IOException {
+		return buf.get(recordOffset(segment, block));
+	}
+
+	public synchronized int getRetries(int segment, int block) throws IOException {
+		return buf.getInt(recordOffset(segment, block) + 4);
+	}
+
+	public synchronized void setStatus(int segment, int block, byte status) throws IOException {
+		int offset = recordOffset(segment, block);
+		writeRecord(segment, block, status, buf.get(offset + 1), buf.getInt(offset + 4));
+	}
+
+	public synchronized void setRetries(int segment, int block, int retries) throws IOException {
+		int offset = recordOffset(segment, block);
+		writeRecord(segment, block, buf.get(offset), buf.get(offset + 1), retries);
+	}
+
+	/** @return The new retry count. */
+	public synchronized int incrementRetries(int segment, int block) throws IOException {
+		int offset = recordOffset(segment, block);
+		int retries = buf.getInt(offset + 4) + 1;
+		writeRecord(segment, block, buf.get(offset), buf.get(offset + 1), retries);
+		return retries;
+	}
+
+	/** Get the key for a block of an insert.
+	 * @return The key, or null if setKey() hasn't been called for the block. */
+	public synchronized ClientCHK getKey(int segment, int block) throws IOException {
+		int offset = recordOffset(segment, block);
+		checkInsert();
+		if((buf.get(offset + 1) & RECORD_HAS_KEY) == 0) return null;
+		byte[] routingKey = new byte[NodeCHK.KEY_LENGTH];
+		byte[] cryptoKey = new byte[ClientCHK.CRYPTO_KEY_LENGTH];
+		byte[] extra = new byte[SplitFileSegmentKeys.EXTRA_BYTES_LENGTH];
+		ByteBuffer b = buf.duplicate();
+		b.position(routingKeyOffset(segment, block));
+		b.get(routingKey);
+		b.position(cryptoKeyOffset(segment, block));
+		b.get(cryptoKey);
+		b.position(extraOffset(segment, block));
+		b.get(extra);
+		try {
+			return new ClientCHK(routingKey, cryptoKey, extra);
+		} catch (MalformedURLException e) {
+			throw new IOException("Bad key for block "+block+" of segment "+segment+" in "+file+" : "+e);
+		}
+	}
+
+	/** Set the key for a block of an insert, once we have encoded it. */
+	public synchronized void setKey(int segment, int block, ClientCHK key) throws IOException {
+		int offset = recordOffset(segment, block);
+		checkInsert();
+		ByteBuffer b = buf.duplicate();
+		b.position(routingKeyOffset(segment, block));
+		b.put(key.getRoutingKey(), 0, NodeCHK.KEY_LENGTH);
+		b.position(cryptoKeyOffset(segment, block));
+		b.put(key.getCryptoKey(), 0, ClientCHK.CRYPTO_KEY_LENGTH);
+		b.position(extraOffset(segment, block));
+		b.put(key.getExtra(), 0, SplitFileSegmentKeys.EXTRA_BYTES_LENGTH);
+		writeRecord(segment, block, buf.get(offset), (byte)(buf.get(offset + 1) | RECORD_HAS_KEY), buf.getInt(offset + 4));
+	}
+
+	/** @return The number of blocks in the segment which setKey() has been called for. */
+	public synchronized int countKeys(int segment) throws IOException {
+		ensureOpen();
+		int offset = recordsOffsets[segment];
+		int blocks = dataBlocks[segment] + checkBlocks[segment];
+		int count = 0;
+		for(int i=0;i<blocks;i++, offset += RECORD_LENGTH)
+			if((buf.get(offset + 1) & RECORD_HAS_KEY) != 0) count++;
+		return count;
+	}
+
+	/** @return The number of blocks in the segment with the given status. */
+	public synchronized int countBlocks(int segment, byte status) throws IOException {
+		ensureOpen();
+		int offset = recordsOffsets[segment];
+		int blocks = dataBlocks[segment] + checkBlocks[segment];
+		int count = 0;
+		for(int i=0;i<blocks;i++, offset += RECORD_LENGTH)
+			if(buf.get(offset) == status) count++;
+		return count;
+	}
+
+	private int recordOffset(int segment, int block) throws IOException {
+		ensureOpen();
+		if(block < 0 || block >= dataBlocks[segment] + checkBlocks[segment])
+			throw new ArrayIndexOutOfBoundsException("Block "+block+" of segment "+segment);
+		return recordsOffsets[segment] + RECORD_LENGTH * block;
+	}
+
+	private void checkInsert() {
+		if(!insert) throw new IllegalStateException("Keys can only be read or written one at a time for an insert: "+file);
+	}
+
+	/* An insert's keys are in the no common key format of SplitFileSegmentKeys.writeTo(): the
+	 * type byte, then all the routing keys, all the decrypt keys, and all the extra bytes. */
+
+	private int routingKeyOffset(int segment, int block) {
+		return keysOffsets[segment] + 1 + block * NodeCHK.KEY_LENGTH;
+	}
+
+	private int cryptoKeyOffset(int segment, int block) {
+		int blocks = dataBlocks[segment] + checkBlocks[segment];
+		return keysOffsets[segment] + 1 + blocks * NodeCHK.KEY_LENGTH + block * ClientCHK.CRYPTO_KEY_LENGTH;
+	}
+
+	private int extraOffset(int segment, int block) {
+		int blocks = dataBlocks[segment] + checkBlocks[segment];
+		return keysOffsets[segment] + 1 + blocks * (NodeCHK.KEY_LENGTH + ClientCHK.CRYPTO_KEY_LENGTH) +
+			block * SplitFileSegmentKeys.EXTRA_BYTES_LENGTH;
+	}
+
+	private void writeRecord(int segment, int block, byte status, byte flags, int retries) {
+		int offset = recordsOffsets[segment] + RECORD_LENGTH * block;
+		buf.put(offset, status);
+		buf.put(offset + 1, flags);
+		buf.putInt(offset + 4, retries);
+		buf.putInt(offset + 8, recordChecksum(segment, block, status, flags, retries));
+	}
+
+	/** The checksum of a record, including the block's key if it is an insert and we have
+	 * written the key. */
+	private int recordChecksum(int segment, int block, byte status, byte flags, int retries) {
+		CRC32 crc = recordCRC(status, flags, retries);
+		if(insert && (flags & RECORD_HAS_KEY) != 0) {
+			update(crc, routingKeyOffset(segment, block), NodeCHK.KEY_LENGTH);
+			update(crc, cryptoKeyOffset(segment, block), ClientCHK.CRYPTO_KEY_LENGTH);
+			update(crc, extraOffset(segment, block), SplitFileSegmentKeys.EXTRA_BYTES_LENGTH);
+		}
+		return (int)crc.getValue();
+	}
+
+	private void update(CRC32 crc, int offset, int length) {
+		for(int i=0;i<length;i++)
+			crc.update(buf.get(offset + i));
+	}
+
+	/** Write changes back to disk. The OS will write them eventually anyway, but this makes
+	 * sure they are there before e.g. we commit something which depends on them. */
+	public synchronized void force() {
+		if(buf != null) buf.force();
+	}
+
+	public synchronized void close() {
+		if(buf != null) {
+			buf.force();
+			unmap(buf);
+			buf = null;
+		}
+		if(raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				Logger.error(this, "Unable to close "+file+" : "+e, e);
+			}
+			raf = null;
+		}
+	}
+
+	/** Called by each segment when it has finished with the file. The last one to do so
+	 * deletes it. */
+	public void release(ObjectContainer container) {
+		boolean last;
+		synchronized(this) {
+			last = --users <= 0;
+		}
+		if(last)
+			removeFrom(container);
+		else if(container != null)
+			container.store(this);
+	}
+
+	/** Close and delete the file, and remove the pointer from the database. */
+	public void removeFrom(ObjectContainer container) {
+		close();
+		if(file.exists() && !file.delete()) {
+			// Probably still mapped, see unmap().
+			Logger.error(this, "Unable to delete splitfile state file "+file+", will delete it on exit");
+			file.deleteOnExit();
+		}
+		if(container != null) container.delete(this);
+	}
+
+	/**
+	 * Unmap the file now rather than when the buffer is garbage collected. Until then, on
+	 * Windows, the file can't be deleted. There is no API for this, so we call the JVM's
+	 * cleaner if we can find it. The buffer must not be used afterwards, so all access to it
+	 * is synchronized and close() forgets it.
+	 */
+	private static void unmap(MappedByteBuffer buf) {
+		try {
+			Method cleanerMethod = buf.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buf);
+			if(cleaner == null) return;
+			Method clean = cleaner.getClass().getMethod("clean");
+			clean.setAccessible(true);
+			clean.invoke(cleaner);
+			return;
+		} catch (Throwable t) {
+			// Java 9 and later don't let us at the cleaner, but have Unsafe.invokeCleaner().
+		}
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buf);
+		} catch (Throwable t) {
+			// Not a Sun JVM, or not allowed. It will be unmapped when it is garbage collected.
+			if(logMINOR) Logger.minor(SplitFileStateFile.class, "Unable to unmap splitfile state file: "+t, t);
+		}
+	}
+
+	private static byte[] emptyRecord() {
+		ByteBuffer b = ByteBuffer.allocate(RECORD_LENGTH);
+		b.put(0, STATUS_WAITING);
+		b.putInt(4, 0);
+		b.putInt(8, (int)recordCRC(STATUS_WAITING, (byte)0, 0).getValue());
+		return b.array();
+	}
+
+	private static CRC32 recordCRC(byte status, byte flags, int retries) {
+		CRC32 crc = new CRC32();
+		crc.update(status);
+		crc.update(flags);
+		crc.update(retries >>> 24);
+		crc.update(retries >>> 16);
+		crc.update(retries >>> 8);
+		crc.update(retries);
+		return crc;
+	}
+
+	private static int checksum(ByteBuffer buf, int offset, int length) {
+		CRC32 crc = new CRC32();
+		ByteBuffer b = buf.duplicate();
+		b.position(offset);
+		byte[] tmp = new byte[Math.min(length, 4096)];
+		while(length > 0) {
+			int chunk = Math.min(length, tmp.length);
+			b.get(tmp, 0, chunk);
+			crc.update(tmp, 0, chunk);
+			length -= chunk;
+		}
+		return (int)crc.getValue();
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+file;
+	}
+
+}
@@ -1300,6 +1300,11 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		return false;
 	}
 
+	/** We only want keys with this public key hash. */
+	byte[] getPubKeyHash() {
+		return origUSK.pubKeyHash;
+	}
+
 	public boolean probablyWantKey(Key key, byte[] saltedKey) {
 		if(!(key instanceof NodeSSK)) return false;
 		NodeSSK k = (NodeSSK) key;
@@ -42,6 +42,7 @@ import freenet.client.MetadataUnresolvedException;
 import freenet.client.async.ClientContext;
 import freenet.client.async.DBJob;
 import freenet.client.async.DatabaseDisabledException;
+import freenet.client.async.ReadOnlyDBJob;
 import freenet.client.filter.ContentFilter;
 import freenet.client.filter.KnownUnsafeContentTypeException;
 import freenet.client.filter.MIMEType;
@@ -922,7 +923,6 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		class OutputWrapper {
 			boolean done;
 			HTMLNode pageNode;
-			String plainText;
 		}
 
 		final OutputWrapper ow = new OutputWrapper();
@@ -945,53 +945,46 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 			}
 		}
 
+		if(keys) {
+			// Like the queue page, this only needs the request status cache, so don't wait
+			// behind the database jobs.
+			try {
+				this.writeReply(ctx, 200, "text/plain", "OK", makeFetchKeysList(core.clientContext));
+			} catch (DatabaseDisabledException e) {
+				sendPersistenceDisabledError(ctx);
+			}
+			return;
+		}
+
 		try {
-			core.clientContext.jobRunner.queue(new DBJob() {
+			// Only reads, so it can run on a snapshot rather than waiting for the database thread.
+			core.clientContext.jobRunner.queue(new ReadOnlyDBJob() {
 
 				public String toString() {
-					return "QueueToadlet ShowQueue";
+					return "QueueToadlet CountRequests";
 				}
 
 				public boolean run(ObjectContainer container, ClientContext context) {
 					HTMLNode pageNode = null;
-					String plainText = null;
 					try {
-						if(count) {
-							long queued = core.requestStarters.chkFetchSchedulerBulk.countPersistentWaitingKeys(container) + core.requestStarters.chkFetchSchedulerRT.countPersistentWaitingKeys(container);
-							Logger.minor(this, "Total waiting CHKs: "+queued);
-							long reallyQueued = core.requestStarters.chkFetchSchedulerBulk.countPersistentQueuedRequests(container) + core.requestStarters.chkFetchSchedulerRT.countPersistentQueuedRequests(container);
-							Logger.minor(this, "Total queued CHK requests: "+reallyQueued);
-							PageNode page = pageMaker.getPageNode(NodeL10n.getBase().getString("QueueToadlet.title", new String[]{ "nodeName" }, new String[]{ core.getMyName() }), ctx);
-							pageNode = page.outer;
-							HTMLNode contentNode = page.content;
-							/* add alert summary box */
-							if(ctx.isAllowedFullAccess())
-								contentNode.addChild(core.alerts.createSummary());
-							HTMLNode infoboxContent = pageMaker.getInfobox("infobox-information", "Queued requests status", contentNode, null, false);
-							infoboxContent.addChild("p", "Total awaiting CHKs: "+queued);
-							infoboxContent.addChild("p", "Total queued CHK requests: "+reallyQueued);
-							return false;
-						} else if(keys) {
-							try {
-								plainText = makeFetchKeysList(context);
-							} catch (DatabaseDisabledException e) {
-								plainText = null;
-							}
-							return false;
-						} else {
-							try {
-								RequestStatus[] reqs = fcp.getGlobalRequests();
-								pageNode = handleGetInner(pageMaker, reqs, context, request, ctx);
-							} catch (DatabaseDisabledException e) {
-								pageNode = null;
-							}
-							return false;
-						}
+						long queued = core.requestStarters.chkFetchSchedulerBulk.countPersistentWaitingKeys(container) + core.requestStarters.chkFetchSchedulerRT.countPersistentWaitingKeys(container);
+						Logger.minor(this, "Total waiting CHKs: "+queued);
+						long reallyQueued = core.requestStarters.chkFetchSchedulerBulk.countPersistentQueuedRequests(container) + core.requestStarters.chkFetchSchedulerRT.countPersistentQueuedRequests(container);
+						Logger.minor(this, "Total queued CHK requests: "+reallyQueued);
+						PageNode page = pageMaker.getPageNode(NodeL10n.getBase().getString("QueueToadlet.title", new String[]{ "nodeName" }, new String[]{ core.getMyName() }), ctx);
+						pageNode = page.outer;
+						HTMLNode contentNode = page.content;
+						/* add alert summary box */
+						if(ctx.isAllowedFullAccess())
+							contentNode.addChild(core.alerts.createSummary());
+						HTMLNode infoboxContent = pageMaker.getInfobox("infobox-information", "Queued requests status", contentNode, null, false);
+						infoboxContent.addChild("p", "Total awaiting CHKs: "+queued);
+						infoboxContent.addChild("p", "Total queued CHK requests: "+reallyQueued);
+						return false;
 					} finally {
 						synchronized(ow) {
 							ow.done = true;
 							ow.pageNode = pageNode;
-							ow.plainText = plainText;
 							ow.notifyAll();
 						}
 					}
@@ -1004,12 +997,10 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		}
 
 		HTMLNode pageNode;
-		String plainText;
 		synchronized(ow) {
 			while(true) {
 				if(ow.done) {
 					pageNode = ow.pageNode;
-					plainText = ow.plainText;
 					break;
 				}
 				try {
@@ -1023,8 +1014,6 @@ public class QueueToadlet extends Toadlet implements RequestCompletionCallback,
 		MultiValueTable<String, String> pageHeaders = new MultiValueTable<String, String>();
 		if(pageNode != null)
 			writeHTMLReply(ctx, 200, "OK", pageHeaders, pageNode.generate());
-		else if(plainText != null)
-			this.writeReply(ctx, 200, "text/plain", "OK", plainText);
 		else {
 			if(core.killedDatabase())
 				sendPersistenceDisabledError(ctx);
@@ -26,14 +26,17 @@ import freenet.node.NodeStats;
 import freenet.node.OpennetManager;
 import freenet.node.PeerManager;
 import freenet.node.PeerNodeStatus;
+import freenet.node.RequestLatencyStats;
 import freenet.node.RequestStarterGroup;
 import freenet.node.Version;
 import freenet.node.stats.DataStoreInstanceType;
 import freenet.node.stats.DataStoreStats;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreAccessStats;
+import freenet.support.AffinityExecutor;
 import freenet.support.BandwidthStatsContainer;
 import freenet.support.HTMLNode;
+import freenet.support.LatencyHistogram;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
@@ -235,6 +238,10 @@ public class StatisticsToadlet extends Toadlet {
 				byHTLBox.addChild("div", "class", "infobox-header", l10n("successByHTLRT"));
 				byHTLContent = byHTLBox.addChild("div", "class", "infobox-content");
 				stats.fillRemoteRequestHTLsBox(byHTLContent, true);
+				
+				HTMLNode latencyBox = nextTableCell.addChild("div", "class", "infobox");
+				latencyBox.addChild("div", "class", "infobox-header", l10n("requestLatency"));
+				drawRequestLatencyBox(latencyBox.addChild("div", "class", "infobox-content"));
 			}
 		}
 
@@ -621,6 +628,77 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("queuedCount"));
 		row.addChild("th", l10n("jobType"));
 		stats.getDatabaseJobQueueStatistics().toTableRows(jobQueueStatistics);
+
+		// Per job-type time waiting in the queue
+
+		HTMLNode waitTimeStatisticsTable = threadsInfoboxContent.addChild("table", "border", "0");
+		row = waitTimeStatisticsTable.addChild("tr");
+		row.addChild("th", l10n("jobType"));
+		row.addChild("th", l10n("count"));
+		row.addChild("th", l10n("databaseJobWaitMedian"));
+		row.addChild("th", "90%");
+		row.addChild("th", "99%");
+		row.addChild("th", l10n("requestLatencyMax"));
+		for(Map.Entry<String, LatencyHistogram> entry : stats.getDatabaseJobWaitStatistics().entrySet()) {
+			LatencyHistogram histogram = entry.getValue();
+			row = waitTimeStatisticsTable.addChild("tr");
+			row.addChild("td", entry.getKey());
+			row.addChild("td", Long.toString(histogram.getCount()));
+			row.addChild("td", TimeUtil.formatTime(histogram.getValueAtPercentile(50), 2, true));
+			row.addChild("td", TimeUtil.formatTime(histogram.getValueAtPercentile(90), 2, true));
+			row.addChild("td", TimeUtil.formatTime(histogram.getValueAtPercentile(99), 2, true));
+			row.addChild("td", TimeUtil.formatTime(histogram.getMax(), 2, true));
+		}
+
+		// Queue depth when jobs are queued
+
+		HTMLNode queueDepthTable = threadsInfoboxContent.addChild("table", "border", "0");
+		row = queueDepthTable.addChild("tr");
+		row.addChild("th", l10n("databaseQueueDepth"));
+		row.addChild("th", l10n("requestLatencyMedian"));
+		row.addChild("th", "90%");
+		row.addChild("th", "99%");
+		row.addChild("th", l10n("requestLatencyMax"));
+		drawQueueDepthRow(queueDepthTable, l10n("databaseQueueDepthSerial"), stats.databaseQueueDepth);
+		drawQueueDepthRow(queueDepthTable, l10n("databaseQueueDepthSnapshot"), stats.databaseSnapshotQueueDepth);
+	}
+
+	private void drawQueueDepthRow(HTMLNode table, String name, LatencyHistogram histogram) {
+		HTMLNode row = table.addChild("tr");
+		row.addChild("td", name);
+		row.addChild("td", Long.toString(histogram.getValueAtPercentile(50)));
+		row.addChild("td", Long.toString(histogram.getValueAtPercentile(90)));
+		row.addChild("td", Long.toString(histogram.getValueAtPercentile(99)));
+		row.addChild("td", Long.toString(histogram.getMax()));
+	}
+
+	private void drawRequestLatencyBox(HTMLNode content) {
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("requestLatencyType"));
+		row.addChild("th", l10n("requestLatencyStage"));
+		row.addChild("th", l10n("count"));
+		row.addChild("th", l10n("requestLatencyMedian"));
+		row.addChild("th", "90%");
+		row.addChild("th", "99%");
+		row.addChild("th", l10n("requestLatencyMax"));
+		for(int i = 0; i < 8; i++) {
+			boolean isSSK = (i & 4) != 0;
+			boolean realTime = (i & 2) != 0;
+			boolean local = (i & 1) != 0;
+			for(RequestLatencyStats.Stage stage : RequestLatencyStats.Stage.values()) {
+				LatencyHistogram histogram = stats.requestLatency.get(stage, isSSK, realTime, local);
+				if(histogram.getCount() == 0) continue;
+				row = table.addChild("tr");
+				row.addChild("td", RequestLatencyStats.name(isSSK, realTime, local));
+				row.addChild("td", stage.name());
+				row.addChild("td", Long.toString(histogram.getCount()));
+				row.addChild("td", TimeUtil.formatTime(histogram.getValueAtPercentile(50), 2, true));
+				row.addChild("td", TimeUtil.formatTime(histogram.getValueAtPercentile(90), 2, true));
+				row.addChild("td", TimeUtil.formatTime(histogram.getValueAtPercentile(99), 2, true));
+				row.addChild("td", TimeUtil.formatTime(histogram.getMax(), 2, true));
+			}
+		}
 	}
 
 	private void drawOpennetStatsBox(HTMLNode box, OpennetManager om) {
@@ -684,7 +762,9 @@ public class StatisticsToadlet extends Toadlet {
 			}
 			
 			row = storeSizeTable.addChild("tr");
-			row.addChild("th", l10n(instance.store.name()) + "\n" + " (" + l10n(instance.key.name()) + ")");
+			String accessMode = sessionAccess.accessMode();
+			row.addChild("th", l10n(instance.store.name()) + "\n" + " (" + l10n(instance.key.name()) + ")" +
+					(accessMode == null ? "" : (" [" + accessMode + "]")));
 
 			row.addChild("td", thousandPoint.format(stats.keys()));
 			row.addChild("td", thousandPoint.format(stats.capacity()));
@@ -1192,6 +1272,12 @@ public class StatisticsToadlet extends Toadlet {
 		if(decoded != null) {
 			overviewList.addChild("li", "packetsDecoded:\u00a0"+fix3p1pct.format(((double)decoded[0])/((double)decoded[1]))+"\u00a0("+decoded[1]+")");
 		}
+		AffinityExecutor decryptors = node.packetDecryptors;
+		if(decryptors != null) {
+			overviewList.addChild("li", "packetDecryptionQueued:\u00a0" + decryptors.getQueued() + "\u00a0(" + decryptors.getThreads() + "\u00a0threads)");
+			overviewList.addChild("li", "packetDecryptionRejected:\u00a0" + decryptors.getRejected());
+		}
+		overviewList.addChild("li", "packetsDroppedDecryptionQueueFull:\u00a0" + IncomingPacketFilterImpl.getDroppedPackets());
 		
 	}
 
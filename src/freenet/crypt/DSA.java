@@ -97,6 +97,20 @@ public class DSA {
 	public static boolean verify(DSAPublicKey kp,
 			DSASignature sig,
 			BigInteger m, boolean forceMod) {
+		return verify(kp, null, sig, m, forceMod);
+	}
+
+	/**
+	 * Verifies the message authenticity given a group, the public key
+	 * (y), a signature, and the hash of the message (m).
+	 * @param pubkeyHash The hash of the public key, or null. If we verify
+	 * many signatures with the same key, e.g. SSKs, we will precompute a table
+	 * for it to make verification faster. See DSAPrecomputation.
+	 * @param forceMod If enabled, skip the clipping m to 255 bits.
+	 */
+	public static boolean verify(DSAPublicKey kp, byte[] pubkeyHash,
+			DSASignature sig,
+			BigInteger m, boolean forceMod) {
 		if(m.signum() == -1) throw new IllegalArgumentException();
 		if(kp.getGroup().getQ().bitLength() == 256 && !forceMod)
 			m = m.and(SIGNATURE_MASK);
@@ -117,9 +131,22 @@ public class DSA {
 			BigInteger w=sig.getS().modInverse(kp.getQ());
 			BigInteger u1=m.multiply(w).mod(kp.getQ());
 			BigInteger u2=sig.getR().multiply(w).mod(kp.getQ());
-			BigInteger v1=kp.getG().modPow(u1, kp.getP());
-			BigInteger v2=kp.getY().modPow(u2, kp.getP());
-			BigInteger v=v1.multiply(v2).mod(kp.getP()).mod(kp.getQ());
+			BigInteger v;
+			FixedBaseModPow gTable = DSAPrecomputation.getGroupTable(kp.getGroup());
+			if(gTable == null) {
+				BigInteger v1=kp.getG().modPow(u1, kp.getP());
+				BigInteger v2=kp.getY().modPow(u2, kp.getP());
+				v=v1.multiply(v2).mod(kp.getP());
+			} else {
+				FixedBaseModPow yTable = null;
+				if(pubkeyHash != null)
+					yTable = DSAPrecomputation.getKeyTable(kp, pubkeyHash);
+				if(yTable != null)
+					v=gTable.powProduct(u1, yTable, u2);
+				else
+					v=gTable.powTimes(u1, kp.getY().modPow(u2, kp.getP()));
+			}
+			v=v.mod(kp.getQ());
 			return v.equals(sig.getR());
 
 			//FIXME: is there a better way to handle this exception raised on the 'w=' line above?
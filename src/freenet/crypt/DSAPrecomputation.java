@@ -0,0 +1,118 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import net.i2p.util.NativeBigInteger;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.LRUHashtable;
+
+/**
+ * Precomputed tables for DSA verification, which is mostly g^u1 * y^u2 mod p. There is a
+ * table for g in Global.DSAgroupBigA, which every SSK uses, and tables for the public keys
+ * which we verify SSKs for most often, e.g. the keys of USKs we are polling or of a
+ * freesite with many editions. The latter are keyed by the hash of the public key, which is
+ * the routing key in the PubkeyStore's and in NodeSSK, and are dropped when GetPubkey drops
+ * the key from its memory cache. We only build a table for a key once we have verified a
+ * few blocks with it, and we keep a bounded number of them, as each is a few hundred KB.
+ *
+ * If we have the native bigint library, modPow() is already much faster than our tables,
+ * so we don't use them at all.
+ */
+public final class DSAPrecomputation {
+
+	static final boolean ENABLED = !NativeBigInteger.isNative();
+
+	/** Window size in bits for the group's generator. The table is about 700KB. */
+	private static final int GROUP_WINDOW = 6;
+	/** Window size in bits for public keys. Each table is about 250KB. */
+	private static final int KEY_WINDOW = 4;
+	/** Maximum number of public keys to keep tables for. */
+	private static final int MAX_KEY_TABLES = 16;
+	/** Build a key's table when we verify this many signatures with it. */
+	private static final int BUILD_AFTER = 3;
+	/** Maximum number of public keys to count verifications for. */
+	private static final int MAX_COUNTED_KEYS = 512;
+
+	private static FixedBaseModPow groupTable;
+	private static final LRUHashtable<ByteArrayWrapper, FixedBaseModPow> keyTables =
+		new LRUHashtable<ByteArrayWrapper, FixedBaseModPow>();
+	private static final LRUHashtable<ByteArrayWrapper, Integer> verifyCounts =
+		new LRUHashtable<ByteArrayWrapper, Integer>();
+
+	private DSAPrecomputation() {
+		// Static only.
+	}
+
+	/** @return The table for the group's generator, or null if we don't precompute for it. */
+	static FixedBaseModPow getGroupTable(DSAGroup group) {
+		if(!ENABLED) return null;
+		if(group != Global.DSAgroupBigA && !group.equals(Global.DSAgroupBigA)) return null;
+		synchronized(DSAPrecomputation.class) {
+			// Only built once, and only takes a few tens of milliseconds, so build it with the lock held.
+			if(groupTable == null)
+				groupTable = new FixedBaseModPow(group.getG(), group.getP(), group.getQ().bitLength(), GROUP_WINDOW);
+			return groupTable;
+		}
+	}
+
+	/**
+	 * Count a verification with a public key, and get its table if we have one.
+	 * @param pubkeyHash The hash of the key, as in the PubkeyStore.
+	 * @return The table for y, or null if we don't have one (yet).
+	 */
+	static FixedBaseModPow getKeyTable(DSAPublicKey key, byte[] pubkeyHash) {
+		if(!ENABLED) return null;
+		ByteArrayWrapper w = new ByteArrayWrapper(pubkeyHash);
+		FixedBaseModPow table;
+		synchronized(keyTables) {
+			table = keyTables.get(w);
+			if(table != null) {
+				// Don't trust the hash, check it's the same key.
+				if(table.getBase().equals(key.getY())) {
+					keyTables.push(w, table);
+					return table;
+				}
+				keyTables.removeKey(w);
+			}
+			Integer count = verifyCounts.get(w);
+			int c = (count == null) ? 1 : count.intValue() + 1;
+			if(c < BUILD_AFTER) {
+				verifyCounts.push(w, c);
+				while(verifyCounts.size() > MAX_COUNTED_KEYS)
+					verifyCounts.popKey();
+				return null;
+			}
+			verifyCounts.removeKey(w);
+		}
+		// Build it outside the lock. Another thread may be building the same table, that's harmless.
+		DSAGroup group = key.getGroup();
+		if(key.getY().signum() <= 0 || key.getY().compareTo(group.getP()) >= 0) return null;
+		table = new FixedBaseModPow(key.getY(), group.getP(), group.getQ().bitLength(), KEY_WINDOW);
+		synchronized(keyTables) {
+			keyTables.push(w, table);
+			while(keyTables.size() > MAX_KEY_TABLES)
+				keyTables.popKey();
+		}
+		return table;
+	}
+
+	/** Drop any table for a public key, e.g. because GetPubkey no longer caches it. */
+	public static void forget(byte[] pubkeyHash) {
+		if(!ENABLED) return;
+		ByteArrayWrapper w = new ByteArrayWrapper(pubkeyHash);
+		synchronized(keyTables) {
+			keyTables.removeKey(w);
+			verifyCounts.removeKey(w);
+		}
+	}
+
+	/** Drop all the public key tables. */
+	static void clear() {
+		synchronized(keyTables) {
+			keyTables.clear();
+			verifyCounts.clear();
+		}
+	}
+
+}
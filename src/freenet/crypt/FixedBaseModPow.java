@@ -0,0 +1,129 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+
+/**
+ * base^e mod modulus for a fixed base and modulus, using a precomputed table.
+ *
+ * The exponent is split into windows of a few bits, and for each window we keep
+ * base^(d * 2^(window*i)) for every digit d, so an exponentiation is one multiplication per
+ * window and no squarings. The table is kept in Montgomery form, and we reduce with
+ * BigInteger's own multiply, shifts and masks rather than with mod(), which is much slower.
+ * For a 2048 bit modulus and a 256 bit exponent this is about twice as fast as modPow().
+ *
+ * Immutable once constructed, so it can be shared between threads.
+ */
+final class FixedBaseModPow {
+
+	private final BigInteger base;
+	private final BigInteger modulus;
+	/** R = 2^rBits > modulus. */
+	private final int rBits;
+	/** R - 1 */
+	private final BigInteger mask;
+	/** -modulus^-1 mod R */
+	private final BigInteger nPrime;
+	/** R mod modulus, i.e. 1 in Montgomery form. */
+	private final BigInteger one;
+	private final int window;
+	private final int exponentBits;
+	/** table[i][d] = base^(d * 2^(window*i)) * R mod modulus. table[i][0] is unused. */
+	private final BigInteger[][] table;
+
+	/**
+	 * @param base The base. Must be less than the modulus.
+	 * @param modulus The modulus. Must be odd.
+	 * @param exponentBits The largest exponent we will use the table for, in bits. pow() still
+	 * works for larger exponents, but falls back to modPow().
+	 * @param window The window size in bits. The table has exponentBits/window rows of
+	 * 2^window - 1 entries.
+	 */
+	FixedBaseModPow(BigInteger base, BigInteger modulus, int exponentBits, int window) {
+		if(!modulus.testBit(0)) throw new IllegalArgumentException("Modulus must be odd");
+		if(base.signum() < 0 || base.compareTo(modulus) >= 0) throw new IllegalArgumentException("Base out of range");
+		if(window < 1 || window > 16) throw new IllegalArgumentException("Bad window size "+window);
+		this.base = base;
+		this.modulus = modulus;
+		this.window = window;
+		this.exponentBits = exponentBits;
+		rBits = modulus.bitLength();
+		BigInteger r = BigInteger.ONE.shiftLeft(rBits);
+		mask = r.subtract(BigInteger.ONE);
+		nPrime = modulus.modInverse(r).negate().mod(r);
+		one = r.mod(modulus);
+		int rows = (exponentBits + window - 1) / window;
+		int digits = 1 << window;
+		table = new BigInteger[rows][digits];
+		BigInteger b = base.shiftLeft(rBits).mod(modulus);
+		for(int i = 0; i < rows; i++) {
+			BigInteger[] row = table[i];
+			row[1] = b;
+			for(int d = 2; d < digits; d++)
+				row[d] = reduce(row[d-1].multiply(b));
+			b = reduce(row[digits-1].multiply(b));
+		}
+	}
+
+	BigInteger getBase() {
+		return base;
+	}
+
+	BigInteger getModulus() {
+		return modulus;
+	}
+
+	/** @return base^e mod modulus. */
+	BigInteger pow(BigInteger e) {
+		if(!inRange(e)) return base.modPow(e, modulus);
+		return reduce(powMontgomery(e, null));
+	}
+
+	/** @return base^e * x mod modulus. x must be less than the modulus. */
+	BigInteger powTimes(BigInteger e, BigInteger x) {
+		if(!inRange(e)) return base.modPow(e, modulus).multiply(x).mod(modulus);
+		// reduce(aR * x) = a * x mod modulus, so we don't need a separate multiplication.
+		return reduce(powMontgomery(e, null).multiply(x));
+	}
+
+	/**
+	 * @return g^a * y^b mod modulus, where g is this table's base and y is other's. Both
+	 * tables must have the same modulus.
+	 */
+	BigInteger powProduct(BigInteger a, FixedBaseModPow other, BigInteger b) {
+		if(!modulus.equals(other.modulus)) throw new IllegalArgumentException("Different moduli");
+		if(!(inRange(a) && other.inRange(b)))
+			return pow(a).multiply(other.pow(b)).mod(modulus);
+		return reduce(other.powMontgomery(b, powMontgomery(a, null)));
+	}
+
+	private boolean inRange(BigInteger e) {
+		return e.signum() >= 0 && e.bitLength() <= exponentBits;
+	}
+
+	/**
+	 * @param acc A value in Montgomery form to multiply the result by, or null.
+	 * @return acc * base^e in Montgomery form.
+	 */
+	private BigInteger powMontgomery(BigInteger e, BigInteger acc) {
+		int bits = e.bitLength();
+		for(int i = 0, bit = 0; bit < bits; i++, bit += window) {
+			int d = 0;
+			for(int j = 0; j < window; j++)
+				if(e.testBit(bit + j)) d |= 1 << j;
+			if(d == 0) continue;
+			acc = (acc == null) ? table[i][d] : reduce(acc.multiply(table[i][d]));
+		}
+		return acc == null ? one : acc;
+	}
+
+	/** Montgomery reduction: t * R^-1 mod modulus, for 0 <= t < modulus * R. */
+	private BigInteger reduce(BigInteger t) {
+		BigInteger m = t.and(mask).multiply(nPrime).and(mask);
+		BigInteger u = t.add(m.multiply(modulus)).shiftRight(rBits);
+		return u.compareTo(modulus) >= 0 ? u.subtract(modulus) : u;
+	}
+
+}
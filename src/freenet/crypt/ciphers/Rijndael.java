@@ -14,10 +14,13 @@ import freenet.support.Logger;
 
 /**
  * Interfaces with the Rijndael AES candidate to implement the Rijndael
- * algorithm
+ * algorithm. With a 256-bit block, which is what we normally use, this uses the faster
+ * Rijndael256. The expanded key is immutable, and initialize() replaces it atomically, so
+ * enciphering and deciphering don't need to lock.
  */
 public class Rijndael implements BlockCipher {
-	private Object sessionKey;
+	/** A Rijndael256 if the block size is 256 bits, otherwise a Rijndael_Algorithm key. */
+	private volatile Object sessionKey;
 	private final int keysize, blocksize;
 
 	/**
@@ -57,17 +60,24 @@ public class Rijndael implements BlockCipher {
 		try {
 			byte[] nkey=new byte[keysize>>3];
 			System.arraycopy(key, 0, nkey, 0, nkey.length);
-			sessionKey=Rijndael_Algorithm.makeKey(nkey, blocksize/8);
+			if(blocksize == 256)
+				sessionKey=new Rijndael256(nkey);
+			else
+				sessionKey=Rijndael_Algorithm.makeKey(nkey, blocksize/8);
 		} catch (InvalidKeyException e) {
 			e.printStackTrace();
 			Logger.error(this,"Invalid key");
 		}
 	}
 
-	public synchronized final void encipher(byte[] block, byte[] result) {
+	public final void encipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8);
+		Object key = sessionKey;
+		if(key instanceof Rijndael256)
+			((Rijndael256)key).encrypt(block, 0, result, 0);
+		else
+			Rijndael_Algorithm.blockEncrypt(block, result, 0, key, blocksize/8);
 	}
 
 	/**
@@ -75,22 +85,30 @@ public class Rijndael implements BlockCipher {
 	 * things up by avoiding unnecessary allocations between rounds.
 	 */
 	// only consumer is RijndaelPCFBMode
-	public synchronized final int getTempArraySize() {
+	public final int getTempArraySize() {
 		return blocksize/(8*4);
 	}
 
 	// only consumer is RijndaelPCFBMode
-	public synchronized final void encipher(byte[] block, byte[] result, int[] a, int[] t) {
+	public final void encipher(byte[] block, byte[] result, int[] a, int[] t) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
 		if(a.length != t.length || t.length != blocksize/(8*4))
 			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8, a, t);
+		Object key = sessionKey;
+		if(key instanceof Rijndael256)
+			((Rijndael256)key).encrypt(block, 0, result, 0);
+		else
+			Rijndael_Algorithm.blockEncrypt(block, result, 0, key, blocksize/8, a, t);
 	}
 
-	public synchronized final void decipher(byte[] block, byte[] result) {
+	public final void decipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8);
+		Object key = sessionKey;
+		if(key instanceof Rijndael256)
+			((Rijndael256)key).decrypt(block, 0, result, 0);
+		else
+			Rijndael_Algorithm.blockDecrypt(block, result, 0, key, blocksize/8);
 	}
 }
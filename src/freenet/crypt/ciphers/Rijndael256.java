@@ -0,0 +1,219 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt.ciphers;
+
+import java.security.InvalidKeyException;
+
+/**
+ * Rijndael with a 256-bit block, which is what we use for CHKs, the datastore, and
+ * PaddedEphemerallyEncryptedBucket. Rijndael_Algorithm handles any block size, with a loop
+ * over the columns and a modulo for every table lookup; this is the usual T-table
+ * implementation, unrolled over the 8 columns of a 256-bit block, using the same tables.
+ *
+ * An instance is an expanded key and is immutable, so any number of threads can use it at
+ * once without locking. The output is identical to Rijndael_Algorithm's with a 32 byte block.
+ */
+final class Rijndael256 {
+
+	static final int BLOCK_SIZE = 32;
+	/** Always 14 with a 256-bit block, whatever the key size. */
+	private static final int ROUNDS = 14;
+
+	private static final byte[] S = Rijndael_Algorithm.S;
+	private static final byte[] Si = Rijndael_Algorithm.Si;
+	private static final int[] T1 = Rijndael_Algorithm.T1;
+	private static final int[] T2 = Rijndael_Algorithm.T2;
+	private static final int[] T3 = Rijndael_Algorithm.T3;
+	private static final int[] T4 = Rijndael_Algorithm.T4;
+	private static final int[] T5 = Rijndael_Algorithm.T5;
+	private static final int[] T6 = Rijndael_Algorithm.T6;
+	private static final int[] T7 = Rijndael_Algorithm.T7;
+	private static final int[] T8 = Rijndael_Algorithm.T8;
+	private static final int[] U1 = Rijndael_Algorithm.U1;
+	private static final int[] U2 = Rijndael_Algorithm.U2;
+	private static final int[] U3 = Rijndael_Algorithm.U3;
+	private static final int[] U4 = Rijndael_Algorithm.U4;
+	private static final byte[] rcon = Rijndael_Algorithm.rcon;
+
+	/** Encryption round keys, 8 words per round. */
+	private final int[] ke;
+	/** Decryption round keys, in the order they are used, with InvMixColumn applied. */
+	private final int[] kd;
+
+	/** @param key 16, 24 or 32 bytes. */
+	Rijndael256(byte[] key) throws InvalidKeyException {
+		if(key == null)
+			throw new InvalidKeyException("Empty key");
+		if(!((key.length == 16) || (key.length == 24) || (key.length == 32)))
+			throw new InvalidKeyException("Incorrect key length");
+		int kc = key.length / 4;
+		int words = (ROUNDS + 1) * 8;
+		ke = new int[words];
+		for(int i = 0, j = 0; i < kc; i++, j += 4)
+			ke[i] = (key[j] & 0xFF) << 24 | (key[j+1] & 0xFF) << 16 | (key[j+2] & 0xFF) << 8 | (key[j+3] & 0xFF);
+		int rconPointer = 0;
+		for(int i = kc; i < words; i++) {
+			int tt = ke[i-1];
+			if(i % kc == 0) {
+				// SubWord(RotWord(tt)) ^ rcon
+				tt = (S[(tt >>> 16) & 0xFF] & 0xFF) << 24 ^
+					(S[(tt >>> 8) & 0xFF] & 0xFF) << 16 ^
+					(S[tt & 0xFF] & 0xFF) << 8 ^
+					(S[tt >>> 24] & 0xFF) ^
+					(rcon[rconPointer++] & 0xFF) << 24;
+			} else if(kc == 8 && i % kc == 4) {
+				// SubWord(tt)
+				tt = (S[tt >>> 24] & 0xFF) << 24 ^
+					(S[(tt >>> 16) & 0xFF] & 0xFF) << 16 ^
+					(S[(tt >>> 8) & 0xFF] & 0xFF) << 8 ^
+					(S[tt & 0xFF] & 0xFF);
+			}
+			ke[i] = ke[i-kc] ^ tt;
+		}
+		// The decryption keys are the encryption keys in reverse order of rounds, and all
+		// but the first and last go through InvMixColumn.
+		kd = new int[words];
+		for(int r = 0; r <= ROUNDS; r++) {
+			for(int j = 0; j < 8; j++) {
+				int tt = ke[(ROUNDS - r) * 8 + j];
+				if(r != 0 && r != ROUNDS)
+					tt = U1[tt >>> 24] ^ U2[(tt >>> 16) & 0xFF] ^ U3[(tt >>> 8) & 0xFF] ^ U4[tt & 0xFF];
+				kd[r * 8 + j] = tt;
+			}
+		}
+	}
+
+	/** Encrypt one block. in and out may be the same buffer, even at the same offset. */
+	void encrypt(byte[] in, int inOffset, byte[] out, int outOffset) {
+		int t0 = ((in[inOffset] & 0xFF) << 24 | (in[inOffset+1] & 0xFF) << 16 | (in[inOffset+2] & 0xFF) << 8 | (in[inOffset+3] & 0xFF)) ^ ke[0];
+		int t1 = ((in[inOffset+4] & 0xFF) << 24 | (in[inOffset+5] & 0xFF) << 16 | (in[inOffset+6] & 0xFF) << 8 | (in[inOffset+7] & 0xFF)) ^ ke[1];
+		int t2 = ((in[inOffset+8] & 0xFF) << 24 | (in[inOffset+9] & 0xFF) << 16 | (in[inOffset+10] & 0xFF) << 8 | (in[inOffset+11] & 0xFF)) ^ ke[2];
+		int t3 = ((in[inOffset+12] & 0xFF) << 24 | (in[inOffset+13] & 0xFF) << 16 | (in[inOffset+14] & 0xFF) << 8 | (in[inOffset+15] & 0xFF)) ^ ke[3];
+		int t4 = ((in[inOffset+16] & 0xFF) << 24 | (in[inOffset+17] & 0xFF) << 16 | (in[inOffset+18] & 0xFF) << 8 | (in[inOffset+19] & 0xFF)) ^ ke[4];
+		int t5 = ((in[inOffset+20] & 0xFF) << 24 | (in[inOffset+21] & 0xFF) << 16 | (in[inOffset+22] & 0xFF) << 8 | (in[inOffset+23] & 0xFF)) ^ ke[5];
+		int t6 = ((in[inOffset+24] & 0xFF) << 24 | (in[inOffset+25] & 0xFF) << 16 | (in[inOffset+26] & 0xFF) << 8 | (in[inOffset+27] & 0xFF)) ^ ke[6];
+		int t7 = ((in[inOffset+28] & 0xFF) << 24 | (in[inOffset+29] & 0xFF) << 16 | (in[inOffset+30] & 0xFF) << 8 | (in[inOffset+31] & 0xFF)) ^ ke[7];
+		int k = 8;
+		for(int r = 1; r < ROUNDS; r++) {
+			int a0 = T1[t0 >>> 24] ^ T2[(t1 >>> 16) & 0xFF] ^ T3[(t3 >>> 8) & 0xFF] ^ T4[t4 & 0xFF] ^ ke[k];
+			int a1 = T1[t1 >>> 24] ^ T2[(t2 >>> 16) & 0xFF] ^ T3[(t4 >>> 8) & 0xFF] ^ T4[t5 & 0xFF] ^ ke[k+1];
+			int a2 = T1[t2 >>> 24] ^ T2[(t3 >>> 16) & 0xFF] ^ T3[(t5 >>> 8) & 0xFF] ^ T4[t6 & 0xFF] ^ ke[k+2];
+			int a3 = T1[t3 >>> 24] ^ T2[(t4 >>> 16) & 0xFF] ^ T3[(t6 >>> 8) & 0xFF] ^ T4[t7 & 0xFF] ^ ke[k+3];
+			int a4 = T1[t4 >>> 24] ^ T2[(t5 >>> 16) & 0xFF] ^ T3[(t7 >>> 8) & 0xFF] ^ T4[t0 & 0xFF] ^ ke[k+4];
+			int a5 = T1[t5 >>> 24] ^ T2[(t6 >>> 16) & 0xFF] ^ T3[(t0 >>> 8) & 0xFF] ^ T4[t1 & 0xFF] ^ ke[k+5];
+			int a6 = T1[t6 >>> 24] ^ T2[(t7 >>> 16) & 0xFF] ^ T3[(t1 >>> 8) & 0xFF] ^ T4[t2 & 0xFF] ^ ke[k+6];
+			int a7 = T1[t7 >>> 24] ^ T2[(t0 >>> 16) & 0xFF] ^ T3[(t2 >>> 8) & 0xFF] ^ T4[t3 & 0xFF] ^ ke[k+7];
+			t0 = a0; t1 = a1; t2 = a2; t3 = a3; t4 = a4; t5 = a5; t6 = a6; t7 = a7;
+			k += 8;
+		}
+		// The last round has no MixColumn.
+		int k0 = ke[k];
+		out[outOffset] = (byte)(S[t0 >>> 24] ^ (k0 >>> 24));
+		out[outOffset+1] = (byte)(S[(t1 >>> 16) & 0xFF] ^ (k0 >>> 16));
+		out[outOffset+2] = (byte)(S[(t3 >>> 8) & 0xFF] ^ (k0 >>> 8));
+		out[outOffset+3] = (byte)(S[t4 & 0xFF] ^ k0);
+		int k1 = ke[k+1];
+		out[outOffset+4] = (byte)(S[t1 >>> 24] ^ (k1 >>> 24));
+		out[outOffset+5] = (byte)(S[(t2 >>> 16) & 0xFF] ^ (k1 >>> 16));
+		out[outOffset+6] = (byte)(S[(t4 >>> 8) & 0xFF] ^ (k1 >>> 8));
+		out[outOffset+7] = (byte)(S[t5 & 0xFF] ^ k1);
+		int k2 = ke[k+2];
+		out[outOffset+8] = (byte)(S[t2 >>> 24] ^ (k2 >>> 24));
+		out[outOffset+9] = (byte)(S[(t3 >>> 16) & 0xFF] ^ (k2 >>> 16));
+		out[outOffset+10] = (byte)(S[(t5 >>> 8) & 0xFF] ^ (k2 >>> 8));
+		out[outOffset+11] = (byte)(S[t6 & 0xFF] ^ k2);
+		int k3 = ke[k+3];
+		out[outOffset+12] = (byte)(S[t3 >>> 24] ^ (k3 >>> 24));
+		out[outOffset+13] = (byte)(S[(t4 >>> 16) & 0xFF] ^ (k3 >>> 16));
+		out[outOffset+14] = (byte)(S[(t6 >>> 8) & 0xFF] ^ (k3 >>> 8));
+		out[outOffset+15] = (byte)(S[t7 & 0xFF] ^ k3);
+		int k4 = ke[k+4];
+		out[outOffset+16] = (byte)(S[t4 >>> 24] ^ (k4 >>> 24));
+		out[outOffset+17] = (byte)(S[(t5 >>> 16) & 0xFF] ^ (k4 >>> 16));
+		out[outOffset+18] = (byte)(S[(t7 >>> 8) & 0xFF] ^ (k4 >>> 8));
+		out[outOffset+19] = (byte)(S[t0 & 0xFF] ^ k4);
+		int k5 = ke[k+5];
+		out[outOffset+20] = (byte)(S[t5 >>> 24] ^ (k5 >>> 24));
+		out[outOffset+21] = (byte)(S[(t6 >>> 16) & 0xFF] ^ (k5 >>> 16));
+		out[outOffset+22] = (byte)(S[(t0 >>> 8) & 0xFF] ^ (k5 >>> 8));
+		out[outOffset+23] = (byte)(S[t1 & 0xFF] ^ k5);
+		int k6 = ke[k+6];
+		out[outOffset+24] = (byte)(S[t6 >>> 24] ^ (k6 >>> 24));
+		out[outOffset+25] = (byte)(S[(t7 >>> 16) & 0xFF] ^ (k6 >>> 16));
+		out[outOffset+26] = (byte)(S[(t1 >>> 8) & 0xFF] ^ (k6 >>> 8));
+		out[outOffset+27] = (byte)(S[t2 & 0xFF] ^ k6);
+		int k7 = ke[k+7];
+		out[outOffset+28] = (byte)(S[t7 >>> 24] ^ (k7 >>> 24));
+		out[outOffset+29] = (byte)(S[(t0 >>> 16) & 0xFF] ^ (k7 >>> 16));
+		out[outOffset+30] = (byte)(S[(t2 >>> 8) & 0xFF] ^ (k7 >>> 8));
+		out[outOffset+31] = (byte)(S[t3 & 0xFF] ^ k7);
+	}
+
+	/** Decrypt one block. in and out may be the same buffer, even at the same offset. */
+	void decrypt(byte[] in, int inOffset, byte[] out, int outOffset) {
+		int t0 = ((in[inOffset] & 0xFF) << 24 | (in[inOffset+1] & 0xFF) << 16 | (in[inOffset+2] & 0xFF) << 8 | (in[inOffset+3] & 0xFF)) ^ kd[0];
+		int t1 = ((in[inOffset+4] & 0xFF) << 24 | (in[inOffset+5] & 0xFF) << 16 | (in[inOffset+6] & 0xFF) << 8 | (in[inOffset+7] & 0xFF)) ^ kd[1];
+		int t2 = ((in[inOffset+8] & 0xFF) << 24 | (in[inOffset+9] & 0xFF) << 16 | (in[inOffset+10] & 0xFF) << 8 | (in[inOffset+11] & 0xFF)) ^ kd[2];
+		int t3 = ((in[inOffset+12] & 0xFF) << 24 | (in[inOffset+13] & 0xFF) << 16 | (in[inOffset+14] & 0xFF) << 8 | (in[inOffset+15] & 0xFF)) ^ kd[3];
+		int t4 = ((in[inOffset+16] & 0xFF) << 24 | (in[inOffset+17] & 0xFF) << 16 | (in[inOffset+18] & 0xFF) << 8 | (in[inOffset+19] & 0xFF)) ^ kd[4];
+		int t5 = ((in[inOffset+20] & 0xFF) << 24 | (in[inOffset+21] & 0xFF) << 16 | (in[inOffset+22] & 0xFF) << 8 | (in[inOffset+23] & 0xFF)) ^ kd[5];
+		int t6 = ((in[inOffset+24] & 0xFF) << 24 | (in[inOffset+25] & 0xFF) << 16 | (in[inOffset+26] & 0xFF) << 8 | (in[inOffset+27] & 0xFF)) ^ kd[6];
+		int t7 = ((in[inOffset+28] & 0xFF) << 24 | (in[inOffset+29] & 0xFF) << 16 | (in[inOffset+30] & 0xFF) << 8 | (in[inOffset+31] & 0xFF)) ^ kd[7];
+		int k = 8;
+		for(int r = 1; r < ROUNDS; r++) {
+			int a0 = T5[t0 >>> 24] ^ T6[(t7 >>> 16) & 0xFF] ^ T7[(t5 >>> 8) & 0xFF] ^ T8[t4 & 0xFF] ^ kd[k];
+			int a1 = T5[t1 >>> 24] ^ T6[(t0 >>> 16) & 0xFF] ^ T7[(t6 >>> 8) & 0xFF] ^ T8[t5 & 0xFF] ^ kd[k+1];
+			int a2 = T5[t2 >>> 24] ^ T6[(t1 >>> 16) & 0xFF] ^ T7[(t7 >>> 8) & 0xFF] ^ T8[t6 & 0xFF] ^ kd[k+2];
+			int a3 = T5[t3 >>> 24] ^ T6[(t2 >>> 16) & 0xFF] ^ T7[(t0 >>> 8) & 0xFF] ^ T8[t7 & 0xFF] ^ kd[k+3];
+			int a4 = T5[t4 >>> 24] ^ T6[(t3 >>> 16) & 0xFF] ^ T7[(t1 >>> 8) & 0xFF] ^ T8[t0 & 0xFF] ^ kd[k+4];
+			int a5 = T5[t5 >>> 24] ^ T6[(t4 >>> 16) & 0xFF] ^ T7[(t2 >>> 8) & 0xFF] ^ T8[t1 & 0xFF] ^ kd[k+5];
+			int a6 = T5[t6 >>> 24] ^ T6[(t5 >>> 16) & 0xFF] ^ T7[(t3 >>> 8) & 0xFF] ^ T8[t2 & 0xFF] ^ kd[k+6];
+			int a7 = T5[t7 >>> 24] ^ T6[(t6 >>> 16) & 0xFF] ^ T7[(t4 >>> 8) & 0xFF] ^ T8[t3 & 0xFF] ^ kd[k+7];
+			t0 = a0; t1 = a1; t2 = a2; t3 = a3; t4 = a4; t5 = a5; t6 = a6; t7 = a7;
+			k += 8;
+		}
+		// The last round has no MixColumn.
+		int k0 = kd[k];
+		out[outOffset] = (byte)(Si[t0 >>> 24] ^ (k0 >>> 24));
+		out[outOffset+1] = (byte)(Si[(t7 >>> 16) & 0xFF] ^ (k0 >>> 16));
+		out[outOffset+2] = (byte)(Si[(t5 >>> 8) & 0xFF] ^ (k0 >>> 8));
+		out[outOffset+3] = (byte)(Si[t4 & 0xFF] ^ k0);
+		int k1 = kd[k+1];
+		out[outOffset+4] = (byte)(Si[t1 >>> 24] ^ (k1 >>> 24));
+		out[outOffset+5] = (byte)(Si[(t0 >>> 16) & 0xFF] ^ (k1 >>> 16));
+		out[outOffset+6] = (byte)(Si[(t6 >>> 8) & 0xFF] ^ (k1 >>> 8));
+		out[outOffset+7] = (byte)(Si[t5 & 0xFF] ^ k1);
+		int k2 = kd[k+2];
+		out[outOffset+8] = (byte)(Si[t2 >>> 24] ^ (k2 >>> 24));
+		out[outOffset+9] = (byte)(Si[(t1 >>> 16) & 0xFF] ^ (k2 >>> 16));
+		out[outOffset+10] = (byte)(Si[(t7 >>> 8) & 0xFF] ^ (k2 >>> 8));
+		out[outOffset+11] = (byte)(Si[t6 & 0xFF] ^ k2);
+		int k3 = kd[k+3];
+		out[outOffset+12] = (byte)(Si[t3 >>> 24] ^ (k3 >>> 24));
+		out[outOffset+13] = (byte)(Si[(t2 >>> 16) & 0xFF] ^ (k3 >>> 16));
+		out[outOffset+14] = (byte)(Si[(t0 >>> 8) & 0xFF] ^ (k3 >>> 8));
+		out[outOffset+15] = (byte)(Si[t7 & 0xFF] ^ k3);
+		int k4 = kd[k+4];
+		out[outOffset+16] = (byte)(Si[t4 >>> 24] ^ (k4 >>> 24));
+		out[outOffset+17] = (byte)(Si[(t3 >>> 16) & 0xFF] ^ (k4 >>> 16));
+		out[outOffset+18] = (byte)(Si[(t1 >>> 8) & 0xFF] ^ (k4 >>> 8));
+		out[outOffset+19] = (byte)(Si[t0 & 0xFF] ^ k4);
+		int k5 = kd[k+5];
+		out[outOffset+20] = (byte)(Si[t5 >>> 24] ^ (k5 >>> 24));
+		out[outOffset+21] = (byte)(Si[(t4 >>> 16) & 0xFF] ^ (k5 >>> 16));
+		out[outOffset+22] = (byte)(Si[(t2 >>> 8) & 0xFF] ^ (k5 >>> 8));
+		out[outOffset+23] = (byte)(Si[t1 & 0xFF] ^ k5);
+		int k6 = kd[k+6];
+		out[outOffset+24] = (byte)(Si[t6 >>> 24] ^ (k6 >>> 24));
+		out[outOffset+25] = (byte)(Si[(t5 >>> 16) & 0xFF] ^ (k6 >>> 16));
+		out[outOffset+26] = (byte)(Si[(t3 >>> 8) & 0xFF] ^ (k6 >>> 8));
+		out[outOffset+27] = (byte)(Si[t2 & 0xFF] ^ k6);
+		int k7 = kd[k+7];
+		out[outOffset+28] = (byte)(Si[t7 >>> 24] ^ (k7 >>> 24));
+		out[outOffset+29] = (byte)(Si[(t6 >>> 16) & 0xFF] ^ (k7 >>> 16));
+		out[outOffset+30] = (byte)(Si[(t4 >>> 8) & 0xFF] ^ (k7 >>> 8));
+		out[outOffset+31] = (byte)(Si[t3 & 0xFF] ^ k7);
+	}
+
+}
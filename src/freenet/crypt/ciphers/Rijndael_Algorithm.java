@@ -55,21 +55,22 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	private static final int[] alog = new int[256];
 	private static final int[] log = new int[256];
 
-	private static final byte[] S = new byte[256];
-	private static final byte[] Si = new byte[256];
-	private static final int[] T1 = new int[256];
-	private static final int[] T2 = new int[256];
-	private static final int[] T3 = new int[256];
-	private static final int[] T4 = new int[256];
-	private static final int[] T5 = new int[256];
-	private static final int[] T6 = new int[256];
-	private static final int[] T7 = new int[256];
-	private static final int[] T8 = new int[256];
-	private static final int[] U1 = new int[256];
-	private static final int[] U2 = new int[256];
-	private static final int[] U3 = new int[256];
-	private static final int[] U4 = new int[256];
-	private static final byte[] rcon = new byte[30];
+	// The tables are also used by Rijndael256.
+	static final byte[] S = new byte[256];
+	static final byte[] Si = new byte[256];
+	static final int[] T1 = new int[256];
+	static final int[] T2 = new int[256];
+	static final int[] T3 = new int[256];
+	static final int[] T4 = new int[256];
+	static final int[] T5 = new int[256];
+	static final int[] T6 = new int[256];
+	static final int[] T7 = new int[256];
+	static final int[] T8 = new int[256];
+	static final int[] U1 = new int[256];
+	static final int[] U2 = new int[256];
+	static final int[] U3 = new int[256];
+	static final int[] U4 = new int[256];
+	static final byte[] rcon = new byte[30];
 
 	private static final int[][][] shifts = new int[][][] {
 		{ {0, 0}, {1, 3}, {2, 2}, {3, 1} },
@@ -492,7 +493,7 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	 * @param blockSize  The block size in bytes of this Rijndael.
 	 * @exception  InvalidKeyException  If the key is invalid.
 	 */
-	//TODO: This method doesn't really need synchronization. The only reason
+	//This method doesn't really need synchronization. The only reason
 	//I can see for it to be synchronized is that it will consume 100% CPU (due to
 	//heavy calculations) when called. Probably should be unsynchronized if we
 	//want better support for dual+ CPU machines. /Iakin 2003-10-12
@@ -502,7 +503,9 @@ final class Rijndael_Algorithm // implicit no-argument constructor
 	//a problem the callers should resolve among themselves.
 	//It is a fact that allowing no more than one makeKey on any given
 	//CPU will result in fewer cache misses.  -- ejhuff 2003-10-12
-	final static synchronized Object makeKey(byte[] k, int blockSize)
+	//makeKey is thread-safe: the tables are only written by the static initializer,
+	//so there is no shared mutable state.
+	final static Object makeKey(byte[] k, int blockSize)
 	throws InvalidKeyException {
 		if (RDEBUG) trace(IN, "makeKey("+k+", "+blockSize+ ')');
 		if (k == null)
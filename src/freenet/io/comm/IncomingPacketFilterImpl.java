@@ -10,6 +10,7 @@ import freenet.node.FNPPacketMangler;
 import freenet.node.Node;
 import freenet.node.NodeCrypto;
 import freenet.node.PeerNode;
+import freenet.support.AffinityExecutor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -45,6 +46,8 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 	
 	private static final AtomicLong successfullyDecodedPackets = new AtomicLong();
 	private static final AtomicLong failedDecodePackets = new AtomicLong();
+	/** Packets dropped because the decryption queue was full. Not decode failures. */
+	private static final AtomicLong droppedPackets = new AtomicLong();
 	
 	public static long[] getDecodedPackets() {
 		if(!logMINOR) return null;
@@ -53,13 +56,92 @@ public class IncomingPacketFilterImpl implements IncomingPacketFilter {
 		return new long[] { decoded, decoded+failed };
 	}
 
+	/** @return The number of packets dropped because the decryption queue was full. */
+	public static long getDroppedPackets() {
+		return droppedPackets.get();
+	}
+
+	/** Affinity for packets that must be processed in order with all other such packets */
+	private static final int SERIAL_AFFINITY = 0;
+
 	public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
 		if(logMINOR) Logger.minor(this, "Packet length "+length+" from "+peer);
 		node.random.acceptTimerEntropy(fnpTimingSource, 0.25);
 		PeerNode opn = node.peers.getByPeer(peer, mangler);
+		AffinityExecutor decryptors = node.packetDecryptors;
+		if(decryptors == null)
+			return process(buf, offset, length, peer, opn, now, true);
+
+		// The caller will reuse the buffer.
+		byte[] copy = new byte[length];
+		System.arraycopy(buf, offset, copy, 0, length);
+		if(opn != null && !opn.isOldFNP()) {
+			// Data packet on a new format connection, decrypt on the peer's thread.
+			if(!decryptors.execute(opn.hashCode(), new DecryptJob(copy, peer, opn, now, true, false), "Decrypt packet"))
+				dropped(peer);
+		} else {
+			// Handshakes, unknown addresses and old format connections are not thread safe.
+			if(!decryptors.execute(SERIAL_AFFINITY, new DecryptJob(copy, peer, opn, now, false, false), "Process packet"))
+				dropped(peer);
+		}
+		return DECODED.QUEUED;
+	}
+
+	private void dropped(Peer peer) {
+		droppedPackets.incrementAndGet();
+		if(logMINOR) Logger.minor(this, "Packet decryption queue full, dropping packet from "+peer);
+	}
+
+	/** Process a packet on one of the decryption threads */
+	private class DecryptJob implements Runnable {
+
+		private final byte[] buf;
+		private final Peer peer;
+		private final PeerNode opn;
+		private final long now;
+		private final boolean peerOnly;
+		private final boolean triedPeer;
+
+		/**
+		 * @param peerOnly If true, only try the peer's session keys. If that fails, the packet is
+		 * queued again on the serial thread.
+		 * @param triedPeer If true, the peer's session keys have already been tried.
+		 */
+		DecryptJob(byte[] buf, Peer peer, PeerNode opn, long now, boolean peerOnly, boolean triedPeer) {
+			this.buf = buf;
+			this.peer = peer;
+			this.opn = opn;
+			this.now = now;
+			this.peerOnly = peerOnly;
+			this.triedPeer = triedPeer;
+		}
+
+		public void run() {
+			if(peerOnly) {
+				if(opn.handleReceivedPacket(buf, 0, buf.length, now, peer)) {
+					if(logMINOR) successfullyDecodedPackets.incrementAndGet();
+					return;
+				}
+				if(!node.packetDecryptors.execute(SERIAL_AFFINITY, new DecryptJob(buf, peer, opn, now, false, true), "Process packet"))
+					dropped(peer);
+			} else {
+				process(buf, 0, buf.length, peer, opn, now, !triedPeer);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return super.toString()+":"+peer+":"+opn;
+		}
+
+	}
 
+	/**
+	 * @param tryPeer If false, opn.handleReceivedPacket() has already failed.
+	 */
+	private DECODED process(byte[] buf, int offset, int length, Peer peer, PeerNode opn, long now, boolean tryPeer) {
 		if(opn != null) {
-			if(opn.handleReceivedPacket(buf, offset, length, now, peer)) {
+			if(tryPeer && opn.handleReceivedPacket(buf, offset, length, now, peer)) {
 				if(logMINOR) successfullyDecodedPackets.incrementAndGet();
 				return DECODED.DECODED;
 			}
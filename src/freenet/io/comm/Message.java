@@ -19,21 +19,17 @@
 
 package freenet.io.comm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 
-import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
-import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
 
@@ -61,7 +57,13 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	private final MessageCodec _codec;
+	/** Primitive fields, see MessageCodec */
+	final long[] _primitives;
+	/** All other fields */
+	final Object[] _objects;
+	/** Bit n is set if field n is */
+	long _setFields;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -69,26 +71,35 @@ public class Message {
 	private boolean needsLoadRT;
 	private boolean needsLoadBulk;
 	
+	/**
+	 * Decode a message. Large fields refer to buf rather than copying it, so it must not be
+	 * modified afterwards.
+	 */
 	public static Message decodeMessageFromPacket(byte[] buf, int offset, int length, PeerContext peer, int overhead) {
-		ByteBufferInputStream bb = new ByteBufferInputStream(buf, offset, length);
-		return decodeMessage(bb, peer, length + overhead, true, false, false);
+		return decodeMessage(ByteBuffer.wrap(buf, offset, length), peer, length + overhead, true, false, false);
+	}
+	
+	/**
+	 * Decode a message from the buffer's position to its limit. Large fields refer to the
+	 * buffer's content rather than copying it, so it must not be modified afterwards.
+	 */
+	public static Message decodeMessageFromBuffer(ByteBuffer buf, PeerContext peer, int overhead) {
+		return decodeMessage(buf.slice(), peer, buf.remaining() + overhead, true, false, false);
 	}
 	
 	public static Message decodeMessageLax(byte[] buf, PeerContext peer, int overhead) {
-		ByteBufferInputStream bb = new ByteBufferInputStream(buf);
-		return decodeMessage(bb, peer, buf.length + overhead, true, false, true);
+		return decodeMessage(ByteBuffer.wrap(buf), peer, buf.length + overhead, true, false, true);
 	}
 
-	private static Message decodeMessage(ByteBufferInputStream bb, PeerContext peer, int recvByteCount,
+	private static Message decodeMessage(ByteBuffer bb, PeerContext peer, int recvByteCount,
 	        boolean mayHaveSubMessages, boolean inSubMessage, boolean veryLax) {
 		MessageType mspec;
-		try {
-			mspec = MessageType.getSpec(Integer.valueOf(bb.readInt()), veryLax);
-		} catch (IOException e1) {
+		if(bb.remaining() < 4) {
 			if(logMINOR)
-				Logger.minor(Message.class,"Failed to read message type: "+e1, e1);
+				Logger.minor(Message.class,"Failed to read message type: too short");
 			return null;
 		}
+		mspec = MessageType.getSpec(Integer.valueOf(bb.getInt()), veryLax);
 		if (mspec == null) {
 			if(logMINOR)
 				Logger.minor(Message.class, "Bogus message type");
@@ -101,26 +112,19 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-		    for (String name : mspec.getOrderedFields()) {
-		        Class<?> type = mspec.getFields().get(name);
-		        if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-		            m.set(name, Serializer
-					        .readListFromDataInputStream(mspec.getLinkedListTypes().get(name),
-					        bb));
-		        } else {
-		            m.set(name, Serializer.readFromDataInputStream(type, bb));
-		        }
-			}
+			m._codec.decode(m, bb);
 			if (mayHaveSubMessages) {
 		    	while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
-		    		ByteBufferInputStream bb2;
+		    		ByteBuffer bb2;
 		    		try {
-		    			int size = bb.readUnsignedShort();
+		    			int size = bb.getShort() & 0xFFFF;
 						if (bb.remaining() < size)
 							return m;
 
-						bb2 = bb.slice(size);
-		    		} catch (EOFException e) {
+						bb2 = bb.slice();
+						bb2.limit(size);
+						bb.position(bb.position() + size);
+		    		} catch (BufferUnderflowException e) {
 		    			if(logMINOR) Logger.minor(Message.class, "No submessages, returning: "+m);
 		    			return m;
 		    		}
@@ -135,7 +139,7 @@ public class Message {
 		    	}
 		    }
 		} catch (EOFException e) {
-			String msg = peer.getPeer()+" sent a message packet that ends prematurely while deserialising "+mspec.getName();
+			String msg = (peer == null ? null : peer.getPeer())+" sent a message packet that ends prematurely while deserialising "+mspec.getName();
 			if(inSubMessage)
 				Logger.minor(Message.class, msg+" in sub-message", e);
 			else
@@ -165,114 +169,172 @@ public class Message {
 		}
 		_receivedByteCount = recvByteCount;
 		priority = spec.getDefaultPriority();
+		_codec = spec.getCodec();
+		_primitives = new long[_codec.primitiveCount];
+		_objects = new Object[_codec.objectCount];
+	}
+
+	/**
+	 * @return The slot of a primitive field in _primitives.
+	 * @throws NullPointerException If the field is not set.
+	 * @throws ClassCastException If the field has a different type.
+	 */
+	private int getSlot(String key, byte kind) {
+		int field = _codec.indexOf(key);
+		if(field < 0 || (_setFields & (1L << field)) == 0)
+			throw new NullPointerException(key+" not set in "+_spec.getName());
+		if(_codec.kinds[field] != kind)
+			throw new ClassCastException(key+" is a "+_codec.types[field].getName());
+		return _codec.slots[field];
 	}
 
 	public boolean getBoolean(String key) {
-		return ((Boolean) _payload.get(key)).booleanValue();
+		return _primitives[getSlot(key, MessageCodec.BOOLEAN)] != 0;
 	}
 
 	public byte getByte(String key) {
-		return ((Byte) _payload.get(key)).byteValue();
+		return (byte) _primitives[getSlot(key, MessageCodec.BYTE)];
 	}
 
 	public short getShort(String key) {
-		return ((Short) _payload.get(key)).shortValue();
+		return (short) _primitives[getSlot(key, MessageCodec.SHORT)];
 	}
 
 	public int getInt(String key) {
-		return ((Integer) _payload.get(key)).intValue();
+		return (int) _primitives[getSlot(key, MessageCodec.INT)];
 	}
 
 	public long getLong(String key) {
-		return ((Long) _payload.get(key)).longValue();
+		return _primitives[getSlot(key, MessageCodec.LONG)];
 	}
 
 	public double getDouble(String key) {
-	    return ((Double) _payload.get(key)).doubleValue();
+	    return Double.longBitsToDouble(_primitives[getSlot(key, MessageCodec.DOUBLE)]);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String) getObject(key);
 	}
 
+	/** @return The value of a field, boxed if it is a primitive, or null if it is not set. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		int field = _codec.indexOf(key);
+		if(field < 0 || (_setFields & (1L << field)) == 0) return null;
+		byte kind = _codec.kinds[field];
+		if(MessageCodec.isPrimitive(kind))
+			return MessageCodec.box(kind, _primitives[_codec.slots[field]]);
+		return _objects[_codec.slots[field]];
+	}
+
+	/** Does a field have the given value? Same as value.equals(getObject(key)), without boxing. */
+	boolean fieldEquals(String key, Object value) {
+		int field = _codec.indexOf(key);
+		if(field < 0 || (_setFields & (1L << field)) == 0) return false;
+		byte kind = _codec.kinds[field];
+		if(!MessageCodec.isPrimitive(kind))
+			return value.equals(_objects[_codec.slots[field]]);
+		if(value.getClass() != _codec.types[field]) return false;
+		long bits = _primitives[_codec.slots[field]];
+		if(kind == MessageCodec.DOUBLE)
+			return Double.doubleToLongBits(((Double) value).doubleValue()) == Double.doubleToLongBits(Double.longBitsToDouble(bits));
+		return MessageCodec.unbox(kind, value) == bits;
+	}
+
+	private void setPrimitive(String key, byte kind, Class<?> type, long bits) {
+		int field = _codec.indexOf(key);
+		if(field < 0 || _codec.kinds[field] != kind)
+			throw new IncorrectTypeException("Got " + type + ", expected " + _spec.typeOf(key));
+		_primitives[_codec.slots[field]] = bits;
+		_setFields |= 1L << field;
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		setPrimitive(key, MessageCodec.BOOLEAN, Boolean.class, b ? 1 : 0);
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		setPrimitive(key, MessageCodec.BYTE, Byte.class, b);
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		setPrimitive(key, MessageCodec.SHORT, Short.class, s);
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		setPrimitive(key, MessageCodec.INT, Integer.class, i);
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		setPrimitive(key, MessageCodec.LONG, Long.class, l);
 	}
 
 	public void set(String key, double d) {
-		set(key, new Double(d));
+		setPrimitive(key, MessageCodec.DOUBLE, Double.class, Double.doubleToRawLongBits(d));
 	}
 
 	public void set(String key, Object value) {
-		if (!_spec.checkType(key, value)) {
+		int field = _codec.indexOf(key);
+		if (field < 0 || !_spec.checkType(key, value)) {
 			if (value == null) {
 				throw new IncorrectTypeException("Got null for " + key);
 			}
 			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
 		}
-		_payload.put(key, value);
+		byte kind = _codec.kinds[field];
+		if(MessageCodec.isPrimitive(kind))
+			_primitives[_codec.slots[field]] = MessageCodec.unbox(kind, value);
+		else
+			_objects[_codec.slots[field]] = value;
+		_setFields |= 1L << field;
 	}
 
 	public byte[] encodeToPacket() {
-		return encodeToPacket(true, false);
+		if(logDEBUG)
+			Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
+		byte[] buf = new byte[getEncodedLength()];
+		encode(ByteBuffer.wrap(buf), true);
+		if(logDEBUG)
+			Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
+		return buf;
 	}
 
-	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
-//		if (this.getSpec() != MessageTypes.ping && this.getSpec() != MessageTypes.pong)
-//		Logger.logMinor("<<<<< Send message : " + this);
+	/**
+	 * Encode the message, including sub-messages, at the buffer's position, in the same format
+	 * as encodeToPacket(). No intermediate buffers are used.
+	 * @return The number of bytes written.
+	 * @throws java.nio.BufferOverflowException If there is not enough space left, see 
+	 * getEncodedLength(). The buffer's position is undefined in this case.
+	 */
+	public int encodeToBuffer(ByteBuffer buf) {
+		int start = buf.position();
+		encode(buf, true);
+		return buf.position() - start;
+	}
 
-		if(logDEBUG)
-			Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		DataOutputStream dos = new DataOutputStream(baos);
-		try {
-			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
-			}
-			dos.flush();
-		} catch (IOException e) {
-			e.printStackTrace();
-			throw new IllegalStateException(e.getMessage());
+	/** @return The number of bytes encodeToPacket() and encodeToBuffer() will produce. */
+	public int getEncodedLength() {
+		return getEncodedLength(true);
+	}
+
+	private int getEncodedLength(boolean includeSubMessages) {
+		int length = _codec.encodedLength(this);
+		if(_subMessages != null && includeSubMessages) {
+			for(int i=0;i<_subMessages.size();i++)
+				length += 2 + _subMessages.get(i).getEncodedLength(false);
 		}
+		return length;
+	}
 
+	private void encode(ByteBuffer buf, boolean includeSubMessages) {
+		_codec.encode(this, buf);
 		if(_subMessages != null && includeSubMessages) {
 			for(int i=0;i<_subMessages.size();i++) {
-				byte[] temp = _subMessages.get(i).encodeToPacket(false, true);
-				try {
-					dos.writeShort(temp.length);
-					dos.write(temp);
-				} catch (IOException e) {
-					e.printStackTrace();
-					throw new IllegalStateException(e.getMessage());
-				}
+				int lengthPos = buf.position();
+				buf.putShort((short) 0);
+				_subMessages.get(i).encode(buf, false);
+				buf.putShort(lengthPos, (short) (buf.position() - lengthPos - 2));
 			}
 		}
-
-		byte[] buf = baos.toByteArray();
-		if(logDEBUG)
-			Logger.debug(this, "Length: "+buf.length+", hash: "+Fields.hashCode(buf));
-		return buf;
 	}
 
 	@Override
@@ -280,9 +342,9 @@ public class Message {
 		StringBuilder ret = new StringBuilder(1000);
 		String comma = "";
 		ret.append(_spec.getName()).append(" {");
-		for (String name : _spec.getFields().keySet()) {
+		for (String name : _codec.names) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(name).append('=').append(getObject(name));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -302,11 +364,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		int field = _codec.indexOf(fieldName);
+		return field >= 0 && (_setFields & (1L << field)) != 0;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
@@ -0,0 +1,450 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import freenet.support.Buffer;
+import freenet.support.ByteBufferInputStream;
+import freenet.support.Serializer;
+import freenet.support.ShortBuffer;
+import freenet.support.io.NullOutputStream;
+
+/**
+ * Binary codec for the messages of a single {@link MessageType}.
+ *
+ * Fields are numbered in the order they were added to the type, which is also the order in which
+ * they are sent. Primitive fields are kept in a long[] in the {@link Message} and are never boxed,
+ * everything else in an Object[]. Messages are encoded straight into a ByteBuffer and decoded
+ * straight out of one, in exactly the format that DataOutputStream and {@link Serializer} produce.
+ *
+ * Buffer and ShortBuffer fields are not copied when decoding: they point into the received
+ * packet, and the data is only copied if somebody asks for it ({@link Buffer#getData()}). So the
+ * packet must not be reused after decoding it.
+ */
+final class MessageCodec {
+
+	// Primitives, stored in Message._primitives
+	static final byte BOOLEAN = 0;
+	static final byte BYTE = 1;
+	static final byte SHORT = 2;
+	static final byte INT = 3;
+	static final byte LONG = 4;
+	static final byte DOUBLE = 5;
+	// Objects, stored in Message._objects
+	static final byte STRING = 6;
+	static final byte BUFFER = 7;
+	static final byte SHORT_BUFFER = 8;
+	/** Anything else, e.g. keys and peers: go through DataOutputStream and Serializer */
+	static final byte OTHER = 9;
+
+	/** We keep track of which fields are set in a long. */
+	static final int MAX_FIELDS = 64;
+
+	final MessageType spec;
+	/** Sent as the first 4 bytes of every message */
+	final int specID;
+	final String[] names;
+	final Class<?>[] types;
+	final byte[] kinds;
+	/** Index into Message._primitives or Message._objects, depending on the kind */
+	final int[] slots;
+	final int primitiveCount;
+	final int objectCount;
+	/** Field for each position on the wire. Only differs from 0, 1, 2, ... if a field was added twice. */
+	private final int[] wire;
+	private final HashMap<String, Integer> indexes;
+	/** Length of the type ID and the fields whose length doesn't depend on the value */
+	private final int fixedLength;
+	private final boolean allFixed;
+
+	MessageCodec(MessageType spec) {
+		this.spec = spec;
+		specID = spec.getName().hashCode();
+		indexes = new HashMap<String, Integer>();
+		ArrayList<String> distinct = new ArrayList<String>();
+		LinkedList<String> ordered = spec.getOrderedFields();
+		wire = new int[ordered.size()];
+		int pos = 0;
+		for(String name : ordered) {
+			Integer idx = indexes.get(name);
+			if(idx == null) {
+				idx = distinct.size();
+				indexes.put(name, idx);
+				distinct.add(name);
+			}
+			wire[pos++] = idx;
+		}
+		if(distinct.size() > MAX_FIELDS)
+			throw new IllegalStateException("Too many fields in "+spec.getName()+": "+distinct.size());
+		names = distinct.toArray(new String[distinct.size()]);
+		types = new Class<?>[names.length];
+		kinds = new byte[names.length];
+		slots = new int[names.length];
+		int primitives = 0;
+		int objects = 0;
+		for(int i=0;i<names.length;i++) {
+			types[i] = spec.typeOf(names[i]);
+			kinds[i] = kindOf(types[i]);
+			slots[i] = isPrimitive(kinds[i]) ? primitives++ : objects++;
+		}
+		primitiveCount = primitives;
+		objectCount = objects;
+		int length = 4;
+		boolean fixed = true;
+		for(int field : wire) {
+			int l = fixedLength(kinds[field]);
+			if(l < 0) fixed = false;
+			else length += l;
+		}
+		fixedLength = length;
+		allFixed = fixed;
+	}
+
+	private static byte kindOf(Class<?> type) {
+		if(type == Boolean.class) return BOOLEAN;
+		if(type == Byte.class) return BYTE;
+		if(type == Short.class) return SHORT;
+		if(type == Integer.class) return INT;
+		if(type == Long.class) return LONG;
+		if(type == Double.class) return DOUBLE;
+		if(type == String.class) return STRING;
+		if(type == Buffer.class) return BUFFER;
+		if(type == ShortBuffer.class) return SHORT_BUFFER;
+		return OTHER;
+	}
+
+	static boolean isPrimitive(byte kind) {
+		return kind <= DOUBLE;
+	}
+
+	private static int fixedLength(byte kind) {
+		switch(kind) {
+		case BOOLEAN:
+		case BYTE:
+			return 1;
+		case SHORT:
+			return 2;
+		case INT:
+			return 4;
+		case LONG:
+		case DOUBLE:
+			return 8;
+		default:
+			return -1;
+		}
+	}
+
+	/** @return The field number, or -1 if there is no such field. */
+	int indexOf(String name) {
+		Integer idx = indexes.get(name);
+		return idx == null ? -1 : idx.intValue();
+	}
+
+	static Object box(byte kind, long bits) {
+		switch(kind) {
+		case BOOLEAN:
+			return Boolean.valueOf(bits != 0);
+		case BYTE:
+			return Byte.valueOf((byte) bits);
+		case SHORT:
+			return Short.valueOf((short) bits);
+		case INT:
+			return Integer.valueOf((int) bits);
+		case LONG:
+			return Long.valueOf(bits);
+		case DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(bits));
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/** Caller must have checked the type of the value. */
+	static long unbox(byte kind, Object value) {
+		switch(kind) {
+		case BOOLEAN:
+			return ((Boolean) value).booleanValue() ? 1 : 0;
+		case BYTE:
+			return ((Byte) value).byteValue();
+		case SHORT:
+			return ((Short) value).shortValue();
+		case INT:
+			return ((Integer) value).intValue();
+		case LONG:
+			return ((Long) value).longValue();
+		case DOUBLE:
+			return Double.doubleToRawLongBits(((Double) value).doubleValue());
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * @return The number of bytes encode() will write, not including sub-messages.
+	 * @throws IllegalStateException If a field is not set.
+	 */
+	int encodedLength(Message m) {
+		if(allFixed) {
+			checkAllSet(m);
+			return fixedLength;
+		}
+		int length = fixedLength;
+		for(int field : wire) {
+			byte kind = kinds[field];
+			if(isPrimitive(kind)) continue;
+			Object o = m._objects[slots[field]];
+			if(o == null) throw notSet(field);
+			switch(kind) {
+			case STRING:
+				length += 4 + 2 * ((String) o).length();
+				break;
+			case BUFFER:
+				length += 4 + ((Buffer) o).getLength();
+				break;
+			case SHORT_BUFFER:
+				length += 2 + ((ShortBuffer) o).getLength();
+				break;
+			default:
+				length += otherLength(o);
+			}
+		}
+		checkAllSet(m);
+		return length;
+	}
+
+	private void checkAllSet(Message m) {
+		long all = names.length == 64 ? -1L : (1L << names.length) - 1;
+		if((m._setFields & all) != all) {
+			for(int i=0;i<names.length;i++)
+				if((m._setFields & (1L << i)) == 0) throw notSet(i);
+		}
+	}
+
+	private IllegalStateException notSet(int field) {
+		return new IllegalStateException("Field "+names[field]+" not set on "+spec.getName());
+	}
+
+	/**
+	 * Write the message type and the fields, not including sub-messages, at the buffer's position.
+	 * @throws BufferOverflowException If there is not enough space; see encodedLength().
+	 */
+	void encode(Message m, ByteBuffer buf) {
+		checkAllSet(m);
+		buf.putInt(specID);
+		long[] primitives = m._primitives;
+		Object[] objects = m._objects;
+		for(int field : wire) {
+			int slot = slots[field];
+			switch(kinds[field]) {
+			case BOOLEAN:
+			case BYTE:
+				buf.put((byte) primitives[slot]);
+				break;
+			case SHORT:
+				buf.putShort((short) primitives[slot]);
+				break;
+			case INT:
+				buf.putInt((int) primitives[slot]);
+				break;
+			case LONG:
+				buf.putLong(primitives[slot]);
+				break;
+			case DOUBLE:
+				// DataOutputStream.writeDouble() collapses NaNs
+				buf.putLong(Double.doubleToLongBits(Double.longBitsToDouble(primitives[slot])));
+				break;
+			case STRING:
+				String s = (String) objects[slot];
+				buf.putInt(s.length());
+				for(int i=0;i<s.length();i++)
+					buf.putChar(s.charAt(i));
+				break;
+			case BUFFER:
+				Buffer b = (Buffer) objects[slot];
+				buf.putInt(b.getLength());
+				if(buf.hasArray()) {
+					b.copyTo(buf.array(), skip(buf, b.getLength()));
+				} else
+					buf.put(b.getData());
+				break;
+			case SHORT_BUFFER:
+				ShortBuffer sb = (ShortBuffer) objects[slot];
+				buf.putShort((short) sb.getLength());
+				if(buf.hasArray()) {
+					sb.copyTo(buf.array(), skip(buf, sb.getLength()));
+				} else
+					buf.put(sb.getData());
+				break;
+			default:
+				writeOther(objects[slot], buf);
+			}
+		}
+	}
+
+	/**
+	 * Reserve space in a buffer with a backing array.
+	 * @return The offset in the backing array of the reserved space.
+	 */
+	private static int skip(ByteBuffer buf, int length) {
+		if(buf.remaining() < length) throw new BufferOverflowException();
+		int offset = buf.arrayOffset() + buf.position();
+		buf.position(buf.position() + length);
+		return offset;
+	}
+
+	/**
+	 * Read the fields (not the type, not sub-messages) at the buffer's position into the message.
+	 * @throws EOFException If the buffer ends too early.
+	 * @throws IOException If the data is invalid.
+	 */
+	void decode(Message m, ByteBuffer buf) throws IOException {
+		long[] primitives = m._primitives;
+		Object[] objects = m._objects;
+		try {
+			for(int field : wire) {
+				int slot = slots[field];
+				switch(kinds[field]) {
+				case BOOLEAN:
+					int bool = buf.get();
+					if(bool != 0 && bool != 1)
+						throw new IOException("Boolean is non boolean value: "+bool);
+					primitives[slot] = bool;
+					break;
+				case BYTE:
+					primitives[slot] = buf.get();
+					break;
+				case SHORT:
+					primitives[slot] = buf.getShort();
+					break;
+				case INT:
+					primitives[slot] = buf.getInt();
+					break;
+				case LONG:
+					primitives[slot] = buf.getLong();
+					break;
+				case DOUBLE:
+					primitives[slot] = buf.getLong();
+					break;
+				case STRING:
+					int length = buf.getInt();
+					if(length < 0 || length > buf.remaining() / 2)
+						throw new EOFException();
+					char[] chars = new char[length];
+					for(int i=0;i<length;i++)
+						chars[i] = buf.getChar();
+					objects[slot] = new String(chars);
+					break;
+				case BUFFER:
+					length = buf.getInt();
+					if(length < 0)
+						throw new IllegalArgumentException("Negative Length: "+length);
+					if(buf.remaining() < length)
+						throw new EOFException();
+					if(buf.hasArray()) {
+						objects[slot] = new Buffer(buf.array(), skip(buf, length), length);
+					} else {
+						byte[] data = new byte[length];
+						buf.get(data);
+						objects[slot] = new Buffer(data);
+					}
+					break;
+				case SHORT_BUFFER:
+					length = buf.getShort();
+					if(length < 0)
+						throw new IllegalArgumentException("Negative Length: "+length);
+					if(buf.remaining() < length)
+						throw new EOFException();
+					if(buf.hasArray()) {
+						objects[slot] = new ShortBuffer(buf.array(), skip(buf, length), length);
+					} else {
+						byte[] data = new byte[length];
+						buf.get(data);
+						objects[slot] = new ShortBuffer(data);
+					}
+					break;
+				default:
+					ByteBufferInputStream in = new ByteBufferInputStream(buf);
+					if(types[field] == LinkedList.class)
+						objects[slot] = Serializer.readListFromDataInputStream(spec.getLinkedListTypes().get(names[field]), in);
+					else
+						objects[slot] = Serializer.readFromDataInputStream(types[field], in);
+				}
+				m._setFields |= 1L << field;
+			}
+		} catch (BufferUnderflowException e) {
+			throw (EOFException) new EOFException().initCause(e);
+		}
+	}
+
+	// Everything else goes through DataOutputStream, one per thread.
+
+	private static final ThreadLocal<OtherWriter> otherWriters = new ThreadLocal<OtherWriter>() {
+		@Override
+		protected OtherWriter initialValue() {
+			return new OtherWriter();
+		}
+	};
+
+	private static final class ByteBufferOutputStream extends OutputStream {
+		ByteBuffer buf;
+
+		@Override
+		public void write(int b) {
+			buf.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] data, int offset, int length) {
+			buf.put(data, offset, length);
+		}
+	}
+
+	private static final class OtherWriter {
+		final ByteBufferOutputStream target = new ByteBufferOutputStream();
+		final DataOutputStream out = new DataOutputStream(target);
+		final CountingStream counter = new CountingStream();
+	}
+
+	private static final class CountingStream extends DataOutputStream {
+		CountingStream() {
+			super(new NullOutputStream());
+		}
+
+		int count(Object o) throws IOException {
+			written = 0;
+			Serializer.writeToDataOutputStream(o, this);
+			return written;
+		}
+	}
+
+	private static int otherLength(Object o) {
+		try {
+			return otherWriters.get().counter.count(o);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static void writeOther(Object o, ByteBuffer buf) {
+		OtherWriter w = otherWriters.get();
+		w.target.buf = buf;
+		try {
+			Serializer.writeToDataOutputStream(o, w.out);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		} finally {
+			w.target.buf = null;
+		}
+	}
+}
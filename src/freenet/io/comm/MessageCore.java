@@ -19,11 +19,16 @@
 package freenet.io.comm;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import freenet.io.comm.MessageFilter.MATCHED;
 import freenet.node.PeerNode;
@@ -52,15 +57,28 @@ public class MessageCore {
 
 	private Dispatcher _dispatcher;
 	private Executor _executor;
-	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
-	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
+	/**
+	 * Filters and unclaimed messages, split by message type. A message only ever takes the lock
+	 * of the stripe for its own type, so messages of different types don't contend. A filter
+	 * lives in the stripe of every type in its or() chain (every stripe if a filter in the chain
+	 * has no type), and takes all of their locks, in order, while it checks the unclaimed
+	 * messages and is added. That keeps "check filters then add to unclaimed" atomic with
+	 * "check unclaimed then add filter", see checkFilters().
+	 */
+	private final Stripe[] _stripes;
+	private static final int STRIPES = 16;
+	/** Total over all stripes */
+	private final AtomicInteger _unclaimedCount = new AtomicInteger();
+	/** Breaks ties between filters with the same timeout, so the first added wins, as always. */
+	private final AtomicLong _filterSequence = new AtomicLong();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = 10*60*1000;  // 10 minutes; maybe this should be per message type??
-	// FIXME do we need MIN_FILTER_REMOVE_TIME? Can we make this more efficient?
-	// FIXME may not work well for newly added filters with timeouts close to the minimum, or filters with timeouts close to the minimum in general.
+	/** How often we ask filters with callbacks whether they want to time out early. */
 	private static final int MAX_FILTER_REMOVE_TIME = 1000;
+	/** Granularity of the timeout wheel, and so how often we look for timed out filters. */
 	private static final int MIN_FILTER_REMOVE_TIME = 100;
+	/** Slots in the timeout wheel. Filters further out than this go around more than once. */
+	private static final int WHEEL_SLOTS = 1024;
 	private long startedTime;
 	
 	public synchronized long getStartedTime() {
@@ -68,8 +86,11 @@ public class MessageCore {
 	}
 
 	public MessageCore(Executor executor) {
-		_timedOutFilters = new Vector<MessageFilter>(32);
 		_executor = executor;
+		_stripes = new Stripe[STRIPES];
+		long tick = System.currentTimeMillis() / MIN_FILTER_REMOVE_TIME;
+		for(int i=0;i<STRIPES;i++)
+			_stripes[i] = new Stripe(tick);
 	}
 
 	/**
@@ -89,25 +110,356 @@ public class MessageCore {
         }
     }
 
-    /** Only used by removeTimedOutFilters() - if future code uses this elsewhere, we need to
-     * reconsider its locking. */
-    private final Vector<MessageFilter> _timedOutFilters;
+    /**
+     * What a filter in a chain needs from a message to possibly match: its type, its source if 
+     * the filter sets one, and its UID if the filter sets one. Nearly all filters set all three,
+     * so a message only has to look at the filters for its own type, source and UID.
+     */
+    private static final class FilterKey {
+    	final MessageType type;
+    	final PeerContext source;
+    	final Object uid;
+    	private final int hashCode;
+    	
+    	FilterKey(MessageType type, PeerContext source, Object uid) {
+    		this.type = type;
+    		this.source = source;
+    		this.uid = uid;
+    		int h = type == null ? 0 : type.hashCode();
+    		h = h * 31 + (source == null ? 0 : source.hashCode());
+    		h = h * 31 + (uid == null ? 0 : uid.hashCode());
+    		hashCode = h;
+    	}
+    	
+    	@Override
+    	public boolean equals(Object o) {
+    		if(o == this) return true;
+    		if(!(o instanceof FilterKey)) return false;
+    		FilterKey k = (FilterKey) o;
+    		if(hashCode != k.hashCode) return false;
+    		if(type == null ? k.type != null : !type.equals(k.type)) return false;
+    		if(source == null ? k.source != null : !source.equals(k.source)) return false;
+    		return uid == null ? k.uid == null : uid.equals(k.uid);
+    	}
+    	
+    	@Override
+    	public int hashCode() {
+    		return hashCode;
+    	}
+    }
+    
+    /**
+     * A filter (including its or() chain) while it is in the index. A new one is created every time
+     * a filter is added, so nothing left over from a previous use can remove a re-added filter.
+     */
+    private static final class Registration implements Comparable<Registration> {
+    	final MessageFilter filter;
+    	/** Timeout when added. Filters with a nearer timeout get the message first. */
+    	final long timeout;
+    	final long seq;
+    	/** One per filter in the chain, without duplicates */
+    	final FilterKey[] keys;
+    	/** Stripes we are in, ascending. The first one also holds us on its timeout wheel. */
+    	final int[] stripes;
+    	/** Set by whoever takes us out of the index: a match, a timeout, a disconnect, or waitFor(). */
+    	private final AtomicBoolean removed = new AtomicBoolean();
+    	/** Timeout wheel links, protected by the lock of stripes[0] */
+    	Registration wheelPrev;
+    	Registration wheelNext;
+    	int wheelSlot = -1;
+    	long deadlineTick;
+    	
+    	Registration(MessageFilter filter, long seq) {
+    		this.filter = filter;
+    		this.timeout = filter.getTimeout();
+    		this.seq = seq;
+    		ArrayList<FilterKey> k = new ArrayList<FilterKey>(2);
+    		boolean[] inStripe = new boolean[STRIPES];
+    		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+    			FilterKey key = new FilterKey(f.getType(), f.getSource(), f.getField(DMT.UID));
+    			if(!k.contains(key)) k.add(key);
+    			if(key.type == null) {
+    				for(int i=0;i<STRIPES;i++) inStripe[i] = true;
+    			} else
+    				inStripe[stripeIndex(key.type)] = true;
+    		}
+    		keys = k.toArray(new FilterKey[k.size()]);
+    		int count = 0;
+    		for(boolean b : inStripe) if(b) count++;
+    		stripes = new int[count];
+    		count = 0;
+    		for(int i=0;i<STRIPES;i++)
+    			if(inStripe[i]) stripes[count++] = i;
+    	}
+    	
+    	boolean claim() {
+    		return removed.compareAndSet(false, true);
+    	}
+    	
+    	boolean isRemoved() {
+    		return removed.get();
+    	}
+
+		public int compareTo(Registration r) {
+			if(timeout != r.timeout) return timeout < r.timeout ? -1 : 1;
+			if(seq != r.seq) return seq < r.seq ? -1 : 1;
+			return 0;
+		}
+		
+		@Override
+		public String toString() {
+			return filter.toString();
+		}
+    }
+    
+    private static int stripeIndex(MessageType type) {
+    	int h = type.hashCode();
+    	h ^= (h >>> 16);
+    	h ^= (h >>> 8);
+    	return h & (STRIPES - 1);
+    }
+    
+    private Stripe stripeFor(MessageType type) {
+    	return _stripes[stripeIndex(type)];
+    }
+    
+    /**
+     * One stripe of the index. Everything in here is protected by lock.
+     */
+    private static final class Stripe {
+    	final ReentrantLock lock = new ReentrantLock();
+    	/** Each list is sorted by timeout then age */
+    	final HashMap<FilterKey, ArrayList<Registration>> filters = new HashMap<FilterKey, ArrayList<Registration>>();
+    	/** Number of keys without a type. Usually zero, then we don't look for them. */
+    	int untypedKeys;
+    	final LinkedList<Message> unclaimed = new LinkedList<Message>();
+    	/** Registrations with a callback whose home stripe this is. Asked regularly whether they 
+    	 * want to time out early. */
+    	final HashSet<Registration> withCallbacks = new HashSet<Registration>();
+    	/** Timeout wheel: registrations whose home stripe this is, by timeout tick */
+    	final Registration[] wheel = new Registration[WHEEL_SLOTS];
+    	/** First tick which has not been fully processed */
+    	long wheelTick;
+    	
+    	Stripe(long tick) {
+    		wheelTick = tick;
+    	}
+    	
+    	void add(Registration r, int stripe) {
+    		for(FilterKey key : r.keys) {
+    			if(key.type != null && stripeIndex(key.type) != stripe) continue;
+    			ArrayList<Registration> list = filters.get(key);
+    			if(list == null) {
+    				list = new ArrayList<Registration>(1);
+    				filters.put(key, list);
+    			}
+    			int idx = Collections.binarySearch(list, r);
+    			list.add(idx < 0 ? -idx-1 : idx, r);
+    			if(key.type == null) untypedKeys++;
+    		}
+    		if(r.stripes[0] == stripe) {
+    			schedule(r);
+    			if(r.filter.hasCallback()) withCallbacks.add(r);
+    		}
+    	}
+    	
+    	void remove(Registration r, int stripe) {
+    		for(FilterKey key : r.keys) {
+    			if(key.type != null && stripeIndex(key.type) != stripe) continue;
+    			ArrayList<Registration> list = filters.get(key);
+    			if(list == null) continue;
+    			for(int i=0;i<list.size();i++) {
+    				if(list.get(i) == r) {
+    					list.remove(i);
+    					if(key.type == null) untypedKeys--;
+    					break;
+    				}
+    			}
+    			if(list.isEmpty()) filters.remove(key);
+    		}
+    		if(r.stripes[0] == stripe) {
+    			unschedule(r);
+    			withCallbacks.remove(r);
+    		}
+    	}
+    	
+    	/**
+    	 * Find the filters which might match a message, in the order they should be tried.
+    	 * @return Null if there are none.
+    	 */
+    	ArrayList<Registration> candidates(Message m) {
+    		MessageType type = m.getSpec();
+    		PeerContext source = m.getSource();
+    		Object uid = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+    		ArrayList<Registration> ret = null;
+    		int lists = 0;
+    		for(int t=0;t<2;t++) {
+    			MessageType kType = t == 0 ? type : null;
+    			if(t == 1 && untypedKeys == 0) break;
+    			for(int s=0;s<2;s++) {
+    				PeerContext kSource = s == 0 ? source : null;
+    				if(s == 0 && source == null) continue;
+    				for(int u=0;u<2;u++) {
+    					Object kUID = u == 0 ? uid : null;
+    					if(u == 0 && uid == null) continue;
+    					ArrayList<Registration> list = filters.get(new FilterKey(kType, kSource, kUID));
+    					if(list == null) continue;
+    					if(ret == null) ret = new ArrayList<Registration>(list.size());
+    					ret.addAll(list);
+    					lists++;
+    				}
+    			}
+    		}
+    		if(lists > 1) {
+    			// A chain can be under more than one of the keys.
+    			Collections.sort(ret);
+    			Registration prev = null;
+    			for(ListIterator<Registration> i = ret.listIterator();i.hasNext();) {
+    				Registration r = i.next();
+    				if(r == prev) i.remove();
+    				prev = r;
+    			}
+    		}
+    		return ret;
+    	}
+    	
+    	void schedule(Registration r) {
+    		long timeout = r.filter.getTimeout();
+    		if(timeout == Long.MAX_VALUE) return;
+    		long tick = Math.max(timeout / MIN_FILTER_REMOVE_TIME, wheelTick);
+    		int slot = (int) (tick % WHEEL_SLOTS);
+    		r.deadlineTick = tick;
+    		r.wheelSlot = slot;
+    		r.wheelPrev = null;
+    		r.wheelNext = wheel[slot];
+    		if(r.wheelNext != null) r.wheelNext.wheelPrev = r;
+    		wheel[slot] = r;
+    	}
+    	
+    	void unschedule(Registration r) {
+    		if(r.wheelSlot < 0) return;
+    		if(r.wheelPrev != null) r.wheelPrev.wheelNext = r.wheelNext;
+    		else wheel[r.wheelSlot] = r.wheelNext;
+    		if(r.wheelNext != null) r.wheelNext.wheelPrev = r.wheelPrev;
+    		r.wheelPrev = r.wheelNext = null;
+    		r.wheelSlot = -1;
+    	}
+    	
+    	/**
+    	 * Take timed out filters off the wheel.
+    	 * @param timedOut Filters which have timed out and have been removed from this stripe
+    	 * are added to this list. They must still be removed from any other stripes.
+    	 */
+    	void expire(long now, int stripe, ArrayList<Registration> timedOut) {
+    		long nowTick = now / MIN_FILTER_REMOVE_TIME;
+    		long first = Math.max(wheelTick, nowTick - WHEEL_SLOTS + 1);
+    		for(long tick = first; tick <= nowTick; tick++) {
+    			int slot = (int) (tick % WHEEL_SLOTS);
+    			Registration r = wheel[slot];
+    			while(r != null) {
+    				Registration next = r.wheelNext;
+    				if(r.isRemoved()) {
+    					// Being removed by another thread.
+    				} else if(r.deadlineTick <= nowTick) {
+    					if(r.filter.timedOut(now)) {
+    						if(r.claim()) {
+    							remove(r, stripe);
+    							timedOut.add(r);
+    						}
+    					} else {
+    						// Not quite yet.
+    						unschedule(r);
+    						schedule(r);
+    					}
+    				}
+    				r = next;
+    			}
+    		}
+    		// The current tick may still have filters which time out later in it.
+    		wheelTick = nowTick;
+    	}
+    	
+    	void pollCallbacks(long now, int stripe, ArrayList<Registration> timedOut) {
+    		if(withCallbacks.isEmpty()) return;
+    		ArrayList<Registration> expired = null;
+    		for(Registration r : withCallbacks) {
+    			if(r.isRemoved()) continue;
+    			if(r.filter.timedOut(now)) {
+    				if(expired == null) expired = new ArrayList<Registration>();
+    				expired.add(r);
+    			}
+    		}
+    		if(expired == null) return;
+    		for(Registration r : expired) {
+    			if(r.claim()) {
+    				remove(r, stripe);
+    				timedOut.add(r);
+    			}
+    		}
+    	}
+    	
+    	/** Drop unclaimed messages until we are under the limit. */
+    	void addUnclaimed(Message m, AtomicInteger count, Object logTo) {
+		    while (count.get() >= MAX_UNMATCHED_FIFO_SIZE && !unclaimed.isEmpty()) {
+		        Message removed = unclaimed.removeFirst();
+		        count.decrementAndGet();
+		        long messageLifeTime = System.currentTimeMillis() - removed.localInstantiationTime;
+		        if ((removed.getSource()) instanceof PeerNode) {
+		            Logger.normal(logTo, "Dropping unclaimed from "+removed.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
+		        } else {
+		            Logger.normal(logTo, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
+		        }
+		    }
+		    unclaimed.addLast(m);
+		    count.incrementAndGet();
+    	}
+    }
+    
+    private void lock(int[] stripes) {
+    	for(int i : stripes)
+    		_stripes[i].lock.lock();
+    }
+    
+    private void unlock(int[] stripes) {
+    	for(int i=stripes.length-1;i>=0;i--)
+    		_stripes[stripes[i]].lock.unlock();
+    }
+    
+    /**
+     * Remove a registration which we have claimed from all its stripes, except the one we have
+     * already removed it from. Must be called without holding any stripe lock.
+     */
+    private void removeElsewhere(Registration r, int done) {
+    	for(int i : r.stripes) {
+    		if(i == done) continue;
+    		Stripe s = _stripes[i];
+    		s.lock.lock();
+    		try {
+    			s.remove(r, i);
+    		} finally {
+    			s.lock.unlock();
+    		}
+    	}
+    }
     
     public void start(final Ticker ticker) {
     	synchronized(this) {
     		startedTime = System.currentTimeMillis();
     	}
     	ticker.queueTimedJob(new Runnable() {
+    		
+    		private long lastPolled;
 
 			public void run() {
 				long now = System.currentTimeMillis();
-				long nextRun = now + MAX_FILTER_REMOVE_TIME;
 				try {
-					nextRun = removeTimedOutFilters(nextRun);
+					boolean poll = now - lastPolled >= MAX_FILTER_REMOVE_TIME;
+					if(poll) lastPolled = now;
+					removeTimedOutFilters(poll);
 				} catch (Throwable t) {
 					Logger.error(this, "Failed to remove timed out filters: "+t, t);
 				} finally {
-					ticker.queueTimedJob(this, Math.max(MIN_FILTER_REMOVE_TIME, System.currentTimeMillis() - nextRun));
+					ticker.queueTimedJob(this, MIN_FILTER_REMOVE_TIME);
 				}
 			}
     		
@@ -116,52 +468,52 @@ public class MessageCore {
     
     /**
      * Remove timed out filters.
+     * @param pollCallbacks If true, also ask filters with callbacks whether they want to time out
+     * early. Filters without callbacks only time out at their timeout, so they are on the wheel.
      */
-	long removeTimedOutFilters(long nextTimeout) {
+	void removeTimedOutFilters(boolean pollCallbacks) {
 		long tStart = System.currentTimeMillis() + 1;
 		// Extra millisecond to give waitFor() a chance to remove the filter.
-		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(!_timedOutFilters.contains(f))
-						_timedOutFilters.add(f);
-					else
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
+		ArrayList<Registration> timedOut = null;
+		for(int i=0;i<STRIPES;i++) {
+			Stripe s = _stripes[i];
+			ArrayList<Registration> removed = new ArrayList<Registration>(0);
+			s.lock.lock();
+			try {
+				s.expire(tStart, i, removed);
+				if(pollCallbacks)
+					s.pollCallbacks(tStart, i, removed);
+				if(logMINOR) {
+					for(Registration r : removed) {
+						Logger.minor(this, "Removing "+r);
+						for (Message m : s.unclaimed) {
+							MATCHED status = r.filter.match(m, true, tStart);
 							if (status == MATCHED.MATCHED) {
 								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
+								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+r);
 								break;
 							}
 						}
 					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
+			} finally {
+				s.lock.unlock();
 			}
+			if(removed.isEmpty()) continue;
+			for(Registration r : removed)
+				removeElsewhere(r, i);
+			if(timedOut == null) timedOut = removed;
+			else timedOut.addAll(removed);
 		}
 		
-		for(MessageFilter f : _timedOutFilters) {
-			f.setMessage(null);
-			f.onTimedOut(_executor);
+		if(timedOut != null) {
+			for(Registration r : timedOut) {
+				r.filter.setMessage(null);
+				r.filter.onTimedOut(_executor);
+			}
 		}
-		_timedOutFilters.clear();
 		
 		long tEnd = System.currentTimeMillis();
 		if(tEnd - tStart > 50) {
@@ -170,7 +522,42 @@ public class MessageCore {
 			else
 				if(logMINOR) Logger.minor(this, "removeTimedOutFilters took "+(tEnd-tStart)+"ms");
 		}
-		return nextTimeout;
+	}
+	
+	/**
+	 * Find the filter which gets a message, if any, and take it and any timed out filters
+	 * we come across out of the stripe. Caller must hold the stripe lock, and must call 
+	 * removeElsewhere() on the returned filter and the timed out filters after releasing it.
+	 * @param timedOut Timed out filters are added to this list.
+	 * @return The matched filter, on which setMessage() has already been called, or null.
+	 */
+	private Registration match(Stripe stripe, int idx, Message m, long now, ArrayList<Registration> timedOut) {
+		ArrayList<Registration> candidates = stripe.candidates(m);
+		if(candidates == null) return null;
+		for(Registration r : candidates) {
+			if(r.isRemoved()) continue;
+			MessageFilter f = r.filter;
+			if (f.matched()) {
+				Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+				if(r.claim()) stripe.remove(r, idx);
+				continue;
+			}
+			MATCHED status = f.match(m, now);
+			if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+				if(r.claim()) {
+					stripe.remove(r, idx);
+					timedOut.add(r);
+				}
+			} else if(status == MATCHED.MATCHED) {
+				// Another stripe may have just matched the same chain.
+				if(!r.claim()) continue;
+				stripe.remove(r, idx);
+				// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
+				f.setMessage(m);
+				return r; // Only one match permitted per message
+			} else if(logMINOR) Logger.minor(this, "Did not match "+f);
+		}
+		return null;
 	}
 
 	/**
@@ -190,43 +577,30 @@ public class MessageCore {
 			Logger.minor(this, "" + (System.currentTimeMillis() % 60000) + ' ' + from + " <- "
 					+ m.getSource() + " : " + m);
 		}
-		MessageFilter match = null;
-		ArrayList<MessageFilter> timedOut = null;
-		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				MATCHED status = f.match(m, tStart);
-				if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-					if(timedOut == null)
-						timedOut = new ArrayList<MessageFilter>();
-					timedOut.add(f);
-					i.remove();
-					continue;
-				} else if(status == MATCHED.MATCHED) {
-					matched = true;
-					i.remove();
-					match = f;
-					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
-					f.setMessage(m);
-					if(logMINOR) Logger.minor(this, "Matched (1): "+f);
-					break; // Only one match permitted per message
-				} else if(logMINOR) Logger.minor(this, "Did not match "+f);
-			}
+		int idx = stripeIndex(m.getSpec());
+		Stripe stripe = _stripes[idx];
+		Registration match;
+		ArrayList<Registration> timedOut = new ArrayList<Registration>(0);
+		stripe.lock.lock();
+		try {
+			match = match(stripe, idx, m, tStart, timedOut);
+		} finally {
+			stripe.lock.unlock();
 		}
-		if(timedOut != null) {
-			for(MessageFilter f : timedOut) {
-				if(logMINOR) Logger.minor(this, "Timed out "+f);
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+		if(match != null) {
+			matched = true;
+			if(logMINOR) Logger.minor(this, "Matched (1): "+match);
+			removeElsewhere(match, idx);
+		}
+		for(Registration r : timedOut) {
+			if(logMINOR) Logger.minor(this, "Timed out "+r);
+			removeElsewhere(r, idx);
+			r.filter.setMessage(null);
+			r.filter.onTimedOut(_executor);
 		}
+		timedOut.clear();
 		if(match != null) {
-			match.onMatched(_executor);
+			match.filter.onMatched(_executor);
 		}
 		// Feed unmatched messages to the dispatcher
 		if ((!matched) && (_dispatcher != null)) {
@@ -237,7 +611,6 @@ public class MessageCore {
 		        Logger.error(this, "Dispatcher threw "+t, t);
 		    }
 		}
-		if(timedOut != null) timedOut.clear();
 		// Keep the last few _unclaimed messages around in case the intended receiver isn't receiving yet
 		if (!matched) {
 			if(logMINOR) Logger.minor(this, "Unclaimed: "+m);
@@ -261,76 +634,88 @@ public class MessageCore {
 		     * filters and unmatched be a single atomic operation.
 		     * Another race is possible if we merely recheck the
 		     * filters after we return from dispatcher, for example.
+		     * 
+		     * Any filter which could match this message is in this
+		     * stripe, and holds this stripe's lock while it checks
+		     * the unclaimed messages and is added.
 		     */
-			synchronized (_filters) {
+			stripe.lock.lock();
+			try {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					MATCHED status = f.match(m, tStart);
-					if(status == MATCHED.MATCHED) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
-						match.setMessage(m);
-						break; // Only one match permitted per message
-					} else if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-						if(timedOut == null)
-							timedOut = new ArrayList<MessageFilter>();
-						timedOut.add(f);
-						i.remove();
-						continue;
-					}
-				}
-				if(!matched) {
-				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
-				        Message removed = _unclaimed.removeFirst();
-				        long messageLifeTime = System.currentTimeMillis() - removed.localInstantiationTime;
-				        if ((removed.getSource()) instanceof PeerNode) {
-				            Logger.normal(this, "Dropping unclaimed from "+removed.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
-				        } else {
-				            Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (quantity)"+": "+removed);
-				        }
-				    }
-				    _unclaimed.addLast(m);
+				match = match(stripe, idx, m, tStart, timedOut);
+				if(match != null) {
+					matched = true;
+					if(logMINOR) Logger.minor(this, "Matched (2): "+match);
+				} else {
+					stripe.addUnclaimed(m, _unclaimedCount, this);
 				    if(logMINOR) Logger.minor(this, "Done");
 				}
+			} finally {
+				stripe.lock.unlock();
 			}
 			if(match != null) {
-				match.onMatched(_executor);
+				removeElsewhere(match, idx);
+				match.filter.onMatched(_executor);
 			}
-			if(timedOut != null) {
-				for(MessageFilter f : timedOut) {
-					f.setMessage(null);
-					f.onTimedOut(_executor);
-				}
+			for(Registration r : timedOut) {
+				removeElsewhere(r, idx);
+				r.filter.setMessage(null);
+				r.filter.onTimedOut(_executor);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
 		long dT = tEnd - tStart;
 		if(dT > 50) {
 			if(dT > 3000)
-				Logger.error(this, "checkFilters took "+(dT)+"ms with unclaimedFIFOSize of "+_unclaimed.size()+" for matched: "+matched);
+				Logger.error(this, "checkFilters took "+(dT)+"ms with unclaimedFIFOSize of "+_unclaimedCount.get()+" for matched: "+matched);
 			else
-				if(logMINOR) Logger.minor(this, "checkFilters took "+(dT)+"ms with unclaimedFIFOSize of "+_unclaimed.size()+" for matched: "+matched);
+				if(logMINOR) Logger.minor(this, "checkFilters took "+(dT)+"ms with unclaimedFIFOSize of "+_unclaimedCount.get()+" for matched: "+matched);
 		}
 	}
 	
-	/** IncomingPacketFilter should call this when a node is disconnected. */
-	public void onDisconnect(PeerContext ctx) {
+	/**
+	 * Take every filter involving a connection out of the index.
+	 * @param restarted If true, look for filters affected by a restart, otherwise by a disconnect.
+	 */
+	private ArrayList<MessageFilter> removeFiltersFor(PeerContext ctx, boolean restarted) {
 		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
-	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesDroppedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
+		for(int i=0;i<STRIPES;i++) {
+			Stripe s = _stripes[i];
+			ArrayList<Registration> removed = null;
+			s.lock.lock();
+			try {
+				for(ArrayList<Registration> list : s.filters.values()) {
+					for(Registration r : list) {
+						if(r.isRemoved()) continue;
+						MessageFilter f = r.filter;
+						if(restarted ? f.matchesRestartedConnection(ctx) : f.matchesDroppedConnection(ctx)) {
+							if(!r.claim()) continue;
+							if(removed == null) removed = new ArrayList<Registration>();
+							removed.add(r);
+						}
+					}
+				}
+				if(removed != null) {
+					for(Registration r : removed)
+						s.remove(r, i);
+				}
+			} finally {
+				s.lock.unlock();
 			}
-	    }
+			if(removed == null) continue;
+			for(Registration r : removed) {
+				removeElsewhere(r, i);
+				if(droppedFilters == null)
+					droppedFilters = new ArrayList<MessageFilter>();
+				droppedFilters.add(r.filter);
+			}
+		}
+		return droppedFilters;
+	}
+	
+	/** IncomingPacketFilter should call this when a node is disconnected. */
+	public void onDisconnect(PeerContext ctx) {
+		ArrayList<MessageFilter> droppedFilters = removeFiltersFor(ctx, false);
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
 		        mf.onDroppedConnection(ctx, _executor);
@@ -340,25 +725,60 @@ public class MessageCore {
 	
 	/** IncomingPacketFilter should call this when a node connects with a new boot ID */
 	public void onRestart(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
-	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesRestartedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
-	    }
+		ArrayList<MessageFilter> droppedFilters = removeFiltersFor(ctx, true);
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
 		        mf.onRestartedConnection(ctx, _executor);
 	    	}
 	    }
 	}
+	
+	/**
+	 * Find the oldest unclaimed message matching a filter, and remove it. Drop any unclaimed 
+	 * messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME.
+	 * Caller must hold the locks of all of the registration's stripes.
+	 */
+	private Message matchUnclaimed(Registration reg, long matchTime, long now) {
+		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
+		long messageLifeTime = 0;
+		Message ret = null;
+		LinkedList<Message> retList = null;
+		for(int idx : reg.stripes) {
+			LinkedList<Message> unclaimed = _stripes[idx].unclaimed;
+			for (ListIterator<Message> i = unclaimed.listIterator(); i.hasNext();) {
+				Message m = i.next();
+				// These messages have already arrived, so we can match against them even if we are timed out.
+				MATCHED status = reg.filter.match(m, true, matchTime);
+				if (status == MATCHED.MATCHED) {
+					if(ret == null || m.localInstantiationTime < ret.localInstantiationTime) {
+						ret = m;
+						retList = unclaimed;
+					}
+					break;
+				} else if (m.localInstantiationTime < messageDropTime) {
+					i.remove();
+					_unclaimedCount.decrementAndGet();
+					messageLifeTime = now - m.localInstantiationTime;
+					if ((m.getSource()) instanceof PeerNode) {
+						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+					} else {
+						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+					}
+				}
+			}
+		}
+		if(ret != null) {
+			retList.remove(ret);
+			_unclaimedCount.decrementAndGet();
+			if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
+		}
+		return ret;
+	}
+	
+	private void add(Registration reg) {
+		for(int idx : reg.stripes)
+			_stripes[idx].add(reg, idx);
+	}
 
 	public void addAsyncFilter(MessageFilter filter, AsyncMessageFilterCallback callback, ByteCounter ctr) throws DisconnectedException {
 		filter.setAsyncCallback(callback, ctr);
@@ -374,58 +794,27 @@ public class MessageCore {
 			//or... filter.onDroppedConnection(filter.droppedConnection());
 		}
 		// Check to see whether the filter matches any of the recently _unclaimed messages
-		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
-		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		long timeout = filter.getTimeout();
-		synchronized (_filters) {
-			//Once in the list, it is up to the callback system to trigger the disconnection, however, we may
+		Registration reg = new Registration(filter, _filterSequence.incrementAndGet());
+		lock(reg.stripes);
+		try {
+			//Once in the index, it is up to the callback system to trigger the disconnection, however, we may
 			//have disconnected between check above and locking, so we *must* check again.
 			if(filter.anyConnectionsDropped()) {
 				throw new DisconnectedException();
 				//or... filter.onDroppedConnection(filter.droppedConnection());
-				//but we are holding the _filters lock!
+				//but we are holding the stripe locks!
 			}
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				// These messages have already arrived, so we can match against them even if we are timed out.
-				MATCHED status = filter.match(m, true, now);
-				if (status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = matchUnclaimed(reg, now, now);
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				add(reg);
+				return;
 			}
+		} finally {
+			unlock(reg.stripes);
 		}
 		if(ret != null) {
 			filter.setMessage(ret);
@@ -458,56 +847,25 @@ public class MessageCore {
 			throw new DisconnectedException();
 		}
 		// Check to see whether the filter matches any of the recently _unclaimed messages
-		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
-		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
-		synchronized (_filters) {
+		Registration reg = new Registration(filter, _filterSequence.incrementAndGet());
+		lock(reg.stripes);
+		try {
 			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				MATCHED status = filter.match(m, true, startTime);
-				if(status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = matchUnclaimed(reg, startTime, now);
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				add(reg);
 			}
+		} finally {
+			unlock(reg.stripes);
 		}
 		long tEnd = System.currentTimeMillis();
 		if(tEnd - now > 50) {
 			if(tEnd - now > 3000)
-				Logger.error(this, "waitFor _unclaimed iteration took "+(tEnd-now)+"ms with unclaimedFIFOSize of "+_unclaimed.size()+" for ret of "+ret);
+				Logger.error(this, "waitFor _unclaimed iteration took "+(tEnd-now)+"ms with unclaimedFIFOSize of "+_unclaimedCount.get()+" for ret of "+ret);
 			else
-				if(logMINOR) Logger.minor(this, "waitFor _unclaimed iteration took "+(tEnd-now)+"ms with unclaimedFIFOSize of "+_unclaimed.size()+" for ret of "+ret);
+				if(logMINOR) Logger.minor(this, "waitFor _unclaimed iteration took "+(tEnd-now)+"ms with unclaimedFIFOSize of "+_unclaimedCount.get()+" for ret of "+ret);
 		}
 		// Unlock to wait on filter
 		// Waiting on the filter won't release the outer lock
@@ -516,7 +874,7 @@ public class MessageCore {
 			if(logMINOR) Logger.minor(this, "Waiting...");
 			synchronized (filter) {
 				try {
-					// Precaution against filter getting matched between being added to _filters and
+					// Precaution against filter getting matched between being added to the index and
 					// here - bug discovered by Mason
 					// Check reallyTimedOut() too a) for paranoia, b) for filters with a callback (we could conceivably waitFor() them).
 				    while(!(filter.matched() || (filter.droppedConnection() != null) || (filter.reallyTimedOut(now = System.currentTimeMillis())))) {
@@ -525,52 +883,53 @@ public class MessageCore {
 							break;
 						filter.wait(wait);
 					}
+					// onDisconnect() or onRestart() has already removed it.
 				    if(filter.droppedConnection() != null)
 				        throw new DisconnectedException();
 				} catch (InterruptedException e) {
 				}
 				ret = filter.getMessage();
 			}
+			// We must remove it before we return, or when it is re-added, it will be in the
+			// index twice.
+			if(ret == null)
+				ret = removeWaited(reg);
 			if(logMINOR) Logger.minor(this, "Returning "+ret+" from "+filter);
 		}
+		filter.clearMatched();
+		// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
 		
-		// More tricky locking ...
-		
-		synchronized(_filters) {
-			// Some nasty race conditions can happen here.
-			// E.g. the filter can be matched and yet we timeout at the same time.
-			// Hence we need to be absolutely sure that when we remove it it hasn't been matched.
-			// Note also that the locking does work here - the filter lock is taken last, and
-			// _filters protects both the unwanted messages (above), the filter list, and 
-			// is taken when a match is found too.
-			if(ret == null) {
-				// Check again.
-				if(filter.matched()) {
-					ret = filter.getMessage();
-				}
-			}
-			filter.clearMatched();
-			// We must remove it from _filters before we return, or when it is re-added,
-			// it will be in the list twice, and potentially many more times than twice!
-			// Fortunately, it will be close to the beginning of the filters list, having
-			// just timed out. That is assuming it hasn't already been removed; in that
-			// case, this will be slower.
-			_filters.remove(_filters);
-			// A filter being waitFor()'ed cannot have any callbacks, so we don't need to call onMatched().
-		}
-		
-		// Probably get rid...
-//		if (Dijjer.getDijjer().getDumpMessageWaitTimes() != null) {
-//			Dijjer.getDijjer().getDumpMessageWaitTimes().println(filter.toString() + "\t" + filter.getInitialTimeout() + "\t"
-//					+ (System.currentTimeMillis() - startTime));
-//			Dijjer.getDijjer().getDumpMessageWaitTimes().flush();
-//		}
 		long endTime = System.currentTimeMillis();
 		if(logDEBUG) Logger.debug(this, "Returning in "+(endTime-startTime)+"ms");
 		if((ctr != null) && (ret != null))
 			ctr.receivedBytes(ret._receivedByteCount);
 		return ret;
 	}
+	
+	/**
+	 * Take a filter we were waiting for out of the index, if it is still there.
+	 * @return The message it matched in the meantime, if any.
+	 */
+	private Message removeWaited(Registration reg) {
+		// Some nasty race conditions can happen here.
+		// E.g. the filter can be matched and yet we timeout at the same time.
+		// Hence we need to be absolutely sure that when we remove it it hasn't been matched.
+		// A match claims the registration and calls setMessage() under a stripe lock, so once
+		// we hold all of them, either we get to remove it or it has its message already.
+		lock(reg.stripes);
+		try {
+			if(reg.claim()) {
+				for(int idx : reg.stripes)
+					_stripes[idx].remove(reg, idx);
+				return null;
+			}
+			if(reg.filter.matched())
+				return reg.filter.getMessage();
+			return null;
+		} finally {
+			unlock(reg.stripes);
+		}
+	}
 
 	/**
 	 * Send a Message to a PeerContext.
@@ -592,24 +951,26 @@ public class MessageCore {
 	 * @return the number of received messages that are currently unclaimed
 	 */
 	public int getUnclaimedFIFOSize() {
-		synchronized (_filters){
-			return _unclaimed.size();
-		}
+		return _unclaimedCount.get();
 	}
 	
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
 		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
-		synchronized(_filters) {
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				String messageName = m.getSpec().getName();
-				Integer messageCount = messageCounts.get(messageName);
-				if (messageCount == null) {
-					messageCounts.put(messageName, Integer.valueOf(1) );
-				} else {
-					messageCount = Integer.valueOf(messageCount.intValue() + 1);
-					messageCounts.put(messageName, messageCount );
+		for(Stripe s : _stripes) {
+			s.lock.lock();
+			try {
+				for (Message m : s.unclaimed) {
+					String messageName = m.getSpec().getName();
+					Integer messageCount = messageCounts.get(messageName);
+					if (messageCount == null) {
+						messageCounts.put(messageName, Integer.valueOf(1) );
+					} else {
+						messageCount = Integer.valueOf(messageCount.intValue() + 1);
+						messageCounts.put(messageName, messageCount );
+					}
 				}
+			} finally {
+				s.lock.unlock();
 			}
 		}
 		return messageCounts;
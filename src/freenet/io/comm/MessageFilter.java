@@ -139,6 +139,23 @@ public final class MessageFilter {
 		return _source;
 	}
 
+	/** The type this filter (not the chain) matches, or null for any type. */
+	MessageType getType() {
+		return _type;
+	}
+
+	/** The value this filter (not the chain) requires for a field, or null if it doesn't care. */
+	Object getField(String fieldName) {
+		synchronized (_fields) {
+			return _fields.get(fieldName);
+		}
+	}
+
+	/** The next filter in the or() chain, if any. */
+	MessageFilter getOr() {
+		return _or;
+	}
+
 	public MessageFilter setField(String fieldName, boolean value) {
 		return setField(fieldName, Boolean.valueOf(value));
 	}
@@ -221,7 +238,7 @@ public final class MessageFilter {
 						return MATCHED.TIMED_OUT;
 					return MATCHED.NONE;
 				}
-				if (!_fields.get(fieldName).equals(m.getFromPayload(fieldName))) {
+				if (!m.fieldEquals(fieldName, _fields.get(fieldName))) {
 					if(_timeout < now)
 						return MATCHED.TIMED_OUT;
 					return MATCHED.NONE;
@@ -40,6 +40,8 @@ public class MessageType {
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
+	/** Built on first use, after all the fields have been added. */
+	private volatile MessageCodec codec;
 
 	public MessageType(String name, short priority) {
 	    this(name, priority, false, false);
@@ -69,6 +71,14 @@ public class MessageType {
 	public void addField(String name, Class<?> type) {
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
+		codec = null;
+	}
+	
+	MessageCodec getCodec() {
+		MessageCodec c = codec;
+		if(c == null)
+			codec = c = new MessageCodec(this);
+		return c;
 	}
 	
 	public void addRoutedToNodeMessageFields() {
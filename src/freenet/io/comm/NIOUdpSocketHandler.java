@@ -0,0 +1,402 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+import freenet.node.Node;
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.OOMHandler;
+import freenet.support.io.NativeThread;
+
+/**
+ * UdpSocketHandler on a non-blocking DatagramChannel.
+ *
+ * One I/O thread does all the reading and writing. Each time it wakes up, it drains every pending
+ * datagram into a ring of pooled direct buffers, and sends every queued outgoing packet. A
+ * separate thread feeds the received packets to the IncomingPacketFilter in batches, so the
+ * kernel's receive buffer is emptied even while we are busy decrypting.
+ *
+ * Outgoing packets are copied into a second ring by sendPacket() and sent by the I/O thread, so
+ * PacketSender doesn't wait for the system call, and bursts of packets go out together. If the
+ * socket buffer is full, packets stay in the ring until the socket is writable again; if the
+ * ring is full too, the caller waits for room, as it would have waited on a blocking socket.
+ */
+public class NIOUdpSocketHandler extends UdpSocketHandler {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(NIOUdpSocketHandler.class);
+	}
+
+	/** Number of received packets we can hold before we stop reading from the socket */
+	static final int RECEIVE_RING_SIZE = 256;
+	/** Number of outgoing packets we can queue */
+	static final int SEND_RING_SIZE = 256;
+	/** Maximum time between checks for close() */
+	private static final int SELECT_TIMEOUT = 1000;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	private final SelectionKey key;
+	private final Executor executor;
+	private final int listenPort;
+
+	private final PacketRing received;
+	private final PacketRing toSend;
+	/** Set by the I/O thread when the socket buffer is full, cleared when it has sent everything */
+	private boolean writeBlocked;
+	/** Times we stopped reading because the processing thread couldn't keep up */
+	private volatile long receiveRingFull;
+	/** Times a caller had to wait because the send ring was full */
+	private long sendRingFull;
+
+	/**
+	 * Fixed size FIFO of packets in direct buffers. Slots are only written by the producer and
+	 * only read by the consumer; the lock only protects the indexes. The consumer takes
+	 * everything that is available in one go.
+	 */
+	private static class PacketRing {
+		final ByteBuffer[] buffers;
+		final InetSocketAddress[] addresses;
+		final Peer[] peers;
+		final long[] times;
+		private int head;
+		private int count;
+
+		PacketRing(int size, int slotSize) {
+			buffers = new ByteBuffer[size];
+			addresses = new InetSocketAddress[size];
+			peers = new Peer[size];
+			times = new long[size];
+			ByteBuffer all = ByteBuffer.allocateDirect(size * slotSize);
+			for(int i = 0; i < size; i++) {
+				all.limit((i + 1) * slotSize);
+				all.position(i * slotSize);
+				buffers[i] = all.slice();
+			}
+		}
+
+		int size() {
+			return buffers.length;
+		}
+
+		/** @return The first slot the producer may fill, or -1 if the ring is full. */
+		synchronized int freeSlot() {
+			if(count == buffers.length) return -1;
+			return (head + count) % buffers.length;
+		}
+
+		/** @return The number of slots the producer may fill, starting at freeSlot(). */
+		synchronized int free() {
+			return buffers.length - count;
+		}
+
+		/** Make filled slots visible to the consumer. */
+		synchronized void publish(int filled) {
+			if(filled == 0) return;
+			count += filled;
+			notifyAll();
+		}
+
+		/** @return The number of slots available to the consumer, starting at head(). */
+		synchronized int available() {
+			return count;
+		}
+
+		synchronized int head() {
+			return head;
+		}
+
+		/**
+		 * Give consumed slots back to the producer, and wake any producer waiting for room.
+		 * @return True if the ring was full.
+		 */
+		synchronized boolean release(int consumed) {
+			boolean wasFull = count == buffers.length;
+			if(wasFull && consumed > 0) notifyAll();
+			for(int i = 0; i < consumed; i++) {
+				int slot = (head + i) % buffers.length;
+				addresses[slot] = null;
+				peers[slot] = null;
+			}
+			head = (head + consumed) % buffers.length;
+			count -= consumed;
+			return wasFull;
+		}
+	}
+
+	public NIOUdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws IOException {
+		super(openSocket(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+		this.listenPort = listenPort;
+		this.executor = node.executor;
+		channel = getSocket().getChannel();
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		key = channel.register(selector, SelectionKey.OP_READ);
+		received = new PacketRing(RECEIVE_RING_SIZE, MAX_RECEIVE_SIZE);
+		toSend = new PacketRing(SEND_RING_SIZE, MAX_RECEIVE_SIZE);
+	}
+
+	private static DatagramSocket openSocket(int listenPort, InetAddress bindto) throws SocketException {
+		try {
+			DatagramChannel channel = DatagramChannel.open();
+			try {
+				channel.socket().bind(new InetSocketAddress(bindto, listenPort));
+			} catch (SocketException e) {
+				channel.close();
+				throw e;
+			}
+			return channel.socket();
+		} catch (SocketException e) {
+			throw e;
+		} catch (IOException e) {
+			SocketException se = new SocketException("Unable to open channel: "+e);
+			se.initCause(e);
+			throw se;
+		}
+	}
+
+	@Override
+	public void start() {
+		if(!isActive()) return;
+		executor.execute(new PrioRunnable() {
+
+			public void run() {
+				processLoop();
+			}
+
+			public int getPriority() {
+				return NativeThread.MAX_PRIORITY;
+			}
+
+		}, "UdpSocketHandler packet processor for port "+listenPort);
+		super.start();
+	}
+
+	@Override
+	void runLoop() {
+		while(isActive()) {
+			try {
+				select();
+			} catch (OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+				System.err.println("Will retry above failed operation...");
+			} catch (ClosedChannelException e) {
+				if(!isActive()) return;
+				Logger.error(this, "Channel closed while still active: "+e, e);
+				return;
+			} catch (Throwable t) {
+				System.err.println("Caught "+t);
+				t.printStackTrace(System.err);
+				Logger.error(this, "Caught " + t, t);
+			}
+		}
+	}
+
+	/** Wait for something to do, then receive and send as much as we can. */
+	private void select() throws IOException {
+		int ops = 0;
+		if(received.free() > 0)
+			ops |= SelectionKey.OP_READ;
+		if(writeBlocked)
+			ops |= SelectionKey.OP_WRITE;
+		key.interestOps(ops);
+		selector.select(SELECT_TIMEOUT);
+		selector.selectedKeys().clear();
+		if(!isActive()) return;
+		flush();
+		receive();
+	}
+
+	/** Drain the socket into the receive ring. */
+	private void receive() throws IOException {
+		int slot = received.freeSlot();
+		if(slot < 0) {
+			receiveRingFull++;
+			if(logMINOR) Logger.minor(this, "Receive ring full, processing thread not keeping up");
+			return;
+		}
+		int free = received.free();
+		int filled = 0;
+		int size = received.size();
+		long now = System.currentTimeMillis();
+		while(filled < free) {
+			ByteBuffer buf = received.buffers[slot];
+			buf.clear();
+			InetSocketAddress from = (InetSocketAddress) channel.receive(buf);
+			if(from == null) break;
+			buf.flip();
+			InetAddress address = from.getAddress();
+			receivedPacket(address, from.getPort(), buf.remaining());
+			Peer peer = new Peer(address, from.getPort());
+			getAddressTracker().receivedPacketFrom(peer);
+			received.peers[slot] = peer;
+			received.times[slot] = now;
+			filled++;
+			slot = (slot + 1) % size;
+		}
+		if(logMINOR && filled > 0) Logger.minor(this, "Received "+filled+" packets");
+		received.publish(filled);
+	}
+
+	/** Feed received packets to the filter, until closed. */
+	private void processLoop() {
+		byte[] data = new byte[MAX_RECEIVE_SIZE];
+		while(isActive()) {
+			int count;
+			int head;
+			synchronized(received) {
+				while((count = received.available()) == 0) {
+					if(!isActive()) return;
+					try {
+						received.wait(SELECT_TIMEOUT);
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+				head = received.head();
+			}
+			for(int i = 0; i < count; i++) {
+				int slot = (head + i) % received.size();
+				ByteBuffer buf = received.buffers[slot];
+				int length = buf.remaining();
+				buf.get(data, 0, length);
+				try {
+					processPacket(data, 0, length, received.peers[slot], received.times[slot]);
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+				}
+			}
+			// The I/O thread stopped reading, tell it there is room again.
+			if(received.release(count)) selector.wakeup();
+		}
+	}
+
+	@Override
+	void sendPacket(byte[] blockToSend, InetAddress address, Peer destination) {
+		if(blockToSend.length > MAX_RECEIVE_SIZE) {
+			// Can't happen, packets are limited to the MTU.
+			Logger.error(this, "Packet too big to send: "+blockToSend.length+" bytes to "+destination, new Exception("error"));
+			return;
+		}
+		boolean wakeup;
+		synchronized(toSend) {
+			int slot;
+			boolean waited = false;
+			while((slot = toSend.freeSlot()) < 0) {
+				if(!isActive()) return;
+				if(!waited) {
+					sendRingFull++;
+					waited = true;
+					if(logMINOR) Logger.minor(this, "Send ring full, waiting to send to "+destination);
+				}
+				try {
+					toSend.wait(SELECT_TIMEOUT);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			ByteBuffer buf = toSend.buffers[slot];
+			buf.clear();
+			buf.put(blockToSend);
+			buf.flip();
+			toSend.addresses[slot] = new InetSocketAddress(address, destination.getPort());
+			toSend.peers[slot] = destination;
+			wakeup = toSend.available() == 0;
+			toSend.publish(1);
+		}
+		// Only the first packet of a burst needs to wake the I/O thread. If the socket buffer is
+		// full, the I/O thread is waiting for it to become writable and will send it then.
+		if(wakeup) selector.wakeup();
+	}
+
+	/** Send everything in the send ring, until the socket buffer is full. Keeps going until the
+	 * ring is empty, because sendPacket() only wakes us up when the ring was empty, so packets
+	 * queued while we are sending would otherwise wait for the next select timeout. */
+	private void flush() throws ClosedChannelException {
+		writeBlocked = false;
+		int total = 0;
+		while(!writeBlocked) {
+			int count;
+			int head;
+			synchronized(toSend) {
+				count = toSend.available();
+				head = toSend.head();
+			}
+			if(count == 0) break;
+			int sent = 0;
+			for(; sent < count; sent++) {
+				int slot = (head + sent) % toSend.size();
+				ByteBuffer buf = toSend.buffers[slot];
+				InetSocketAddress to = toSend.addresses[slot];
+				int length = buf.remaining();
+				try {
+					if(channel.send(buf, to) == 0) {
+						// Try again when the socket is writable.
+						writeBlocked = true;
+						break;
+					}
+					sentPacket(to.getAddress(), toSend.peers[slot], length);
+				} catch (ClosedChannelException e) {
+					throw e;
+				} catch (IOException e) {
+					sendFailed(to.getAddress(), toSend.peers[slot], e);
+				}
+			}
+			if(sent > 0) toSend.release(sent);
+			total += sent;
+		}
+		if(logMINOR && total > 0) Logger.minor(this, "Sent "+total+" packets");
+	}
+
+	@Override
+	void onClosed() {
+		selector.wakeup();
+		synchronized(received) {
+			received.notifyAll();
+		}
+		synchronized(toSend) {
+			toSend.notifyAll();
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			super.run();
+		} finally {
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Ignore
+			}
+		}
+	}
+
+	/** @return The number of times the processing thread fell so far behind that we stopped reading. */
+	public long getReceiveRingFullCount() {
+		return receiveRingFull;
+	}
+
+	/** @return The number of times a caller had to wait for room in the send ring. */
+	public long getSendRingFullCount() {
+		synchronized(toSend) {
+			return sendRingFull;
+		}
+	}
+
+}
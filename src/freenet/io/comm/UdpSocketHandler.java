@@ -47,6 +47,11 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
         }
 
 	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		this(new DatagramSocket(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+	}
+
+	/** @param sock An already bound socket, e.g. from a DatagramChannel */
+	UdpSocketHandler(DatagramSocket sock, int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
 		this.node = node;
 		this.collector = collector;
 		this.title = title;
@@ -57,7 +62,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
+		_sock = sock;
 		int sz = _sock.getReceiveBufferSize();
 		if(sz < 65536) {
 			_sock.setReceiveBufferSize(65536);
@@ -129,7 +134,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
-	private void runLoop() {
+	/** Receive and process packets until closed. */
+	void runLoop() {
 		byte[] buf = new byte[MAX_RECEIVE_SIZE];
 		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
@@ -162,41 +168,40 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
 				}
 			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
-			}
+			processPacket(packet.getData(), packet.getOffset(), packet.getLength(), peer, now);
 		} else {
 			if(logDEBUG) Logger.debug(this, "No packet received");
 		}
 	}
 
-	private static final int MAX_RECEIVE_SIZE = 1500;
+	/** Pass a received packet to the low level filter. The buffer may be reused afterwards. */
+	void processPacket(byte[] data, int offset, int length, Peer peer, long now) {
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			long startTime = System.currentTimeMillis();
+			lowLevelFilter.process(data, offset, length, peer, now);
+			long endTime = System.currentTimeMillis();
+			if(endTime - startTime > 50) {
+				if(endTime-startTime > 3000) {
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
+				} else {
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
+				}
+			}
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
+		}
+	}
+
+	static final int MAX_RECEIVE_SIZE = 1500;
 
 	private boolean getPacket(DatagramPacket packet) {
 		try {
 			_sock.receive(packet);
-			InetAddress address = packet.getAddress();
-			boolean isLocal = !IPUtil.isValidAddress(address, false);
-			collector.addInfo(address + ":" + packet.getPort(),
-					packet.getLength(), 0, isLocal); // FIXME use (packet.getLength() + UDP_HEADERS_LENGTH)?
+			receivedPacket(packet.getAddress(), packet.getPort(), packet.getLength());
 		} catch (SocketTimeoutException e1) {
 			return false;
 		} catch (IOException e2) {
@@ -210,6 +215,13 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return true;
 	}
 
+	/** Statistics for a received packet */
+	final void receivedPacket(InetAddress address, int port, int length) {
+		boolean isLocal = !IPUtil.isValidAddress(address, false);
+		collector.addInfo(address + ":" + port,
+				length, 0, isLocal); // FIXME use (packet.getLength() + UDP_HEADERS_LENGTH)?
+	}
+
 	/**
 	 * Send a block of encoded bytes to a peer. This is called by
 	 * send, and by IncomingPacketFilter.processOutgoing(..).
@@ -240,6 +252,11 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
+		sendPacket(blockToSend, address, destination);
+	}
+
+	/** Actually send a packet, once the destination has been checked. */
+	void sendPacket(byte[] blockToSend, InetAddress address, Peer destination) {
 		int port = destination.getPort();
 		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
 		packet.setAddress(address);
@@ -247,16 +264,26 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 
 		try {
 			_sock.send(packet);
-			tracker.sentPacketTo(destination);
-			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address + ":" + port, 0, blockToSend.length + UDP_HEADERS_LENGTH, isLocal);
-			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
+			sentPacket(address, destination, blockToSend.length);
 		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
-				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
-			} else {
-				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
-			}
+			sendFailed(address, destination, e);
+		}
+	}
+
+	/** Statistics for a sent packet */
+	final void sentPacket(InetAddress address, Peer destination, int length) {
+		int port = destination.getPort();
+		tracker.sentPacketTo(destination);
+		boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
+		collector.addInfo(address + ":" + port, 0, length + UDP_HEADERS_LENGTH, isLocal);
+		if(logMINOR) Logger.minor(this, "Sent packet length "+length+" to "+address+':'+port);
+	}
+
+	final void sendFailed(InetAddress address, Peer destination, IOException e) {
+		if(address instanceof Inet6Address) {
+			Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
+		} else {
+			Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
 		}
 	}
 
@@ -326,6 +353,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		synchronized (this) {
 			_active = false;
 			_sock.close();
+			onClosed();
 
 			if(!_started) return;
 			while (!_isDone) {
@@ -339,6 +367,19 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		tracker.storeData(node.bootID, node.runDir(), listenPort);
 	}
 
+	/** Called once the socket has been closed, before waiting for run() to exit. */
+	void onClosed() {
+		// Nothing to do
+	}
+
+	final boolean isActive() {
+		return _active;
+	}
+
+	final DatagramSocket getSocket() {
+		return _sock;
+	}
+
 	public int getDropProbability() {
 		return _dropProbability;
 	}
@@ -185,6 +185,8 @@ public class BlockReceiver implements AsyncMessageFilterCallback {
 	private BlockReceiverCompletion callback;
 	
 	private long startTime;
+	/** When the first packet arrived, or 0. */
+	private long firstPacketTime;
 	
 	// If false, don't check for duplicate messages from the sender.
 	// Turn off if e.g. we know that the PRB is already partially received when we start the transfer.
@@ -227,6 +229,10 @@ public class BlockReceiver implements AsyncMessageFilterCallback {
 						truncateTimeout = true;
 					} else {
 						_prb.addPacket(packetNo, data);
+						synchronized(BlockReceiver.this) {
+							if(firstPacketTime == 0)
+								firstPacketTime = System.currentTimeMillis();
+						}
 						if(logMINOR) {
 							synchronized(BlockReceiver.this) {
 								long interval = System.currentTimeMillis() - timeStartedWaiting;
@@ -435,6 +441,12 @@ public class BlockReceiver implements AsyncMessageFilterCallback {
 
 	PartiallyReceivedBlock.PacketReceivedListener myListener;
 	
+	/** @return When the first packet of the block arrived, or 0 if none has, e.g. because
+	 * the PartiallyReceivedBlock was already complete. */
+	public synchronized long getFirstPacketTime() {
+		return firstPacketTime;
+	}
+	
 	public void receive(BlockReceiverCompletion callback) {
 		startTime = System.currentTimeMillis();
 		this.callback = callback;
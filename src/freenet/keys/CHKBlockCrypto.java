@@ -0,0 +1,211 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import freenet.crypt.PCFBMode;
+import freenet.crypt.SHA256;
+import freenet.crypt.UnsupportedCipherException;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.node.Node;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Cipher and digest state for encrypting and decrypting CHK blocks, so that we don't create a
+ * Rijndael and a PCFBMode, redo the key schedule and go through the SHA256 pool for every
+ * block. The blocks of a splitfile usually share a crypto key, so we keep the key schedule
+ * and the hash of the key (which is the IV) for the last key used.
+ *
+ * An instance must only be used by one thread. get() returns the calling thread's, which is
+ * what ClientCHKBlock.decode() and encodeSplitfileBlock() use; the batch methods here are for
+ * callers with many blocks at once, e.g. a splitfile segment, and write into the caller's
+ * buffers rather than allocating new ones.
+ */
+public final class CHKBlockCrypto {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	private static final ThreadLocal<CHKBlockCrypto> contexts = new ThreadLocal<CHKBlockCrypto>() {
+		@Override
+		protected CHKBlockCrypto initialValue() {
+			return new CHKBlockCrypto();
+		}
+	};
+
+	/** @return The calling thread's context. */
+	public static CHKBlockCrypto get() {
+		return contexts.get();
+	}
+
+	private final Rijndael cipher;
+	private final PCFBMode pcfb;
+	/** Not returned to the SHA256 pool, we keep it for as long as the thread. */
+	private final MessageDigest md256;
+	/** The key the cipher was last initialised with, or null. */
+	private byte[] lastKey;
+	/** H(lastKey). This is the plaintext IV at the start of the header. */
+	private byte[] keyHash;
+	/** CHKs are encrypted with an all-zero IV; the real IV is the start of the header. */
+	private final byte[] zeroIV;
+	/** The decrypted header, without the hash identifier. */
+	private final byte[] hbuf;
+
+	public CHKBlockCrypto() {
+		try {
+			cipher = new Rijndael(256, 256);
+		} catch (UnsupportedCipherException e) {
+			throw new Error(e);
+		}
+		pcfb = PCFBMode.create(cipher);
+		md256 = SHA256.getMessageDigest();
+		zeroIV = new byte[pcfb.lengthIV()];
+		hbuf = new byte[CHKBlock.TOTAL_HEADERS_LENGTH - 2];
+	}
+
+	/** Initialise the cipher with the key, unless it already is, and compute its hash. */
+	private void setKey(byte[] key) {
+		if(lastKey != null && Arrays.equals(lastKey, key)) return;
+		cipher.initialize(key);
+		keyHash = md256.digest(key);
+		lastKey = key.clone();
+	}
+
+	/**
+	 * Decrypt a block and check its IV, but don't decompress it.
+	 * @param block The block to decrypt. It is not modified.
+	 * @param out At least CHKBlock.DATA_LENGTH bytes. The decrypted data is written here.
+	 * @return The length of the payload at the start of out. The payload is compressed if
+	 * the block's key says so.
+	 * @throws CHKDecodeException If the block does not decrypt correctly.
+	 */
+	public int decrypt(ClientCHKBlock block, byte[] out) throws CHKDecodeException {
+		ClientCHK key = block.key;
+		if(key.cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256)
+			throw new UnsupportedOperationException();
+		byte[] cryptoKey = key.cryptoKey;
+		if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
+			throw new CHKDecodeException("Crypto key too short");
+		byte[] data = block.data;
+		if(out.length < data.length)
+			throw new IllegalArgumentException("Output buffer too small: "+out.length);
+		setKey(cryptoKey);
+		System.arraycopy(block.headers, 2, hbuf, 0, hbuf.length);
+		System.arraycopy(data, 0, out, 0, data.length);
+		// Decipher header first - functions as IV
+		pcfb.reset(zeroIV);
+		pcfb.blockDecipher(hbuf, 0, hbuf.length);
+		pcfb.blockDecipher(out, 0, data.length);
+		if(logMINOR) {
+			// If the block is encoded normally, the decryption key == hash of data (not including header).
+			// This is only of interest for logging, so don't hash the whole block unless we are logging.
+			md256.update(out, 0, data.length);
+			if(!Arrays.equals(md256.digest(), cryptoKey))
+				// This happens when handling post-1254 splitfiles.
+				Logger.minor(this, "Found non-convergent block encoding");
+		}
+		// Check: IV == hash of decryption key
+		for(int i = 0; i < keyHash.length; i++) {
+			if(hbuf[i] != keyHash[i])
+				throw new CHKDecodeException("Check failed: Decrypted IV == H(decryption key)");
+		}
+		// Checks complete
+		int size = ((hbuf[32] & 0xff) << 8) + (hbuf[33] & 0xff);
+		if((size > 32768) || (size < 0)) {
+			throw new CHKDecodeException("Invalid size: "+size);
+		}
+		return size;
+	}
+
+	/**
+	 * Decrypt several blocks, e.g. the blocks of a splitfile segment, into the caller's
+	 * buffers. A block that fails to decrypt does not stop the others.
+	 * @param out A buffer of at least CHKBlock.DATA_LENGTH bytes for each block.
+	 * @param lengths Set to the payload length of each block, or -1 if it failed.
+	 * @return The number of blocks which were decrypted successfully.
+	 */
+	public int decrypt(ClientCHKBlock[] blocks, byte[][] out, int[] lengths) {
+		int decoded = 0;
+		for(int i = 0; i < blocks.length; i++) {
+			try {
+				lengths[i] = decrypt(blocks[i], out[i]);
+				decoded++;
+			} catch (CHKDecodeException e) {
+				if(logMINOR) Logger.minor(this, "Decode failure on block "+i+": "+e, e);
+				lengths[i] = -1;
+			}
+		}
+		return decoded;
+	}
+
+	/**
+	 * Encrypt a full size splitfile block. Like ClientCHKBlock.encodeSplitfileBlock(), the data
+	 * is encrypted in place, and the buffer becomes the block's data.
+	 * @param cryptoKey The key to encrypt with, or null to use the hash of the data.
+	 */
+	public ClientCHKBlock encodeSplitfileBlock(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm) throws CHKEncodeException {
+		if(data.length != CHKBlock.DATA_LENGTH) throw new IllegalArgumentException();
+		if(cryptoKey != null && cryptoKey.length != 32) throw new IllegalArgumentException();
+		// No need to pad
+		if(cryptoKey == null)
+			cryptoKey = md256.digest(data);
+		return encode(data, CHKBlock.DATA_LENGTH, cryptoKey, false, (short)-1, cryptoAlgorithm);
+	}
+
+	/**
+	 * Encrypt several full size splitfile blocks in place, with the same key, e.g. the check
+	 * blocks of a segment.
+	 * @param out Set to the encoded blocks. Each uses the corresponding buffer from data.
+	 */
+	public void encodeSplitfileBlocks(byte[][] data, byte[] cryptoKey, byte cryptoAlgorithm, ClientCHKBlock[] out) throws CHKEncodeException {
+		for(int i = 0; i < data.length; i++)
+			out[i] = encodeSplitfileBlock(data[i], cryptoKey, cryptoAlgorithm);
+	}
+
+	/**
+	 * Encrypt padded data in place and make the block.
+	 * @param dataLength The length of the payload before padding.
+	 */
+	ClientCHKBlock encode(byte[] data, int dataLength, byte[] encKey, boolean asMetadata, short compressionAlgorithm, byte cryptoAlgorithm) {
+		if(cryptoAlgorithm == 0) cryptoAlgorithm = Key.ALGO_AES_PCFB_256_SHA256;
+		if(cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256)
+			throw new IllegalArgumentException("Unsupported crypto algorithm "+cryptoAlgorithm);
+		setKey(encKey);
+		// IV = E(H(crypto key))
+		byte[] header = new byte[CHKBlock.TOTAL_HEADERS_LENGTH];
+		header[0] = (byte)(KeyBlock.HASH_SHA256 >> 8);
+		header[1] = (byte)(KeyBlock.HASH_SHA256 & 0xff);
+		System.arraycopy(keyHash, 0, header, 2, keyHash.length);
+		header[keyHash.length+2] = (byte)(dataLength >> 8);
+		header[keyHash.length+3] = (byte)(dataLength & 0xff);
+		// Now encrypt the header, then the data, using the same PCFB state.
+		// See the FIXME CRYPTO in ClientCHKBlock.innerEncode() about the null IV.
+		pcfb.reset(zeroIV);
+		pcfb.blockEncipher(header, 2, header.length-2);
+		pcfb.blockEncipher(data, 0, data.length);
+		// Now calculate the final hash
+		md256.update(header);
+		byte[] finalHash = md256.digest(data);
+		ClientCHK key = new ClientCHK(finalHash, encKey, asMetadata, cryptoAlgorithm, compressionAlgorithm);
+		try {
+			return new ClientCHKBlock(data, header, key, false);
+		} catch (CHKVerifyException e) {
+			// Impossible, we don't verify.
+			throw new Error(e);
+		}
+	}
+
+}
@@ -5,7 +5,6 @@ package freenet.keys;
 
 import java.io.IOException;
 import java.security.MessageDigest;
-import java.util.Arrays;
 
 import freenet.support.math.MersenneTwister;
 
@@ -17,7 +16,6 @@ import freenet.crypt.SHA256;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.keys.Key.Compressed;
-import freenet.node.Node;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -95,46 +93,8 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
         // Overall hash already verified, so first job is to decrypt.
 		if(key.cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256)
             throw new UnsupportedOperationException();
-        BlockCipher cipher;
-        try {
-            cipher = new Rijndael(256, 256);
-        } catch (UnsupportedCipherException e) {
-            // FIXME - log this properly
-            throw new Error(e);
-        }
-        byte[] cryptoKey = key.cryptoKey;
-        if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
-            throw new CHKDecodeException("Crypto key too short");
-        cipher.initialize(key.cryptoKey);
-        PCFBMode pcfb = PCFBMode.create(cipher);
-	byte[] hbuf = new byte[headers.length-2];
-	System.arraycopy(headers, 2, hbuf, 0, headers.length-2);
         byte[] dbuf = new byte[data.length];
-        System.arraycopy(data, 0, dbuf, 0, data.length);
-        // Decipher header first - functions as IV
-        pcfb.blockDecipher(hbuf, 0, hbuf.length);
-        pcfb.blockDecipher(dbuf, 0, dbuf.length);
-        // Check: Decryption key == hash of data (not including header)
-        MessageDigest md256 = SHA256.getMessageDigest();
-        byte[] dkey = key.cryptoKey;
-        // If the block is encoded normally, dkey == key.cryptoKey
-        if(!java.util.Arrays.equals(md256.digest(dbuf), key.cryptoKey)) {
-        	// This happens when handling post-1254 splitfiles.
-        	if(logMINOR) Logger.minor(this, "Found non-convergent block encoding");
-        }
-        // Check: IV == hash of decryption key
-        byte[] predIV = md256.digest(dkey);
-        SHA256.returnMessageDigest(md256); md256 = null;
-        // Extract the IV
-        byte[] iv = new byte[32];
-        System.arraycopy(hbuf, 0, iv, 0, 32);
-        if(!Arrays.equals(iv, predIV))
-            throw new CHKDecodeException("Check failed: Decrypted IV == H(decryption key)");
-        // Checks complete
-        int size = ((hbuf[32] & 0xff) << 8) + (hbuf[33] & 0xff);
-        if((size > 32768) || (size < 0)) {
-            throw new CHKDecodeException("Invalid size: "+size);
-        }
+        int size = CHKBlockCrypto.get().decrypt(this, dbuf);
         return Key.decompress(dontCompress ? false : key.isCompressed(), dbuf, size, bf, 
         		Math.min(maxLength, MAX_LENGTH_BEFORE_COMPRESSION), key.compressionAlgorithm, false);
     }
@@ -146,15 +106,7 @@ public class ClientCHKBlock extends CHKBlock implements ClientKeyBlock {
      * encode.
      */
     static public ClientCHKBlock encodeSplitfileBlock(byte[] data, byte[] cryptoKey, byte cryptoAlgorithm) throws CHKEncodeException {
-    	if(data.length != CHKBlock.DATA_LENGTH) throw new IllegalArgumentException();
-    	if(cryptoKey != null && cryptoKey.length != 32) throw new IllegalArgumentException();
-        MessageDigest md256 = SHA256.getMessageDigest();
-        // No need to pad
-        if(cryptoKey == null) {
-        	cryptoKey = md256.digest(data);
-        	md256.reset();
-        }
-        return innerEncode(data, CHKBlock.DATA_LENGTH, md256, cryptoKey, false, (short)-1, cryptoAlgorithm);
+        return CHKBlockCrypto.get().encodeSplitfileBlock(data, cryptoKey, cryptoAlgorithm);
     }
     
     /**
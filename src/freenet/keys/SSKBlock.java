@@ -153,8 +153,8 @@ public class SSKBlock implements KeyBlock {
 			// Now verify it
 			NativeBigInteger r = new NativeBigInteger(1, bufR);
 			NativeBigInteger s = new NativeBigInteger(1, bufS);
-			if(!(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), false) ||
-					(DSA.verify(pubKey, new DSASignature(r, s), new NativeBigInteger(1, overallHash), true)))) {
+			if(!(DSA.verify(pubKey, nodeKey.pubKeyHash, new DSASignature(r, s), new NativeBigInteger(1, overallHash), false) ||
+					(DSA.verify(pubKey, nodeKey.pubKeyHash, new DSASignature(r, s), new NativeBigInteger(1, overallHash), true)))) {
 				if (dontVerify)
 					Logger.error(this, "DSA verification failed with dontVerify!!!!");
 				throw new SSKVerifyException("Signature verification failed for node-level SSK");
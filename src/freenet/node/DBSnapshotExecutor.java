@@ -0,0 +1,188 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.LinkedList;
+import java.util.concurrent.locks.Lock;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.async.DBCommitLock;
+import freenet.client.async.ReadOnlyDBJob;
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Runs ReadOnlyDBJob's on up to a configurable number of threads, alongside the database
+ * thread. Each job gets its own db4o session, opened when it starts and rolled back and closed
+ * when it finishes, so it sees what was last committed. Each job holds DBCommitLock's read
+ * lock while it runs, and every commit on the database thread goes through
+ * DBCommitLock.commit(), so a job never sees half of a commit, or state from two different
+ * commits.
+ *
+ * The database thread only waits for running snapshot jobs when it commits, and a waiting
+ * commit stops new snapshot jobs from starting.
+ *
+ * Priorities are thread priorities, higher first, as on the database thread.
+ */
+class DBSnapshotExecutor {
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(DBSnapshotExecutor.class);
+	}
+
+	private static final int IDLE_TIMEOUT = 30*1000;
+
+	private final NodeClientCore core;
+	private final NodeStats stats;
+	private final LinkedList<Job>[] jobs;
+	private int maxThreads;
+	private int threads;
+	private int waiting;
+	private int queued;
+
+	private static class Job {
+		final ReadOnlyDBJob job;
+		final long queuedTime;
+
+		Job(ReadOnlyDBJob job) {
+			this.job = job;
+			this.queuedTime = System.currentTimeMillis();
+		}
+	}
+
+	DBSnapshotExecutor(NodeClientCore core, NodeStats stats, int maxThreads) {
+		this.core = core;
+		this.stats = stats;
+		this.maxThreads = maxThreads;
+		@SuppressWarnings("unchecked") LinkedList<Job>[] jobs = (LinkedList<Job>[])new LinkedList[NativeThread.MAX_PRIORITY+1];
+		for(int i=0;i<jobs.length;i++)
+			jobs[i] = new LinkedList<Job>();
+		this.jobs = jobs;
+	}
+
+	synchronized int getMaxThreads() {
+		return maxThreads;
+	}
+
+	/** Set the number of threads. Zero disables the pool. Jobs which are already queued will
+	 * still run, on the threads we already have. */
+	synchronized void setMaxThreads(int max) {
+		maxThreads = max;
+		startThreads();
+	}
+
+	synchronized int getQueueSize() {
+		return queued;
+	}
+
+	/**
+	 * Queue a job.
+	 * @param checkDupes If true, don't queue the job if it is already queued.
+	 * @return The number of jobs queued, including this one, or -1 if the pool is disabled, in
+	 * which case the caller must run the job on the database thread.
+	 */
+	synchronized int queue(ReadOnlyDBJob job, int priority, boolean checkDupes) {
+		if(maxThreads <= 0) return -1;
+		if(checkDupes) {
+			for(Job j : jobs[priority]) {
+				if(j.job.equals(job)) {
+					if(logMINOR) Logger.minor(this, "Not queueing job: Job already queued: "+job);
+					return queued;
+				}
+			}
+		}
+		jobs[priority].addLast(new Job(job));
+		queued++;
+		if(waiting > 0)
+			notify();
+		else
+			startThreads();
+		return queued;
+	}
+
+	private synchronized void startThreads() {
+		while(threads < maxThreads && queued > waiting) {
+			threads++;
+			core.node.executor.execute(new Runner(), "Client database snapshot thread");
+		}
+	}
+
+	private synchronized Job take() {
+		while(true) {
+			if(threads > maxThreads && queued == 0) {
+				threads--;
+				return null;
+			}
+			for(int i=jobs.length-1;i>=0;i--) {
+				if(!jobs[i].isEmpty()) {
+					queued--;
+					return jobs[i].removeFirst();
+				}
+			}
+			waiting++;
+			try {
+				wait(IDLE_TIMEOUT);
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+			waiting--;
+			if(queued == 0) {
+				threads--;
+				return null;
+			}
+		}
+	}
+
+	private class Runner implements PrioRunnable {
+
+		public int getPriority() {
+			return NativeThread.NORM_PRIORITY;
+		}
+
+		public void run() {
+			Job job;
+			while((job = take()) != null) {
+				long start = System.currentTimeMillis();
+				String name = job.job.toString();
+				stats.reportDatabaseJobWait(name, start - job.queuedTime);
+				try {
+					runJob(job.job);
+				} catch (Throwable t) {
+					Logger.error(this, "Failed to run read-only database job "+job.job+" : caught "+t, t);
+				}
+				stats.reportDatabaseJob(name, System.currentTimeMillis() - start);
+			}
+		}
+
+	}
+
+	private void runJob(ReadOnlyDBJob job) {
+		Lock lock = DBCommitLock.readLock();
+		lock.lock();
+		try {
+			if(core.killedDatabase()) {
+				Logger.error(this, "Database killed already, not running job "+job);
+				return;
+			}
+			ObjectContainer db = core.node.db;
+			if(db == null) {
+				Logger.error(this, "No database, not running job "+job);
+				return;
+			}
+			ObjectContainer session = db.ext().openSession();
+			try {
+				job.run(session, core.clientContext);
+			} finally {
+				// Read-only jobs must not change anything, but if they do, don't keep it.
+				session.rollback();
+				session.close();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
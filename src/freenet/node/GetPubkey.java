@@ -5,6 +5,7 @@ package freenet.node;
 
 import java.io.IOException;
 
+import freenet.crypt.DSAPrecomputation;
 import freenet.crypt.DSAPublicKey;
 import freenet.store.BlockMetadata;
 import freenet.store.PubkeyStore;
@@ -140,7 +141,7 @@ public class GetPubkey {
 				throw new IllegalArgumentException("Wrong hash?? Already have different key with same hash!");
 			cachedPubKeys.push(w, key);
 			while (cachedPubKeys.size() > MAX_MEMORY_CACHED_PUBKEYS)
-				cachedPubKeys.popKey();
+				DSAPrecomputation.forget(cachedPubKeys.popKey().get());
 		}
 		try {
 			if (canWriteClientCache && !(canWriteDatastore || writeLocalToDatastore)) {
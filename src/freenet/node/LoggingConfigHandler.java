@@ -61,6 +61,8 @@ public class LoggingConfigHandler {
 	private long maxCachedLogBytes;
 	private int maxCachedLogLines;
 	private long maxBacklogNotBusy;
+	private boolean async;
+	private boolean asyncBlockWhenFull;
 	private final Executor executor;
 	
 	public LoggingConfigHandler(SubConfig loggingConfig, Executor executor) throws InvalidConfigValueException {
@@ -256,6 +258,40 @@ public class LoggingConfigHandler {
     	
 		maxBacklogNotBusy = config.getLong("maxBacklogNotBusy");
 		
+		config.register("async", false, 9, true, false, "LogConfigHandler.async",
+				"LogConfigHandler.asyncLong",
+				new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						return async;
+					}
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val == async) return;
+						async = val;
+						throw new NodeNeedRestartException("logger.async");
+					}
+				});
+		
+		async = config.getBoolean("async");
+		
+		config.register("asyncBlockWhenFull", false, 10, true, false, "LogConfigHandler.asyncBlockWhenFull",
+				"LogConfigHandler.asyncBlockWhenFullLong",
+				new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						return asyncBlockWhenFull;
+					}
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException {
+						if(val == asyncBlockWhenFull) return;
+						asyncBlockWhenFull = val;
+						if(fileLoggerHook != null) fileLoggerHook.setBlockWhenFull(val);
+					}
+				});
+		
+		asyncBlockWhenFull = config.getBoolean("asyncBlockWhenFull");
+		
 		if (loggingEnabled) enableLogger();
 		config.finishedInitialization();
 	}
@@ -313,6 +349,7 @@ public class LoggingConfigHandler {
 			}
 			hook.setMaxListBytes(maxCachedLogBytes);
 			hook.setMaxBacklogNotBusy(maxBacklogNotBusy);
+			if(async) hook.setAsync(asyncBlockWhenFull);
 			fileLoggerHook = hook;
 			Logger.globalAddHook(hook);
 			hook.start();
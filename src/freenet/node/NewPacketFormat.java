@@ -69,9 +69,12 @@ public class NewPacketFormat implements PacketFormat {
 	 * LOCKING: Protected by (this). */
 	private final SparseBitmap ackedMessages = new SparseBitmap();
 
+	/** LOCKING: Protected by receiveLock. */
 	private final HashMap<Integer, PartiallyReceivedBuffer> receiveBuffers = new HashMap<Integer, PartiallyReceivedBuffer>();
+	/** LOCKING: Protected by receiveLock. */
 	private final HashMap<Integer, SparseBitmap> receiveMaps = new HashMap<Integer, SparseBitmap>();
-	/** The first message id that hasn't been fully received */
+	/** The first message id that hasn't been fully received.
+	 * LOCKING: Protected by receiveLock. */
 	private int messageWindowPtrReceived;
 	private final SparseBitmap receivedMessages= new SparseBitmap();
 
@@ -93,6 +96,10 @@ public class NewPacketFormat implements PacketFormat {
 	private final Object sendBufferLock = new Object();
 	/** Lock protecting the size of the receive buffer. */
 	private final Object receiveBufferSizeLock = new Object();
+	/** Lock serializing handleReceivedPacket(), which may be called from several packet
+	 * decryption threads. Protects the sequence number watchlists and the receive buffers.
+	 * MUST BE TAKEN FIRST. */
+	private final Object receiveLock = new Object();
 	
 	private long timeLastSentPacket;
 	private long timeLastSentPayload;
@@ -117,6 +124,12 @@ public class NewPacketFormat implements PacketFormat {
 	}
 
 	public boolean handleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo) {
+		synchronized(receiveLock) {
+			return innerHandleReceivedPacket(buf, offset, length, now, replyTo);
+		}
+	}
+
+	private boolean innerHandleReceivedPacket(byte[] buf, int offset, int length, long now, Peer replyTo) {
 		NPFPacket packet = null;
 		SessionKey s = null;
 		for(int i = 0; i < 3; i++) {
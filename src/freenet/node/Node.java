@@ -67,6 +67,7 @@ import com.sleepycat.je.EnvironmentMutableConfig;
 import freenet.client.FECQueue;
 import freenet.client.FetchContext;
 import freenet.client.async.ClientRequestScheduler;
+import freenet.client.async.DBCommitLock;
 import freenet.client.async.SplitFileInserterSegment;
 import freenet.clients.http.SecurityLevelsToadlet;
 import freenet.clients.http.SimpleToadletServer;
@@ -147,6 +148,7 @@ import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
 import freenet.store.FreenetStore.StoreType;
 import freenet.store.saltedhash.SaltedHashFreenetStore;
+import freenet.support.AffinityExecutor;
 import freenet.support.Executor;
 import freenet.support.Fields;
 import freenet.support.FileLoggerHook;
@@ -558,6 +560,10 @@ public class Node implements TimeSkewDetectorCallback {
 	private int storeBloomFilterSize;
 	private final boolean storeBloomFilterCounting;
 	private boolean storeSaltHashResizeOnStart;
+	/** Use memory mapped I/O for the salt-hash store files */
+	private boolean storeSaltHashMmap;
+	/** Queue salt-hash store writes and write them in batches on a background thread */
+	private boolean storeSaltHashWriteBehind;
 
 	/** The number of bytes per key total in all the different datastores. All the datastores
 	 * are always the same size in number of keys. */
@@ -658,29 +664,8 @@ public class Node implements TimeSkewDetectorCallback {
 	 * probabilistic decrement at the edges of the HTLs. */
 	boolean disableProbabilisticHTLs;
 
-	/** HashSet of currently running request UIDs */
-	private final HashMap<Long,UIDTag> runningUIDs;
-	private final HashMap<Long,RequestTag> runningCHKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningLocalCHKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningSSKGetUIDsBulk;
-	private final HashMap<Long,RequestTag> runningLocalSSKGetUIDsBulk;
-	private final HashMap<Long,InsertTag> runningCHKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningLocalCHKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningSSKPutUIDsBulk;
-	private final HashMap<Long,InsertTag> runningLocalSSKPutUIDsBulk;
-	private final HashMap<Long,OfferReplyTag> runningCHKOfferReplyUIDsBulk;
-	private final HashMap<Long,OfferReplyTag> runningSSKOfferReplyUIDsBulk;
-
-	private final HashMap<Long,RequestTag> runningCHKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningLocalCHKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningSSKGetUIDsRT;
-	private final HashMap<Long,RequestTag> runningLocalSSKGetUIDsRT;
-	private final HashMap<Long,InsertTag> runningCHKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningLocalCHKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningSSKPutUIDsRT;
-	private final HashMap<Long,InsertTag> runningLocalSSKPutUIDsRT;
-	private final HashMap<Long,OfferReplyTag> runningCHKOfferReplyUIDsRT;
-	private final HashMap<Long,OfferReplyTag> runningSSKOfferReplyUIDsRT;
+	/** Currently running request UIDs */
+	final UIDTracker uidTracker;
 
 	
 	/** Semi-unique ID for swap requests. Used to identify us so that the
@@ -746,6 +731,13 @@ public class Node implements TimeSkewDetectorCallback {
 	private volatile boolean routeAccordingToOurPeersLocation;
 	boolean enableSwapQueueing;
 	boolean enablePacketCoalescing;
+	/** Decrypts incoming packets in parallel, one thread per peer. Null if we decrypt them on the
+	 * UdpSocketHandler thread. */
+	public final AffinityExecutor packetDecryptors;
+	/** Configured number of packet decryption threads, takes effect on restart. */
+	private int packetDecryptionThreads;
+	/** Maximum number of packets waiting for each decryption thread. */
+	private static final int MAX_QUEUED_PACKETS_PER_DECRYPTOR = 1024;
 	public static final short DEFAULT_MAX_HTL = (short)18;
 	private short maxHTL;
 	private boolean skipWrapperWarning;
@@ -1126,28 +1118,7 @@ public class Node implements TimeSkewDetectorCallback {
 		transferringRequestSendersRT = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestSendersBulk = new HashMap<NodeCHK, RequestSender>();
 		transferringRequestHandlers = new HashSet<Long>();
-		runningUIDs = new HashMap<Long,UIDTag>();
-		runningCHKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningLocalCHKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningSSKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningLocalSSKGetUIDsRT = new HashMap<Long,RequestTag>();
-		runningCHKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningLocalCHKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningSSKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningLocalSSKPutUIDsRT = new HashMap<Long,InsertTag>();
-		runningCHKOfferReplyUIDsRT = new HashMap<Long,OfferReplyTag>();
-		runningSSKOfferReplyUIDsRT = new HashMap<Long,OfferReplyTag>();
-
-		runningCHKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningLocalCHKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningSSKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningLocalSSKGetUIDsBulk = new HashMap<Long,RequestTag>();
-		runningCHKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningLocalCHKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningSSKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningLocalSSKPutUIDsBulk = new HashMap<Long,InsertTag>();
-		runningCHKOfferReplyUIDsBulk = new HashMap<Long,OfferReplyTag>();
-		runningSSKOfferReplyUIDsBulk = new HashMap<Long,OfferReplyTag>();
+		uidTracker = new UIDTracker();
 
 		this.securityLevels = new SecurityLevels(this, config);
 
@@ -1523,6 +1494,28 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		enablePacketCoalescing = nodeConfig.getBoolean("enablePacketCoalescing");
 
+		nodeConfig.register("packetDecryptionThreads", 1, sortOrder++, true, false, "Node.packetDecryptionThreads", "Node.packetDecryptionThreadsLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return packetDecryptionThreads;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val == packetDecryptionThreads) return;
+				if(val < 1) throw new InvalidConfigValueException(l10n("mustBePositive"));
+				packetDecryptionThreads = val;
+				throw new NodeNeedRestartException("Packet decryption threads cannot be changed on the fly");
+			}
+		}, false);
+		packetDecryptionThreads = nodeConfig.getInt("packetDecryptionThreads");
+		if(packetDecryptionThreads > 1) {
+			packetDecryptors = new AffinityExecutor(packetDecryptionThreads, NativeThread.MAX_PRIORITY, MAX_QUEUED_PACKETS_PER_DECRYPTOR);
+			packetDecryptors.start(executor, "Packet decryption");
+		} else {
+			packetDecryptors = null;
+		}
+
 		// Determine the port number
 		// @see #191
 		if(oldConfig != null && "-1".equals(oldConfig.get("node.listenPort")))
@@ -1535,7 +1528,7 @@ public class Node implements TimeSkewDetectorCallback {
 		nodeDBHandle = darknetCrypto.getNodeHandle(db);
 
 		if(db != null) {
-			db.commit();
+			DBCommitLock.commit(db);
 			if(logMINOR) Logger.minor(this, "COMMITTED");
 		}
 
@@ -2041,6 +2034,50 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeSaltHashMmap", false, sortOrder++, true, false,
+				"Node.storeSaltHashMmap", "Node.storeSaltHashMmapLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return storeSaltHashMmap;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val == storeSaltHashMmap) return;
+				storeSaltHashMmap = val;
+				throw new NodeNeedRestartException("Store access mode cannot be changed on the fly");
+			}
+
+			@Override
+			public boolean isReadOnly() {
+				return !("salt-hash".equals(storeType));
+			}
+		});
+		storeSaltHashMmap = nodeConfig.getBoolean("storeSaltHashMmap");
+
+		nodeConfig.register("storeSaltHashWriteBehind", false, sortOrder++, true, false,
+				"Node.storeSaltHashWriteBehind", "Node.storeSaltHashWriteBehindLong", new BooleanCallback() {
+			@Override
+			public Boolean get() {
+				return storeSaltHashWriteBehind;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				storeSaltHashWriteBehind = val;
+				if (storeType.equals("salt-hash")) {
+					((SaltedHashFreenetStore<CHKBlock>) chkDatastore.getStore()).setWriteBehind(val);
+					((SaltedHashFreenetStore<CHKBlock>) chkDatacache.getStore()).setWriteBehind(val);
+				}
+			}
+
+			@Override
+			public boolean isReadOnly() {
+				return !("salt-hash".equals(storeType));
+			}
+		});
+		storeSaltHashWriteBehind = nodeConfig.getBoolean("storeSaltHashWriteBehind");
+
 		nodeConfig.register("storeDir", "datastore", sortOrder++, true, true, "Node.storeDirectory", "Node.storeDirectoryLong",
 				new StringCallback() {
 					@Override
@@ -2585,7 +2622,7 @@ public class Node implements TimeSkewDetectorCallback {
 		nodeDBHandle = darknetCrypto.getNodeHandle(db);
 
 		if(db != null) {
-			db.commit();
+			DBCommitLock.commit(db);
 			if(logMINOR) Logger.minor(this, "COMMITTED");
 			try {
 				if(!clientCore.lateInitDatabase(nodeDBHandle, db))
@@ -3528,8 +3565,9 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(storeDir, type+"-"+store, cb,
-		        random, maxKeys, bloomFilterSizeInM, storeBloomFilterCounting, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		        random, maxKeys, bloomFilterSizeInM, storeBloomFilterCounting, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey, storeSaltHashMmap);
 		cb.setStore(fs);
+		fs.setWriteBehind(storeSaltHashWriteBehind);
 		return fs;
 	}
 
@@ -4033,7 +4071,9 @@ public class Node implements TimeSkewDetectorCallback {
 		if(logMINOR) Logger.minor(this, "makeRequestSender("+key+ ',' +htl+ ',' +uid+ ',' +source+") on "+getDarknetPortNumber());
 		// In store?
 		if(!ignoreStore) {
+			long lookupStart = System.currentTimeMillis();
 			KeyBlock kb = makeRequestLocal(key, uid, canReadClientCache, canWriteClientCache, canWriteDatastore, offersOnly);
+			if(tag != null) tag.traceStoreLookup(lookupStart);
 			if (kb != null)
 				return kb;
 		}
@@ -4533,35 +4573,9 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	public boolean lockUID(long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean realTimeFlag, UIDTag tag) {
-		synchronized(runningUIDs) {
-			if(runningUIDs.containsKey(uid)) return false; // Already present.
-			runningUIDs.put(uid, tag);
-		}
-		// If these are switched around, we must remember to remove from both.
-		if(offerReply) {
-			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			innerLock(map, (OfferReplyTag)tag, uid, ssk, insert, offerReply, local);
-		} else if(insert) {
-			HashMap<Long,InsertTag> map = getInsertTracker(ssk,local, realTimeFlag);
-			innerLock(map, (InsertTag)tag, uid, ssk, insert, offerReply, local);
-		} else {
-			HashMap<Long,RequestTag> map = getRequestTracker(ssk,local, realTimeFlag);
-			innerLock(map, (RequestTag)tag, uid, ssk, insert, offerReply, local);
-		}
-		return true;
+		return uidTracker.lock(uid, ssk, insert, offerReply, local, realTimeFlag, tag);
 	}
 
-	private<T extends UIDTag> void innerLock(HashMap<Long, T> map, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local) {
-		synchronized(map) {
-			if(logMINOR) Logger.minor(this, "Locking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+map.size(), new Exception("debug"));
-			if(map.containsKey(uid)) {
-				Logger.error(this, "Already have UID in specific map ("+ssk+","+insert+","+offerReply+","+local+") but not in general map: trying to register "+tag+" but already have "+map.get(uid));
-			}
-			map.put(uid, tag);
-			if(logMINOR) Logger.minor(this, "Locked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+map.size());
-		}
-	}
-	
 	/** Only used by UIDTag. */
 	void unlockUID(UIDTag tag, boolean canFail, boolean noRecord) {
 		unlockUID(tag.uid, tag.isSSK(), tag.isInsert(), canFail, tag.isOfferReply(), tag.wasLocal(), tag.realTimeFlag, tag, noRecord);
@@ -4571,45 +4585,7 @@ public class Node implements TimeSkewDetectorCallback {
 		if(!noRecord)
 			completed(uid);
 
-		if(offerReply) {
-			HashMap<Long,OfferReplyTag> map = getOfferTracker(ssk, realTimeFlag);
-			innerUnlock(map, (OfferReplyTag)tag, uid, ssk, insert, offerReply, local, canFail);
-		} else if(insert) {
-			HashMap<Long,InsertTag> map = getInsertTracker(ssk,local, realTimeFlag);
-			innerUnlock(map, (InsertTag)tag, uid, ssk, insert, offerReply, local, canFail);
-		} else {
-			HashMap<Long,RequestTag> map = getRequestTracker(ssk,local, realTimeFlag);
-			innerUnlock(map, (RequestTag)tag, uid, ssk, insert, offerReply, local, canFail);
-		}
-
-		synchronized(runningUIDs) {
-			UIDTag oldTag = runningUIDs.get(uid);
-			if(oldTag == null) {
-				if(canFail) return;
-				throw new IllegalStateException("Could not unlock "+uid+ "! : ssk="+ssk+" insert="+insert+" canFail="+canFail+" offerReply="+offerReply+" local="+local);
-			} else if(tag != oldTag) {
-				if(canFail) return;
-				Logger.error(this, "Removing "+tag+" for "+uid+" but "+tag+" is registered!");
-				return;
-			} else {
-				runningUIDs.remove(uid);
-			}
-		}
-	}
-
-	private<T extends UIDTag> void innerUnlock(HashMap<Long, T> map, T tag, Long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean canFail) {
-		synchronized(map) {
-			if(logMINOR) Logger.minor(this, "Unlocking "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+map.size(), new Exception("debug"));
-			if(map.get(uid) != tag) {
-				if(canFail) {
-					if(logMINOR) Logger.minor(this, "Can fail and did fail: removing "+tag+" got "+map.get(uid)+" for "+uid);
-				} else {
-					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+map.get(uid));
-				}
-			} else
-				map.remove(uid);
-			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+map.size());
-		}
+		uidTracker.unlock(uid, ssk, insert, offerReply, local, realTimeFlag, tag, canFail);
 	}
 
 	public class CountedRequests {
@@ -4623,122 +4599,54 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 	
-	public synchronized CountedRequests countRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		synchronized(map) {
-			int count = 0;
-			int transfersOut = 0;
-			int transfersIn = 0;
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				count++;
-				transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert);
-				transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert);
-				if(logDEBUG) Logger.debug(this, "UID "+entry.getKey()+" : out "+transfersOut+" in "+transfersIn);
-			}
-			return new CountedRequests(count, transfersOut, transfersIn);
-		}
+	public CountedRequests countRequests(boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote) {
+		return countRequests(uidTracker.getTotals(), local, ssk, insert, offer, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote);
+	}
+	
+	private CountedRequests countRequests(UIDTracker.RunningCounts counts, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote) {
+		int category = UIDTracker.category(ssk, insert, offer, local, realTimeFlag);
+		return new CountedRequests(counts.count(category),
+				counts.expectedTransfersOut(category, ignoreLocalVsRemote, transfersPerInsert),
+				counts.expectedTransfersIn(category, ignoreLocalVsRemote, transfersPerInsert));
 	}
 	
 	public CountedRequests countRequests(PeerNode source, boolean requestsToNode, boolean local, boolean ssk, boolean insert, boolean offer, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote) {
-		HashMap<Long, ? extends UIDTag> map = getTracker(local, ssk, insert, offer, realTimeFlag);
-		synchronized(map) {
-		int count = 0;
-		int transfersOut = 0;
-		int transfersIn = 0;
 		if(!requestsToNode) {
 			// If a request is adopted by us as a result of a timeout, it can be in the 
 			// remote map despite having source == null. However, if a request is in the 
 			// local map it will always have source == null.
 			if(source != null && local) return new CountedRequests(0, 0, 0);
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
-				if(tag.getSource() == source) {
-					if(logMINOR) Logger.minor(this, "Counting "+tag+" from "+entry.getKey()+" from "+source);
-					count++;
-					transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert);
-					transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert);
-				} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
-			}
-			return new CountedRequests(count, transfersOut, transfersIn);
+			return countRequests(uidTracker.countsFor(source), local, ssk, insert, offer, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote);
 		} else {
+			int count = 0;
+			int transfersOut = 0;
+			int transfersIn = 0;
 			// FIXME improve efficiency!
-			for(Map.Entry<Long, ? extends UIDTag> entry : map.entrySet()) {
-				UIDTag tag = entry.getValue();
+			ArrayList<UIDTag> tags = uidTracker.getTags(ssk, insert, offer, local, realTimeFlag);
+			for(UIDTag tag : tags) {
 				// Ordinary requests can be routed to an offered key.
 				// So we *DO NOT* care whether it's an ordinary routed relayed request or a GetOfferedKey, if we are counting outgoing requests.
 				if(tag.currentlyFetchingOfferedKeyFrom(source)) {
-					if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
+					if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+tag.uid);
 					transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert);
 					transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert);
 					count++;
 				} else if(tag.currentlyRoutingTo(source)) {
-					if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+entry.getKey());
+					if(logMINOR) Logger.minor(this, "Counting "+tag+" to "+tag.uid);
 					transfersOut += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert);
 					transfersIn += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert);
 					count++;
-				} else if(logDEBUG) Logger.debug(this, "Not counting "+entry.getKey());
+				} else if(logDEBUG) Logger.debug(this, "Not counting "+tag.uid);
 			}
-			if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+map.size()+" for "+source);
+			if(logMINOR) Logger.minor(this, "Counted for "+(local?"local":"remote")+" "+(ssk?"ssk":"chk")+" "+(insert?"insert":"request")+" "+(offer?"offer":"")+" : "+count+" of "+tags.size()+" for "+source);
 			return new CountedRequests(count, transfersOut, transfersIn);
 		}
-		}
 	}
 	
 	void reassignTagToSelf(UIDTag tag) {
 		// The tag remains remote, but we flag it as adopted.
 		tag.reassignToSelf();
 	}
-	
-	private synchronized HashMap<Long, ? extends UIDTag> getTracker(boolean local, boolean ssk,
-			boolean insert, boolean offer, boolean realTimeFlag) {
-		if(offer)
-			return getOfferTracker(ssk, realTimeFlag);
-		else if(insert)
-			return getInsertTracker(ssk, local, realTimeFlag);
-		else
-			return getRequestTracker(ssk, local, realTimeFlag);
-	}
-
-
-	private HashMap<Long, RequestTag> getRequestTracker(boolean ssk, boolean local, boolean realTimeFlag) {
-		if(realTimeFlag) {
-			if(ssk) {
-				return local ? runningLocalSSKGetUIDsRT : runningSSKGetUIDsRT;
-			} else {
-				return local ? runningLocalCHKGetUIDsRT : runningCHKGetUIDsRT;
-			}
-		} else {
-			if(ssk) {
-				return local ? runningLocalSSKGetUIDsBulk : runningSSKGetUIDsBulk;
-			} else {
-				return local ? runningLocalCHKGetUIDsBulk : runningCHKGetUIDsBulk;
-			}
-		}
-	}
-
-	private HashMap<Long, InsertTag> getInsertTracker(boolean ssk, boolean local, boolean realTimeFlag) {
-		if(realTimeFlag) {
-			if(ssk) {
-				return local ? runningLocalSSKPutUIDsRT : runningSSKPutUIDsRT;
-			} else {
-				return local ? runningLocalCHKPutUIDsRT : runningCHKPutUIDsRT;
-			}
-		} else {
-			if(ssk) {
-				return local ? runningLocalSSKPutUIDsBulk : runningSSKPutUIDsBulk;
-			} else {
-				return local ? runningLocalCHKPutUIDsBulk : runningCHKPutUIDsBulk;
-			}
-		}
-	}
-
-	private HashMap<Long, OfferReplyTag> getOfferTracker(boolean ssk, boolean realTimeFlag) {
-		if(realTimeFlag)
-			return ssk ? runningSSKOfferReplyUIDsRT : runningCHKOfferReplyUIDsRT;
-		else
-			return ssk ? runningSSKOfferReplyUIDsBulk : runningCHKOfferReplyUIDsBulk;
-	}
 
 	// Must include bulk inserts so fairly long.
 	static final int TIMEOUT = 16 * 60 * 1000;
@@ -4750,48 +4658,11 @@ public class Node implements TimeSkewDetectorCallback {
 	private Runnable deadUIDChecker = new Runnable() {
 		public void run() {
 			try {
-				checkUIDs(runningLocalSSKGetUIDsRT);
-				checkUIDs(runningLocalCHKGetUIDsRT);
-				checkUIDs(runningLocalSSKPutUIDsRT);
-				checkUIDs(runningLocalCHKPutUIDsRT);
-				checkUIDs(runningSSKGetUIDsRT);
-				checkUIDs(runningCHKGetUIDsRT);
-				checkUIDs(runningSSKPutUIDsRT);
-				checkUIDs(runningCHKPutUIDsRT);
-				checkUIDs(runningSSKOfferReplyUIDsRT);
-				checkUIDs(runningCHKOfferReplyUIDsRT);
-				checkUIDs(runningLocalSSKGetUIDsBulk);
-				checkUIDs(runningLocalCHKGetUIDsBulk);
-				checkUIDs(runningLocalSSKPutUIDsBulk);
-				checkUIDs(runningLocalCHKPutUIDsBulk);
-				checkUIDs(runningSSKGetUIDsBulk);
-				checkUIDs(runningCHKGetUIDsBulk);
-				checkUIDs(runningSSKPutUIDsBulk);
-				checkUIDs(runningCHKPutUIDsBulk);
-				checkUIDs(runningSSKOfferReplyUIDsBulk);
-				checkUIDs(runningCHKOfferReplyUIDsBulk);
+				uidTracker.removeDeadUIDs(TIMEOUT);
 			} finally {
 				getTicker().queueTimedJob(this, 60*1000);
 			}
 		}
-
-		private void checkUIDs(HashMap<Long, ? extends UIDTag> map) {
-			Long[] uids;
-			UIDTag[] tags;
-			synchronized(map) {
-				uids = map.keySet().toArray(new Long[map.size()]);
-				tags = map.values().toArray(new UIDTag[map.size()]);
-			}
-			long now = System.currentTimeMillis();
-			for(int i=0;i<uids.length;i++) {
-				if(now - tags[i].createdTime > TIMEOUT) {
-					tags[i].logStillPresent(uids[i]);
-					synchronized(map) {
-						map.remove(uids[i]);
-					}
-				}
-			}
-		}
 	};
 
 
@@ -4822,229 +4693,99 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	public int getNumSSKRequests() {
-		int total = 0;
-		synchronized(runningSSKGetUIDsBulk) {
-			total += runningSSKGetUIDsBulk.size();
-		}
-		synchronized(runningSSKGetUIDsRT) {
-			total += runningSSKGetUIDsRT.size();
-		}
-		synchronized(runningLocalSSKGetUIDsBulk) {
-			total += runningLocalSSKGetUIDsBulk.size();
-		}
-		synchronized(runningLocalSSKGetUIDsRT) {
-			total += runningLocalSSKGetUIDsRT.size();
-		}
-		return total;
+		return uidTracker.count(true, false, false);
 	}
 
 	public int getNumCHKRequests() {
-		int total = 0;
-		synchronized(runningCHKGetUIDsBulk) {
-			total += runningCHKGetUIDsBulk.size();
-		}
-		synchronized(runningCHKGetUIDsRT) {
-			total += runningCHKGetUIDsRT.size();
-		}
-		synchronized(runningLocalCHKGetUIDsBulk) {
-			total += runningLocalCHKGetUIDsBulk.size();
-		}
-		synchronized(runningLocalCHKGetUIDsRT) {
-			total += runningLocalCHKGetUIDsRT.size();
-		}
-		return total;
+		return uidTracker.count(false, false, false);
 	}
 
 	public int getNumSSKInserts() {
-		int total = 0;
-		synchronized(runningSSKPutUIDsBulk) {
-			total += runningSSKPutUIDsBulk.size();
-		}
-		synchronized(runningSSKPutUIDsRT) {
-			total += runningSSKPutUIDsRT.size();
-		}
-		synchronized(runningLocalSSKPutUIDsBulk) {
-			total += runningLocalSSKPutUIDsBulk.size();
-		}
-		synchronized(runningLocalSSKPutUIDsRT) {
-			total += runningLocalSSKPutUIDsRT.size();
-		}
-		return total;
+		return uidTracker.count(true, true, false);
 	}
 
 	public int getNumCHKInserts() {
-		int total = 0;
-		synchronized(runningCHKPutUIDsBulk) {
-			total += runningCHKPutUIDsBulk.size();
-		}
-		synchronized(runningCHKPutUIDsRT) {
-			total += runningCHKPutUIDsRT.size();
-		}
-		synchronized(runningLocalCHKPutUIDsBulk) {
-			total += runningLocalCHKPutUIDsBulk.size();
-		}
-		synchronized(runningLocalCHKPutUIDsRT) {
-			total += runningLocalCHKPutUIDsRT.size();
-		}
-		return total;
+		return uidTracker.count(false, true, false);
 	}
 
 	public int getNumLocalSSKRequests() {
-		int total = 0;
-		synchronized(runningLocalSSKGetUIDsBulk) {
-			total += runningLocalSSKGetUIDsBulk.size();
-		}
-		synchronized(runningLocalSSKGetUIDsRT) {
-			total += runningLocalSSKGetUIDsRT.size();
-		}
-		return total;
+		return uidTracker.count(true, false, false, true);
 	}
 
 	public int getNumLocalCHKRequests() {
-		int total = 0;
-		synchronized(runningLocalCHKGetUIDsBulk) {
-			total += runningLocalCHKGetUIDsBulk.size();
-		}
-		synchronized(runningLocalCHKGetUIDsRT) {
-			total += runningLocalCHKGetUIDsRT.size();
-		}
-		return total;
+		return uidTracker.count(false, false, false, true);
 	}
 
 	public int getNumRemoteCHKRequests() {
-		int total = 0;
-		synchronized(runningCHKGetUIDsBulk) {
-			total += runningCHKGetUIDsBulk.size();
-		}
-		synchronized(runningCHKGetUIDsRT) {
-			total += runningCHKGetUIDsRT.size();
-		}
-		return total;
+		return uidTracker.count(false, false, false, false);
 	}
 
 	public int getNumRemoteSSKRequests() {
-		int total = 0;
-		synchronized(runningSSKGetUIDsBulk) {
-			total += runningSSKGetUIDsBulk.size();
-		}
-		synchronized(runningSSKGetUIDsRT) {
-			total += runningSSKGetUIDsRT.size();
-		}
-		return total;
+		return uidTracker.count(true, false, false, false);
 	}
 
 	public int getNumRemoteSSKRequests(boolean realTimeFlag) {
-		if(realTimeFlag) {
-			synchronized(runningSSKGetUIDsRT) {
-				return runningSSKGetUIDsRT.size();
-			}
-		} else {
-			synchronized(runningSSKGetUIDsBulk) {
-				return runningSSKGetUIDsBulk.size();
-			}
-		}
+		return uidTracker.count(true, false, false, false, realTimeFlag);
 	}
 
 	public int getNumLocalCHKInserts() {
-		int total = 0;
-		synchronized(runningLocalCHKPutUIDsBulk) {
-			total += runningLocalCHKPutUIDsBulk.size();
-		}
-		synchronized(runningLocalCHKPutUIDsRT) {
-			total += runningLocalCHKPutUIDsRT.size();
-		}
-		return total;
+		return uidTracker.count(false, true, false, true);
 	}
 
 	public int getNumLocalSSKInserts() {
-		int total = 0;
-		synchronized(runningLocalSSKPutUIDsBulk) {
-			total += runningLocalSSKPutUIDsBulk.size();
-		}
-		synchronized(runningLocalSSKPutUIDsRT) {
-			total += runningLocalSSKPutUIDsRT.size();
-		}
-		return total;
+		return uidTracker.count(true, true, false, true);
 	}
 
 	public int getNumRemoteCHKInserts() {
-		int total = 0;
-		synchronized(runningCHKPutUIDsBulk) {
-			total += runningCHKPutUIDsBulk.size();
-		}
-		synchronized(runningCHKPutUIDsRT) {
-			total += runningCHKPutUIDsRT.size();
-		}
-		return total;
+		return uidTracker.count(false, true, false, false);
 	}
 
 	public int getNumRemoteSSKInserts() {
-		int total = 0;
-		synchronized(runningSSKPutUIDsRT) {
-			total += runningSSKPutUIDsRT.size();
-		}
-		synchronized(runningSSKPutUIDsBulk) {
-			total += runningSSKPutUIDsBulk.size();
-		}
-		return total;
+		return uidTracker.count(true, true, false, false);
 	}
 
 	public int getNumRemoteCHKRequests(boolean realTimeFlag) {
-		return realTimeFlag ? runningCHKGetUIDsRT.size() : runningCHKGetUIDsBulk.size();
+		return uidTracker.count(false, false, false, false, realTimeFlag);
 	}
 
 	public int getNumLocalSSKInserts(boolean realTimeFlag) {
-		return realTimeFlag ? runningLocalSSKPutUIDsRT.size() : runningLocalSSKPutUIDsBulk.size();
+		return uidTracker.count(true, true, false, true, realTimeFlag);
 	}
 
 	public int getNumLocalCHKInserts(boolean realTimeFlag) {
-		return realTimeFlag ? runningLocalCHKPutUIDsRT.size() : runningLocalCHKPutUIDsBulk.size();
+		return uidTracker.count(false, true, false, true, realTimeFlag);
 	}
 
 	public int getNumLocalCHKRequests(boolean realTimeFlag) {
-		return realTimeFlag ? runningLocalCHKGetUIDsRT.size() : runningLocalCHKGetUIDsBulk.size();
+		return uidTracker.count(false, false, false, true, realTimeFlag);
 	}
 
 	public int getNumLocalSSKRequests(boolean realTimeFlag) {
-		return realTimeFlag ? runningLocalSSKGetUIDsRT.size() : runningLocalSSKGetUIDsBulk.size();
+		return uidTracker.count(true, false, false, true, realTimeFlag);
 	}
 
 	public int getNumRemoteSSKInserts(boolean realTimeFlag) {
-		return realTimeFlag ? runningSSKPutUIDsRT.size() : runningSSKPutUIDsBulk.size();
+		return uidTracker.count(true, true, false, false, realTimeFlag);
 	}
 
 	public int getNumRemoteCHKInserts(boolean realTimeFlag) {
-		return realTimeFlag ? runningCHKPutUIDsRT.size() : runningCHKPutUIDsBulk.size();
+		return uidTracker.count(false, true, false, false, realTimeFlag);
 	}
 
 	public int getNumSSKOfferReplies() {
-		int total = 0;
-		synchronized(runningSSKOfferReplyUIDsRT) {
-			total += runningSSKOfferReplyUIDsRT.size();
-		}
-		synchronized(runningSSKOfferReplyUIDsBulk) {
-			total += runningSSKOfferReplyUIDsBulk.size();
-		}
-		return total;
+		return uidTracker.count(true, false, true);
 	}
 	
 	public int getNumCHKOfferReplies() {
-		int total = 0;
-		synchronized(runningCHKOfferReplyUIDsRT) {
-			total += runningCHKOfferReplyUIDsRT.size();
-		}
-		synchronized(runningCHKOfferReplyUIDsBulk) {
-			total += runningCHKOfferReplyUIDsBulk.size();
-		}
-		return total;
+		return uidTracker.count(false, false, true);
 	}
 	
 	public int getNumSSKOfferReplies(boolean realTimeFlag) {
-		return realTimeFlag ? runningSSKOfferReplyUIDsRT.size() : runningSSKOfferReplyUIDsBulk.size();
+		return uidTracker.count(true, false, true, false, realTimeFlag);
 	}
 
 	public int getNumCHKOfferReplies(boolean realTimeFlag) {
-		return realTimeFlag ? runningCHKOfferReplyUIDsRT.size() : runningCHKOfferReplyUIDsBulk.size();
+		return uidTracker.count(false, false, true, false, realTimeFlag);
 	}
 
 	public int getNumTransferringRequestSenders() {
@@ -5777,24 +5518,15 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 
 	public int getTotalRunningUIDs() {
-		synchronized(runningUIDs) {
-			return runningUIDs.size();
-		}
+		return uidTracker.getTotalRunningUIDs();
 	}
 
 	public void addRunningUIDs(Vector<Long> list) {
-		synchronized(runningUIDs) {
-			list.addAll(runningUIDs.keySet());
-		}
+		uidTracker.addRunningUIDs(list);
 	}
 
 	public int getTotalRunningUIDsAlt() {
-		synchronized(runningUIDs) {
-			return this.runningCHKGetUIDsRT.size() + this.runningCHKPutUIDsRT.size() + this.runningSSKGetUIDsRT.size() +
-			this.runningSSKGetUIDsRT.size() + this.runningSSKOfferReplyUIDsRT.size() + this.runningCHKOfferReplyUIDsRT.size() + 
-			this.runningCHKGetUIDsBulk.size() + this.runningCHKPutUIDsBulk.size() + this.runningSSKGetUIDsBulk.size() +
-			this.runningSSKGetUIDsBulk.size() + this.runningSSKOfferReplyUIDsBulk.size() + this.runningCHKOfferReplyUIDsBulk.size();
-		}
+		return uidTracker.getTotalRunningUIDsAlt();
 	}
 
 	/**
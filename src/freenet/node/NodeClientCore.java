@@ -10,6 +10,7 @@ import com.db4o.ObjectContainer;
 import com.db4o.ext.Db4oException;
 
 import freenet.client.ArchiveManager;
+import freenet.client.FECCodec;
 import freenet.client.FECQueue;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.HighLevelSimpleClientImpl;
@@ -18,6 +19,7 @@ import freenet.client.async.BackgroundBlockEncoder;
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequestScheduler;
 import freenet.client.async.ClientRequester;
+import freenet.client.async.DBCommitLock;
 import freenet.client.async.DBJob;
 import freenet.client.async.DBJobRunner;
 import freenet.client.async.DatabaseDisabledException;
@@ -25,6 +27,7 @@ import freenet.client.async.DatastoreChecker;
 import freenet.client.async.HealingQueue;
 import freenet.client.async.InsertCompressor;
 import freenet.client.async.PersistentStatsPutter;
+import freenet.client.async.ReadOnlyDBJob;
 import freenet.client.async.SimpleHealingQueue;
 import freenet.client.async.USKManager;
 import freenet.client.events.SimpleEventProducer;
@@ -148,6 +151,9 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 	 * Note that the priorities are thread priorities, not request priorities.
 	 */
 	public transient final PrioritizedSerialExecutor clientDatabaseExecutor;
+	/** Runs ReadOnlyDBJob's concurrently, each against a snapshot of the last commit, if
+	 * enabled. See DBSnapshotExecutor. */
+	transient final DBSnapshotExecutor snapshotExecutor;
 	public final DatastoreChecker storeChecker;
 
 	public transient final ClientContext clientContext;
@@ -175,6 +181,7 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		fecQueue = initFECQueue(node.nodeDBHandle, container, null);
 		this.backgroundBlockEncoder = new BackgroundBlockEncoder();
 		clientDatabaseExecutor = new PrioritizedSerialExecutor(NativeThread.NORM_PRIORITY, NativeThread.MAX_PRIORITY+1, NativeThread.NORM_PRIORITY, true, 30*1000, this, node.nodeStats);
+		snapshotExecutor = new DBSnapshotExecutor(this, node.nodeStats, 0);
 		storeChecker = new DatastoreChecker(node);
 		byte[] pwdBuf = new byte[16];
 		random.nextBytes(pwdBuf);
@@ -337,6 +344,21 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 			}
 		}, true);
 
+		nodeConfig.register("offHeapRAMBuckets", false, sortOrder++, true, false, "NodeClientCore.offHeapRAMBuckets", "NodeClientCore.offHeapRAMBucketsLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				return (tempBucketFactory == null ? false : tempBucketFactory.isOffHeap());
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException {
+				if (get().equals(val) || (tempBucketFactory == null))
+					        return;
+				tempBucketFactory.setOffHeap(val);
+			}
+		});
+
 		nodeConfig.register("encryptTempBuckets", true, sortOrder++, true, false, "NodeClientCore.encryptTempBuckets", "NodeClientCore.encryptTempBucketsLong", new BooleanCallback() {
 
 			@Override
@@ -352,6 +374,7 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 			}
 		});
 		tempBucketFactory = new TempBucketFactory(node.executor, tempFilenameGenerator, nodeConfig.getLong("maxRAMBucketSize"), nodeConfig.getLong("RAMBucketPoolSize"), random, node.fastWeakRandom, nodeConfig.getBoolean("encryptTempBuckets"));
+		tempBucketFactory.setOffHeap(nodeConfig.getBoolean("offHeapRAMBuckets"));
 
 		archiveManager = new ArchiveManager(MAX_ARCHIVE_HANDLERS, MAX_CACHED_ARCHIVE_DATA, MAX_ARCHIVED_FILE_SIZE, MAX_CACHED_ELEMENTS, tempBucketFactory);
 
@@ -568,6 +591,56 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 
 		});
 		alwaysCommit = nodeConfig.getBoolean("alwaysCommit");
+
+		nodeConfig.register("parallelCompression", false, sortOrder++, true, false, "NodeClientCore.parallelCompression", "NodeClientCore.parallelCompressionLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return compressor.getParallelCodecs();
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						compressor.setParallelCodecs(val);
+					}
+
+		});
+		compressor.setParallelCodecs(nodeConfig.getBoolean("parallelCompression"));
+
+		nodeConfig.register("pureJavaFEC", false, sortOrder++, true, false, "NodeClientCore.pureJavaFEC", "NodeClientCore.pureJavaFECLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return FECCodec.getUsePureJava();
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						FECCodec.setUsePureJava(val);
+					}
+
+		});
+		FECCodec.setUsePureJava(nodeConfig.getBoolean("pureJavaFEC"));
+
+		nodeConfig.register("clientDatabaseReadThreads", 2, sortOrder++, true, false, "NodeClientCore.clientDatabaseReadThreads", "NodeClientCore.clientDatabaseReadThreadsLong",
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						return snapshotExecutor.getMaxThreads();
+					}
+
+					@Override
+					public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(val < 0)
+							throw new InvalidConfigValueException(l10n("clientDatabaseReadThreadsMustNotBeNegative"));
+						snapshotExecutor.setMaxThreads(val);
+					}
+
+		}, false);
+		snapshotExecutor.setMaxThreads(nodeConfig.getInt("clientDatabaseReadThreads"));
 	}
 
 	private void initUSK(ObjectContainer container) {
@@ -597,7 +670,7 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		}
 		// FIXME get rid of this.
 		if(container != null) {
-			container.commit();
+			DBCommitLock.commit(container);
 			ClientRequester.checkAll(container, clientContext);
 		}
 	}
@@ -867,7 +940,7 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 				System.err.println("Cleaning up after restart: "+job.job);
 				restartJobsQueue.removeRestartJob(job.job, job.prio, container);
 				job.job.run(container, context);
-				container.commit();
+				DBCommitLock.commit(container);
 			} catch (Throwable t) {
 				Logger.error(this, "Caught "+t+" in startup job "+job, t);
 				// Try again next time
@@ -1691,10 +1764,19 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		synchronized(this) {
 			if(killedDatabase) throw new DatabaseDisabledException();
 		}
+		if(job instanceof ReadOnlyDBJob) {
+			int queued = snapshotExecutor.queue((ReadOnlyDBJob) job, priority, checkDupes);
+			if(queued >= 0) {
+				nodeStats.reportDatabaseQueueDepth(true, queued);
+				return;
+			}
+			// Disabled, run it on the database thread.
+		}
 		if(checkDupes)
 			this.clientDatabaseExecutor.executeNoDupes(new DBJobWrapper(job), priority, ""+job);
 		else
 			this.clientDatabaseExecutor.execute(new DBJobWrapper(job), priority, ""+job);
+		nodeStats.reportDatabaseQueueDepth(false, clientDatabaseExecutor.getTotalQueueSize());
 	}
 
 	private boolean killedDatabase = false;
@@ -1710,12 +1792,15 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		DBJobWrapper(DBJob job) {
 			this.job = job;
 			if(job == null) throw new NullPointerException();
+			queuedTime = System.currentTimeMillis();
 		}
 
 		final DBJob job;
+		final long queuedTime;
 
 		public void run() {
 
+			nodeStats.reportDatabaseJobWait(toString(), System.currentTimeMillis() - queuedTime);
 			try {
 				synchronized(NodeClientCore.this) {
 					if(killedDatabase) {
@@ -1756,7 +1841,7 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 					return;
 				} else if(commit) {
 					persistentTempBucketFactory.preCommit(node.db);
-					node.db.commit();
+					DBCommitLock.commit(node.db);
 					synchronized(NodeClientCore.this) {
 						lastCommitted = System.currentTimeMillis();
 					}
@@ -1844,25 +1929,38 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 		if(clientDatabaseExecutor.onThread()) {
 			job.run(node.db, clientContext);
 		} else {
-			final MutableBoolean finished = new MutableBoolean();
-			queue(new DBJob() {
+			BlockingJob wrapper;
+			if(job instanceof ReadOnlyDBJob)
+				wrapper = new ReadOnlyBlockingJob(job);
+			else
+				wrapper = new BlockingJob(job);
+			queue(wrapper, priority, false);
+			wrapper.waitForFinish();
+		}
+	}
 
-				public boolean run(ObjectContainer container, ClientContext context) {
-					try {
-						return job.run(container, context);
-					} finally {
-						synchronized(finished) {
-							finished.value = true;
-							finished.notifyAll();
-						}
-					}
-				}
+	/** Runs a job and tells runBlocking() when it has finished. */
+	private static class BlockingJob implements DBJob {
 
-				public String toString() {
-					return job.toString();
+		private final DBJob job;
+		private final MutableBoolean finished = new MutableBoolean();
+
+		BlockingJob(DBJob job) {
+			this.job = job;
+		}
+
+		public boolean run(ObjectContainer container, ClientContext context) {
+			try {
+				return job.run(container, context);
+			} finally {
+				synchronized(finished) {
+					finished.value = true;
+					finished.notifyAll();
 				}
+			}
+		}
 
-			}, priority, false);
+		void waitForFinish() {
 			synchronized(finished) {
 				while(!finished.value) {
 					try {
@@ -1873,6 +1971,21 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 				}
 			}
 		}
+
+		@Override
+		public String toString() {
+			return job.toString();
+		}
+
+	}
+
+	/** So that a blocking read-only job still goes to the snapshot threads. */
+	private static class ReadOnlyBlockingJob extends BlockingJob implements ReadOnlyDBJob {
+
+		ReadOnlyBlockingJob(DBJob job) {
+			super(job);
+		}
+
 	}
 
 	public boolean objectCanNew(ObjectContainer container) {
@@ -1893,7 +2006,7 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 			if(killedDatabase) return;
 		}
 		persistentTempBucketFactory.preCommit(node.db);
-		node.db.commit();
+		DBCommitLock.commit(node.db);
 		synchronized(NodeClientCore.this) {
 			lastCommitted = System.currentTimeMillis();
 		}
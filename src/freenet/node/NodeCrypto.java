@@ -32,6 +32,7 @@ import freenet.crypt.ciphers.Rijndael;
 import freenet.io.AddressTracker.Status;
 import freenet.io.comm.FreenetInetAddress;
 import freenet.io.comm.IncomingPacketFilterImpl;
+import freenet.io.comm.NIOUdpSocketHandler;
 import freenet.io.comm.Peer;
 import freenet.io.comm.UdpSocketHandler;
 import freenet.keys.FreenetURI;
@@ -127,7 +128,7 @@ public class NodeCrypto {
 			for(int i=0;i<200000;i++) {
 				int portNo = 1024 + random.nextInt(65535-1024);
 				try {
-					u = new UdpSocketHandler(portNo, bindto.getAddress(), node, startupTime, getTitle(portNo), node.collector);
+					u = createSocket(portNo, bindto, startupTime);
 					port = u.getPortNumber();
 					break;
 				} catch (Exception e) {
@@ -141,7 +142,7 @@ public class NodeCrypto {
 				throw new NodeInitException(NodeInitException.EXIT_NO_AVAILABLE_UDP_PORTS, "Could not find an available UDP port number for FNP (none specified)");
 		} else {
 			try {
-				u = new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+				u = createSocket(port, bindto, startupTime);
 			} catch (Exception e) {
 				Logger.error(this, "Caught "+e, e);
 				System.err.println(e);
@@ -181,6 +182,12 @@ public class NodeCrypto {
 		}
 	}
 
+	private UdpSocketHandler createSocket(int port, FreenetInetAddress bindto, long startupTime) throws IOException {
+		if(config.useNIO())
+			return new NIOUdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+		return new UdpSocketHandler(port, bindto.getAddress(), node, startupTime, getTitle(port), node.collector);
+	}
+
 	private String getTitle(int port) {
 		// FIXME l10n
 		return "UDP " + (isOpennet ? "Opennet " : "Darknet ") + "port " + port;
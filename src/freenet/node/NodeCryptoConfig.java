@@ -55,6 +55,9 @@ public class NodeCryptoConfig {
 	/** If false we won't make any effort do disguise the length of packets */
 	private boolean paddDataPackets;
 	
+	/** If true, use NIOUdpSocketHandler rather than UdpSocketHandler */
+	private boolean useNIO;
+	
 	NodeCryptoConfig(SubConfig config, int sortOrder, boolean isOpennet, SecurityLevels securityLevels) throws NodeInitException {
 		config.register("listenPort", -1 /* means random */, sortOrder++, true, true,
 				isOpennet ? "Node.opennetPort" : "Node.port", 
@@ -240,6 +243,27 @@ public class NodeCryptoConfig {
 		});
 		
 		paddDataPackets = config.getBoolean("paddDataPackets");
+		
+		config.register("useNIO", false, sortOrder++, true, false, "Node.useNIO", "Node.useNIOLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				synchronized(NodeCryptoConfig.this) {
+					return useNIO;
+				}
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if (val.equals(get()))
+					return;
+				synchronized(NodeCryptoConfig.this) {
+					useNIO = val;
+				}
+				throw new NodeNeedRestartException("Socket type cannot be changed on the fly");
+			}
+		});
+		useNIO = config.getBoolean("useNIO");
 		securityLevels.addNetworkThreatLevelListener(new SecurityLevelListener<NETWORK_THREAT_LEVEL>() {
 
 			public void onChange(NETWORK_THREAT_LEVEL oldLevel, NETWORK_THREAT_LEVEL newLevel) {
@@ -296,6 +320,10 @@ public class NodeCryptoConfig {
 		}
 	}
 
+	public synchronized boolean useNIO() {
+		return useNIO;
+	}
+	
 	public synchronized FreenetInetAddress getBindTo() {
 		return bindTo;
 	}
@@ -486,7 +486,9 @@ public class NodeDispatcher implements Dispatcher, Runnable {
 		// Object allocation is pretty cheap in modern Java anyway...
 		// If we do reuse it, call reset().
 		BlockMetadata meta = new BlockMetadata();
+		long lookupStart = System.currentTimeMillis();
 		KeyBlock block = node.fetch(key, false, false, false, false, meta);
+		tag.traceStoreLookup(lookupStart);
 		if(block != null)
 			tag.setNotRoutedOnwards();
 		
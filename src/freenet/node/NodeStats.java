@@ -8,6 +8,7 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.TreeMap;
 
 import freenet.config.InvalidConfigValueException;
 import freenet.config.NodeNeedRestartException;
@@ -26,6 +27,7 @@ import freenet.node.stats.StoreLocationStats;
 import freenet.store.CHKStore;
 import freenet.support.HTMLNode;
 import freenet.support.Histogram2;
+import freenet.support.LatencyHistogram;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
@@ -191,6 +193,9 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 	final public Histogram2 chkSuccessRatesByLocation;
 
+	/** Latency of each stage of requests, see UIDTag. */
+	final public RequestLatencyStats requestLatency;
+
 	private long previous_input_stat;
 	private long previous_output_stat;
 	private long previous_io_stat_time;
@@ -262,6 +267,12 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 	// Database stats
 	final Hashtable<String, TrivialRunningAverage> avgDatabaseJobExecutionTimes;
+	/** How long each type of database job waited in the queue before it started, in milliseconds. */
+	final Hashtable<String, LatencyHistogram> databaseJobWaitTimes;
+	/** The number of jobs queued on the database thread, each time we queue one. */
+	public final LatencyHistogram databaseQueueDepth;
+	/** The number of read-only jobs queued for the snapshot threads, each time we queue one. */
+	public final LatencyHistogram databaseSnapshotQueueDepth;
 	public final DecayingKeyspaceAverage avgClientCacheCHKLocation;
 	public final DecayingKeyspaceAverage avgCacheCHKSuccess;
 	public final DecayingKeyspaceAverage avgSlashdotCacheCHKSucess;
@@ -505,6 +516,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 
 		chkSuccessRatesByLocation = new Histogram2(10, 1.0);
 
+		requestLatency = new RequestLatencyStats();
+
 		requestOutputThrottle =
 			new TokenBucket(Math.max(obwLimit*60, 32768*20), (int)((1000L*1000L*1000L) / (obwLimit)), 0);
 		requestInputThrottle =
@@ -544,6 +557,9 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		avgTransferBackoffTimesBulk = new Hashtable<String, TrivialRunningAverage>();
 
 		avgDatabaseJobExecutionTimes = new Hashtable<String, TrivialRunningAverage>();
+		databaseJobWaitTimes = new Hashtable<String, LatencyHistogram>();
+		databaseQueueDepth = new LatencyHistogram();
+		databaseSnapshotQueueDepth = new LatencyHistogram();
 	}
 
 	protected String l10n(String key) {
@@ -878,17 +894,8 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		}
 
 		public double calculate(boolean ignoreLocalVsRemoteBandwidthLiability, boolean input) {
-			
-			if(input)
-				return this.expectedTransfersInCHK * (32768+256) +
-					this.expectedTransfersInSSK * (2048+256) +
-					this.expectedTransfersOutCHK * TRANSFER_OUT_IN_OVERHEAD +
-					this.expectedTransfersOutSSK * TRANSFER_OUT_IN_OVERHEAD;
-			else
-				return this.expectedTransfersOutCHK * (32768+256) +
-					this.expectedTransfersOutSSK * (2048+256) +
-					expectedTransfersInCHK * TRANSFER_IN_OUT_OVERHEAD +
-					expectedTransfersInSSK * TRANSFER_IN_OUT_OVERHEAD;
+			return bandwidthLiability(expectedTransfersInCHK, expectedTransfersInSSK,
+					expectedTransfersOutCHK, expectedTransfersOutSSK, input);
 		}
 
 		/**
@@ -908,6 +915,22 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 	 * etc. */
 	static final int TRANSFER_OUT_IN_OVERHEAD = 256;
 	
+	/** @return The bytes we will need to send (or receive if input is true) if all these 
+	 * transfers succeed. */
+	static double bandwidthLiability(int expectedTransfersInCHK, int expectedTransfersInSSK,
+			int expectedTransfersOutCHK, int expectedTransfersOutSSK, boolean input) {
+		if(input)
+			return expectedTransfersInCHK * (32768+256) +
+				expectedTransfersInSSK * (2048+256) +
+				expectedTransfersOutCHK * TRANSFER_OUT_IN_OVERHEAD +
+				expectedTransfersOutSSK * TRANSFER_OUT_IN_OVERHEAD;
+		else
+			return expectedTransfersOutCHK * (32768+256) +
+				expectedTransfersOutSSK * (2048+256) +
+				expectedTransfersInCHK * TRANSFER_IN_OUT_OVERHEAD +
+				expectedTransfersInSSK * TRANSFER_IN_OUT_OVERHEAD;
+	}
+	
 	static class RejectReason {
 		public final String name;
 		/** If true, rejected because of preemptive bandwidth limiting, i.e. "soft", at least somewhat predictable, can be retried.
@@ -1765,6 +1788,20 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		fs.put("blockTransferPSuccessRT", blockTransferPSuccessRT.currentValue());
 		fs.put("blockTransferFailTimeout", blockTransferFailTimeout.currentValue());
 
+		SimpleFieldSet latency = requestLatency.exportFieldSet();
+		if(!latency.isEmpty())
+			fs.put("requestLatency", latency);
+
+		SimpleFieldSet databaseJobWait = new SimpleFieldSet(true);
+		for(Map.Entry<String, LatencyHistogram> entry : getDatabaseJobWaitStatistics().entrySet())
+			entry.getValue().exportFieldSet(databaseJobWait, entry.getKey() + ".");
+		if(!databaseJobWait.isEmpty())
+			fs.put("databaseJobWait", databaseJobWait);
+		if(databaseQueueDepth.getCount() > 0)
+			databaseQueueDepth.exportFieldSet(fs, "databaseQueueDepth.");
+		if(databaseSnapshotQueueDepth.getCount() > 0)
+			databaseSnapshotQueueDepth.exportFieldSet(fs, "databaseSnapshotQueueDepth.");
+
 		return fs;
 	}
 
@@ -2572,6 +2609,30 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		avg.report(executionTimeMiliSeconds);
 	}
 
+	/** Report how long a database job waited in the queue before it started. */
+	public void reportDatabaseJobWait(String jobType, long waitMilliSeconds) {
+		jobType = sanitizeDBJobType(jobType);
+
+		LatencyHistogram histogram;
+
+		synchronized(databaseJobWaitTimes) {
+			histogram = databaseJobWaitTimes.get(jobType);
+
+			if(histogram == null) {
+				histogram = new LatencyHistogram();
+				databaseJobWaitTimes.put(jobType, histogram);
+			}
+		}
+
+		histogram.report(waitMilliSeconds);
+	}
+
+	/** Report the number of jobs queued, including one we have just queued.
+	 * @param snapshot True for the read-only snapshot threads, false for the database thread. */
+	public void reportDatabaseQueueDepth(boolean snapshot, int depth) {
+		(snapshot ? databaseSnapshotQueueDepth : databaseQueueDepth).report(depth);
+	}
+
 	public void reportRoutingBackoff(String backoffType, long backoffTimeMilliSeconds, boolean realtime) {
 		TrivialRunningAverage avg;
 
@@ -2964,6 +3025,13 @@ public class NodeStats implements Persistable, BlockTimeCallback {
 		return entries;
 	}
 
+	/** @return The queue wait time histograms by job type, sorted by type. */
+	public Map<String, LatencyHistogram> getDatabaseJobWaitStatistics() {
+		synchronized(databaseJobWaitTimes) {
+			return new TreeMap<String, LatencyHistogram>(databaseJobWaitTimes);
+		}
+	}
+
 	public StringCounter getDatabaseJobQueueStatistics() {
 		final StringCounter result = new StringCounter();
 
@@ -0,0 +1,158 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Snapshot of the locations of the connected peers, and of their peers (FOAF locations), sorted
+ * by location, so that routing can visit the peers in order of distance from the target and
+ * stop as soon as it has found one it can route to, instead of computing the distance to every
+ * location of every peer.
+ *
+ * Immutable: PeerManager builds a new one when the connected peers change or when any peer's
+ * locations change. It is only a hint for the order in which to look at peers: closerPeer()
+ * still checks each peer it visits against its current location.
+ */
+class PeerLocationIndex {
+
+	/** The peers, in the same order as the connectedPeers array this was built from. */
+	final PeerNode[] peers;
+	/** PeerManager's location version when this was built. */
+	final int version;
+	/** All the locations, sorted. */
+	private final double[] locs;
+	/** The index in peers of the peer each location belongs to. */
+	private final int[] owners;
+
+	PeerLocationIndex(PeerNode[] peers, int version) {
+		this(peers, version, getLocations(peers));
+	}
+
+	/**
+	 * @param locations For each peer, its locations: its own and those of its peers. Invalid
+	 * locations are ignored.
+	 */
+	PeerLocationIndex(PeerNode[] peers, int version, double[][] locations) {
+		this.peers = peers;
+		this.version = version;
+		int count = 0;
+		for(double[] l : locations)
+			count += l.length;
+		final double[] unsorted = new double[count];
+		int[] unsortedOwners = new int[count];
+		Integer[] order = new Integer[count];
+		int x = 0;
+		for(int i = 0; i < locations.length; i++) {
+			for(double l : locations[i]) {
+				if(l < 0.0 || l > 1.0) continue;
+				unsorted[x] = l;
+				unsortedOwners[x] = i;
+				order[x] = x;
+				x++;
+			}
+		}
+		count = x;
+		Arrays.sort(order, 0, count, new Comparator<Integer>() {
+
+			public int compare(Integer a, Integer b) {
+				return Double.compare(unsorted[a], unsorted[b]);
+			}
+
+		});
+		locs = new double[count];
+		owners = new int[count];
+		for(int i = 0; i < count; i++) {
+			locs[i] = unsorted[order[i]];
+			owners[i] = unsortedOwners[order[i]];
+		}
+	}
+
+	private static double[][] getLocations(PeerNode[] peers) {
+		double[][] locations = new double[peers.length][];
+		for(int i = 0; i < peers.length; i++) {
+			PeerNode p = peers[i];
+			double loc = p.getLocation();
+			double[] peersLocation = p.getPeersLocation();
+			if(peersLocation == null) {
+				locations[i] = new double[] { loc };
+			} else {
+				locations[i] = new double[peersLocation.length + 1];
+				locations[i][0] = loc;
+				System.arraycopy(peersLocation, 0, locations[i], 1, peersLocation.length);
+			}
+		}
+		return locations;
+	}
+
+	/** @return The number of locations indexed. */
+	int size() {
+		return locs.length;
+	}
+
+	/** Start a walk outwards from the target. */
+	Walk walk(double target) {
+		return new Walk(target);
+	}
+
+	/**
+	 * Visits every location in order of increasing distance from the target. A peer is returned
+	 * once for each of its locations, first for the one closest to the target.
+	 */
+	class Walk {
+
+		private final double target;
+		/** Next location below the target, going down, wrapping around 0. */
+		private int lo;
+		/** Next location above the target, going up, wrapping around 1. */
+		private int hi;
+		private int remaining;
+		private double distance;
+
+		private Walk(double target) {
+			this.target = target;
+			int n = locs.length;
+			remaining = n;
+			if(n == 0) return;
+			int i = Arrays.binarySearch(locs, target);
+			if(i < 0) i = -i - 1;
+			hi = i % n;
+			lo = (hi + n - 1) % n;
+		}
+
+		/**
+		 * The locations not yet visited are a contiguous arc on the far side of the circle from
+		 * the target, so the closest of them is at one of its two ends.
+		 * @return The index in peers of the owner of the next closest location, or -1 if all
+		 * the locations have been visited.
+		 */
+		int next() {
+			if(remaining == 0) return -1;
+			remaining--;
+			int n = locs.length;
+			double dHi = Location.distance(locs[hi], target);
+			double dLo = Location.distance(locs[lo], target);
+			int i;
+			if(dHi <= dLo) {
+				i = hi;
+				distance = dHi;
+				hi = (hi + 1) % n;
+			} else {
+				i = lo;
+				distance = dLo;
+				lo = (lo + n - 1) % n;
+			}
+			return owners[i];
+		}
+
+		/** @return The distance from the target of the location last returned by next(). No
+		 * peer not yet returned has a location closer than this. */
+		double distance() {
+			return distance;
+		}
+
+	}
+
+}
@@ -15,12 +15,14 @@ import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.io.comm.AsyncMessageCallback;
 import freenet.io.comm.ByteCounter;
@@ -127,6 +129,11 @@ public class PeerManager {
 	public static final int PEER_NODE_STATUS_DISCONNECTING = 13;
 	public static final int PEER_NODE_STATUS_ROUTING_DISABLED = 14;
 	
+	/** Incremented whenever a peer's location or its peers' locations change. */
+	private final AtomicInteger locationVersion = new AtomicInteger();
+	/** Locations of connectedPeers, sorted, for closerPeer(). Rebuilt when it is stale. */
+	private volatile PeerLocationIndex locationIndex;
+
 	/** The list of listeners that needs to be notified when peers' statuses changed*/
 	private List<PeerStatusChangeListener> listeners=new CopyOnWriteArrayList<PeerStatusChangeListener>();
 
@@ -878,6 +885,28 @@ public class PeerManager {
 		return closerPeer(pn, routedTo, loc, ignoreSelf, calculateMisrouting, minVersion, addUnpickedLocsTo, 2.0, key, outgoingHTL, ignoreBackoffUnder, isLocal, realTime);
 	}
 
+	/**
+	 * Called after a peer's location or its peers' locations have changed, so that the next
+	 * closerPeer() rebuilds the location index.
+	 */
+	void locationsChanged() {
+		locationVersion.incrementAndGet();
+	}
+
+	/** @return The location index for this connectedPeers array, rebuilding it if necessary. */
+	private PeerLocationIndex getLocationIndex(PeerNode[] peers) {
+		// Read the version before reading any locations.
+		int version = locationVersion.get();
+		PeerLocationIndex index = locationIndex;
+		if(index != null && index.peers == peers && index.version == version)
+			return index;
+		index = new PeerLocationIndex(peers, version);
+		if(logMINOR)
+			Logger.minor(this, "Rebuilt location index: "+peers.length+" peers, "+index.size()+" locations");
+		locationIndex = index;
+		return index;
+	}
+
 	/**
 	 * Find the peer, if any, which is closer to the target location than we are, and is not included in the provided set.
 	 * If ignoreSelf==false, and we are closer to the target than any peers, this function returns null.
@@ -949,14 +978,48 @@ public class PeerManager {
 		long now = System.currentTimeMillis();
 		int count = 0;
 		
-		double[] selectionRates = new double[peers.length];
+		// Visit the peers in order of distance from the target, so we can stop once we have
+		// found the closest peer we can route to. We need to see all of them to list the
+		// locations we didn't pick.
+		PeerLocationIndex index = null;
+		PeerLocationIndex.Walk walk = null;
+		BitSet visited = null;
+		if(addUnpickedLocsTo == null) {
+			index = getLocationIndex(peers);
+			walk = index.walk(target);
+			visited = new BitSet(peers.length);
+		}
+		
+		double[] selectionRates = null;
 		double totalSelectionRate = 0.0;
-		for(int i=0;i<peers.length;i++) {
-			selectionRates[i] = peers[i].selectionRate();
-			totalSelectionRate += selectionRates[i];
+		// selectionRate / totalSelectionRate is a fraction, so it can never exceed a
+		// SELECTION_PERCENTAGE_WARNING of 1 or more, and the hack never skips a peer.
+		// Don't compute the rates for every peer when walking the index.
+		if(walk == null || PeerNode.SELECTION_PERCENTAGE_WARNING < 1) {
+			selectionRates = new double[peers.length];
+			for(int i=0;i<peers.length;i++) {
+				selectionRates[i] = peers[i].selectionRate();
+				totalSelectionRate += selectionRates[i];
+			}
 		}
 		boolean enableFOAFMitigationHack = (peers.length >= PeerNode.SELECTION_MIN_PEERS) && (totalSelectionRate > 0.0);
-		for(int i = 0; i < peers.length; i++) {
+		int i = -1;
+		while(true) {
+			if(walk == null) {
+				if(++i == peers.length) break;
+			} else {
+				i = walk.next();
+				if(i == -1) break;
+				// No peer we haven't visited yet is closer than this.
+				double minDiff = walk.distance();
+				if(minDiff > maxDistance || ((!ignoreSelf) && minDiff > maxDiff))
+					break;
+				if(closestNotBackedOff != null && minDiff > closestNotBackedOffDistance + Double.MIN_VALUE*2)
+					break;
+				// Already visited via a closer location.
+				if(visited.get(i)) continue;
+				visited.set(i);
+			}
 			PeerNode p = peers[i];
 			if(routedTo.contains(p)) {
 				if(logMINOR)
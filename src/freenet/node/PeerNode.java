@@ -369,6 +369,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode {
 	/** A WeakReference to this object. Can be taken whenever a node object needs to refer to this object for a
 	 * long time, but without preventing it from being GC'ed. */
 	final WeakReference<PeerNode> myRef;
+	/** Counts of the requests we are running for this node, by category. See UIDTracker. */
+	final UIDTracker.RunningCounts runningRequestCounts = new UIDTracker.RunningCounts();
 	/** The node is being disconnected, but it may take a while. */
 	private boolean disconnecting;
 	/** When did we last disconnect? Not Disconnected because a discrete event */
@@ -1803,6 +1805,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode {
 			currentPeersLocation = newLocs;
 			locSetTime = System.currentTimeMillis();
 		}
+		node.peers.locationsChanged();
 		node.peers.writePeers();
 		setPeerNodeStatus(System.currentTimeMillis());
 	}
@@ -2672,6 +2675,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode {
 					changedAnything = true;
 					currentLocation = newLoc;
 					locSetTime = System.currentTimeMillis();
+					node.peers.locationsChanged();
 				}
 			}
 		}
@@ -225,6 +225,7 @@ public class RequestHandler implements PrioRunnable, ByteCounter, RequestSender.
 			source.sendAsync(df, null, this);
 
 			PartiallyReceivedBlock prb = rs.getPRB();
+			final long sendStart = System.currentTimeMillis();
 			bt =
 				new BlockTransmitter(node.usm, node.getTicker(), source, uid, prb, this, new ReceiverAbortHandler() {
 
@@ -282,6 +283,7 @@ public class RequestHandler implements PrioRunnable, ByteCounter, RequestSender.
 				new BlockTransmitterCompletion() {
 
 					public void blockTransferFinished(boolean success) {
+						if(success) tag.traceSent(sendStart);
 						synchronized(RequestHandler.this) {
 							transferCompleted = true;
 							transferSuccess = success;
@@ -585,12 +587,14 @@ public class RequestHandler implements PrioRunnable, ByteCounter, RequestSender.
 			Message df = DMT.createFNPCHKDataFound(uid, block.getRawHeaders());
 			PartiallyReceivedBlock prb =
 				new PartiallyReceivedBlock(Node.PACKETS_IN_BLOCK, Node.PACKET_SIZE, block.getRawData());
+			final long sendStart = System.currentTimeMillis();
 			BlockTransmitter bt =
 				new BlockTransmitter(node.usm, node.getTicker(), source, uid, prb, this, BlockTransmitter.NEVER_CASCADE,
 						new BlockTransmitterCompletion() {
 
 					public void blockTransferFinished(boolean success) {
 						if(success) {
+							tag.traceSent(sendStart);
 							// for byte logging
 							status = RequestSender.SUCCESS;
 							// We've fetched it from our datastore, so there won't be a downstream noderef.
@@ -0,0 +1,65 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import freenet.support.LatencyHistogram;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Latency histograms for each stage of a request, by CHK/SSK, realtime/bulk and local/remote,
+ * so we can see which stage is slow when the node is under load. The stages are timed on the
+ * request's UIDTag, see the trace*() methods there. All times are in milliseconds.
+ */
+public class RequestLatencyStats {
+
+	public enum Stage {
+		/** Looking the key up in the datastore and the client cache. */
+		STORE_LOOKUP,
+		/** From sending the request to a peer to the peer accepting it. */
+		ACCEPT,
+		/** From the start of the request to the first packet of the data arriving. */
+		FIRST_DATA,
+		/** Receiving the data, from the first packet to the last. */
+		RECEIVE,
+		/** Sending the data to the peer which asked us for it. */
+		SEND
+	}
+
+	private final LatencyHistogram[] histograms;
+
+	public RequestLatencyStats() {
+		histograms = new LatencyHistogram[Stage.values().length * 8];
+		for(int i = 0; i < histograms.length; i++)
+			histograms[i] = new LatencyHistogram();
+	}
+
+	public LatencyHistogram get(Stage stage, boolean isSSK, boolean realTime, boolean local) {
+		return histograms[stage.ordinal() * 8 + (isSSK ? 4 : 0) + (realTime ? 2 : 0) + (local ? 1 : 0)];
+	}
+
+	public void report(Stage stage, boolean isSSK, boolean realTime, boolean local, long time) {
+		get(stage, isSSK, realTime, local).report(time);
+	}
+
+	public static String name(boolean isSSK, boolean realTime, boolean local) {
+		return (isSSK ? "SSK" : "CHK") + (realTime ? "RealTime" : "Bulk") + (local ? "Local" : "Remote");
+	}
+
+	/** Keys are e.g. CHKBulkRemote.ACCEPT.Median. Only histograms with data are included. */
+	public SimpleFieldSet exportFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		for(int i = 0; i < 8; i++) {
+			boolean isSSK = (i & 4) != 0;
+			boolean realTime = (i & 2) != 0;
+			boolean local = (i & 1) != 0;
+			for(Stage stage : Stage.values()) {
+				LatencyHistogram histogram = get(stage, isSSK, realTime, local);
+				if(histogram.getCount() == 0) continue;
+				histogram.exportFieldSet(fs, name(isSSK, realTime, local) + "." + stage.name() + ".");
+			}
+		}
+		return fs;
+	}
+
+}
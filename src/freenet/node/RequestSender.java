@@ -873,7 +873,7 @@ loadWaiterLoop:
         		}
         		fireCHKTransferBegins();
 				
-        		BlockReceiver br = new BlockReceiver(node.usm, pn, uid, prb, this, node.getTicker(), true, realTimeFlag, myTimeoutHandler);
+        		final BlockReceiver br = new BlockReceiver(node.usm, pn, uid, prb, this, node.getTicker(), true, realTimeFlag, myTimeoutHandler);
         		
        			if(logMINOR) Logger.minor(this, "Receiving data");
        			final PeerNode p = pn;
@@ -884,6 +884,7 @@ loadWaiterLoop:
         				synchronized(RequestSender.this) {
         					transferringFrom = null;
         				}
+        				origTag.traceReceived(br.getFirstPacketTime());
         				node.removeTransferringSender((NodeCHK)key, RequestSender.this);
                 		try {
 	                		// Received data
@@ -1023,6 +1024,11 @@ loadWaiterLoop:
     			return DO.NEXT_PEER;
     		}
     		
+    		long sent;
+    		synchronized(this) {
+    			sent = timeSentRequest;
+    		}
+    		origTag.traceAccepted(sent);
     		return DO.FINISHED;
     		
     	}
@@ -1284,6 +1290,7 @@ loadWaiterLoop:
     			try {
     				long tEnd = System.currentTimeMillis();
     				transferTime = tEnd - tStart;
+    				origTag.traceReceived(br.getFirstPacketTime());
     				synchronized(RequestSender.this) {
     					transferringFrom = null;
     					if(RequestSender.this.prb == null || !RequestSender.this.prb.allReceivedAndNotAborted())
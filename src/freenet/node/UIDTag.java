@@ -3,6 +3,7 @@ package freenet.node;
 import java.lang.ref.WeakReference;
 import java.util.HashSet;
 
+import freenet.node.RequestLatencyStats.Stage;
 import freenet.support.Logger;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger.LogLevel;
@@ -50,6 +51,23 @@ public abstract class UIDTag {
 	protected boolean noRecordUnlock;
 	private boolean hasUnlocked;
 	
+	// Load accounting. See UIDTracker.
+	/** The tracker counting us, or null if we are not counted yet or any more. */
+	private UIDTracker tracker;
+	/** Set once we have been counted, so we are never counted again. */
+	private boolean counted;
+	private int countedCategory;
+	private int countedState;
+	private UIDTracker.RunningCounts countedSource;
+	
+	// Tracing. See RequestLatencyStats. When each stage finished, from currentTimeMillis(),
+	// or 0 if it hasn't happened (yet).
+	private long storeLookupTime;
+	private long acceptedTime;
+	private long firstDataTime;
+	private long receivedTime;
+	private long sentTime;
+	
 	UIDTag(PeerNode source, boolean realTimeFlag, long uid, Node node) {
 		createdTime = System.currentTimeMillis();
 		this.sourceRef = source == null ? null : source.myRef;
@@ -153,6 +171,48 @@ public abstract class UIDTag {
 	
 	public synchronized void setNotRoutedOnwards() {
 		this.notRoutedOnwards = true;
+		updateCounts();
+	}
+	
+	/** @return The state which determines our expected transfers. See UIDTracker. */
+	synchronized int loadState() {
+		int state = 0;
+		if(isLocal()) state |= UIDTracker.STATE_LOCAL;
+		if(notRoutedOnwards) state |= UIDTracker.STATE_NOT_ROUTED_ONWARDS;
+		return state;
+	}
+	
+	/** Called by UIDTracker when the tag is registered. */
+	synchronized void startCounting(UIDTracker tracker, int category) {
+		if(counted) return;
+		counted = true;
+		this.tracker = tracker;
+		countedCategory = category;
+		countedState = loadState();
+		countedSource = tracker.countsFor(getSource());
+		tracker.count(countedSource, countedCategory, countedState, 1);
+	}
+	
+	/** Called by UIDTracker when the tag is unregistered. */
+	synchronized void stopCounting() {
+		counted = true;
+		if(tracker == null) return;
+		tracker.count(countedSource, countedCategory, countedState, -1);
+		tracker = null;
+		countedSource = null;
+	}
+	
+	/** Move ourself in the tracker's counts if our state or source has changed. Not atomic, 
+	 * so a concurrent reader may briefly not see us, but the totals are never lost. */
+	private synchronized void updateCounts() {
+		if(tracker == null) return;
+		int state = loadState();
+		UIDTracker.RunningCounts source = tracker.countsFor(getSource());
+		if(state == countedState && source == countedSource) return;
+		tracker.count(countedSource, countedCategory, countedState, -1);
+		tracker.count(source, countedCategory, state, 1);
+		countedState = state;
+		countedSource = source;
 	}
 
 	private boolean reassigned;
@@ -169,6 +229,7 @@ public abstract class UIDTag {
 	public synchronized void reassignToSelf() {
 		if(wasLocal) return;
 		reassigned = true;
+		updateCounts();
 	}
 	
 	/** Was the request originated locally? This returns the original answer: It is not
@@ -266,6 +327,62 @@ public abstract class UIDTag {
 		unlockHandler(false);
 	}
 
+	/** Called after looking up the key in the datastore.
+	 * @param startTime When we started the lookup. */
+	public void traceStoreLookup(long startTime) {
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			storeLookupTime = now;
+		}
+		reportLatency(Stage.STORE_LOOKUP, now - startTime);
+	}
+	
+	/** Called when a peer accepts the request. If we have to route to more than one peer,
+	 * this is called for each one that accepts.
+	 * @param sentTime When we sent the request to the peer. */
+	public void traceAccepted(long sentTime) {
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			acceptedTime = now;
+		}
+		reportLatency(Stage.ACCEPT, now - sentTime);
+	}
+	
+	/** Called when we have received the data.
+	 * @param firstPacketTime When the first packet of the data arrived, or 0 if we
+	 * didn't need any, e.g. because the transfer was coalesced with another. */
+	public void traceReceived(long firstPacketTime) {
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			receivedTime = now;
+			if(firstPacketTime == 0 || firstDataTime != 0) firstPacketTime = 0;
+			else firstDataTime = firstPacketTime;
+		}
+		if(firstPacketTime == 0) return;
+		reportLatency(Stage.FIRST_DATA, firstPacketTime - createdTime);
+		reportLatency(Stage.RECEIVE, now - firstPacketTime);
+	}
+	
+	/** Called when we have sent the data to the node which requested it.
+	 * @param startTime When we started sending. */
+	public void traceSent(long startTime) {
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			sentTime = now;
+		}
+		reportLatency(Stage.SEND, now - startTime);
+	}
+	
+	private void reportLatency(Stage stage, long time) {
+		if(node == null) return; // Tests
+		node.nodeStats.requestLatency.report(stage, isSSK(), realTimeFlag, wasLocal, time);
+	}
+	
+	private static void appendTrace(StringBuffer sb, String stage, long time, long createdTime) {
+		if(time == 0) return;
+		sb.append(" (").append(stage).append(" +").append(time - createdTime).append("ms)");
+	}
+
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
 		sb.append(super.toString());
@@ -281,6 +398,11 @@ public abstract class UIDTag {
 			sb.append(" (routing to ").append(currentlyRoutingTo.size()).append(")");
 		if(fetchingOfferedKeyFrom != null)
 			sb.append(" (fetch offered keys from ").append(fetchingOfferedKeyFrom.size()).append(")");
+		appendTrace(sb, "looked up", storeLookupTime, createdTime);
+		appendTrace(sb, "accepted", acceptedTime, createdTime);
+		appendTrace(sb, "first data", firstDataTime, createdTime);
+		appendTrace(sb, "received", receivedTime, createdTime);
+		appendTrace(sb, "sent", sentTime, createdTime);
 		return sb.toString();
 	}
 
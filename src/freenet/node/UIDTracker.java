@@ -0,0 +1,248 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.StripedLongHashMap;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Tracks the UIDs of all running requests, inserts and offer replies, both in one table to
+ * detect duplicates, and by category (CHK/SSK, request/insert/offer reply, local/remote,
+ * realtime/bulk) for load management.
+ *
+ * The tables are striped so that requests starting and finishing on different threads don't
+ * contend. The number of UIDs in each category, and in each load state (see UIDTag.loadState()),
+ * is kept in counters, both overall and for each source node. The tags update them when they
+ * change state, so the counts and expected transfers used by load management are O(1) to
+ * read and take no locks.
+ */
+public class UIDTracker {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Number of stripes in each table. */
+	private static final int CONCURRENCY = 16;
+
+	private static final int REQUEST = 0;
+	private static final int INSERT = 1;
+	private static final int OFFER_REPLY = 2;
+	private static final int CATEGORIES = 3 << 3;
+
+	/** Load state bit: the request is local, or has been reassigned to us. */
+	static final int STATE_LOCAL = 1;
+	/** Load state bit: the request was answered without routing it onwards. */
+	static final int STATE_NOT_ROUTED_ONWARDS = 2;
+	private static final int STATES = 4;
+
+	/** Running totals of tags by category and load state. */
+	static class RunningCounts {
+
+		private final AtomicIntegerArray counts = new AtomicIntegerArray(CATEGORIES * STATES);
+
+		void add(int category, int state, int delta) {
+			counts.addAndGet(category * STATES + state, delta);
+		}
+
+		int count(int category) {
+			int total = 0;
+			for(int state = 0; state < STATES; state++)
+				total += counts.get(category * STATES + state);
+			return total;
+		}
+
+		int expectedTransfersIn(int category, boolean ignoreLocalVsRemote, int outwardTransfersPerInsert) {
+			int total = 0;
+			for(int state = 0; state < STATES; state++)
+				total += counts.get(category * STATES + state) * UIDTracker.expectedTransfersIn(category, state, ignoreLocalVsRemote, outwardTransfersPerInsert);
+			return total;
+		}
+
+		int expectedTransfersOut(int category, boolean ignoreLocalVsRemote, int outwardTransfersPerInsert) {
+			int total = 0;
+			for(int state = 0; state < STATES; state++)
+				total += counts.get(category * STATES + state) * UIDTracker.expectedTransfersOut(category, state, ignoreLocalVsRemote, outwardTransfersPerInsert);
+			return total;
+		}
+
+	}
+
+	/** All running UIDs. */
+	private final StripedLongHashMap<UIDTag> runningUIDs;
+	/** Running UIDs by category. A UID is added here after runningUIDs and removed before it. */
+	private final StripedLongHashMap<UIDTag>[] running;
+	/** Counts of all the tags in running. */
+	private final RunningCounts totals;
+	/** Counts of the tags in running which have no source: local, or reassigned to us. */
+	private final RunningCounts fromSelf;
+
+	@SuppressWarnings("unchecked")
+	UIDTracker() {
+		runningUIDs = new StripedLongHashMap<UIDTag>(CONCURRENCY);
+		running = new StripedLongHashMap[CATEGORIES];
+		for(int i = 0; i < CATEGORIES; i++)
+			running[i] = new StripedLongHashMap<UIDTag>(CONCURRENCY);
+		totals = new RunningCounts();
+		fromSelf = new RunningCounts();
+	}
+
+	/** The expected incoming transfers for a tag. Must match expectedTransfersIn() in
+	 * RequestTag, InsertTag and OfferReplyTag. */
+	static int expectedTransfersIn(int category, int state, boolean ignoreLocalVsRemote, int outwardTransfersPerInsert) {
+		switch(category >> 3) {
+		case REQUEST:
+			return (state & STATE_NOT_ROUTED_ONWARDS) != 0 ? 0 : 1;
+		case INSERT:
+			return ((state & STATE_LOCAL) == 0 || ignoreLocalVsRemote) ? 1 : 0;
+		default:
+			return 0;
+		}
+	}
+
+	/** The expected outgoing transfers for a tag. Must match expectedTransfersOut() in
+	 * RequestTag, InsertTag and OfferReplyTag. */
+	static int expectedTransfersOut(int category, int state, boolean ignoreLocalVsRemote, int outwardTransfersPerInsert) {
+		switch(category >> 3) {
+		case REQUEST:
+			return ((state & STATE_LOCAL) == 0 || ignoreLocalVsRemote) ? 1 : 0;
+		case INSERT:
+			return (state & STATE_NOT_ROUTED_ONWARDS) != 0 ? 0 : outwardTransfersPerInsert;
+		default:
+			return 1;
+		}
+	}
+
+	/** @return The counts for tags with this source. */
+	RunningCounts countsFor(PeerNode source) {
+		return source == null ? fromSelf : source.runningRequestCounts;
+	}
+
+	/** Called by UIDTag, with the tag locked, to add or remove it from the counts. */
+	void count(RunningCounts source, int category, int state, int delta) {
+		totals.add(category, state, delta);
+		source.add(category, state, delta);
+	}
+
+	/** Offer replies are never local, so the local flag is ignored for them. */
+	static int category(boolean ssk, boolean insert, boolean offerReply, boolean local, boolean realTimeFlag) {
+		int type = offerReply ? OFFER_REPLY : (insert ? INSERT : REQUEST);
+		if(offerReply) local = false;
+		return (type << 3) | (ssk ? 4 : 0) | (local ? 2 : 0) | (realTimeFlag ? 1 : 0);
+	}
+
+	/**
+	 * Register a UID.
+	 * @return False if the UID is already running.
+	 */
+	public boolean lock(long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean realTimeFlag, UIDTag tag) {
+		if(runningUIDs.putIfAbsent(uid, tag) != null) return false; // Already present.
+		int category = category(ssk, insert, offerReply, local, realTimeFlag);
+		UIDTag old = running[category].put(uid, tag);
+		if(old != null) {
+			Logger.error(this, "Already have UID in specific map ("+ssk+","+insert+","+offerReply+","+local+") but not in general map: trying to register "+tag+" but already have "+old);
+			old.stopCounting();
+		}
+		tag.startCounting(this, category);
+		if(logMINOR) Logger.minor(this, "Locked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+totals.count(category));
+		return true;
+	}
+
+	/**
+	 * Unregister a UID.
+	 * @param canFail If false, it is an error if the UID is not registered to this tag.
+	 * @throws IllegalStateException If the UID is not registered at all and canFail is false.
+	 */
+	public void unlock(long uid, boolean ssk, boolean insert, boolean offerReply, boolean local, boolean realTimeFlag, UIDTag tag, boolean canFail) {
+		int category = category(ssk, insert, offerReply, local, realTimeFlag);
+		if(running[category].remove(uid, tag)) {
+			tag.stopCounting();
+		} else if(canFail) {
+			if(logMINOR) Logger.minor(this, "Can fail and did fail: removing "+tag+" got "+running[category].get(uid)+" for "+uid);
+		} else {
+			Logger.error(this, "Removing "+tag+" for "+uid+" returned "+running[category].get(uid));
+		}
+		if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+totals.count(category));
+
+		if(runningUIDs.remove(uid, tag)) return;
+		if(canFail) return;
+		UIDTag oldTag = runningUIDs.get(uid);
+		if(oldTag == null)
+			throw new IllegalStateException("Could not unlock "+uid+ "! : ssk="+ssk+" insert="+insert+" canFail="+canFail+" offerReply="+offerReply+" local="+local);
+		Logger.error(this, "Removing "+tag+" for "+uid+" but "+oldTag+" is registered!");
+	}
+
+	/** @return The number of running UIDs in a single category. */
+	public int count(boolean ssk, boolean insert, boolean offerReply, boolean local, boolean realTimeFlag) {
+		return totals.count(category(ssk, insert, offerReply, local, realTimeFlag));
+	}
+
+	/** @return The number of running UIDs in a category, realtime and bulk. */
+	public int count(boolean ssk, boolean insert, boolean offerReply, boolean local) {
+		return count(ssk, insert, offerReply, local, true) + count(ssk, insert, offerReply, local, false);
+	}
+
+	/** @return The number of running UIDs in a category, local and remote, realtime and bulk. */
+	public int count(boolean ssk, boolean insert, boolean offerReply) {
+		if(offerReply) return count(ssk, insert, true, false);
+		return count(ssk, insert, false, true) + count(ssk, insert, false, false);
+	}
+
+	/** @return A snapshot of the tags in a category. */
+	public ArrayList<UIDTag> getTags(boolean ssk, boolean insert, boolean offerReply, boolean local, boolean realTimeFlag) {
+		return running[category(ssk, insert, offerReply, local, realTimeFlag)].values();
+	}
+
+	public int getTotalRunningUIDs() {
+		return runningUIDs.size();
+	}
+
+	/** @return The total of all the categories. Should be the same as getTotalRunningUIDs(). */
+	public int getTotalRunningUIDsAlt() {
+		int total = 0;
+		for(int i = 0; i < CATEGORIES; i++)
+			total += totals.count(i);
+		return total;
+	}
+
+	/** @return The counts for all running tags. */
+	RunningCounts getTotals() {
+		return totals;
+	}
+
+	public void addRunningUIDs(Collection<Long> list) {
+		runningUIDs.addKeys(list);
+	}
+
+	/**
+	 * Remove tags older than the timeout from the categories, logging them. They stay in the
+	 * table of running UIDs, so the UIDs cannot be reused.
+	 */
+	void removeDeadUIDs(long timeout) {
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < CATEGORIES; i++) {
+			for(UIDTag tag : running[i].values()) {
+				if(now - tag.createdTime > timeout) {
+					tag.logStillPresent(tag.uid);
+					if(running[i].remove(tag.uid, tag))
+						tag.stopCounting();
+				}
+			}
+		}
+	}
+
+}
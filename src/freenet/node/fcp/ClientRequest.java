@@ -4,6 +4,7 @@ import com.db4o.ObjectContainer;
 
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientRequester;
+import freenet.client.async.DBCommitLock;
 import freenet.client.async.DBJob;
 import freenet.client.async.DatabaseDisabledException;
 import freenet.keys.FreenetURI;
@@ -350,7 +351,7 @@ public abstract class ClientRequest {
 		
 		if(persistenceType == PERSIST_FOREVER) {
 			container.store(this);
-			container.commit(); // commit before we send the message
+			DBCommitLock.commit(container); // commit before we send the message
 			if(logMINOR) Logger.minor(this, "COMMITTED");
 		}
 
@@ -36,6 +36,11 @@ public abstract class StoreAccessStats {
 		return (1.0 * writes() / nodeUptimeSeconds);
 	}
 
+	/** How the store accesses its files (e.g. "mmap" or "channel"), or null if not applicable. */
+	public String accessMode() {
+		return null;
+	}
+
 
 
 
@@ -0,0 +1,168 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.support.Logger;
+
+/**
+ * Memory mapped view of a store file made of fixed size slots.
+ *
+ * The file is mapped in windows. Every window is a multiple of the slot length, so a slot never
+ * spans two windows. Windows are mapped lazily and never past the end of the file, because a
+ * read-write mapping past the end would silently grow it.
+ *
+ * Slices returned by {@link #slice(long)} are only valid while the caller holds the read lock
+ * ({@link #lockRead()}). Shrinking the file takes the write lock and drops all windows first, so
+ * that nobody touches a truncated page.
+ */
+class MappedStoreFile {
+
+	private final RandomAccessFile raf;
+	private final FileChannel fc;
+	private final int slotLength;
+	private final long windowLength;
+	private final long slotsPerWindow;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Current file length as seen by the mapping. Only shrinks under the write lock. */
+	private volatile long length;
+	private volatile AtomicReferenceArray<MappedByteBuffer> windows;
+
+	/**
+	 * @param slotLength
+	 *            Length of a single slot.
+	 * @param maxWindowLength
+	 *            Maximum size of a single mapping. Rounded down to a multiple of slotLength.
+	 */
+	MappedStoreFile(RandomAccessFile raf, int slotLength, int maxWindowLength) throws IOException {
+		if(maxWindowLength < slotLength) throw new IllegalArgumentException("Window smaller than slot");
+		this.raf = raf;
+		this.fc = raf.getChannel();
+		this.slotLength = slotLength;
+		this.slotsPerWindow = maxWindowLength / slotLength;
+		this.windowLength = slotsPerWindow * slotLength;
+		this.length = fc.size();
+		this.windows = new AtomicReferenceArray<MappedByteBuffer>(windowCount(length));
+	}
+
+	private int windowCount(long len) {
+		return (int) ((len + windowLength - 1) / windowLength);
+	}
+
+	void lockRead() {
+		lock.readLock().lock();
+	}
+
+	void unlockRead() {
+		lock.readLock().unlock();
+	}
+
+	/**
+	 * Get a view of a single slot. No data is copied. Caller must hold the read lock.
+	 *
+	 * @throws EOFException
+	 *             If the slot is beyond the end of the file.
+	 * @throws IOException
+	 *             If the window cannot be mapped, e.g. address space exhausted on a 32-bit JVM.
+	 */
+	ByteBuffer slice(long slot) throws IOException {
+		long end = (slot + 1) * slotLength;
+		if(end > length) {
+			grow();
+			if(end > length) throw new EOFException();
+		}
+		int idx = (int) (slot / slotsPerWindow);
+		int off = (int) ((slot % slotsPerWindow) * slotLength);
+		MappedByteBuffer window = windows.get(idx);
+		if(window == null || window.capacity() < off + slotLength)
+			window = map(idx);
+		ByteBuffer buf = window.duplicate();
+		buf.position(off);
+		buf.limit(off + slotLength);
+		return buf.slice();
+	}
+
+	/** The file may have been extended through the channel, e.g. by preallocation. */
+	private synchronized void grow() throws IOException {
+		long size = fc.size();
+		if(size <= length) return;
+		int count = windowCount(size);
+		if(count > windows.length()) {
+			AtomicReferenceArray<MappedByteBuffer> newWindows = new AtomicReferenceArray<MappedByteBuffer>(count);
+			for(int i = 0; i < windows.length(); i++)
+				newWindows.set(i, windows.get(i));
+			windows = newWindows;
+		}
+		length = size;
+	}
+
+	private synchronized MappedByteBuffer map(int idx) throws IOException {
+		MappedByteBuffer window = windows.get(idx);
+		long start = idx * windowLength;
+		long size = Math.min(windowLength, length - start);
+		size -= size % slotLength;
+		if(window != null && window.capacity() >= size) return window;
+		window = fc.map(FileChannel.MapMode.READ_WRITE, start, size);
+		windows.set(idx, window);
+		return window;
+	}
+
+	/**
+	 * Change the file length. All windows are dropped, they will be mapped again on demand.
+	 */
+	void setLength(long newLength) throws IOException {
+		lock.writeLock().lock();
+		try {
+			synchronized(this) {
+				windows = new AtomicReferenceArray<MappedByteBuffer>(windowCount(newLength));
+				length = Math.min(length, newLength);
+			}
+			raf.setLength(newLength);
+			synchronized(this) {
+				length = newLength;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Write dirty pages of every mapped window back to disk. */
+	void force() {
+		lock.readLock().lock();
+		try {
+			AtomicReferenceArray<MappedByteBuffer> w = windows;
+			for(int i = 0; i < w.length(); i++) {
+				MappedByteBuffer window = w.get(i);
+				if(window == null) continue;
+				try {
+					window.force();
+				} catch (Throwable t) {
+					Logger.error(this, "Unable to force mapped window " + i + " : " + t, t);
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	long mappedBytes() {
+		long total = 0;
+		AtomicReferenceArray<MappedByteBuffer> w = windows;
+		for(int i = 0; i < w.length(); i++) {
+			MappedByteBuffer window = w.get(i);
+			if(window != null) total += window.capacity();
+		}
+		return total;
+	}
+}
@@ -9,7 +9,11 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
@@ -48,6 +52,7 @@ import freenet.store.KeyCollisionException;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
 import freenet.support.BloomFilter;
+import freenet.support.ByteArrayWrapper;
 import freenet.support.Fields;
 import freenet.support.HTMLNode;
 import freenet.support.HexUtil;
@@ -76,9 +81,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private static final byte FLAG_DIRTY = 0x1;
 	private static final byte FLAG_REBUILD_BLOOM = 0x2;
 
+	/** Bloom filter slots from a MersenneTwister seeded with the key */
+	private static final int BLOOM_HASH_MERSENNE = 0;
+	/** Bloom filter slots by double hashing, see DoubleHashBloomFilter */
+	private static final int BLOOM_HASH_DOUBLE = 1;
+
 	private boolean checkBloom = true;
 	private int bloomFilterSize;
 	private int bloomFilterK;
+	/** How the bloom filter hashes keys, one of BLOOM_HASH_* */
+	private int bloomFilterHash;
 	private final BloomFilter bloomFilter;
 
 	private static boolean logMINOR;
@@ -115,14 +127,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
-	        long maxKeys, int bloomFilterSize, boolean bloomCounting, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
+	        long maxKeys, int bloomFilterSize, boolean bloomCounting, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey, boolean mmap)
 	        throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, bloomFilterSize, bloomCounting,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        shutdownHook, preallocate, resizeOnStart, masterKey, mmap);
 	}
 
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        int bloomFilterSize, boolean bloomCounting, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        int bloomFilterSize, boolean bloomCounting, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey, boolean mmap) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -157,10 +169,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			writeConfigFile();
 		}
 
-		newStore |= openStoreFiles(baseDir, name);
+		newStore |= openStoreFiles(baseDir, name, mmap);
 
 		bloomFile = new File(this.baseDir, name + ".bloom");
-		bloomFilter = BloomFilter.createFilter(bloomFile, bloomFilterSize, bloomFilterK, bloomCounting);
+		if (bloomFilterHash != BLOOM_HASH_DOUBLE && (newStore || !bloomFile.exists())) {
+			// Nothing to keep, so switch to the faster hashing.
+			bloomFilterHash = BLOOM_HASH_DOUBLE;
+		}
+		bloomFilter = BloomFilter.createFilter(bloomFile, bloomFilterSize, bloomFilterK, bloomCounting, bloomFilterHash == BLOOM_HASH_DOUBLE);
 
 		System.err.println("Bloomfilter (" + bloomFilter + ") for " + name + " is loaded.");
 
@@ -265,6 +281,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		if (logMINOR)
 			Logger.minor(this, "Fetch " + HexUtil.bytesToHex(routingKey) + " for " + callback);
 
+		QueuedWrite<T> queued = getQueuedWrite(routingKey);
+		if (queued != null) {
+			// Not written yet, but we have already acknowledged it.
+			if (queued.isOldBlock) {
+				if (ignoreOldBlocks) {
+					Logger.normal(this, "Ignoring old block");
+					return null;
+				}
+				if (meta != null)
+					meta.setOldBlock();
+			}
+			hits.incrementAndGet();
+			return queued.block;
+		}
+
 		try {
 			int retry = 0;
 			while (!configLock.readLock().tryLock(2, TimeUnit.SECONDS)) {
@@ -372,6 +403,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	public boolean put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore) throws IOException, KeyCollisionException {
+		if (!wrongStore && queueWrite(block, data, header, isOldBlock))
+			return true;
+		return putNow(block, data, header, overwrite, isOldBlock, wrongStore);
+	}
+
+	private boolean putNow(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock, boolean wrongStore) throws IOException, KeyCollisionException {
 		byte[] routingKey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
 
@@ -419,7 +456,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 							}
 							return true;
 						}
-						oldEntry.setHD(readHD(oldOffset)); // read from disk
+						readHD(oldEntry, oldOffset); // read from disk
 						T oldBlock = oldEntry.getStorableBlock(routingKey, fullKey, false, false, null, (block instanceof SSKBlock) ? ((SSKBlock)block).getPubKey() : null);
 						if (block.equals(oldBlock)) {
 							if(logDEBUG) Logger.debug(this, "Block already stored");
@@ -538,6 +575,167 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 	}
 
+	// ------------- Write-behind
+	/** Beyond this many queued blocks, put() writes synchronously again. */
+	private static final int WRITE_BEHIND_MAX_QUEUED = 512;
+
+	private static class QueuedWrite<T extends StorableBlock> {
+		final T block;
+		final byte[] data;
+		final byte[] header;
+		final boolean isOldBlock;
+		long sortOffset;
+
+		QueuedWrite(T block, byte[] data, byte[] header, boolean isOldBlock) {
+			this.block = block;
+			this.data = data;
+			this.header = header;
+			this.isOldBlock = isOldBlock;
+		}
+	}
+
+	/** Acknowledged but not yet written blocks, by routing key. Also the lock for the queue. */
+	private final Map<ByteArrayWrapper, QueuedWrite<T>> writeQueue = new HashMap<ByteArrayWrapper, QueuedWrite<T>>();
+	private volatile boolean writeBehind;
+	private WriteBehindThread writeBehindThread;
+
+	/**
+	 * Enable or disable the write-behind queue. When enabled, put() just queues the block and
+	 * returns; a background thread writes queued blocks in batches, sorted by slot offset to
+	 * reduce seeking. Blocks are visible to fetch() as soon as they are queued. Only used for
+	 * stores where collisions are impossible (CHK), since collision detection needs the old
+	 * block. Disabling waits for the queue to drain.
+	 */
+	public void setWriteBehind(boolean enable) {
+		synchronized (writeQueue) {
+			if (enable == writeBehind)
+				return;
+			if (enable && collisionPossible) {
+				Logger.normal(this, "Not enabling write-behind for " + name + " as collisions are possible");
+				return;
+			}
+			writeBehind = enable;
+			if (enable && writeBehindThread == null) {
+				writeBehindThread = new WriteBehindThread();
+				writeBehindThread.start();
+			}
+		}
+		if (!enable)
+			flushWriteQueue();
+	}
+
+	/**
+	 * @return <code>true</code> if the block has been queued, <code>false</code> if the caller
+	 *         must write it synchronously.
+	 */
+	private boolean queueWrite(T block, byte[] data, byte[] header, boolean isOldBlock) {
+		if (!writeBehind)
+			return false;
+		ByteArrayWrapper key = new ByteArrayWrapper(block.getRoutingKey());
+		synchronized (writeQueue) {
+			if (!writeBehind || shutdown)
+				return false;
+			QueuedWrite<T> old = writeQueue.get(key);
+			if (old == null && writeQueue.size() >= WRITE_BEHIND_MAX_QUEUED)
+				return false;
+			// A queued new block stays a new block.
+			if (old != null && !old.isOldBlock)
+				isOldBlock = false;
+			writeQueue.put(key, new QueuedWrite<T>(block, data, header, isOldBlock));
+			writeQueue.notifyAll();
+		}
+		if (logDEBUG)
+			Logger.debug(this, "Queued write " + HexUtil.bytesToHex(block.getRoutingKey()) + " (" + name + ")");
+		return true;
+	}
+
+	private QueuedWrite<T> getQueuedWrite(byte[] routingKey) {
+		synchronized (writeQueue) {
+			if (writeQueue.isEmpty())
+				return null;
+			return writeQueue.get(new ByteArrayWrapper(routingKey));
+		}
+	}
+
+	/** Wait until every queued block has been written. */
+	private void flushWriteQueue() {
+		synchronized (writeQueue) {
+			while (!writeQueue.isEmpty() && writeBehindThread != null && writeBehindThread.isAlive()) {
+				try {
+					writeQueue.wait(1000);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	private class WriteBehindThread extends NativeThread {
+
+		public WriteBehindThread() {
+			super("Store-" + name + "-WriteBehind", NativeThread.HIGH_PRIORITY, false);
+			setDaemon(true);
+		}
+
+		@Override
+		public void realRun() {
+			ArrayList<QueuedWrite<T>> batch = new ArrayList<QueuedWrite<T>>();
+			while (true) {
+				synchronized (writeQueue) {
+					while (writeQueue.isEmpty()) {
+						if (shutdown)
+							return;
+						try {
+							writeQueue.wait(10 * 1000);
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+					batch.addAll(writeQueue.values());
+				}
+				writeBatch(batch);
+				batch.clear();
+			}
+		}
+
+		/**
+		 * Write a batch of queued blocks in order of their first slot, so the disk head moves
+		 * in one direction. Each block is removed from the queue only once it is on disk, to
+		 * keep fetch() consistent.
+		 */
+		private void writeBatch(ArrayList<QueuedWrite<T>> batch) {
+			long size = storeSize;
+			for (QueuedWrite<T> queued : batch)
+				queued.sortOffset = getOffsetFromPlainKey(queued.block.getRoutingKey(), size)[0];
+			Collections.sort(batch, new Comparator<QueuedWrite<T>>() {
+				public int compare(QueuedWrite<T> q1, QueuedWrite<T> q2) {
+					if (q1.sortOffset == q2.sortOffset)
+						return 0;
+					return q1.sortOffset < q2.sortOffset ? -1 : 1;
+				}
+			});
+			if (logMINOR)
+				Logger.minor(this, "Writing batch of " + batch.size() + " blocks (" + name + ")");
+			for (QueuedWrite<T> queued : batch) {
+				try {
+					putNow(queued.block, queued.data, queued.header, false, queued.isOldBlock, false);
+				} catch (IOException e) {
+					Logger.error(this, "Write-behind failed for " + name + " : " + e, e);
+				} catch (KeyCollisionException e) {
+					// Impossible, collisionPossible is false
+					Logger.error(this, "Write-behind collision for " + name + " : " + e, e);
+				}
+				synchronized (writeQueue) {
+					ByteArrayWrapper key = new ByteArrayWrapper(queued.block.getRoutingKey());
+					if (writeQueue.get(key) == queued)
+						writeQueue.remove(key);
+					if (writeQueue.isEmpty())
+						writeQueue.notifyAll();
+				}
+			}
+		}
+	}
+
 	// ------------- Entry I/O
 	// meta-data file
 	private File metaFile;
@@ -548,6 +746,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
 	private final int hdPadding;
+	// memory mapped views, null if we use the FileChannel directly
+	private volatile MappedStoreFile metaMap;
+	private volatile MappedStoreFile hdMap;
+
+	/** Largest single mapping of the metadata file. Covers the whole file for all but huge stores. */
+	private static final int META_MAP_WINDOW = 1024 * 1024 * 1024;
+	/** Largest single mapping of the header+data file. */
+	private static final int HD_MAP_WINDOW = 256 * 1024 * 1024;
 
 	/**
 	 * Data entry
@@ -761,10 +967,12 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *
 	 * @param baseDir
 	 * @param name
+	 * @param mmap
+	 *            Access the files through memory mapping rather than positioned reads and writes.
 	 * @throws IOException
 	 * @return <code>true</code> iff this is a new datastore
 	 */
-	private boolean openStoreFiles(File baseDir, String name) throws IOException {
+	private boolean openStoreFiles(File baseDir, String name, boolean mmap) throws IOException {
 		metaFile = new File(baseDir, name + ".metadata");
 		hdFile = new File(baseDir, name + ".hd");
 
@@ -778,9 +986,38 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		hdFC = hdRAF.getChannel();
 		hdFC.lock();
 
+		if (mmap) {
+			if (File.separatorChar == '\\') {
+				// Windows cannot change the length of a file while it is mapped, so resizing would fail.
+				Logger.error(this, "Memory mapped datastore not supported on Windows, using normal file access for " + name);
+				System.err.println("Memory mapped datastore not supported on Windows, using normal file access for " + name);
+			} else {
+				metaMap = new MappedStoreFile(metaRAF, Entry.METADATA_LENGTH, META_MAP_WINDOW);
+				hdMap = new MappedStoreFile(hdRAF, headerBlockLength + dataBlockLength + hdPadding, HD_MAP_WINDOW);
+			}
+		}
+
 		return newStore;
 	}
 
+	/**
+	 * Called when a window can't be mapped, typically because a 32-bit JVM ran out of address
+	 * space. Revert to normal file access; the FileChannel always sees the same data.
+	 */
+	private void mmapFailed(IOException e) {
+		if (metaMap == null && hdMap == null)
+			return;
+		Logger.error(this, "Unable to memory map datastore " + name + ", using normal file access: " + e, e);
+		System.err.println("Unable to memory map datastore " + name + ", using normal file access: " + e);
+		metaMap = null;
+		hdMap = null;
+	}
+
+	/** @return How the store files are accessed, for stats. */
+	public String getAccessMode() {
+		return metaMap != null ? "mmap" : "channel";
+	}
+
 	/**
 	 * Read entry from disk. Before calling this function, you should acquire all required locks.
 	 *
@@ -788,18 +1025,21 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *         the key does not match the entry.
 	 */
 	private Entry readEntry(long offset, byte[] routingKey, boolean withData) throws IOException {
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+		Entry entry = readMappedEntry(offset);
+		if (entry == null) {
+			ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
 
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
-			}
-		} while (mbf.hasRemaining());
-		mbf.flip();
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+			mbf.flip();
 
-		Entry entry = new Entry(mbf, null);
+			entry = new Entry(mbf, null);
+		}
 		entry.curOffset = offset;
 
 		if (routingKey != null) {
@@ -809,8 +1049,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return null;
 
 			if (withData) {
-				ByteBuffer hdBuf = readHD(offset);
-				entry.setHD(hdBuf);
+				readHD(entry, offset);
 				boolean decrypted = cipherManager.decrypt(entry, routingKey);
 				if (!decrypted)
 					return null;
@@ -820,6 +1059,55 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return entry;
 	}
 
+	/**
+	 * Read the metadata straight out of the mapping, without an intermediate buffer.
+	 *
+	 * @return <code>null</code> if the store is not memory mapped.
+	 */
+	private Entry readMappedEntry(long offset) throws IOException {
+		MappedStoreFile map = metaMap;
+		if (map == null)
+			return null;
+		map.lockRead();
+		try {
+			return new Entry(map.slice(offset), null);
+		} catch (EOFException e) {
+			Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+			throw e;
+		} catch (IOException e) {
+			mmapFailed(e);
+			return null;
+		} finally {
+			map.unlockRead();
+		}
+	}
+
+	/**
+	 * Read header + data from disk into the entry
+	 *
+	 * @param entry
+	 * @param offset
+	 * @throws IOException
+	 */
+	private void readHD(Entry entry, long offset) throws IOException {
+		MappedStoreFile map = hdMap;
+		if (map != null) {
+			map.lockRead();
+			try {
+				// setHD() copies it out before we release the lock
+				entry.setHD(map.slice(offset));
+				return;
+			} catch (EOFException e) {
+				throw e;
+			} catch (IOException e) {
+				mmapFailed(e);
+			} finally {
+				map.unlockRead();
+			}
+		}
+		entry.setHD(readHD(offset));
+	}
+
 	/**
 	 * Read header + data from disk
 	 *
@@ -841,6 +1129,19 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	private long getFlag(long offset) throws IOException {
+		MappedStoreFile map = metaMap;
+		if (map != null) {
+			map.lockRead();
+			try {
+				return map.slice(offset).getLong(0x30);
+			} catch (EOFException e) {
+				throw e;
+			} catch (IOException e) {
+				mmapFailed(e);
+			} finally {
+				map.unlockRead();
+			}
+		}
 		Entry entry = readEntry(offset, null, false);
 		return entry.flag;
 	}
@@ -868,13 +1169,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		cipherManager.encrypt(entry, random);
 
 		ByteBuffer bf = entry.toMetaDataBuffer();
+		ByteBuffer hdBuf = entry.toHDBuffer();
+		if (writeMapped(entry, offset, bf, hdBuf))
+			return;
 		do {
 			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
 			if (status == -1)
 				throw new EOFException();
 		} while (bf.hasRemaining());
 
-		bf = entry.toHDBuffer();
+		bf = hdBuf;
 		if (bf != null) {
 			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
 			do {
@@ -887,8 +1191,52 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		entry.curOffset = offset;
 	}
 
+	/**
+	 * Write entry through the mapping. Header and data go first, so a crash leaves at worst an
+	 * unreferenced block rather than metadata pointing to garbage.
+	 *
+	 * @return <code>false</code> if the store is not memory mapped, caller must use the
+	 *         FileChannel.
+	 */
+	private boolean writeMapped(Entry entry, long offset, ByteBuffer metaBuf, ByteBuffer hdBuf) throws IOException {
+		MappedStoreFile meta = metaMap;
+		MappedStoreFile hd = hdMap;
+		if (meta == null || hd == null)
+			return false;
+		try {
+			if (hdBuf != null) {
+				hd.lockRead();
+				try {
+					hd.slice(offset).put(hdBuf);
+				} finally {
+					hd.unlockRead();
+				}
+			}
+			meta.lockRead();
+			try {
+				meta.slice(offset).put(metaBuf);
+			} finally {
+				meta.unlockRead();
+			}
+		} catch (EOFException e) {
+			throw e;
+		} catch (IOException e) {
+			mmapFailed(e);
+			metaBuf.position(0);
+			if (hdBuf != null)
+				hdBuf.position(0);
+			return false;
+		}
+		entry.curOffset = offset;
+		return true;
+	}
+
 	private void flushAndClose() {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		if (metaMap != null)
+			metaMap.force();
+		if (hdMap != null)
+			hdMap.force();
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -980,8 +1328,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
-			metaRAF.setLength(newMetaLen);
-			hdRAF.setLength(newHdLen);
+			MappedStoreFile meta = metaMap;
+			MappedStoreFile hd = hdMap;
+			if (meta != null)
+				meta.setLength(newMetaLen);
+			else
+				metaRAF.setLength(newMetaLen);
+			if (hd != null)
+				hd.setLength(newHdLen);
+			else
+				hdRAF.setLength(newHdLen);
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
 		}
@@ -1001,7 +1357,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *  +----+---------------+-------+-------+
 	 *  |0020| Est Key Count |  Gen  | Flags |
 	 *  +----+-------+-------+-------+-------+
-	 *  |0030|   K   |      (reserved)       |
+	 *  |0030|   K   |   H   |  (reserved)   |
 	 *  +----+-------+-------+---------------+
 	 *  |0040|    writes     |     hits      |
 	 *  +----+---------------+---------------+
@@ -1010,6 +1366,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 *
 	 *  Gen = Generation
 	 *    K = K for bloom filter
+	 *    H = Hash function for bloom filter, BLOOM_HASH_*
 	 * </pre>
 	 */
 	private final File configFile;
@@ -1043,6 +1400,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			cipherManager = new CipherManager(newsalt, diskSalt);
 			bloomFilterK = BloomFilter.optimialK(bloomFilterSize, storeSize);
+			bloomFilterHash = BLOOM_HASH_DOUBLE;
 
 			writeConfigFile();
 			return true;
@@ -1092,7 +1450,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						flags |= FLAG_REBUILD_BLOOM;
 					}
 					try {
-						raf.readInt(); // reserved
+						bloomFilterHash = raf.readInt();
 						raf.readLong(); // reserved
 						long w = raf.readLong();
 						writes.set(w);
@@ -1147,7 +1505,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			raf.writeInt(generation);
 			raf.writeInt(flags);
 			raf.writeInt(bloomFilterK);
-			raf.writeInt(0);
+			raf.writeInt(bloomFilterHash);
 			raf.writeLong(0);
 			raf.writeLong(writes.get());
 			raf.writeLong(hits.get());
@@ -1336,7 +1694,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						bloomFilter.removeKey(entry.getDigestedRoutingKey());
 					}
 					try {
-						entry.setHD(readHD(entry.curOffset));
+						readHD(entry, entry.curOffset);
 						oldEntryList.add(entry);
 						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
 							oldEntryList.remove(0);
@@ -1869,7 +2227,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	public void close() {
+		setWriteBehind(false);
 		shutdown = true;
+		synchronized (writeQueue) {
+			writeQueue.notifyAll();
+		}
 		lockManager.shutdown();
 
 		cleanerLock.lock();
@@ -2010,6 +2372,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	}
 
 	public boolean probablyInStore(byte[] routingKey) {
+		if (getQueuedWrite(routingKey) != null)
+			return true;
 		configLock.readLock().lock();
 		try {
 			if (!checkBloom)
@@ -2053,6 +2417,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			public long writes() {
 				return writes.get() - initialWrites;
 			}
+
+			@Override
+			public String accessMode() {
+				return getAccessMode();
+			}
 			
 		};
 	}
@@ -2079,6 +2448,11 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			public long writes() {
 				return writes.get();
 			}
+
+			@Override
+			public String accessMode() {
+				return getAccessMode();
+			}
 			
 		};
 	}
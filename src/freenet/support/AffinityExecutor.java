@@ -0,0 +1,99 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of SerialExecutor's. Each job is given an affinity, and jobs with the same affinity
+ * always run on the same thread, in the order they were submitted. Jobs with different affinities
+ * may run in parallel.
+ *
+ * The queue for each thread is bounded: if it is full, the job is rejected rather than queued,
+ * so the caller can drop it.
+ */
+public class AffinityExecutor {
+
+	private final SerialExecutor[] executors;
+	private final AtomicInteger[] queued;
+	private final int maxQueued;
+	private final AtomicInteger rejected = new AtomicInteger();
+
+	/**
+	 * @param threads The number of threads, and therefore the maximum parallelism.
+	 * @param priority The priority of all the threads.
+	 * @param maxQueued The maximum number of jobs waiting for each thread.
+	 */
+	public AffinityExecutor(int threads, int priority, int maxQueued) {
+		if(threads < 1) throw new IllegalArgumentException();
+		executors = new SerialExecutor[threads];
+		queued = new AtomicInteger[threads];
+		for(int i = 0; i < threads; i++) {
+			executors[i] = new SerialExecutor(priority);
+			queued[i] = new AtomicInteger();
+		}
+		this.maxQueued = maxQueued;
+	}
+
+	public void start(Executor realExecutor, String name) {
+		for(int i = 0; i < executors.length; i++)
+			executors[i].start(realExecutor, name + " " + i);
+	}
+
+	public int getThreads() {
+		return executors.length;
+	}
+
+	/**
+	 * Queue a job.
+	 * @param affinity Jobs with the same affinity run on the same thread, in order. E.g. the
+	 * hashCode() of the object they work on.
+	 * @return False if the job was rejected because too many jobs are already waiting.
+	 */
+	public boolean execute(int affinity, final Runnable job, String jobName) {
+		final int idx = index(affinity);
+		final AtomicInteger counter = queued[idx];
+		if(counter.incrementAndGet() > maxQueued) {
+			counter.decrementAndGet();
+			rejected.incrementAndGet();
+			return false;
+		}
+		executors[idx].execute(new Runnable() {
+
+			public void run() {
+				counter.decrementAndGet();
+				job.run();
+			}
+
+			@Override
+			public String toString() {
+				return job.toString();
+			}
+
+		}, jobName);
+		return true;
+	}
+
+	private int index(int affinity) {
+		// Spread the bits, hashCode()'s are often aligned.
+		affinity ^= (affinity >>> 16);
+		affinity *= 0x85ebca6b;
+		affinity ^= (affinity >>> 13);
+		return (affinity & Integer.MAX_VALUE) % executors.length;
+	}
+
+	/** @return The total number of jobs waiting. */
+	public int getQueued() {
+		int total = 0;
+		for(AtomicInteger i : queued)
+			total += i.get();
+		return total;
+	}
+
+	/** @return The number of jobs rejected because the queue was full. */
+	public int getRejected() {
+		return rejected.get();
+	}
+
+}
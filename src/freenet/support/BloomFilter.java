@@ -43,6 +43,17 @@ public abstract class BloomFilter {
 		else
 			return new BinaryBloomFilter(file, length, k);
 	}
+
+	/**
+	 * @param doubleHash
+	 *            Create a {@link DoubleHashBloomFilter}. Same file format, but a key maps to
+	 *            different slots, so an existing filter must be rebuilt.
+	 */
+	public static BloomFilter createFilter(File file, int length, int k, boolean counting, boolean doubleHash) throws IOException {
+		if (length == 0 || !doubleHash)
+			return createFilter(file, length, k, counting);
+		return new DoubleHashBloomFilter(file, length, k, counting);
+	}
 	
 	protected BloomFilter(int length, int k) {
 		if (length % 8 != 0)
@@ -86,6 +97,23 @@ public abstract class BloomFilter {
 		return true;
 	}
 
+	/**
+	 * Check a key, using hashes which may be shared with other filters. Subclasses which
+	 * override checkFilter(byte[]) must override this too.
+	 */
+	public boolean checkFilter(KeyHashes hashes) {
+		hashes.rewind();
+		lock.readLock().lock();
+		try {
+			for (int i = 0; i < k; i++)
+				if (!getBit(hashes.nextInt(length)))
+					return false;
+		} finally {
+			lock.readLock().unlock();
+		}
+		return true;
+	}
+
 	public void removeKey(byte[] key) {
 		Random hashes = getHashes(key);
 		lock.writeLock().lock();
@@ -118,6 +146,63 @@ public abstract class BloomFilter {
 		return new MersenneTwister(key);
 	}
 
+	/**
+	 * The hashes of one key, for checking it against many filters. Seeding a MersenneTwister
+	 * costs far more than checking a few bits, and getHashes(key).nextInt(length) only depends
+	 * on the generator's output, not on the length, so we seed it once and replay its output for
+	 * each filter, whatever its length or k. Not thread safe.
+	 */
+	public static final class KeyHashes {
+		private final byte[] key;
+		private Random random;
+		/** next(31) of the generator, as far as we have needed it. */
+		private int[] values;
+		private int count;
+		private int position;
+
+		public KeyHashes(byte[] key) {
+			this.key = key;
+		}
+
+		public byte[] getKey() {
+			return key;
+		}
+
+		void rewind() {
+			position = 0;
+		}
+
+		private int next31() {
+			if (position == count) {
+				if (random == null) {
+					random = new MersenneTwister(key);
+					values = new int[32];
+				} else if (count == values.length) {
+					int[] v = new int[count * 2];
+					System.arraycopy(values, 0, v, 0, count);
+					values = v;
+				}
+				// MersenneTwister.next(31) == nextInt() >>> 1
+				values[count++] = random.nextInt() >>> 1;
+			}
+			return values[position++];
+		}
+
+		/** Same as Random.nextInt(n). */
+		int nextInt(int n) {
+			if (n <= 0)
+				throw new IllegalArgumentException("n must be positive");
+			if ((n & -n) == n)
+				return (int) ((n * (long) next31()) >> 31);
+			int bits, val;
+			do {
+				bits = next31();
+				val = bits % n;
+			} while (bits - val + (n - 1) < 0);
+			return val;
+		}
+	}
+
 	//-- Fork & Merge
 	protected BloomFilter forkedFilter;
 
@@ -0,0 +1,312 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter with allocation free hashing and lock free access.
+ *
+ * The k positions of a key are derived directly from its bytes by double hashing,
+ * <code>h1 + i * h2</code> (Kirsch and Mitzenmacher, "Less Hashing, Same Performance"), instead of
+ * seeding a MersenneTwister for every lookup. The keys we use are SHA-256 output (digested or
+ * salted routing keys), so the first 16 bytes are used as is; shorter keys are mixed first.
+ *
+ * The filter lives in an {@link AtomicLongArray}: checks are plain volatile reads and take no
+ * lock, updates are compare-and-set on a single word. Updates only take the read side of the
+ * lock, so they run concurrently with each other, but not while {@link #merge()} replaces the
+ * words with the forked filter's, which would otherwise lose an update made just before it. Either 1 bit per slot (like
+ * {@link BinaryBloomFilter}) or a 2-bit saturating counter per slot (like
+ * {@link CountingBloomFilter}), with the same byte layout, so the file format is unchanged. A key
+ * maps to different slots than with the old hashing though, so an existing filter must be rebuilt
+ * when switching. When backed by a file, the words are written back on {@link #force()}.
+ */
+public class DoubleHashBloomFilter extends BloomFilter {
+
+	private final boolean counting;
+	private final AtomicLongArray words;
+	/** Bytes used by the filter on disk */
+	private final int sizeBytes;
+
+	/**
+	 * In-memory filter.
+	 *
+	 * @param length
+	 *            length in slots
+	 * @param counting
+	 *            2-bit counters rather than 1 bit per slot, so keys can be removed.
+	 */
+	public DoubleHashBloomFilter(int length, int k, boolean counting) {
+		super(length, k);
+		this.counting = counting;
+		sizeBytes = this.length / (counting ? 4 : 8);
+		words = new AtomicLongArray((sizeBytes + 7) / 8);
+	}
+
+	/**
+	 * Filter backed by a file, in the same format as {@link BinaryBloomFilter} or
+	 * {@link CountingBloomFilter}.
+	 *
+	 * @param file
+	 *            disk file
+	 * @param length
+	 *            length in slots
+	 */
+	public DoubleHashBloomFilter(File file, int length, int k, boolean counting) throws IOException {
+		this(length, k, counting);
+		if (!file.exists() || file.length() != sizeBytes)
+			needRebuild = true;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(sizeBytes);
+		filter = raf.getChannel().map(MapMode.READ_WRITE, 0, sizeBytes).load();
+		load(filter);
+	}
+
+	private void load(ByteBuffer buf) {
+		ByteBuffer in = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		in.position(0);
+		int fullWords = sizeBytes / 8;
+		for (int i = 0; i < fullWords; i++)
+			words.set(i, in.getLong(i * 8));
+		if (fullWords < words.length()) {
+			long w = 0;
+			for (int i = fullWords * 8; i < sizeBytes; i++)
+				w |= (in.get(i) & 0xFFL) << ((i & 7) * 8);
+			words.set(fullWords, w);
+		}
+	}
+
+	private void save(ByteBuffer buf) {
+		ByteBuffer out = buf.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int fullWords = sizeBytes / 8;
+		for (int i = 0; i < fullWords; i++)
+			out.putLong(i * 8, words.get(i));
+		if (fullWords < words.length()) {
+			long w = words.get(fullWords);
+			for (int i = fullWords * 8; i < sizeBytes; i++)
+				out.put(i, (byte) (w >>> ((i & 7) * 8)));
+		}
+	}
+
+	//-- Core
+
+	@Override
+	public void addKey(byte[] key) {
+		long h1 = hash1(key);
+		long h2 = hash2(key);
+		lock.readLock().lock();
+		try {
+			for (int i = 0; i < k; i++) {
+				setBit(slot(h1));
+				h1 += h2;
+			}
+
+			BloomFilter forked = forkedFilter;
+			if (forked != null)
+				forked.addKey(key);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void addKeyForked(byte[] key) {
+		lock.readLock().lock();
+		try {
+			BloomFilter forked = forkedFilter;
+			if (forked != null)
+				forked.addKey(key);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean checkFilter(byte[] key) {
+		long h1 = hash1(key);
+		long h2 = hash2(key);
+		for (int i = 0; i < k; i++) {
+			if (!getBit(slot(h1)))
+				return false;
+			h1 += h2;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean checkFilter(KeyHashes hashes) {
+		return checkFilter(hashes.getKey());
+	}
+
+	@Override
+	public void removeKey(byte[] key) {
+		if (!counting)
+			return;
+		long h1 = hash1(key);
+		long h2 = hash2(key);
+		lock.readLock().lock();
+		try {
+			for (int i = 0; i < k; i++) {
+				unsetBit(slot(h1));
+				h1 += h2;
+			}
+
+			BloomFilter forked = forkedFilter;
+			if (forked != null)
+				forked.removeKey(key);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	//-- Bits and Hashes
+
+	private int slot(long h) {
+		return (int) ((h & Long.MAX_VALUE) % length);
+	}
+
+	private static long hash1(byte[] key) {
+		if (key.length >= 16)
+			return readLong(key, 0);
+		return mix(key, 0x9E3779B97F4A7C15L);
+	}
+
+	/** Always odd, so that successive positions never repeat before wrapping. */
+	private static long hash2(byte[] key) {
+		if (key.length >= 16)
+			return readLong(key, 8) | 1;
+		return mix(key, 0xC2B2AE3D27D4EB4FL) | 1;
+	}
+
+	private static long readLong(byte[] buf, int offset) {
+		long x = 0;
+		for (int i = offset; i < offset + 8; i++)
+			x = (x << 8) | (buf[i] & 0xFF);
+		return x;
+	}
+
+	private static long mix(byte[] key, long seed) {
+		long h = seed ^ key.length;
+		for (int i = 0; i < key.length; i++) {
+			h ^= key[i] & 0xFF;
+			h *= 0x100000001B3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	@Override
+	protected boolean getBit(int offset) {
+		if (counting)
+			return ((words.get(offset >>> 5) >>> ((offset & 31) << 1)) & 3) != 0;
+		return (words.get(offset >>> 6) & (1L << (offset & 63))) != 0;
+	}
+
+	@Override
+	protected void setBit(int offset) {
+		if (counting) {
+			int idx = offset >>> 5;
+			int shift = (offset & 31) << 1;
+			while (true) {
+				long old = words.get(idx);
+				if (((old >>> shift) & 3) == 3)
+					return; // overflow
+				if (words.compareAndSet(idx, old, old + (1L << shift)))
+					return;
+			}
+		} else {
+			int idx = offset >>> 6;
+			long mask = 1L << (offset & 63);
+			while (true) {
+				long old = words.get(idx);
+				if ((old & mask) != 0)
+					return;
+				if (words.compareAndSet(idx, old, old | mask))
+					return;
+			}
+		}
+	}
+
+	@Override
+	protected void unsetBit(int offset) {
+		if (!counting)
+			return; // NO-OP, as BinaryBloomFilter
+		int idx = offset >>> 5;
+		int shift = (offset & 31) << 1;
+		while (true) {
+			long old = words.get(idx);
+			long v = (old >>> shift) & 3;
+			if (v == 0 || v == 3)
+				return; // overflow / underflow
+			if (words.compareAndSet(idx, old, old - (1L << shift)))
+				return;
+		}
+	}
+
+	@Override
+	public void unsetAll() {
+		for (int i = 0; i < words.length(); i++)
+			words.set(i, 0);
+	}
+
+	//-- Fork & Merge
+
+	@Override
+	public void fork(int k) {
+		lock.writeLock().lock();
+		try {
+			forkedFilter = new DoubleHashBloomFilter(length, k, counting);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void merge() {
+		lock.writeLock().lock();
+		try {
+			DoubleHashBloomFilter forked = (DoubleHashBloomFilter) forkedFilter;
+			if (forked == null)
+				return;
+			forkedFilter = null;
+			for (int i = 0; i < words.length(); i++)
+				words.set(i, forked.words.get(i));
+		} finally {
+			lock.writeLock().unlock();
+		}
+		force();
+	}
+
+	//-- Misc.
+
+	@Override
+	public void force() {
+		ByteBuffer buf = filter;
+		if (buf == null)
+			return;
+		save(buf);
+		if (buf instanceof MappedByteBuffer)
+			((MappedByteBuffer) buf).force();
+	}
+
+	@Override
+	public int getSizeBytes() {
+		return sizeBytes;
+	}
+
+	public boolean isCounting() {
+		return counting;
+	}
+
+}
@@ -11,6 +11,12 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -84,6 +90,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	private DateFormat df;
 	private int[] fmt;
 	private String[] str;
+	/** Whether the format includes the hash code and the thread name, so log() can skip
+	 * getting them if not. */
+	private boolean fmtHashCode;
+	private boolean fmtThread;
 
 	/** Stream to write data to (compressed if rotate is on) */
 	protected OutputStream logStream;
@@ -121,6 +131,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	 */
 	protected final ArrayBlockingQueue<byte[]> list;
 	protected long listBytes = 0;
+	
+	/** If not null, we are in asynchronous mode: messages go into the ring instead of list,
+	 * and are formatted by the writer thread. See setAsync(). */
+	private volatile LogRing ring;
 
 	long maxOldLogfilesDiskUsage;
 	protected final LinkedList<OldLogFile> logFiles = new LinkedList<OldLogFile>();
@@ -293,6 +307,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				gc.add(INTERVAL, INTERVAL_MULTIPLIER);
 				nextHour = gc.getTimeInMillis();
 			}
+			if(ring != null) {
+				runAsync(currentFilename, lastTime, nextHour, gc);
+				return;
+			}
 			long timeWaitingForSync = -1;
 			long flush;
 			synchronized(this) {
@@ -412,6 +430,162 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			}
 		}
 
+		/** Bytes to write, formatted from the ring. */
+		private byte[] batch;
+		private ByteBuffer batchBuffer;
+		
+		/**
+		 * The writer loop for asynchronous mode. Take everything in the ring, format it into
+		 * one buffer, and write the buffer in one go. Flush when we have had data in RAM for
+		 * flushTime, as in the synchronous loop.
+		 */
+		private void runAsync(File currentFilename, long lastTime, long nextHour, GregorianCalendar gc) {
+			LogRing ring = FileLoggerHook.this.ring;
+			ring.setWriter(this);
+			batch = new byte[65536];
+			batchBuffer = ByteBuffer.wrap(batch);
+			CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+			encoder.onMalformedInput(CodingErrorAction.REPLACE);
+			encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			StringBuilder sb = new StringBuilder(1024);
+			long reportedDropped = 0;
+			long lastFlush = System.currentTimeMillis();
+			boolean dirty = false;
+			while(true) {
+				try {
+					long thisTime = System.currentTimeMillis();
+					if (baseFilename != null) {
+						if ((thisTime > nextHour) || switchedBaseFilename) {
+							writeBatch();
+							currentFilename = rotateLog(currentFilename, lastTime, nextHour, gc);
+							
+							gc.add(INTERVAL, INTERVAL_MULTIPLIER);
+							lastTime = nextHour;
+							nextHour = gc.getTimeInMillis();
+
+							if(switchedBaseFilename) {
+								synchronized(FileLoggerHook.class) {
+									switchedBaseFilename = false;
+								}
+							}
+						}
+					}
+					// Check before draining, so we write everything logged before close().
+					boolean died = closed;
+					int count = 0;
+					LogRing.Entry entry;
+					while((entry = ring.peek()) != null) {
+						if(entry.raw != null) {
+							append(entry.raw);
+						} else {
+							sb.setLength(0);
+							format(sb, entry.time, entry.hasObject, entry.hashCode, entry.c, entry.msg, entry.e, entry.priority, entry.threadName);
+							append(sb, encoder);
+						}
+						ring.release(entry);
+						count++;
+					}
+					long dropped = ring.getDropped();
+					if(dropped != reportedDropped) {
+						sb.setLength(0);
+						sb.append("GRRR: ERROR: Logging too fast, dropped ").append(dropped - reportedDropped).append(" messages\n");
+						append(sb, encoder);
+						reportedDropped = dropped;
+						count++;
+					}
+					if(count > 0) {
+						writeBatch();
+						dirty = true;
+					}
+					thisTime = System.currentTimeMillis();
+					long flush;
+					synchronized(FileLoggerHook.this) {
+						flush = flushTime;
+					}
+					if(dirty && (died || thisTime - lastFlush >= flush)) {
+						myWrite(logStream, null);
+						if(altLogStream != null)
+							myWrite(altLogStream, null);
+						lastFlush = thisTime;
+						dirty = false;
+					}
+					if(died) {
+						ring.setWriter(null);
+						try {
+							logStream.close();
+						} catch (IOException e) {
+							System.err.println("Failed to close log stream: "+e);
+						}
+						if(altLogStream != null) {
+							try {
+								altLogStream.close();
+							} catch (IOException e) {
+								System.err.println("Failed to close compressed log stream: "+e);
+							}
+						}
+						synchronized(list) {
+							closedFinished = true;
+							list.notifyAll();
+						}
+						return;
+					}
+					if(count == 0) {
+						// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
+						long wait = 500;
+						if(dirty) wait = Math.max(1, Math.min(wait, lastFlush + flush - thisTime));
+						ring.await(wait);
+					}
+				} catch (OutOfMemoryError e) {
+					System.err.println(e.getClass());
+					System.err.println(e.getMessage());
+					e.printStackTrace();
+				} catch (Throwable t) {
+					System.err.println("FileLoggerHook log writer caught " + t);
+					t.printStackTrace(System.err);
+				}
+			}
+		}
+		
+		private void append(StringBuilder sb, CharsetEncoder encoder) {
+			CharBuffer in = CharBuffer.wrap(sb);
+			encoder.reset();
+			while(true) {
+				CoderResult result = encoder.encode(in, batchBuffer, true);
+				if(result.isOverflow()) {
+					writeBatch();
+					continue;
+				}
+				result = encoder.flush(batchBuffer);
+				if(result.isOverflow()) {
+					writeBatch();
+					continue;
+				}
+				return;
+			}
+		}
+		
+		private void append(byte[] b) {
+			if(b.length > batchBuffer.remaining()) {
+				writeBatch();
+				if(b.length > batchBuffer.remaining()) {
+					myWrite(logStream, b, 0, b.length);
+					if(altLogStream != null)
+						myWrite(altLogStream, b, 0, b.length);
+					return;
+				}
+			}
+			batchBuffer.put(b);
+		}
+		
+		private void writeBatch() {
+			int length = batchBuffer.position();
+			if(length == 0) return;
+			myWrite(logStream, batch, 0, length);
+			if(altLogStream != null)
+				myWrite(altLogStream, batch, 0, length);
+			batchBuffer.clear();
+		}
+
 		private File rotateLog(File currentFilename, long lastTime, long nextHour, GregorianCalendar gc) {
 	        // Switch logs
 	        try {
@@ -459,12 +633,16 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		 *            the bytes to write, null to flush
 		 */
 		protected void myWrite(OutputStream os, byte[] b) {
+			myWrite(os, b, 0, b == null ? 0 : b.length);
+		}
+		
+		protected void myWrite(OutputStream os, byte[] b, int offset, int length) {
 			long sleepTime = 1000;
 			while (true) {
 				boolean thrown = false;
 				try {
 					if (b != null)
-						os.write(b);
+						os.write(b, offset, length);
 					else
 						os.flush();
 				} catch (IOException e) {
@@ -887,6 +1065,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 
 		this.str = new String[strVec.size()];
 		str = strVec.toArray(str);
+		
+		fmtHashCode = fmtVec.contains(HASHCODE);
+		fmtThread = fmtVec.contains(THREAD);
 	}
 
 	private void setDateFormat(String dfmt) {
@@ -910,7 +1091,36 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		if (closed)
 			return;
 		
+		boolean hasObject = o != null;
+		int hashCode = hasObject && fmtHashCode ? o.hashCode() : 0;
+		String threadName = fmtThread ? Thread.currentThread().getName() : null;
+		long now = System.currentTimeMillis();
+		
+		LogRing r = ring;
+		if(r != null) {
+			// Just copy the arguments, the writer thread will format them.
+			long seq = r.claim();
+			if(seq < 0) return;
+			LogRing.Entry entry = r.get(seq);
+			entry.time = now;
+			entry.hasObject = hasObject;
+			entry.hashCode = hashCode;
+			entry.c = c;
+			entry.msg = msg;
+			entry.e = e;
+			entry.priority = priority;
+			entry.threadName = threadName;
+			entry.raw = null;
+			r.publish(seq);
+			return;
+		}
+		
 		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
+		format(sb, now, hasObject, hashCode, c, msg, e, priority, threadName);
+		logString(sb.toString().getBytes());
+	}
+	
+	private void format(StringBuilder sb, long time, boolean hasObject, int hashCode, Class<?> c, String msg, Throwable e, LogLevel priority, String threadName) {
 		int sctr = 0;
 
 		for (int i = 0; i < fmt.length; ++i) {
@@ -919,9 +1129,8 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
 					synchronized (this) {
-						myDate.setTime(now);
+						myDate.setTime(time);
 						sb.append(df.format(myDate));
 					}
 					break;
@@ -930,12 +1139,12 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					break;
 				case HASHCODE :
 					sb.append(
-						o == null
+						!hasObject
 							? "<none>"
-							: Integer.toHexString(o.hashCode()));
+							: Integer.toHexString(hashCode));
 					break;
 				case THREAD :
-					sb.append(Thread.currentThread().getName());
+					sb.append(threadName);
 					break;
 				case PRIORITY :
 					sb.append(priority.name());
@@ -973,14 +1182,20 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			if(cause != e) e = cause;
 			else break;
 		}
-
-		logString(sb.toString().getBytes());
 	}
 
 	/** Memory allocation overhead (estimated through experimentation with bsh) */
 	private static final int LINE_OVERHEAD = 60;
 	
 	public void logString(byte[] b) {
+		LogRing r = ring;
+		if(r != null) {
+			long seq = r.claim();
+			if(seq < 0) return;
+			r.get(seq).raw = b;
+			r.publish(seq);
+			return;
+		}
 		synchronized (list) {
 			int sz = list.size();
 			if(!list.offer(b)) {
@@ -1024,6 +1239,35 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			return listBytes;
 		}
 	}
+	
+	/**
+	 * Use asynchronous mode: log() just puts the message into a preallocated ring of
+	 * maxListSize entries (rounded up to a power of 2) without taking any locks, and the
+	 * writer thread formats and writes them in batches. This is much cheaper for the threads
+	 * doing the logging, at MINOR or DEBUG on a busy node. maxListBytes is not used. Must be
+	 * called before start().
+	 * @param blockWhenFull If true, threads wait for the writer when the ring is full.
+	 * Otherwise, the messages are dropped and counted, see getDroppedMessages().
+	 */
+	public void setAsync(boolean blockWhenFull) {
+		ring = new LogRing(MAX_LIST_SIZE, blockWhenFull);
+	}
+	
+	public boolean isAsync() {
+		return ring != null;
+	}
+	
+	/** Change what happens when the ring is full in asynchronous mode. */
+	public void setBlockWhenFull(boolean blockWhenFull) {
+		LogRing r = ring;
+		if(r != null) r.setBlockWhenFull(blockWhenFull);
+	}
+	
+	/** @return The number of messages dropped because the ring was full in asynchronous mode. */
+	public long getDroppedMessages() {
+		LogRing r = ring;
+		return r == null ? 0 : r.getDropped();
+	}
 
 	public static int numberOf(char c) {
 		switch (c) {
@@ -0,0 +1,110 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies (or any other non-negative values), in the style of HdrHistogram:
+ * the buckets are exact up to SUB_BUCKETS, and above that each power of two is split into
+ * SUB_BUCKETS / 2 buckets, so any value is known to within about 6%, over the whole range,
+ * in a few KB. Recording is lock-free and cheap enough to do for every request.
+ *
+ * Percentiles are read from the counts while other threads may be recording, so they may be
+ * very slightly inconsistent, which doesn't matter for statistics.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	/** Bigger values are recorded as this. A month in milliseconds. */
+	public static final long MAX_VALUE = (1L << 31) + (1L << 30);
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public LatencyHistogram() {
+		counts = new AtomicLongArray(bucketIndex(MAX_VALUE) + 1);
+	}
+
+	static int bucketIndex(long value) {
+		if(value < SUB_BUCKETS) return (int) value;
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - (SUB_BUCKET_BITS - 1);
+		// value >>> shift is between SUB_BUCKETS/2 and SUB_BUCKETS-1.
+		return (shift << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift);
+	}
+
+	/** The lowest value which is recorded in the bucket. */
+	static long lowestValue(int index) {
+		if(index < SUB_BUCKETS) return index;
+		int shift = (index >> (SUB_BUCKET_BITS - 1)) - 1;
+		return ((long) (index - (shift << (SUB_BUCKET_BITS - 1)))) << shift;
+	}
+
+	/** The highest value which is recorded in the bucket. */
+	static long highestValue(int index) {
+		return lowestValue(index + 1) - 1;
+	}
+
+	public void report(long value) {
+		if(value < 0) value = 0;
+		if(value > MAX_VALUE) value = MAX_VALUE;
+		counts.incrementAndGet(bucketIndex(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		while(true) {
+			long oldMax = max.get();
+			if(value <= oldMax || max.compareAndSet(oldMax, value)) break;
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long c = count.get();
+		if(c == 0) return 0.0;
+		return (double) total.get() / c;
+	}
+
+	/**
+	 * @param percentile Between 0 and 100.
+	 * @return The highest value in the bucket containing the given percentile, but not more
+	 * than the maximum recorded, or 0 if nothing has been recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long c = count.get();
+		if(c == 0) return 0;
+		long target = (long) Math.ceil(c * Math.min(percentile, 100.0) / 100.0);
+		if(target < 1) target = 1;
+		long seen = 0;
+		int buckets = counts.length();
+		for(int i = 0; i < buckets; i++) {
+			seen += counts.get(i);
+			if(seen >= target)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	/** Add the count, mean, median, 90th and 99th percentiles and maximum. */
+	public void exportFieldSet(SimpleFieldSet fs, String prefix) {
+		fs.put(prefix + "Count", getCount());
+		fs.put(prefix + "Mean", getMean());
+		fs.put(prefix + "Median", getValueAtPercentile(50));
+		fs.put(prefix + "90thPercentile", getValueAtPercentile(90));
+		fs.put(prefix + "99thPercentile", getValueAtPercentile(99));
+		fs.put(prefix + "Max", getMax());
+	}
+
+}
@@ -0,0 +1,154 @@
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Bounded queue of log messages for FileLoggerHook's asynchronous mode: many threads log,
+ * one thread writes. The entries are preallocated and reused, and the logging threads only
+ * copy the arguments in; the writer thread formats them. Logging is a CAS and a few field
+ * writes, with no locks, unless the ring is full and we have been told to block.
+ *
+ * A logging thread claims a sequence number, fills in the entry for it, and publishes it by
+ * setting the entry's sequence. The writer reads entries in order, and frees each one by
+ * advancing consumed.
+ */
+class LogRing {
+
+	static final class Entry {
+		/** Set to the sequence number when the entry is ready to be written. */
+		private volatile long sequence = -1;
+		long time;
+		boolean hasObject;
+		int hashCode;
+		Class<?> c;
+		String msg;
+		Throwable e;
+		LogLevel priority;
+		String threadName;
+		/** If not null, write these bytes as is instead of formatting a message. */
+		byte[] raw;
+	}
+
+	private final Entry[] entries;
+	private final int mask;
+	/** The next sequence number to claim. */
+	private final AtomicLong claimed = new AtomicLong();
+	/** The next sequence number the writer will read. Entries before it are free. */
+	private final AtomicLong consumed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	/** Wake the writer up once there are this many entries waiting. */
+	private final int wakeThreshold;
+	private volatile boolean blockWhenFull;
+	private volatile Thread writer;
+	private volatile boolean writerWaiting;
+
+	/** @param size Rounded up to a power of 2. */
+	LogRing(int size, boolean blockWhenFull) {
+		int capacity = 1;
+		while(capacity < size) capacity <<= 1;
+		entries = new Entry[capacity];
+		for(int i = 0; i < capacity; i++)
+			entries[i] = new Entry();
+		mask = capacity - 1;
+		wakeThreshold = Math.max(1, capacity / 4);
+		this.blockWhenFull = blockWhenFull;
+	}
+
+	int capacity() {
+		return entries.length;
+	}
+
+	void setBlockWhenFull(boolean block) {
+		blockWhenFull = block;
+	}
+
+	boolean getBlockWhenFull() {
+		return blockWhenFull;
+	}
+
+	/** Number of messages dropped because the ring was full. */
+	long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Claim an entry. The caller must fill in get(seq) and then call publish(seq).
+	 * @return The sequence number, or -1 if the ring is full and we are dropping messages.
+	 * We only block if the writer is running and it isn't the writer which is logging.
+	 */
+	long claim() {
+		while(true) {
+			long seq = claimed.get();
+			if(seq - consumed.get() >= entries.length) {
+				Thread w = writer;
+				if(!blockWhenFull || w == null || w == Thread.currentThread()) {
+					dropped.incrementAndGet();
+					wakeWriter();
+					return -1;
+				}
+				wakeWriter();
+				LockSupport.parkNanos(100*1000);
+				continue;
+			}
+			if(claimed.compareAndSet(seq, seq + 1)) {
+				if(writerWaiting && seq + 1 - consumed.get() >= wakeThreshold)
+					wakeWriter();
+				return seq;
+			}
+		}
+	}
+
+	Entry get(long seq) {
+		return entries[(int) seq & mask];
+	}
+
+	void publish(long seq) {
+		entries[(int) seq & mask].sequence = seq;
+	}
+
+	private void wakeWriter() {
+		if(!writerWaiting) return;
+		writerWaiting = false;
+		Thread w = writer;
+		if(w != null) LockSupport.unpark(w);
+	}
+
+	// The rest is only called by the writer thread.
+
+	void setWriter(Thread t) {
+		writer = t;
+	}
+
+	/** @return The entry for the next sequence number, or null if it hasn't been published yet. */
+	Entry peek() {
+		long seq = consumed.get();
+		Entry entry = entries[(int) seq & mask];
+		if(entry.sequence != seq) return null;
+		return entry;
+	}
+
+	/** Free the entry returned by peek(). */
+	void release(Entry entry) {
+		entry.c = null;
+		entry.msg = null;
+		entry.e = null;
+		entry.threadName = null;
+		entry.raw = null;
+		consumed.lazySet(consumed.get() + 1);
+	}
+
+	/** Wait until there are enough entries to be worth writing, or the timeout. */
+	void await(long millis) {
+		writerWaiting = true;
+		if(claimed.get() - consumed.get() >= wakeThreshold) {
+			writerWaiting = false;
+			return;
+		}
+		LockSupport.parkNanos(this, millis * 1000 * 1000);
+		writerWaiting = false;
+	}
+
+}
@@ -16,6 +16,11 @@ public class NullBloomFilter extends BloomFilter {
 		return true;
 	}
 
+	@Override
+	public boolean checkFilter(KeyHashes hashes) {
+		return true;
+	}
+
 	@Override
 	public void addKey(byte[] key) {
 		// ignore
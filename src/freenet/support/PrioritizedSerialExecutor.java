@@ -277,6 +277,16 @@ public class PrioritizedSerialExecutor implements Executor {
 		}
 	}
 
+	/** The number of jobs queued at all priorities. */
+	public int getTotalQueueSize() {
+		int total = 0;
+		synchronized(jobs) {
+			for(int i=0;i<jobs.length;i++)
+				total += jobs[i].size();
+		}
+		return total;
+	}
+
 	public int getWaitingThreadsCount() {
 		synchronized(jobs) {
 			return (waiting ? 1 : 0);
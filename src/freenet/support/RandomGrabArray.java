@@ -5,6 +5,7 @@ import org.tanukisoftware.wrapper.WrapperManager;
 import com.db4o.ObjectContainer;
 
 import freenet.client.async.ClientContext;
+import freenet.client.async.DBCommitLock;
 import freenet.client.async.HasCooldownCacheItem;
 
 /**
@@ -713,7 +714,7 @@ public class RandomGrabArray implements RemoveRandom, HasCooldownCacheItem {
 			if(persistent) {
 				container.store(block);
 				container.deactivate(block, 1);
-				if(canCommit) container.commit();
+				if(canCommit) DBCommitLock.commit(container);
 			}
 			System.out.println("Moved block in RGA "+this);
 		}
@@ -3,6 +3,7 @@ package freenet.support;
 import com.db4o.ObjectContainer;
 
 import freenet.client.async.ClientContext;
+import freenet.client.async.DBCommitLock;
 import freenet.client.async.HasCooldownCacheItem;
 
 /**
@@ -573,14 +574,14 @@ public class SectoredRandomGrabArray implements RemoveRandom, RemoveRandomParent
 			grabClients[i] = null;
 			if(persistent) {
 				container.store(this);
-				if(canCommit) container.commit();
+				if(canCommit) DBCommitLock.commit(container);
 			}
 		}
 		grabArrays = new RemoveRandomWithObject[0];
 		grabClients = new Object[0];
 		if(persistent) {
 			container.store(this);
-			if(canCommit) container.commit();
+			if(canCommit) DBCommitLock.commit(container);
 		}
 	}
 
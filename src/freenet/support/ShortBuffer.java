@@ -22,7 +22,6 @@ package freenet.support;
 import java.io.DataInput;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.Arrays;
 
 import freenet.io.WritableToDataOutputStream;
 
@@ -142,11 +141,11 @@ public class ShortBuffer implements WritableToDataOutputStream {
 		if (_length != buffer._length) {
 			return false;
 		}
-		if (_start != buffer._start) {
-			return false;
-		}
-		if (!Arrays.equals(_data, buffer._data)) {
-			return false;
+		// Compare the content, a decoded Buffer may be a view of a larger array
+		for (int i = 0; i < _length; i++) {
+			if (_data[_start + i] != buffer._data[buffer._start + i]) {
+				return false;
+			}
 		}
 
 		return true;
@@ -154,7 +153,7 @@ public class ShortBuffer implements WritableToDataOutputStream {
 
 	@Override
 	public int hashCode() {
-	    return Fields.hashCode(_data) ^ _start ^ (_length << 16);
+	    return Fields.hashCode(_data, _start, _length) ^ (_length << 16);
 	}
 	
 	public int getLength() {
@@ -0,0 +1,222 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Hash map from primitive long's to objects, split into independently locked stripes so that
+ * threads working on different keys rarely contend. No Long's or Map.Entry's are allocated.
+ *
+ * Each stripe is an open addressing table with linear probing. Values may not be null: a null
+ * value marks an empty slot, so any long, including 0, is a valid key.
+ */
+public class StripedLongHashMap<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private final Stripe<V>[] stripes;
+	private final int stripeMask;
+
+	private static class Stripe<V> {
+		private long[] keys;
+		private Object[] values;
+		private int size;
+
+		Stripe() {
+			keys = new long[MIN_CAPACITY];
+			values = new Object[MIN_CAPACITY];
+		}
+
+		private int find(long key) {
+			int mask = keys.length - 1;
+			int i = hash(key) & mask;
+			while(values[i] != null) {
+				if(keys[i] == key) return i;
+				i = (i + 1) & mask;
+			}
+			return -1 - i;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V get(long key) {
+			int i = find(key);
+			return i < 0 ? null : (V) values[i];
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V putIfAbsent(long key, V value) {
+			int i = find(key);
+			if(i >= 0) return (V) values[i];
+			i = -1 - i;
+			keys[i] = key;
+			values[i] = value;
+			if(++size * 2 > keys.length) resize(keys.length * 2);
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V put(long key, V value) {
+			int i = find(key);
+			if(i >= 0) {
+				V old = (V) values[i];
+				values[i] = value;
+				return old;
+			}
+			i = -1 - i;
+			keys[i] = key;
+			values[i] = value;
+			if(++size * 2 > keys.length) resize(keys.length * 2);
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V remove(long key, V expected) {
+			int i = find(key);
+			if(i < 0) return null;
+			V old = (V) values[i];
+			if(expected != null && old != expected) return null;
+			delete(i);
+			return old;
+		}
+
+		/** Remove slot i, moving back any following entries that would otherwise be unreachable. */
+		private void delete(int i) {
+			int mask = keys.length - 1;
+			int j = i;
+			while(true) {
+				j = (j + 1) & mask;
+				if(values[j] == null) break;
+				int home = hash(keys[j]) & mask;
+				// Move j to i unless its home slot lies cyclically in (i, j].
+				if(i <= j ? (i < home && home <= j) : (i < home || home <= j)) continue;
+				keys[i] = keys[j];
+				values[i] = values[j];
+				i = j;
+			}
+			values[i] = null;
+			size--;
+			if(keys.length > MIN_CAPACITY && size * 8 < keys.length) resize(keys.length / 2);
+		}
+
+		private void resize(int capacity) {
+			long[] oldKeys = keys;
+			Object[] oldValues = values;
+			keys = new long[capacity];
+			values = new Object[capacity];
+			int mask = capacity - 1;
+			for(int i = 0; i < oldKeys.length; i++) {
+				if(oldValues[i] == null) continue;
+				int j = hash(oldKeys[i]) & mask;
+				while(values[j] != null)
+					j = (j + 1) & mask;
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+
+		synchronized int size() {
+			return size;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized void addValues(ArrayList<V> list) {
+			for(Object o : values)
+				if(o != null) list.add((V) o);
+		}
+
+		synchronized void addKeys(Collection<Long> list) {
+			for(int i = 0; i < keys.length; i++)
+				if(values[i] != null) list.add(keys[i]);
+		}
+	}
+
+	/**
+	 * @param concurrency The expected number of threads accessing the map at once. Rounded up
+	 * to a power of 2.
+	 */
+	@SuppressWarnings("unchecked")
+	public StripedLongHashMap(int concurrency) {
+		int n = 1;
+		while(n < concurrency) n <<= 1;
+		stripes = new Stripe[n];
+		for(int i = 0; i < n; i++)
+			stripes[i] = new Stripe<V>();
+		stripeMask = n - 1;
+	}
+
+	/** Mix all 64 bits, UIDs are random but other keys may not be. */
+	static int hash(long key) {
+		key ^= (key >>> 33);
+		key *= 0xff51afd7ed558ccdL;
+		key ^= (key >>> 33);
+		return (int) key;
+	}
+
+	private Stripe<V> stripe(long key) {
+		// Use the high bits of the hash, the stripe uses the low bits.
+		return stripes[(hash(key) >>> 24) & stripeMask];
+	}
+
+	public V get(long key) {
+		return stripe(key).get(key);
+	}
+
+	public boolean containsKey(long key) {
+		return get(key) != null;
+	}
+
+	/**
+	 * Add a mapping if there isn't one already.
+	 * @return The existing value, or null if the value was added.
+	 */
+	public V putIfAbsent(long key, V value) {
+		if(value == null) throw new NullPointerException();
+		return stripe(key).putIfAbsent(key, value);
+	}
+
+	/** @return The previous value, or null. */
+	public V put(long key, V value) {
+		if(value == null) throw new NullPointerException();
+		return stripe(key).put(key, value);
+	}
+
+	/** @return The removed value, or null if there was none. */
+	public V remove(long key) {
+		return stripe(key).remove(key, null);
+	}
+
+	/**
+	 * Remove the mapping only if it maps to this exact value.
+	 * @return True if it was removed.
+	 */
+	public boolean remove(long key, V value) {
+		if(value == null) throw new NullPointerException();
+		return stripe(key).remove(key, value) != null;
+	}
+
+	/** Not atomic: the stripes are counted one at a time. */
+	public int size() {
+		int total = 0;
+		for(Stripe<V> s : stripes)
+			total += s.size();
+		return total;
+	}
+
+	/** @return A copy of the values. Not atomic: the stripes are copied one at a time. */
+	public ArrayList<V> values() {
+		ArrayList<V> list = new ArrayList<V>();
+		for(Stripe<V> s : stripes)
+			s.addValues(list);
+		return list;
+	}
+
+	/** Add the keys to the list. Not atomic: the stripes are copied one at a time. */
+	public void addKeys(Collection<Long> list) {
+		for(Stripe<V> s : stripes)
+			s.addKeys(list);
+	}
+
+}
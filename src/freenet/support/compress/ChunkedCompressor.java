@@ -0,0 +1,378 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.Closer;
+import freenet.support.io.NativeThread;
+
+/**
+ * Splits the data into chunks and compresses each chunk independently with another codec, on
+ * several threads at once, so big files compress (and decompress) on all the cores rather than
+ * one. The compression ratio is slightly worse than compressing the whole file as one stream.
+ * Each stream has one thread of its own; any more take a permit from
+ * RealCompressor.compressorSemaphore each, so all the streams together don't run more
+ * compression threads than RealCompressor allows. If there are no permits, the stream gets by
+ * with one thread.
+ *
+ * Format: A sequence of chunks, each being the uncompressed length (int, at most
+ * MAX_CHUNK_SIZE), the compressed length (int, at most MAX_COMPRESSED_CHUNK_SIZE), and the
+ * compressed data, in the inner codec's format. Terminated by an uncompressed length of 0.
+ * Because the lengths are bounded, so is the memory needed to decompress each chunk.
+ */
+// WARNING: THIS CLASS IS STORED IN DB4O -- THINK TWICE BEFORE ADD/REMOVE/RENAME FIELDS
+public class ChunkedCompressor implements Compressor {
+
+	/** The biggest chunk we will compress or decompress. */
+	public static final int MAX_CHUNK_SIZE = 4*1024*1024;
+	/** The biggest compressed chunk we will accept. Generous, in case the data didn't compress. */
+	public static final int MAX_COMPRESSED_CHUNK_SIZE = MAX_CHUNK_SIZE + MAX_CHUNK_SIZE / 2;
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** The codec for each chunk. */
+	private final Compressor inner;
+	private final int chunkSize;
+	/** Maximum number of threads per stream. 0 = one per processor. */
+	private final int maxThreads;
+	/** Permits for threads after the first in each stream. Normally RealCompressor's. */
+	private final transient Semaphore permits;
+
+	public ChunkedCompressor(Compressor inner) {
+		this(inner, MAX_CHUNK_SIZE, 0, RealCompressor.compressorSemaphore);
+	}
+
+	ChunkedCompressor(Compressor inner, int chunkSize, int maxThreads, Semaphore permits) {
+		if(chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) throw new IllegalArgumentException();
+		this.inner = inner;
+		this.chunkSize = chunkSize;
+		this.maxThreads = maxThreads;
+		this.permits = permits;
+	}
+
+	/** A chunk of data waiting to be compressed or decompressed, or done. */
+	private static class Chunk {
+		final byte[] input;
+		final int length;
+		/** For decompression, the expected output length. */
+		final int outputLength;
+		private byte[] output;
+		private IOException error;
+		private boolean done;
+
+		Chunk(byte[] input, int length, int outputLength) {
+			this.input = input;
+			this.length = length;
+			this.outputLength = outputLength;
+		}
+
+		synchronized void finish(byte[] output, IOException error) {
+			this.output = output;
+			this.error = error;
+			done = true;
+			notifyAll();
+		}
+
+		/** Wait for the chunk to be processed, and return the output. */
+		synchronized byte[] getOutput() throws IOException {
+			while(!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+			if(error != null) throw error;
+			return output;
+		}
+	}
+
+	/**
+	 * Processes chunks on a few threads, for one stream. The caller queues chunks in order and
+	 * waits for them in the same order, so the output is in order. At most two chunks per
+	 * running thread are queued or running at once, bounding the memory used.
+	 */
+	private abstract class ChunkWorkers {
+		private final LinkedList<Chunk> queue = new LinkedList<Chunk>();
+		private final LinkedList<Chunk> inFlight = new LinkedList<Chunk>();
+		private final int threads;
+		private int started;
+		private boolean shutdown;
+
+		ChunkWorkers(long length) {
+			int t = maxThreads > 0 ? maxThreads : Runtime.getRuntime().availableProcessors();
+			// No point having more threads than chunks.
+			if(length >= 0)
+				t = (int) Math.max(1, Math.min(t, length / chunkSize + 1));
+			threads = t;
+		}
+
+		abstract byte[] process(Chunk chunk) throws IOException;
+
+		/**
+		 * Queue a chunk. If too many are in flight, first wait for the oldest one.
+		 * @return The oldest chunk, finished, if we had to wait for it, or null.
+		 */
+		Chunk add(Chunk chunk, String name) throws IOException {
+			Chunk done = null;
+			int running;
+			synchronized(this) {
+				running = Math.max(1, started);
+			}
+			if(inFlight.size() >= running * 2)
+				done = next();
+			inFlight.addLast(chunk);
+			synchronized(this) {
+				queue.addLast(chunk);
+				if(started < threads && started < inFlight.size()) {
+					// The first thread is the stream's own, the rest need a permit.
+					final boolean permit = started > 0;
+					if(!permit || (permits != null && permits.tryAcquire())) {
+						started++;
+						new NativeThread(new Runnable() {
+
+							public void run() {
+								try {
+									work();
+								} finally {
+									if(permit) permits.release();
+								}
+							}
+
+						}, name + " " + started, NativeThread.MIN_PRIORITY, false).start();
+					}
+				}
+				notifyAll();
+			}
+			return done;
+		}
+
+		/** @return The oldest chunk in flight, once it is finished, or null if there are none. */
+		Chunk next() throws IOException {
+			if(inFlight.isEmpty()) return null;
+			Chunk chunk = inFlight.removeFirst();
+			chunk.getOutput();
+			return chunk;
+		}
+
+		/** Stop the threads once they have finished the queued chunks. */
+		synchronized void shutdown() {
+			shutdown = true;
+			queue.clear();
+			notifyAll();
+		}
+
+		private void work() {
+			freenet.support.Logger.OSThread.logPID(this);
+			while(true) {
+				Chunk chunk;
+				synchronized(this) {
+					while(queue.isEmpty() && !shutdown) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+					if(queue.isEmpty()) return;
+					chunk = queue.removeFirst();
+				}
+				try {
+					chunk.finish(process(chunk), null);
+				} catch (IOException e) {
+					chunk.finish(null, e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" processing chunk", t);
+					IOException e = new IOException("Chunk failed: "+t);
+					e.initCause(t);
+					chunk.finish(null, e);
+				}
+			}
+		}
+	}
+
+	public Bucket compress(Bucket data, BucketFactory bf, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		Bucket output = bf.makeBucket(maxWriteLength);
+		InputStream is = null;
+		OutputStream os = null;
+		try {
+			is = data.getInputStream();
+			os = output.getOutputStream();
+			compress(is, os, maxReadLength, maxWriteLength);
+		} finally {
+			Closer.close(is);
+			Closer.close(os);
+		}
+		return output;
+	}
+
+	public long compress(InputStream is, OutputStream os, long maxReadLength, long maxWriteLength) throws IOException, CompressionOutputSizeException {
+		if(maxReadLength < 0)
+			throw new IllegalArgumentException();
+		DataOutputStream dos = new DataOutputStream(os);
+		ChunkWorkers workers = new ChunkWorkers(maxReadLength) {
+
+			@Override
+			byte[] process(Chunk chunk) throws IOException {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(chunk.length);
+				inner.compress(new ByteArrayInputStream(chunk.input, 0, chunk.length), baos, chunk.length, MAX_COMPRESSED_CHUNK_SIZE);
+				return baos.toByteArray();
+			}
+
+		};
+		long read = 0;
+		long written = 0;
+		try {
+			while(true) {
+				int l = (int) Math.min(chunkSize, maxReadLength - read);
+				byte[] buf = new byte[l];
+				int length = readFully(is, buf);
+				Chunk done;
+				if(length > 0) {
+					read += length;
+					done = workers.add(new Chunk(buf, length, -1), "Chunked compressor");
+					if(done != null)
+						written = writeChunk(dos, done, written, maxWriteLength);
+				}
+				if(length < l || read == maxReadLength) {
+					// End of the data.
+					while((done = workers.next()) != null)
+						written = writeChunk(dos, done, written, maxWriteLength);
+					break;
+				}
+			}
+			dos.writeInt(0);
+			written += 4;
+			dos.flush();
+		} finally {
+			workers.shutdown();
+		}
+		if(logMINOR)
+			Logger.minor(this, "Read "+read+" written "+written);
+		return written;
+	}
+
+	/** Write a compressed chunk. @return The total written so far. */
+	private long writeChunk(DataOutputStream dos, Chunk chunk, long written, long maxWriteLength) throws IOException {
+		byte[] output = chunk.getOutput();
+		// Can't be decompressed.
+		if(output.length > MAX_COMPRESSED_CHUNK_SIZE)
+			throw new CompressionOutputSizeException(output.length);
+		written += output.length + 8;
+		if(written > maxWriteLength)
+			throw new CompressionOutputSizeException(written);
+		dos.writeInt(chunk.length);
+		dos.writeInt(output.length);
+		dos.write(output);
+		return written;
+	}
+
+	/** Read as much as possible into the buffer. @return The number of bytes read. */
+	private static int readFully(InputStream is, byte[] buf) throws IOException {
+		int offset = 0;
+		while(offset < buf.length) {
+			int x = is.read(buf, offset, buf.length - offset);
+			if(x <= -1) break;
+			if(x == 0) throw new IOException("Returned zero from read()");
+			offset += x;
+		}
+		return offset;
+	}
+
+	public long decompress(InputStream is, OutputStream os, long maxLength, long maxCheckSizeBytes) throws IOException, CompressionOutputSizeException {
+		DataInputStream dis = new DataInputStream(is);
+		ChunkWorkers workers = new ChunkWorkers(-1) {
+
+			@Override
+			byte[] process(Chunk chunk) throws IOException {
+				ByteArrayOutputStream baos = new ByteArrayOutputStream(chunk.outputLength);
+				long length = inner.decompress(new ByteArrayInputStream(chunk.input, 0, chunk.length), baos, chunk.outputLength, -1);
+				if(length != chunk.outputLength || baos.size() != chunk.outputLength)
+					throw new InvalidCompressedDataException("Chunk decompressed to "+baos.size()+" bytes, should be "+chunk.outputLength);
+				return baos.toByteArray();
+			}
+
+		};
+		long written = 0;
+		// Including the chunks still being decompressed.
+		long total = 0;
+		try {
+			while(true) {
+				int outputLength = dis.readInt();
+				Chunk done;
+				if(outputLength == 0) {
+					while((done = workers.next()) != null)
+						written += writeOutput(os, done);
+					break;
+				}
+				if(outputLength < 0 || outputLength > MAX_CHUNK_SIZE)
+					throw new InvalidCompressedDataException("Invalid chunk length "+outputLength);
+				total += outputLength;
+				if(total > maxLength)
+					throw new CompressionOutputSizeException(total);
+				int length = dis.readInt();
+				if(length <= 0 || length > MAX_COMPRESSED_CHUNK_SIZE)
+					throw new InvalidCompressedDataException("Invalid compressed chunk length "+length);
+				byte[] buf = new byte[length];
+				dis.readFully(buf);
+				done = workers.add(new Chunk(buf, length, outputLength), "Chunked decompressor");
+				if(done != null)
+					written += writeOutput(os, done);
+			}
+		} catch (EOFException e) {
+			throw new InvalidCompressedDataException("Truncated chunked data");
+		} finally {
+			workers.shutdown();
+		}
+		return written;
+	}
+
+	private static int writeOutput(OutputStream os, Chunk chunk) throws IOException {
+		byte[] output = chunk.getOutput();
+		os.write(output);
+		return output.length;
+	}
+
+	public int decompress(byte[] dbuf, int i, int j, byte[] output) throws CompressionOutputSizeException {
+		ByteArrayInputStream bais = new ByteArrayInputStream(dbuf, i, j);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(output.length);
+		int bytes = 0;
+		try {
+			decompress(bais, baos, output.length, -1);
+			bytes = baos.size();
+		} catch (CompressionOutputSizeException e) {
+			throw e;
+		} catch (IOException e) {
+			// Impossible
+			throw new Error("Got IOException: " + e.getMessage(), e);
+		}
+		byte[] buf = baos.toByteArray();
+		System.arraycopy(buf, 0, output, 0, bytes);
+		return bytes;
+	}
+
+}
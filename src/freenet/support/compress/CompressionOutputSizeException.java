@@ -14,7 +14,7 @@ public class CompressionOutputSizeException extends IOException {
 		this(-1);
 	}
 
-	CompressionOutputSizeException(long sz) {
+	public CompressionOutputSizeException(long sz) {
 		super("The output was too big for the buffer; estimated size: " + sz);
 		estimatedSize = sz;
 	}
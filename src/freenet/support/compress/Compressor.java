@@ -28,7 +28,10 @@ public interface Compressor {
 		GZIP("GZIP", new GzipCompressor(), (short) 0),
 		BZIP2("BZIP2", new Bzip2Compressor(), (short) 1),
 		LZMA("LZMA", new OldLZMACompressor(), (short)2),
-		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3);
+		LZMA_NEW("LZMA_NEW", new NewLZMACompressor(), (short)3),
+		// LZMA in independent chunks, so big files can be compressed on several cores at once.
+		// Not in the default list, older nodes can't decompress it.
+		LZMA_NEW_CHUNKED("LZMA_NEW_CHUNKED", new ChunkedCompressor(new NewLZMACompressor()), (short)4);
 
 		public final String name;
 		public final Compressor compressor;
@@ -98,14 +101,14 @@ public interface Compressor {
 			COMPRESSOR_TYPE[] result = getCompressorsArrayNoDefault(compressordescriptor);
 			if (result == null) {
 				COMPRESSOR_TYPE[] val = COMPRESSOR_TYPE.values();
-				COMPRESSOR_TYPE[] ret = new COMPRESSOR_TYPE[val.length-1];
-				int x = 0;
+				Vector<COMPRESSOR_TYPE> ret = new Vector<COMPRESSOR_TYPE>();
 				for(int i=0;i<val.length;i++) {
 					if((val[i] == LZMA) && !pre1254) continue;
 					if((val[i] == LZMA_NEW) && pre1254) continue;
-					ret[x++] = val[i];
+					if(val[i] == LZMA_NEW_CHUNKED) continue; // Must be asked for explicitly.
+					ret.add(val[i]);
 				}
-				result = ret;
+				result = ret.toArray(new COMPRESSOR_TYPE[ret.size()]);
 			}
 			return result;
 		}
@@ -180,6 +183,7 @@ public interface Compressor {
 			if(name.equals("LZMA_OLD")) return LZMA;
 			if(name.equals("LZMA_NEW")) return LZMA_NEW;
 			if(name.equals("LZMA")) return LZMA_NEW;
+			if(name.equals("LZMA_NEW_CHUNKED")) return LZMA_NEW_CHUNKED;
 			return null;
 		}
 
@@ -196,7 +200,7 @@ public interface Compressor {
 		}
 
 		public boolean isOfficial() {
-			if(!(this == GZIP || this == BZIP2 || this == LZMA || this == LZMA_NEW)) {
+			if(!(this == GZIP || this == BZIP2 || this == LZMA || this == LZMA_NEW || this == LZMA_NEW_CHUNKED)) {
 				Logger.error(this, "Unofficial COMPESSOR_TYPE, isn't this impossible?");
 				// Initially I had thought db4o was copying the enum values, but testing shows this doesn't happen.
 				// So this is definitely an error.
@@ -35,6 +35,9 @@ public class RealCompressor implements PrioRunnable {
 		});
 	}
 
+	/** If true, InsertCompressor tries all the codecs at once rather than one at a time. */
+	private volatile boolean parallelCodecs;
+
 	public RealCompressor(Executor e) {
 		this.exec = e;
 	}
@@ -47,6 +50,14 @@ public class RealCompressor implements PrioRunnable {
 		return NativeThread.HIGH_PRIORITY;
 	}
 	
+	public boolean getParallelCodecs() {
+		return parallelCodecs;
+	}
+	
+	public void setParallelCodecs(boolean parallelCodecs) {
+		this.parallelCodecs = parallelCodecs;
+	}
+	
 	public synchronized void enqueueNewJob(CompressJob j) {
 		_awaitingJobs.add(j);
 		if(logMINOR)
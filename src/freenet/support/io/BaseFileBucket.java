@@ -7,6 +7,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.Vector;
 
@@ -214,6 +216,16 @@ public abstract class BaseFileBucket implements Bucket {
 				length++;
 			}
 		}
+
+		/** Write the remaining bytes of a buffer, without copying a direct buffer onto the heap. */
+		void write(ByteBuffer buf) throws IOException {
+			synchronized (BaseFileBucket.this) {
+				confirmWriteSynchronized();
+				FileChannel channel = getChannel();
+				while(buf.hasRemaining())
+					length += channel.write(buf);
+			}
+		}
 		
 		@Override
 		public void close() throws IOException {
@@ -21,11 +21,14 @@ import freenet.support.api.Bucket;
 public class PersistentBlobTempBucket implements Bucket {
 	
 	public final long blockSize;
-	long size;
+	volatile long size;
 	public final PersistentBlobTempBucketFactory factory;
 	/** The index into the blob file of this specific bucket */
 	private volatile long index;
-	private boolean freed;
+	/** Incremented every time the bucket is moved by defrag, so a reader can tell if the index
+	 * changed while it was reading. */
+	private transient volatile int moves;
+	private volatile boolean freed;
 	private boolean readOnly;
 	/** Has this bucket been persisted? If not, it will be only on the temporary
 	 * map in the factory. */
@@ -76,9 +79,12 @@ public class PersistentBlobTempBucket implements Bucket {
 	
 	private int inputStreams;
 	
-	// LOCKING: Writes and reads occur inside synchronized(this) because otherwise
-	// the index might change during defrag, especially if we are reading a shadow
-	// bucket on a non-database thread.
+	// LOCKING: Writes occur inside synchronized(this) because otherwise the index
+	// might change during defrag, especially if we are writing on a non-database thread.
+	// Reads don't lock: many threads read the blob file at once, and FileChannel's
+	// positional reads can run in parallel. Instead, a read checks that the bucket
+	// hasn't been moved while it was reading, and if it has, tries again from the new
+	// index. The old slot isn't reused until after the next commit, so the retry is rare.
 	
 	public InputStream getInputStream() throws IOException {
 		if(freed) throw new IOException("Already freed");
@@ -108,23 +114,22 @@ public class PersistentBlobTempBucket implements Bucket {
 			public int read(byte[] buffer, int bufOffset, int length) throws IOException {
 				if (closed) throw new IOException("closed");
 				
-				long max;
-				long idx;
-				synchronized(PersistentBlobTempBucket.this) {
-					if(freed) throw new IOException("Bucket freed during read");
-					max = Math.min(blockSize, size);
-				}
+				if(freed) throw new IOException("Bucket freed during read");
+				long max = Math.min(blockSize, size);
 				if(length == 0) return 0;
 				if(bufOffset < 0) return -1; // throw new EOFException() ???
 				if(offset + length >= max)
 					length = (int) Math.min(max - offset, Integer.MAX_VALUE);
 				if(length == 0) return -1;
 				if(length < 0) throw new IllegalStateException("offset="+bufOffset+" length="+length+" buf len = "+buffer.length+" my offset is "+offset+" my size is "+max+" for "+this+" for "+PersistentBlobTempBucket.this);
-				ByteBuffer buf = ByteBuffer.wrap(buffer, bufOffset, length);
 				int read;
-				// Synchronize to guarantee that index doesn't change during a read.
-				synchronized(PersistentBlobTempBucket.this) {
+				while(true) {
+					int movesBefore = moves;
+					// Wrap it again on each try: clear() would lose the caller's offset and length.
+					ByteBuffer buf = ByteBuffer.wrap(buffer, bufOffset, length);
 					read = channel.read(buf, blockSize * index + offset);
+					if(moves == movesBefore) break;
+					// Moved by defrag while we were reading, read it again from the new slot.
 				}
 				if(read > 0) offset += read;
 				return read;
@@ -320,6 +325,7 @@ public class PersistentBlobTempBucket implements Bucket {
 	 * on all the buckets while copying the data and setting the new indexes. */
 	synchronized void setIndex(long index2) {
 		this.index = index2;
+		moves++;
 	}
 
 	synchronized void setTag(PersistentBlobTempBucketTag newTag) {
@@ -262,6 +262,8 @@ public class PersistentBlobTempBucketFactory {
 	}
 	
 	static final int MAX_FREE = 2048;
+	/** When there are fewer free slots than this, makeBucket() queues the slot finder. */
+	static final int REFILL_FREE = MAX_FREE / 4;
 	
 	private transient DBJob slotFinder;
 	
@@ -509,61 +511,58 @@ outer:		while(true) {
 	 */
 	public PersistentBlobTempBucket makeBucket() throws DatabaseDisabledException {
 		// Find a free slot.
+		PersistentBlobTempBucket bucket = null;
+		boolean refill = false;
 		synchronized(this) {
 			if(!freeSlots.isEmpty()) {
-				Long slot = freeSlots.firstKey();
-				if(logMINOR) {
-					try {
-						if(slot * blockSize > channel.size()) {
-							Logger.error(this, "Free slot "+slot+" but file length is "+channel.size()+" = "+(channel.size() / blockSize)+" blocks");
-							freeSlots.remove(slot);
-							return null;
-						}
-					} catch (IOException e) {
-						return null;
-					}
-				}
-				PersistentBlobTempBucketTag tag = freeSlots.remove(slot);
-				if(notCommittedBlobs.get(slot) != null || almostFreeSlots.get(slot) != null) {
-					Logger.error(this, "Slot "+slot+" already occupied by a not committed blob despite being in freeSlots!!");
-					freeSlots.remove(slot);
-					return null;
+				bucket = takeFreeSlot(false);
+				refill = freeSlots.size() < REFILL_FREE;
+			}
+		}
+		if(bucket != null) {
+			if(refill) {
+				// Find more before we run out, so callers don't have to wait for the database.
+				try {
+					jobRunner.queue(slotFinder, NativeThread.NORM_PRIORITY, true);
+				} catch (DatabaseDisabledException e) {
+					// Ignore, we have a bucket.
 				}
-				PersistentBlobTempBucket bucket = new PersistentBlobTempBucket(this, blockSize, slot, tag, false);
-				notCommittedBlobs.put(slot, bucket);
-				if(logMINOR) Logger.minor(this, "Using slot "+slot+" for "+bucket);
-				return bucket;
 			}
+			return bucket;
 		}
 		jobRunner.runBlocking(slotFinder, NativeThread.HIGH_PRIORITY);
 		synchronized(this) {
-			if(!freeSlots.isEmpty()) {
-				Long slot = freeSlots.firstKey();
-				if(logMINOR) {
-					try {
-						if(slot * blockSize > channel.size()) {
-							Logger.error(this, "Free slot "+slot+" but file length is "+channel.size()+" = "+(channel.size() / blockSize)+" blocks");
-							freeSlots.remove(slot);
-							return null;
-						}
-					} catch (IOException e) {
-						return null;
-					}
-				}
-				PersistentBlobTempBucketTag tag = freeSlots.remove(slot);
-				if(notCommittedBlobs.get(slot) != null || almostFreeSlots.get(slot) != null) {
-					Logger.error(this, "Slot "+slot+" already occupied by a not committed blob despite being in freeSlots!!");
+			if(!freeSlots.isEmpty())
+				return takeFreeSlot(true);
+		}
+		Logger.error(this, "Returning null, unable to create a bucket for some reason, node will fallback to file-based buckets");
+		return null;
+	}
+	
+	/** Create a bucket in the first free slot. Caller must check that freeSlots is not empty. */
+	private synchronized PersistentBlobTempBucket takeFreeSlot(boolean waited) {
+		Long slot = freeSlots.firstKey();
+		if(logMINOR) {
+			try {
+				if(slot * blockSize > channel.size()) {
+					Logger.error(this, "Free slot "+slot+" but file length is "+channel.size()+" = "+(channel.size() / blockSize)+" blocks");
 					freeSlots.remove(slot);
 					return null;
 				}
-				PersistentBlobTempBucket bucket = new PersistentBlobTempBucket(this, blockSize, slot, tag, false);
-				notCommittedBlobs.put(slot, bucket);
-				if(logMINOR) Logger.minor(this, "Using slot "+slot+" for "+bucket+" (after waiting)");
-				return bucket;
+			} catch (IOException e) {
+				return null;
 			}
 		}
-		Logger.error(this, "Returning null, unable to create a bucket for some reason, node will fallback to file-based buckets");
-		return null;
+		PersistentBlobTempBucketTag tag = freeSlots.remove(slot);
+		if(notCommittedBlobs.get(slot) != null || almostFreeSlots.get(slot) != null) {
+			Logger.error(this, "Slot "+slot+" already occupied by a not committed blob despite being in freeSlots!!");
+			freeSlots.remove(slot);
+			return null;
+		}
+		PersistentBlobTempBucket bucket = new PersistentBlobTempBucket(this, blockSize, slot, tag, false);
+		notCommittedBlobs.put(slot, bucket);
+		if(logMINOR) Logger.minor(this, "Using slot "+slot+" for "+bucket+(waited ? " (after waiting)" : ""));
+		return bucket;
 	}
 
 	public synchronized void freeBucket(long index, PersistentBlobTempBucket bucket) {
@@ -660,176 +659,196 @@ outer:		while(true) {
 		
 		long newBlocks;
 		
-		synchronized(this) {
-		
-			int blocksMoved = 0;
-			if(now - lastCheckedEnd > 60*1000 || DISABLE_SANITY_CHECKS_DEFRAG) {
-				if(logMINOR) Logger.minor(this, "maybeShrink() inner");
-				// Check whether there is a big white space at the end of the file.
-				long blocks = getSize();
-				if(blocks == Long.MAX_VALUE) {
-					Logger.error(this, "Not shrinking, unable to determine size");
-					return false;
-				}
-				if(blocks <= 32 && !DISABLE_SANITY_CHECKS_DEFRAG) {
-					if(logMINOR) Logger.minor(this, "Not shrinking, blob file not larger than a megabyte");
-					lastCheckedEnd = now;
-					queueMaybeShrink();
-					return false;
-				}
-				long lastNotCommitted = notCommittedBlobs.isEmpty() ? 0 : notCommittedBlobs.lastKey();
-				long lastAlmostFreed = almostFreeSlots.isEmpty() ? 0 : almostFreeSlots.lastKey();
-				if(lastNotCommitted < lastAlmostFreed) {
-					if(logMINOR) Logger.minor(this, "Last almost freed: "+lastAlmostFreed+" replacing last not committed: "+lastNotCommitted);
-					lastNotCommitted = lastAlmostFreed;
+		// LOCKING: We only take the factory lock for the in-memory slot maps, not for the
+		// database queries or while copying blocks, so that other threads can still allocate
+		// and free buckets while we defrag. We run on the database thread, so the tags and
+		// the committed buckets won't change under us.
+	
+		int blocksMoved = 0;
+		if(now - lastCheckedEnd > 60*1000 || DISABLE_SANITY_CHECKS_DEFRAG) {
+			if(logMINOR) Logger.minor(this, "maybeShrink() inner");
+			// Check whether there is a big white space at the end of the file.
+			long blocks = getSize();
+			if(blocks == Long.MAX_VALUE) {
+				Logger.error(this, "Not shrinking, unable to determine size");
+				return false;
+			}
+			if(blocks <= 32 && !DISABLE_SANITY_CHECKS_DEFRAG) {
+				if(logMINOR) Logger.minor(this, "Not shrinking, blob file not larger than a megabyte");
+				lastCheckedEnd = now;
+				queueMaybeShrink();
+				return false;
+			}
+			long lastNotCommitted;
+			long lastAlmostFreed;
+			synchronized(this) {
+				lastNotCommitted = notCommittedBlobs.isEmpty() ? 0 : notCommittedBlobs.lastKey();
+				lastAlmostFreed = almostFreeSlots.isEmpty() ? 0 : almostFreeSlots.lastKey();
+			}
+			if(lastNotCommitted < lastAlmostFreed) {
+				if(logMINOR) Logger.minor(this, "Last almost freed: "+lastAlmostFreed+" replacing last not committed: "+lastNotCommitted);
+				lastNotCommitted = lastAlmostFreed;
+			}
+			double full = (double)lastNotCommitted / (double)blocks;
+			if((full > 0.8 && !DISABLE_SANITY_CHECKS_DEFRAG) || lastNotCommitted == blocks) {
+				if(logMINOR) Logger.minor(this, "Not shrinking, last not committed block is at "+full*100+"% ("+lastNotCommitted+" of "+blocks+")");
+				lastCheckedEnd = now;
+				queueMaybeShrink();
+				return false;
+			}
+			long lastCommitted = -1;
+			PersistentBlobTempBucketTag lastTag = null;
+			PersistentBlobTempBucket lastBucket = null;
+			ObjectSet<PersistentBlobTempBucketTag> tags = null;
+			Query query = null;
+			final short MOVE_BLOCKS_PER_MINUTE;
+			if(freeBlocksCache != null && blocks < Integer.MAX_VALUE)
+				MOVE_BLOCKS_PER_MINUTE = 20;
+			else
+				MOVE_BLOCKS_PER_MINUTE = 10;
+findloop:		while(true) {
+				int last = (int) blocks;
+outer:				while(true) {
+					synchronized(this) {
+						last = freeBlocksCache.lastOne(last-1);
+						if(last == -1) break;
+						if(notCommittedBlobs.containsKey((long)last)) continue;
+					}
+					query = container.query();
+					query.constrain(PersistentBlobTempBucketTag.class);
+					query.descend("index").constrain((long)last);
+					tags = query.execute();
+					while(tags.hasNext()) {
+						lastTag = tags.next();
+						if(lastTag.factory != this) continue;
+						if(lastTag.isFree) continue outer;
+						if(lastTag.bucket == null) {
+							Logger.error(this, "Last tag has no bucket! index "+last);
+							lastTag.isFree = true;
+							container.store(lastTag);
+							continue outer;
+						}
+						lastCommitted = last;
+						lastBucket = lastTag.bucket;
+						break outer;
+					}
+					Logger.error(this, "Last slot has no tag! index "+last);
+					PersistentBlobTempBucketTag tag = new PersistentBlobTempBucketTag(PersistentBlobTempBucketFactory.this, last);
+					container.store(tag);
+					synchronized(this) {
+						freeBlocksCache.setBit((int)last, false);
+					}
+					continue;
 				}
-				double full = (double)lastNotCommitted / (double)blocks;
-				if((full > 0.8 && !DISABLE_SANITY_CHECKS_DEFRAG) || lastNotCommitted == blocks) {
-					if(logMINOR) Logger.minor(this, "Not shrinking, last not committed block is at "+full*100+"% ("+lastNotCommitted+" of "+blocks+")");
+			if(lastCommitted == -1) {
+				// No used slots at all?!
+				// There may be some not committed though
+				Logger.normal(this, "No used slots in persistent temp file (but last not committed = "+lastNotCommitted+")");
+				lastCommitted = 0;
+				query = null;
+			}
+			full = (double) lastCommitted / (double) blocks;
+			if(full > 0.8 || DISABLE_SANITY_CHECKS_DEFRAG) {
+				if(full > 0.8) {
+					if(logMINOR) Logger.minor(this, "Not shrinking, last committed block is at "+full*100+"%");
 					lastCheckedEnd = now;
 					queueMaybeShrink();
-					return false;
 				}
-				long lastCommitted = -1;
-				PersistentBlobTempBucketTag lastTag = null;
-				PersistentBlobTempBucket lastBucket = null;
-				ObjectSet<PersistentBlobTempBucketTag> tags = null;
-				Query query = null;
-				final short MOVE_BLOCKS_PER_MINUTE;
-				if(freeBlocksCache != null && blocks < Integer.MAX_VALUE)
-					MOVE_BLOCKS_PER_MINUTE = 20;
-				else
-					MOVE_BLOCKS_PER_MINUTE = 10;
-findloop:		while(true) {
-					int last = (int) blocks;
-outer:				while(true) {
-						synchronized(this) {
-							last = freeBlocksCache.lastOne(last-1);
-							if(last == -1) break;
-							if(notCommittedBlobs.containsKey((long)last)) continue;
-						}
-						query = container.query();
-						query.constrain(PersistentBlobTempBucketTag.class);
-						query.descend("index").constrain((long)last);
-						tags = query.execute();
-						while(tags.hasNext()) {
-							lastTag = tags.next();
-							if(lastTag.factory != this) continue;
-							if(lastTag.isFree) continue outer;
-							if(lastTag.bucket == null) {
-								Logger.error(this, "Last tag has no bucket! index "+last);
-								lastTag.isFree = true;
-								container.store(lastTag);
-								continue outer;
-							}
-							lastCommitted = last;
-							lastBucket = lastTag.bucket;
-							break outer;
-						}
-						Logger.error(this, "Last slot has no tag! index "+last);
-						PersistentBlobTempBucketTag tag = new PersistentBlobTempBucketTag(PersistentBlobTempBucketFactory.this, last);
-						container.store(tag);
-						synchronized(this) {
-							freeBlocksCache.setBit((int)last, false);
+				while(true) {
+					boolean deactivateLastBucket = !container.ext().isActive(lastBucket);
+					if(deactivateLastBucket)
+						container.activate(lastBucket, 1);
+					Long lFirstSlot;
+					PersistentBlobTempBucketTag newTag = null;
+					PersistentBlobTempBucket shadow = null;
+					synchronized(this) {
+						lFirstSlot = freeSlots.isEmpty() ? null : freeSlots.firstKey();
+						if(lFirstSlot != null && lFirstSlot < lastCommitted) {
+							// Take the slot now, so makeBucket() can't use it while we copy.
+							newTag = freeSlots.remove(lFirstSlot);
+							shadow = shadows.remove(lastCommitted);
+							if(shadow != null && newTag != null)
+								shadows.put(newTag.index, shadow);
 						}
-						continue;
 					}
-				if(lastCommitted == -1) {
-					// No used slots at all?!
-					// There may be some not committed though
-					Logger.normal(this, "No used slots in persistent temp file (but last not committed = "+lastNotCommitted+")");
-					lastCommitted = 0;
-					query = null;
-				}
-				full = (double) lastCommitted / (double) blocks;
-				if(full > 0.8 || DISABLE_SANITY_CHECKS_DEFRAG) {
-					if(full > 0.8) {
-						if(logMINOR) Logger.minor(this, "Not shrinking, last committed block is at "+full*100+"%");
-						lastCheckedEnd = now;
+					if(lFirstSlot == null) {
+						try {
+							jobRunner.queue(slotFinder, NativeThread.LOW_PRIORITY, false);
+						} catch (DatabaseDisabledException e) {
+							// Doh
+						}
 						queueMaybeShrink();
+						return false;
 					}
-					while(true) {
-						boolean deactivateLastBucket = !container.ext().isActive(lastBucket);
-						if(deactivateLastBucket)
-							container.activate(lastBucket, 1);
-						if(freeSlots.isEmpty()) {
-							try {
-								jobRunner.queue(slotFinder, NativeThread.LOW_PRIORITY, false);
-							} catch (DatabaseDisabledException e) {
-								// Doh
-							}
-							queueMaybeShrink();
-							return false;
-						}
-						Long lFirstSlot = freeSlots.firstKey();
-						long firstSlot = lFirstSlot;
-						if(firstSlot < lastCommitted) {
-							blocksMoved++;
-							// There is some degree of fragmentation.
-							// Move one key.
-							PersistentBlobTempBucketTag newTag = freeSlots.remove(lFirstSlot);
-							
-							if(newTag == null)
-								throw new NullPointerException();
-							
-							PersistentBlobTempBucket shadow = null;
-							if(shadows.containsKey(lastCommitted)) {
-								shadow = shadows.get(lastCommitted);
-								shadows.remove(lastCommitted);
-								shadows.put(newTag.index, shadow);
-							}
-							
-							// Synchronize on the target.
-							// We must ensure that the shadow is moved also before we relinquish the lock on either bucket.
-							// LOCKING: Nested locking of two buckets is bad, but provided we only do it here, we should be fine.
-							synchronized(lastBucket) {
-								if(shadow != null) {
-									synchronized(shadow) {
-										if(!innerDefrag(lastBucket, shadow, lastTag, newTag, container)) return false;
-									}
-								} else {
+					long firstSlot = lFirstSlot;
+					if(firstSlot < lastCommitted) {
+						blocksMoved++;
+						// There is some degree of fragmentation.
+						// Move one key.
+						if(newTag == null)
+							throw new NullPointerException();
+						
+						// Synchronize on the target.
+						// We must ensure that the shadow is moved also before we relinquish the lock on either bucket.
+						// LOCKING: Nested locking of two buckets is bad, but provided we only do it here, we should be fine.
+						synchronized(lastBucket) {
+							if(shadow != null) {
+								synchronized(shadow) {
 									if(!innerDefrag(lastBucket, shadow, lastTag, newTag, container)) return false;
 								}
+							} else {
+								if(!innerDefrag(lastBucket, shadow, lastTag, newTag, container)) return false;
 							}
-						} else {
-							if(logMINOR) Logger.minor(this, "First available slot "+firstSlot+" is after slot to move "+lastCommitted);
-							break;
 						}
-						if(deactivateLastBucket)
-							container.deactivate(lastBucket, 1);
-						if(blocksMoved < MOVE_BLOCKS_PER_MINUTE) {
-							lastTag = null;
-							continue findloop;
-						} else break;
+					} else {
+						if(logMINOR) Logger.minor(this, "First available slot "+firstSlot+" is after slot to move "+lastCommitted);
+						break;
 					}
-					if(blocksMoved > 0) {
-						try {
-							raf.getFD().sync();
-							Logger.normal(this, "Moved "+blocksMoved+" in defrag and synced to disk");
-						} catch (SyncFailedException e) {
-							System.err.println("Failed to sync to disk after defragging: "+e);
-							e.printStackTrace();
-						} catch (IOException e) {
-							System.err.println("Failed to sync to disk after defragging: "+e);
-							e.printStackTrace();
-						}
-						jobRunner.setCommitThisTransaction();
-					}
-					query = null;
-				}
-				break;
+					if(deactivateLastBucket)
+						container.deactivate(lastBucket, 1);
+					if(blocksMoved < MOVE_BLOCKS_PER_MINUTE) {
+						lastTag = null;
+						continue findloop;
+					} else break;
 				}
-				long lastBlock = Math.max(lastCommitted, lastNotCommitted);
-				// Must be 10% free at end
-				newBlocks = lastBlock;
-				if(!DISABLE_SANITY_CHECKS_DEFRAG) {
-					newBlocks = (long) ((newBlocks + 32) * 1.1);
-					newBlocks = Math.max(newBlocks, 32);
-				} else {
-					newBlocks++;
+				if(blocksMoved > 0) {
+					try {
+						raf.getFD().sync();
+						Logger.normal(this, "Moved "+blocksMoved+" in defrag and synced to disk");
+					} catch (SyncFailedException e) {
+						System.err.println("Failed to sync to disk after defragging: "+e);
+						e.printStackTrace();
+					} catch (IOException e) {
+						System.err.println("Failed to sync to disk after defragging: "+e);
+						e.printStackTrace();
+					}
+					jobRunner.setCommitThisTransaction();
 				}
-				if(newBlocks >= blocks) {
-					if(logMINOR) Logger.minor(this, "Not shrinking, would shrink from "+blocks+" to "+newBlocks);
+				query = null;
+			}
+			break;
+			}
+			long lastBlock = Math.max(lastCommitted, lastNotCommitted);
+			// Must be 10% free at end
+			newBlocks = lastBlock;
+			if(!DISABLE_SANITY_CHECKS_DEFRAG) {
+				newBlocks = (long) ((newBlocks + 32) * 1.1);
+				newBlocks = Math.max(newBlocks, 32);
+			} else {
+				newBlocks++;
+			}
+			if(newBlocks >= blocks) {
+				if(logMINOR) Logger.minor(this, "Not shrinking, would shrink from "+blocks+" to "+newBlocks);
+				lastCheckedEnd = now;
+				queueMaybeShrink();
+				return false;
+			}
+			synchronized(this) {
+				// We didn't hold the lock, so makeBucket() may have used a slot near the end since.
+				long lastUsed = Math.max(notCommittedBlobs.isEmpty() ? 0 : notCommittedBlobs.lastKey(),
+						almostFreeSlots.isEmpty() ? 0 : almostFreeSlots.lastKey());
+				if(lastUsed >= newBlocks) {
+					if(logMINOR) Logger.minor(this, "Not shrinking, slot "+lastUsed+" was used while defragging");
 					lastCheckedEnd = now;
 					queueMaybeShrink();
 					return false;
@@ -845,14 +864,12 @@ outer:				while(true) {
 					}
 				}
 				freeSlots.tailMap(newBlocks+1).clear();
-				lastCheckedEnd = now;
-				queueMaybeShrink();
-			} else return false;
-			cachedSize = newBlocks;
-		}
-		synchronized(this) {
-			freeBlocksCache.setSize((int)Math.min(Integer.MAX_VALUE, newBlocks));
-		}
+				cachedSize = newBlocks;
+				freeBlocksCache.setSize((int)Math.min(Integer.MAX_VALUE, newBlocks));
+			}
+			lastCheckedEnd = now;
+			queueMaybeShrink();
+		} else return false;
 		try {
 			channel.truncate(newBlocks * blockSize);
 		} catch (IOException e) {
@@ -14,6 +14,7 @@ import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
 import com.db4o.query.Predicate;
 
+import freenet.client.async.DBCommitLock;
 import freenet.client.async.DBJob;
 import freenet.client.async.DBJobRunner;
 import freenet.client.async.DatabaseDisabledException;
@@ -331,7 +332,7 @@ public class PersistentTempBucketFactory implements BucketFactory, PersistentFil
 				db.store(bucketsToFree);
 			}
 			// Lots of buckets freed, commit now to reduce memory footprint.
-			db.commit();
+			DBCommitLock.commit(db);
 		}
 	}
 
@@ -0,0 +1,218 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.OOMHook;
+import freenet.support.SizeUtil;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Allocates memory for SlabBucket's outside the Java heap, so that lots of short-lived RAM
+ * buckets don't churn the garbage collector, and long-lived ones don't fill the old generation.
+ *
+ * Memory is allocated from the JVM in slabs: direct ByteBuffer's of SLAB_SIZE, each split into
+ * chunks of a single size class. The biggest size class is a CHK block, so a bucket holding a
+ * block is exactly one chunk, and bigger buckets are chains of them. Freed chunks are kept for
+ * reuse. Slabs whose chunks are all free are given back on low memory; the JVM actually frees
+ * the memory when it collects the slab.
+ *
+ * The total size of the slabs is limited. When we reach the limit, or the JVM refuses to give us
+ * more direct memory, allocate() returns null and the caller must use something else, e.g. the
+ * disk.
+ */
+public class SlabAllocator implements OOMHook {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	/** Chunk sizes, smallest first. The biggest must be a CHK block. */
+	static final int[] CHUNK_SIZES = new int[] { 2048, 8192, 32768 };
+	/** The biggest chunk size. */
+	public static final int MAX_CHUNK_SIZE = CHUNK_SIZES[CHUNK_SIZES.length-1];
+	static final int SLAB_SIZE = 1024*1024;
+
+	/** One direct buffer, split into chunks of one size. */
+	private static class Slab {
+		final SizeClass sizeClass;
+		/** Number of chunks allocated and not freed. */
+		int used;
+		boolean released;
+
+		Slab(SizeClass sizeClass) {
+			this.sizeClass = sizeClass;
+		}
+	}
+
+	private static class SizeClass {
+		final int chunkSize;
+		final ArrayList<Slab> slabs = new ArrayList<Slab>();
+		final ArrayList<Chunk> free = new ArrayList<Chunk>();
+
+		SizeClass(int chunkSize) {
+			this.chunkSize = chunkSize;
+		}
+	}
+
+	/** A chunk of a slab. Only the allocator may change which chunks are in use. */
+	static final class Chunk {
+		/** Capacity is the chunk size. The position and limit are the caller's. */
+		final ByteBuffer buf;
+		private final Slab slab;
+		private boolean inUse;
+
+		private Chunk(ByteBuffer buf, Slab slab) {
+			this.buf = buf;
+			this.slab = slab;
+		}
+
+		int size() {
+			return buf.capacity();
+		}
+	}
+
+	private final SizeClass[] sizeClasses;
+	/** Maximum total size of the slabs. */
+	private long maxBytes;
+	/** Total size of the slabs. */
+	private long slabBytes;
+	/** Total size of the chunks in use. */
+	private long usedBytes;
+
+	public SlabAllocator(long maxBytes) {
+		this.maxBytes = maxBytes;
+		sizeClasses = new SizeClass[CHUNK_SIZES.length];
+		for(int i=0;i<CHUNK_SIZES.length;i++)
+			sizeClasses[i] = new SizeClass(CHUNK_SIZES[i]);
+	}
+
+	/**
+	 * Allocate a chunk.
+	 * @param size The number of bytes wanted. We return the smallest chunk at least this big,
+	 * or the biggest chunk if none is.
+	 * @return A chunk with position 0 and limit its capacity, or null if we are at the limit.
+	 */
+	synchronized Chunk allocate(int size) {
+		SizeClass sizeClass = sizeClasses[sizeClasses.length-1];
+		for(SizeClass c : sizeClasses) {
+			if(c.chunkSize >= size) {
+				sizeClass = c;
+				break;
+			}
+		}
+		if(sizeClass.free.isEmpty() && !addSlab(sizeClass))
+			return null;
+		Chunk chunk = sizeClass.free.remove(sizeClass.free.size()-1);
+		chunk.inUse = true;
+		chunk.slab.used++;
+		chunk.buf.clear();
+		usedBytes += sizeClass.chunkSize;
+		return chunk;
+	}
+
+	private boolean addSlab(SizeClass sizeClass) {
+		if(slabBytes + SLAB_SIZE > maxBytes) {
+			// Other size classes may have empty slabs we can use.
+			if(releaseEmptySlabs() == 0 || slabBytes + SLAB_SIZE > maxBytes)
+				return false;
+		}
+		ByteBuffer buf;
+		try {
+			buf = ByteBuffer.allocateDirect(SLAB_SIZE);
+		} catch (OutOfMemoryError e) {
+			// Direct memory is limited separately from the heap, by -XX:MaxDirectMemorySize.
+			// So this doesn't mean the heap is full, don't call OOMHandler.
+			Logger.error(this, "Unable to allocate direct memory, using "+SizeUtil.formatSize(slabBytes)+" : "+e);
+			releaseEmptySlabs();
+			return false;
+		}
+		Slab slab = new Slab(sizeClass);
+		sizeClass.slabs.add(slab);
+		int chunks = SLAB_SIZE / sizeClass.chunkSize;
+		for(int i=0;i<chunks;i++) {
+			buf.limit((i+1) * sizeClass.chunkSize);
+			buf.position(i * sizeClass.chunkSize);
+			sizeClass.free.add(new Chunk(buf.slice(), slab));
+		}
+		slabBytes += SLAB_SIZE;
+		if(logMINOR)
+			Logger.minor(this, "Added slab of "+sizeClass.chunkSize+" byte chunks, now "+SizeUtil.formatSize(slabBytes)+" of slabs");
+		return true;
+	}
+
+	synchronized void free(Chunk chunk) {
+		if(!chunk.inUse) throw new IllegalStateException("Chunk freed twice");
+		chunk.inUse = false;
+		chunk.slab.used--;
+		SizeClass sizeClass = chunk.slab.sizeClass;
+		sizeClass.free.add(chunk);
+		usedBytes -= sizeClass.chunkSize;
+	}
+
+	/**
+	 * Drop the slabs which have no chunks in use.
+	 * @return The number of bytes released.
+	 */
+	public synchronized long releaseEmptySlabs() {
+		long released = 0;
+		for(SizeClass sizeClass : sizeClasses) {
+			boolean any = false;
+			for(Iterator<Slab> it = sizeClass.slabs.iterator();it.hasNext();) {
+				Slab slab = it.next();
+				if(slab.used > 0) continue;
+				it.remove();
+				slab.released = true;
+				released += SLAB_SIZE;
+				any = true;
+			}
+			if(!any) continue;
+			for(Iterator<Chunk> it = sizeClass.free.iterator();it.hasNext();) {
+				if(it.next().slab.released) it.remove();
+			}
+		}
+		slabBytes -= released;
+		if(released > 0 && logMINOR)
+			Logger.minor(this, "Released "+SizeUtil.formatSize(released)+" of empty slabs, now "+SizeUtil.formatSize(slabBytes));
+		return released;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/** @return The total size of the slabs, i.e. the direct memory we are holding. */
+	public synchronized long getSlabBytes() {
+		return slabBytes;
+	}
+
+	/** @return The total size of the chunks in use. */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public void handleLowMemory() throws Exception {
+		releaseEmptySlabs();
+	}
+
+	public void handleOutOfMemory() throws Exception {
+		releaseEmptySlabs();
+	}
+
+}
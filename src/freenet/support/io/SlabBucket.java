@@ -0,0 +1,257 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import com.db4o.ObjectContainer;
+
+import freenet.support.api.Bucket;
+import freenet.support.io.SlabAllocator.Chunk;
+
+/**
+ * A RAM bucket kept outside the Java heap, in chunks from a SlabAllocator. Used by TempBucket
+ * instead of an ArrayBucket. Unlike ArrayBucket, the data is visible to readers as soon as it is
+ * written, and it can be copied to a file without going through a byte array, see copyTo().
+ *
+ * Only one OutputStream at a time; opening a new one discards the old data.
+ */
+public class SlabBucket implements Bucket {
+
+	private final SlabAllocator allocator;
+	private final ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+	/** Size of the first chunk to allocate. */
+	private final int firstChunkSize;
+	private long size;
+	private long capacity;
+	private boolean readOnly;
+	private boolean freed;
+
+	/**
+	 * Create a bucket and allocate its first chunk.
+	 * @param size The expected size of the bucket.
+	 * @return null if the allocator has no memory left.
+	 */
+	static SlabBucket create(SlabAllocator allocator, long size) {
+		SlabBucket bucket = new SlabBucket(allocator, (int) Math.min(size, SlabAllocator.MAX_CHUNK_SIZE));
+		if(!bucket.ensureCapacity(1)) return null;
+		return bucket;
+	}
+
+	private SlabBucket(SlabAllocator allocator, int firstChunkSize) {
+		this.allocator = allocator;
+		this.firstChunkSize = firstChunkSize;
+	}
+
+	/**
+	 * Allocate enough chunks to hold this many bytes, so that writes up to that size won't fail.
+	 * @return False if the allocator has no memory left. Any chunks allocated are kept.
+	 */
+	synchronized boolean ensureCapacity(long bytes) {
+		if(freed) return false;
+		while(capacity < bytes) {
+			Chunk chunk = allocator.allocate(chunks.isEmpty() ? firstChunkSize : SlabAllocator.MAX_CHUNK_SIZE);
+			if(chunk == null) return false;
+			chunks.add(chunk);
+			capacity += chunk.size();
+		}
+		return true;
+	}
+
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if(readOnly) throw new IOException("Read only");
+		if(freed) throw new IOException("Already freed");
+		size = 0;
+		return new SlabBucketOutputStream();
+	}
+
+	private class SlabBucketOutputStream extends OutputStream {
+
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			synchronized(SlabBucket.this) {
+				if(closed) throw new IOException("Already closed");
+				if(!ensureCapacity(size + 1))
+					throw new IOException("Out of memory for RAM buckets");
+				Chunk chunk = chunkAt(size);
+				chunk.buf.put(offsetIn(chunk, size), (byte) b);
+				size++;
+			}
+		}
+
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			synchronized(SlabBucket.this) {
+				if(closed) throw new IOException("Already closed");
+				if(!ensureCapacity(size + length))
+					throw new IOException("Out of memory for RAM buckets");
+				while(length > 0) {
+					Chunk chunk = chunkAt(size);
+					int pos = offsetIn(chunk, size);
+					int count = Math.min(length, chunk.size() - pos);
+					ByteBuffer dup = chunk.buf.duplicate();
+					dup.position(pos);
+					dup.put(buf, offset, count);
+					offset += count;
+					length -= count;
+					size += count;
+				}
+			}
+		}
+
+		@Override
+		public void close() {
+			synchronized(SlabBucket.this) {
+				closed = true;
+			}
+		}
+
+	}
+
+	public synchronized InputStream getInputStream() throws IOException {
+		if(freed) throw new IOException("Already freed");
+		return new SlabBucketInputStream();
+	}
+
+	private class SlabBucketInputStream extends InputStream {
+
+		private long position;
+
+		@Override
+		public int read() throws IOException {
+			synchronized(SlabBucket.this) {
+				if(freed) throw new IOException("Already freed");
+				if(position >= size) return -1;
+				Chunk chunk = chunkAt(position);
+				int b = chunk.buf.get(offsetIn(chunk, position)) & 0xff;
+				position++;
+				return b;
+			}
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int length) throws IOException {
+			synchronized(SlabBucket.this) {
+				if(freed) throw new IOException("Already freed");
+				if(length == 0) return 0;
+				if(position >= size) return -1;
+				length = (int) Math.min(length, size - position);
+				int read = 0;
+				while(read < length) {
+					Chunk chunk = chunkAt(position);
+					int pos = offsetIn(chunk, position);
+					int count = Math.min(length - read, chunk.size() - pos);
+					ByteBuffer dup = chunk.buf.duplicate();
+					dup.position(pos);
+					dup.get(buf, offset + read, count);
+					read += count;
+					position += count;
+				}
+				return read;
+			}
+		}
+
+		@Override
+		public long skip(long n) {
+			synchronized(SlabBucket.this) {
+				if(n <= 0) return 0;
+				long skipped = Math.min(n, size - position);
+				position += skipped;
+				return skipped;
+			}
+		}
+
+		@Override
+		public int available() {
+			synchronized(SlabBucket.this) {
+				return (int) Math.min(Integer.MAX_VALUE, size - position);
+			}
+		}
+
+	}
+
+	/** The first chunk may be smaller than the rest. */
+	private Chunk chunkAt(long offset) {
+		int first = chunks.get(0).size();
+		if(offset < first) return chunks.get(0);
+		return chunks.get(1 + (int) ((offset - first) / SlabAllocator.MAX_CHUNK_SIZE));
+	}
+
+	private int offsetIn(Chunk chunk, long offset) {
+		int first = chunks.get(0).size();
+		if(offset < first) return (int) offset;
+		return (int) ((offset - first) % SlabAllocator.MAX_CHUNK_SIZE);
+	}
+
+	/**
+	 * Write the first length bytes to a stream. If it is writing to a file, the data goes
+	 * straight from the chunks to the file, without copying it into a byte array first.
+	 */
+	synchronized void copyTo(OutputStream os, long length) throws IOException {
+		if(freed) throw new IOException("Already freed");
+		if(length > size) throw new IOException("Only "+size+" bytes in "+this);
+		byte[] buf = null;
+		for(Chunk chunk : chunks) {
+			if(length == 0) break;
+			int count = (int) Math.min(length, chunk.size());
+			ByteBuffer dup = chunk.buf.duplicate();
+			dup.position(0);
+			dup.limit(count);
+			if(os instanceof BaseFileBucket.FileBucketOutputStream) {
+				((BaseFileBucket.FileBucketOutputStream) os).write(dup);
+			} else {
+				// E.g. encrypted, we need an array for the cipher.
+				if(buf == null) buf = new byte[SlabAllocator.MAX_CHUNK_SIZE];
+				dup.get(buf, 0, count);
+				os.write(buf, 0, count);
+			}
+			length -= count;
+		}
+	}
+
+	public synchronized long size() {
+		return size;
+	}
+
+	public String getName() {
+		return "SlabBucket";
+	}
+
+	public synchronized boolean isReadOnly() {
+		return readOnly;
+	}
+
+	public synchronized void setReadOnly() {
+		readOnly = true;
+	}
+
+	public synchronized void free() {
+		if(freed) return;
+		freed = true;
+		for(Chunk chunk : chunks)
+			allocator.free(chunk);
+		chunks.clear();
+		size = 0;
+		capacity = 0;
+	}
+
+	public Bucket createShadow() {
+		return null;
+	}
+
+	public void storeTo(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void removeFrom(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+}
@@ -19,6 +19,7 @@ import freenet.crypt.RandomSource;
 import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
+import freenet.support.OOMHandler;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.Logger.LogLevel;
@@ -30,7 +31,7 @@ import java.util.ArrayList;
  * Temporary Bucket Factory
  * 
  * Buckets created by this factory can be either:
- *	- ArrayBuckets
+ *	- ArrayBuckets (or SlabBuckets, off the heap, see setOffHeap())
  * OR
  *	- FileBuckets
  * 
@@ -59,6 +60,8 @@ public class TempBucketFactory implements BucketFactory {
 	private long maxRAMBucketSize;
 	/** How much memory do we dedicate to the RAMBucketPool? (in bytes) */
 	private long maxRamUsed;
+	/** If not null, RAM buckets are SlabBuckets from here rather than ArrayBuckets. */
+	private volatile SlabAllocator slabAllocator;
 	
 	/** How old is a long-lived RAMBucket? */
 	private final int RAMBUCKET_MAX_AGE = 5*60*1000; // 5mins
@@ -148,11 +151,11 @@ public class TempBucketFactory implements BucketFactory {
 					// DO NOT INCREMENT THE osIndex HERE!
 					os = tempFB.getOutputStream();
 					if(size > 0)
-						BucketTools.copyTo(toMigrate, os, size);
+						copyTo(toMigrate, os, size);
 				} else {
 					if(size > 0) {
 						OutputStream temp = tempFB.getOutputStream();
-						BucketTools.copyTo(toMigrate, temp, size);
+						copyTo(toMigrate, temp, size);
 						temp.close();
 					}
 				}
@@ -177,8 +180,15 @@ public class TempBucketFactory implements BucketFactory {
 			_hasFreed(size);
 		}
 		
+		private void copyTo(Bucket from, OutputStream to, long size) throws IOException {
+			if(from instanceof SlabBucket)
+				((SlabBucket) from).copyTo(to, size);
+			else
+				BucketTools.copyTo(from, to, size);
+		}
+		
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof ArrayBucket) || (currentBucket instanceof SlabBucket);
 		}
 
 		public synchronized OutputStream getOutputStream() throws IOException {
@@ -211,6 +221,11 @@ public class TempBucketFactory implements BucketFactory {
 						shouldMigrate = true;
 					} else if ((futureSize - currentSize) + bytesInUse >= maxRamUsed)
 						shouldMigrate = true;
+					else if(currentBucket instanceof SlabBucket && !((SlabBucket) currentBucket).ensureCapacity(futureSize)) {
+						if(logMINOR)
+							Logger.minor(this, "No off-heap memory left for "+TempBucket.this+": force-migrate it to disk.");
+						shouldMigrate = true;
+					}
 					
 					if(shouldMigrate) {
 						if(logMINOR) {
@@ -476,6 +491,9 @@ public class TempBucketFactory implements BucketFactory {
 	
 	public synchronized void setMaxRamUsed(long size) {
 		maxRamUsed = size;
+		SlabAllocator allocator = slabAllocator;
+		if(allocator != null)
+			allocator.setMaxBytes(size);
 	}
 	
 	public synchronized long getMaxRamUsed() {
@@ -490,6 +508,31 @@ public class TempBucketFactory implements BucketFactory {
 		return maxRAMBucketSize;
 	}
 	
+	/**
+	 * Keep new RAM buckets off the Java heap, in SlabBuckets. Existing buckets are not affected.
+	 */
+	public synchronized void setOffHeap(boolean value) {
+		if(value == (slabAllocator != null)) return;
+		if(value) {
+			SlabAllocator allocator = new SlabAllocator(maxRamUsed);
+			// Weakly referenced, so it goes away when we drop it and the buckets using it have gone.
+			OOMHandler.addOOMHook(allocator);
+			slabAllocator = allocator;
+		} else {
+			slabAllocator = null;
+		}
+	}
+	
+	public boolean isOffHeap() {
+		return slabAllocator != null;
+	}
+	
+	/** @return The direct memory used for off-heap RAM buckets, including free chunks. */
+	public long getOffHeapBytes() {
+		SlabAllocator allocator = slabAllocator;
+		return allocator == null ? 0 : allocator.getSlabBytes();
+	}
+	
 	public void setEncryption(boolean value) {
 		reallyEncrypt = value;
 	}
@@ -527,7 +570,14 @@ public class TempBucketFactory implements BucketFactory {
 		}
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		if(useRAMBucket) {
+			SlabAllocator allocator = slabAllocator;
+			if(allocator != null)
+				realBucket = SlabBucket.create(allocator, size);
+			if(realBucket == null)
+				realBucket = new ArrayBucket();
+		} else
+			realBucket = _makeFileBucket();
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
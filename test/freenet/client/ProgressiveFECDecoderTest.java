@@ -0,0 +1,147 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.onionnetworks.fec.PureCode;
+import com.onionnetworks.util.Buffer;
+
+import freenet.client.async.MinimalSplitfileBlock;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class ProgressiveFECDecoderTest extends TestCase {
+
+	private static final int BLOCK_LENGTH = 1024;
+	/** (k,n) as used by splitfiles: full segments, small ones, and pre-1250 ones. */
+	private static final int[][] SHAPES = new int[][] { { 128, 256 }, { 1, 2 }, { 2, 4 }, { 7, 15 }, { 100, 201 }, { 128, 255 }, { 200, 256 } };
+
+	private final Random random = new Random(1234);
+
+	/** All n blocks: k random data blocks, and the check blocks from PureCode. */
+	private byte[][] encode(int k, int n) {
+		byte[][] blocks = new byte[n][BLOCK_LENGTH];
+		Buffer[] data = new Buffer[k];
+		for(int i = 0; i < k; i++) {
+			random.nextBytes(blocks[i]);
+			data[i] = new Buffer(blocks[i], 0, BLOCK_LENGTH);
+		}
+		Buffer[] check = new Buffer[n - k];
+		int[] index = new int[n - k];
+		for(int i = k; i < n; i++) {
+			check[i - k] = new Buffer(blocks[i], 0, BLOCK_LENGTH);
+			index[i - k] = i;
+		}
+		new PureCode(k, n).encode(data, check, index);
+		return blocks;
+	}
+
+	public void testEncodeMatrix() {
+		for(int[] shape : SHAPES) {
+			int k = shape[0];
+			int n = shape[1];
+			byte[][] blocks = encode(k, n);
+			byte[][] matrix = GF256.encodeMatrix(k, n);
+			for(int i = 0; i < n; i++) {
+				byte[] block = new byte[BLOCK_LENGTH];
+				for(int j = 0; j < k; j++)
+					GF256.addMul(block, 0, blocks[j], 0, matrix[i][j] & 0xff, BLOCK_LENGTH);
+				assertTrue("Block "+i+" for k="+k+" n="+n, Arrays.equals(blocks[i], block));
+			}
+		}
+	}
+
+	private static MinimalSplitfileBlock[] makeStatus(int offset, int count) {
+		MinimalSplitfileBlock[] status = new MinimalSplitfileBlock[count];
+		for(int i = 0; i < count; i++)
+			status[i] = new MinimalSplitfileBlock(offset + i);
+		return status;
+	}
+
+	/**
+	 * Fetch a random k blocks in a random order. Give some of them to the decoder as they
+	 * arrive and leave the rest for finish().
+	 */
+	private void decode(int k, int n, int notAdded) throws IOException {
+		byte[][] blocks = encode(k, n);
+		ProgressiveFECDecoder decoder = new ProgressiveFECDecoder(k, n, GF256.encodeMatrix(k, n), BLOCK_LENGTH);
+		MinimalSplitfileBlock[] dataStatus = makeStatus(0, k);
+		MinimalSplitfileBlock[] checkStatus = makeStatus(k, n - k);
+		ArrayList<Integer> order = new ArrayList<Integer>();
+		for(int i = 0; i < n; i++)
+			order.add(i);
+		Collections.shuffle(order, random);
+		for(int x = 0; x < k; x++) {
+			int i = order.get(x);
+			Bucket bucket = new ArrayBucket(blocks[i].clone());
+			if(i < k)
+				dataStatus[i].trySetData(bucket);
+			else
+				checkStatus[i - k].trySetData(bucket);
+			if(x >= notAdded)
+				decoder.addBlock(i, bucket);
+		}
+		assertTrue(decoder.finish(dataStatus, checkStatus, new ArrayBucketFactory()));
+		decoder.free();
+		for(int i = 0; i < k; i++)
+			assertTrue("Block "+i+" for k="+k+" n="+n, Arrays.equals(blocks[i], BucketTools.toByteArray(dataStatus[i].getData())));
+		assertEquals(0, ProgressiveFECDecoder.bufferedBytes());
+	}
+
+	public void testDecode() throws IOException {
+		for(int[] shape : SHAPES) {
+			decode(shape[0], shape[1], 0);
+			decode(shape[0], shape[1], shape[0] / 2);
+			decode(shape[0], shape[1], shape[0]);
+		}
+	}
+
+	public void testNotEnoughBlocks() throws IOException {
+		int k = 10;
+		int n = 20;
+		byte[][] blocks = encode(k, n);
+		ProgressiveFECDecoder decoder = new ProgressiveFECDecoder(k, n, GF256.encodeMatrix(k, n), BLOCK_LENGTH);
+		MinimalSplitfileBlock[] dataStatus = makeStatus(0, k);
+		MinimalSplitfileBlock[] checkStatus = makeStatus(k, n - k);
+		for(int i = 1; i < k; i++) {
+			Bucket bucket = new ArrayBucket(blocks[i]);
+			dataStatus[i].trySetData(bucket);
+			decoder.addBlock(i, bucket);
+		}
+		assertFalse(decoder.finish(dataStatus, checkStatus, new ArrayBucketFactory()));
+		assertNull(dataStatus[0].getData());
+		decoder.free();
+		assertEquals(0, ProgressiveFECDecoder.bufferedBytes());
+	}
+
+	public void testShortBlock() throws IOException {
+		int k = 4;
+		int n = 8;
+		byte[][] blocks = encode(k, n);
+		ProgressiveFECDecoder decoder = new ProgressiveFECDecoder(k, n, GF256.encodeMatrix(k, n), BLOCK_LENGTH);
+		MinimalSplitfileBlock[] dataStatus = makeStatus(0, k);
+		MinimalSplitfileBlock[] checkStatus = makeStatus(k, n - k);
+		for(int i = 0; i < k; i++) {
+			Bucket bucket = new ArrayBucket(blocks[i + k]);
+			checkStatus[i].trySetData(bucket);
+			decoder.addBlock(i + k, bucket);
+		}
+		byte[] buf = new byte[BLOCK_LENGTH - 1];
+		dataStatus[k - 1].trySetData(new ArrayBucket(buf));
+		// Ignored by addBlock(), and finish() leaves it to realDecode().
+		decoder.addBlock(k - 1, dataStatus[k - 1].getData());
+		assertFalse(decoder.finish(dataStatus, checkStatus, new ArrayBucketFactory()));
+		decoder.free();
+	}
+
+}
@@ -0,0 +1,249 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.onionnetworks.fec.PureCode;
+import com.onionnetworks.util.Buffer;
+
+import freenet.client.async.MinimalSplitfileBlock;
+import freenet.support.TestProperty;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+/**
+ * Check that PureJavaFECCodec is compatible with the onion PureCode, for the shapes splitfiles
+ * use: full 128/128 segments, 100% + 1 redundancy for small segments, pre-1250 segments
+ * with no more check blocks than data blocks, and odd sizes.
+ */
+public class PureJavaFECCodecTest extends TestCase {
+
+	private static final int[][] SHAPES = new int[][] {
+		{ 128, 256 }, { 1, 2 }, { 2, 5 }, { 3, 6 }, { 10, 21 }, { 64, 129 }, { 100, 200 }, { 127, 255 }, { 128, 255 }, { 200, 256 }, { 255, 256 }
+	};
+	/** Block sizes: a CHK block, sizes not a multiple of 8, and a small multiple of 8. */
+	private static final int[] LENGTHS = new int[] { 32768, 1001, 3, 2056 };
+
+	private final Random random = new Random(1234);
+
+	/** The check blocks from PureCode, for the given data blocks. */
+	private static byte[][] pureEncode(byte[][] data, int n, int length) {
+		int k = data.length;
+		Buffer[] src = new Buffer[k];
+		for(int i = 0; i < k; i++)
+			src[i] = new Buffer(data[i], 0, length);
+		byte[][] check = new byte[n - k][length];
+		Buffer[] repair = new Buffer[n - k];
+		int[] index = new int[n - k];
+		for(int i = 0; i < n - k; i++) {
+			repair[i] = new Buffer(check[i], 0, length);
+			index[i] = i + k;
+		}
+		new PureCode(k, n).encode(src, repair, index);
+		return check;
+	}
+
+	private byte[][] randomBlocks(int count, int length) {
+		byte[][] blocks = new byte[count][length];
+		for(byte[] block : blocks)
+			random.nextBytes(block);
+		return blocks;
+	}
+
+	/** Encode a stripe as realEncode() does. */
+	private static byte[][] encode(PureJavaFECCodec codec, byte[][] data, int[] toEncode, int length) {
+		int k = data.length;
+		byte[] buffer = new byte[(k + toEncode.length) * length];
+		for(int i = 0; i < k; i++)
+			System.arraycopy(data[i], 0, buffer, i * length, length);
+		codec.encodeStripe(buffer, length, length, toEncode);
+		byte[][] check = new byte[toEncode.length][length];
+		for(int i = 0; i < toEncode.length; i++)
+			System.arraycopy(buffer, (k + i) * length, check[i], 0, length);
+		return check;
+	}
+
+	public void testEncode() {
+		for(int[] shape : SHAPES) {
+			int k = shape[0];
+			int n = shape[1];
+			PureJavaFECCodec codec = new PureJavaFECCodec(k, n);
+			for(int length : LENGTHS) {
+				if(length == 32768 && k < 100) continue;
+				byte[][] data = randomBlocks(k, length);
+				byte[][] expected = pureEncode(data, n, length);
+				int[] toEncode = new int[n - k];
+				for(int i = 0; i < toEncode.length; i++)
+					toEncode[i] = i + k;
+				byte[][] check = encode(codec, data, toEncode, length);
+				for(int i = 0; i < check.length; i++)
+					assertTrue("Check block "+i+" of k="+k+" n="+n+" length="+length, Arrays.equals(expected[i], check[i]));
+				// Only some of them, as when inserting after a restart, and few enough not to use the tables.
+				toEncode = new int[] { n - 1, k };
+				check = encode(codec, data, toEncode, length);
+				assertTrue(Arrays.equals(expected[n - k - 1], check[0]));
+				assertTrue(Arrays.equals(expected[0], check[1]));
+			}
+		}
+	}
+
+	/** Decode a stripe from a random k of the n blocks, in the order realDecode() puts them. */
+	private void decode(PureJavaFECCodec codec, byte[][] data, byte[][] check, int length) {
+		int k = data.length;
+		int n = k + check.length;
+		ArrayList<Integer> blocks = new ArrayList<Integer>();
+		for(int i = 0; i < n; i++)
+			blocks.add(i);
+		Collections.shuffle(blocks, random);
+		ArrayList<Integer> chosen = new ArrayList<Integer>(blocks.subList(0, k));
+		Collections.sort(chosen);
+		int[] packetIndexes = new int[k];
+		byte[] buffer = new byte[k * length];
+		for(int i = 0; i < k; i++) {
+			int x = chosen.get(i);
+			packetIndexes[i] = x;
+			System.arraycopy(x < k ? data[x] : check[x - k], 0, buffer, i * length, length);
+		}
+		codec.decodeStripe(buffer, length, length, packetIndexes);
+		for(int i = 0; i < k; i++) {
+			if(chosen.contains(i)) continue;
+			byte[] decoded = new byte[length];
+			System.arraycopy(buffer, i * length, decoded, 0, length);
+			assertTrue("Data block "+i+" of k="+k+" n="+n+" length="+length, Arrays.equals(data[i], decoded));
+		}
+	}
+
+	public void testDecode() {
+		for(int[] shape : SHAPES) {
+			int k = shape[0];
+			int n = shape[1];
+			PureJavaFECCodec codec = new PureJavaFECCodec(k, n);
+			for(int length : LENGTHS) {
+				if(length == 32768 && k < 100) continue;
+				byte[][] data = randomBlocks(k, length);
+				byte[][] check = pureEncode(data, n, length);
+				for(int i = 0; i < 3; i++)
+					decode(codec, data, check, length);
+			}
+		}
+	}
+
+	/** Go through realEncode() and realDecode(), with several stripes. */
+	public void testEncodeDecodeBuckets() throws IOException {
+		int k = 50;
+		int n = 101;
+		int length = 1000;
+		PureJavaFECCodec codec = new PureJavaFECCodec(k, n);
+		byte[][] data = randomBlocks(k, length);
+		byte[][] expected = pureEncode(data, n, length);
+		Bucket[] dataBuckets = new Bucket[k];
+		for(int i = 0; i < k; i++)
+			dataBuckets[i] = new ArrayBucket(data[i].clone());
+		Bucket[] checkBuckets = new Bucket[n - k];
+		checkBuckets[3] = new ArrayBucket(expected[3].clone());
+		codec.realEncode(dataBuckets, checkBuckets, length, new ArrayBucketFactory());
+		for(int i = 0; i < n - k; i++)
+			assertTrue(Arrays.equals(expected[i], BucketTools.toByteArray(checkBuckets[i])));
+
+		MinimalSplitfileBlock[] dataStatus = new MinimalSplitfileBlock[k];
+		MinimalSplitfileBlock[] checkStatus = new MinimalSplitfileBlock[n - k];
+		for(int i = 0; i < k; i++) {
+			dataStatus[i] = new MinimalSplitfileBlock(i);
+			if(i % 3 == 0)
+				dataStatus[i].trySetData(new ArrayBucket(data[i].clone()));
+		}
+		for(int i = 0; i < n - k; i++) {
+			checkStatus[i] = new MinimalSplitfileBlock(i + k);
+			checkStatus[i].trySetData(new ArrayBucket(expected[i].clone()));
+		}
+		codec.realDecode(dataStatus, checkStatus, length, new ArrayBucketFactory());
+		for(int i = 0; i < k; i++)
+			assertTrue(Arrays.equals(data[i], BucketTools.toByteArray(dataStatus[i].getData())));
+	}
+
+	public void testGetCodec() {
+		boolean old = FECCodec.getUsePureJava();
+		try {
+			FECCodec.setUsePureJava(true);
+			assertTrue(FECCodec.getCodec(Metadata.SPLITFILE_ONION_STANDARD, 128, 128) instanceof PureJavaFECCodec);
+			assertTrue(FECCodec.getCodec(Metadata.SPLITFILE_ONION_STANDARD, 128, InsertContext.CompatibilityMode.COMPAT_CURRENT) instanceof PureJavaFECCodec);
+			// 16-bit code
+			assertTrue(FECCodec.getCodec(Metadata.SPLITFILE_ONION_STANDARD, 200, 100) instanceof StandardOnionFECCodec);
+			FECCodec.setUsePureJava(false);
+			assertTrue(FECCodec.getCodec(Metadata.SPLITFILE_ONION_STANDARD, 128, 128) instanceof StandardOnionFECCodec);
+		} finally {
+			FECCodec.setUsePureJava(old);
+		}
+	}
+
+	/**
+	 * Encode and decode a full 128/128 segment of CHK blocks, with PureCode and with
+	 * PureJavaFECCodec. Decoding from the check blocks only is the worst case.
+	 */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK)
+			return;
+
+		final int k = 128;
+		final int n = 256;
+		final int length = 32768;
+		byte[][] data = randomBlocks(k, length);
+		Buffer[] src = new Buffer[k];
+		for(int i = 0; i < k; i++)
+			src[i] = new Buffer(data[i], 0, length);
+		Buffer[] repair = new Buffer[n - k];
+		int[] index = new int[n - k];
+		for(int i = 0; i < n - k; i++) {
+			repair[i] = new Buffer(new byte[length], 0, length);
+			index[i] = i + k;
+		}
+		PureCode pureCode = new PureCode(k, n);
+		PureJavaFECCodec codec = new PureJavaFECCodec(k, n);
+		int[] toEncode = index.clone();
+		byte[] buffer = new byte[n * length];
+		for(int pass = 0; pass < 6; pass++) {
+			boolean pure = (pass % 2) == 0;
+			long encodeTime;
+			long decodeTime;
+			if(pure) {
+				long start = System.nanoTime();
+				pureCode.encode(src, repair, index.clone());
+				encodeTime = System.nanoTime() - start;
+				int[] indexes = index.clone();
+				start = System.nanoTime();
+				pureCode.decode(repair, indexes);
+				decodeTime = System.nanoTime() - start;
+			} else {
+				for(int i = 0; i < k; i++)
+					System.arraycopy(data[i], 0, buffer, i * length, length);
+				long start = System.nanoTime();
+				codec.encodeStripe(buffer, length, length, toEncode);
+				encodeTime = System.nanoTime() - start;
+				System.arraycopy(buffer, k * length, buffer, 0, k * length);
+				start = System.nanoTime();
+				codec.decodeStripe(buffer, length, length, index.clone());
+				decodeTime = System.nanoTime() - start;
+				byte[] decoded = new byte[length];
+				for(int i = 0; i < k; i++) {
+					System.arraycopy(buffer, i * length, decoded, 0, length);
+					assertTrue(Arrays.equals(data[i], decoded));
+				}
+			}
+			// First two passes are the warm up.
+			if(pass < 2) continue;
+			System.out.println((pure ? "PureCode" : "PureJavaFECCodec") + ": encoded in " + (encodeTime / 1000000)
+			        + "ms, decoded in " + (decodeTime / 1000000) + "ms");
+		}
+	}
+
+}
@@ -0,0 +1,296 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.ClientCHK;
+import freenet.keys.Key;
+import freenet.support.TestProperty;
+
+public class SplitFileStateFileTest extends TestCase {
+
+	private File file;
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("splitfile-state-test", ".state");
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	private SplitFileSegmentKeys makeKeys(Random random, int dataBlocks, int checkBlocks, boolean commonKey) throws MalformedURLException {
+		byte[] commonDecryptKey = null;
+		if(commonKey) {
+			commonDecryptKey = new byte[ClientCHK.CRYPTO_KEY_LENGTH];
+			random.nextBytes(commonDecryptKey);
+		}
+		SplitFileSegmentKeys keys = new SplitFileSegmentKeys(dataBlocks, checkBlocks, commonDecryptKey, Key.ALGO_AES_PCFB_256_SHA256);
+		for(int i=0;i<dataBlocks+checkBlocks;i++) {
+			byte[] routingKey = new byte[32];
+			random.nextBytes(routingKey);
+			byte[] decryptKey = commonDecryptKey;
+			if(decryptKey == null) {
+				decryptKey = new byte[ClientCHK.CRYPTO_KEY_LENGTH];
+				random.nextBytes(decryptKey);
+			}
+			byte[] extra = ClientCHK.getExtra(Key.ALGO_AES_PCFB_256_SHA256, (short)(i % 3 - 1), false);
+			keys.setKey(i, new ClientCHK(routingKey, decryptKey, commonKey ? keys.commonExtraBytes : extra));
+		}
+		return keys;
+	}
+
+	private void checkSameKeys(SplitFileSegmentKeys expected, SplitFileSegmentKeys keys) {
+		assertEquals(expected.dataBlocks, keys.dataBlocks);
+		assertEquals(expected.checkBlocks, keys.checkBlocks);
+		for(int i=0;i<expected.dataBlocks+expected.checkBlocks;i++)
+			assertEquals(expected.getKey(i, null, false), keys.getKey(i, null, false));
+	}
+
+	public void testKeysRoundTrip() throws IOException {
+		Random random = new Random(1010);
+		SplitFileSegmentKeys[] segments = new SplitFileSegmentKeys[] {
+				makeKeys(random, 128, 128, true),
+				makeKeys(random, 100, 28, false),
+				makeKeys(random, 1, 1, true),
+				makeKeys(random, 0, 0, true)
+		};
+		SplitFileStateFile state = SplitFileStateFile.create(file, segments);
+		assertEquals(segments.length, state.countSegments());
+		for(int i=0;i<segments.length;i++) {
+			assertEquals(segments[i].dataBlocks, state.getDataBlocks(i));
+			assertEquals(segments[i].checkBlocks, state.getCheckBlocks(i));
+			checkSameKeys(segments[i], state.readKeys(i));
+		}
+		state.close();
+		state = SplitFileStateFile.open(file);
+		assertEquals(segments.length, state.countSegments());
+		for(int i=0;i<segments.length;i++) {
+			checkSameKeys(segments[i], state.readKeys(i));
+			int blocks = segments[i].dataBlocks + segments[i].checkBlocks;
+			assertEquals(blocks, state.countBlocks(i, SplitFileStateFile.STATUS_WAITING));
+		}
+		state.close();
+	}
+
+	public void testUpdateInPlace() throws IOException {
+		Random random = new Random(2020);
+		SplitFileSegmentKeys[] segments = new SplitFileSegmentKeys[] {
+				makeKeys(random, 20, 20, true),
+				makeKeys(random, 10, 5, false)
+		};
+		SplitFileStateFile state = SplitFileStateFile.create(file, segments);
+		long length = file.length();
+		state.setStatus(0, 3, SplitFileStateFile.STATUS_SUCCEEDED);
+		state.setStatus(1, 14, SplitFileStateFile.STATUS_FATAL);
+		assertEquals(1, state.incrementRetries(0, 39));
+		assertEquals(2, state.incrementRetries(0, 39));
+		state.setRetries(1, 0, 7);
+		state.setStatus(1, 0, SplitFileStateFile.STATUS_FAILED);
+		state.close();
+		assertEquals(length, file.length());
+
+		state = SplitFileStateFile.open(file);
+		assertEquals(SplitFileStateFile.STATUS_SUCCEEDED, state.getStatus(0, 3));
+		assertEquals(SplitFileStateFile.STATUS_FATAL, state.getStatus(1, 14));
+		assertEquals(SplitFileStateFile.STATUS_WAITING, state.getStatus(0, 39));
+		assertEquals(2, state.getRetries(0, 39));
+		assertEquals(SplitFileStateFile.STATUS_FAILED, state.getStatus(1, 0));
+		assertEquals(7, state.getRetries(1, 0));
+		assertEquals(0, state.getRetries(0, 3));
+		assertEquals(1, state.countBlocks(0, SplitFileStateFile.STATUS_SUCCEEDED));
+		assertEquals(39, state.countBlocks(0, SplitFileStateFile.STATUS_WAITING));
+		assertEquals(13, state.countBlocks(1, SplitFileStateFile.STATUS_WAITING));
+		try {
+			state.getStatus(1, 15);
+			fail();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			// Expected.
+		}
+		state.close();
+	}
+
+	public void testCorruptRecord() throws IOException {
+		Random random = new Random(3030);
+		SplitFileSegmentKeys keys = makeKeys(random, 8, 8, true);
+		SplitFileStateFile state = SplitFileStateFile.create(file, new SplitFileSegmentKeys[] { keys });
+		state.setStatus(0, 0, SplitFileStateFile.STATUS_SUCCEEDED);
+		state.setStatus(0, 15, SplitFileStateFile.STATUS_SUCCEEDED);
+		state.close();
+		// Corrupt the retry count of the last block, as if we crashed while writing it.
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(file.length() - SplitFileStateFile.RECORD_LENGTH + 4);
+		raf.writeInt(12345);
+		raf.close();
+
+		state = SplitFileStateFile.open(file);
+		assertEquals(SplitFileStateFile.STATUS_SUCCEEDED, state.getStatus(0, 0));
+		assertEquals(SplitFileStateFile.STATUS_WAITING, state.getStatus(0, 15));
+		assertEquals(0, state.getRetries(0, 15));
+		checkSameKeys(keys, state.readKeys(0));
+		state.close();
+	}
+
+	public void testCorruptKeys() throws IOException {
+		Random random = new Random(4040);
+		SplitFileStateFile state = SplitFileStateFile.create(file, new SplitFileSegmentKeys[] { makeKeys(random, 8, 8, false) });
+		state.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(100);
+		int b = raf.read();
+		raf.seek(100);
+		raf.write(b ^ 1);
+		raf.close();
+		try {
+			SplitFileStateFile.open(file);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testCorruptHeader() throws IOException {
+		Random random = new Random(5050);
+		SplitFileStateFile state = SplitFileStateFile.create(file, new SplitFileSegmentKeys[] { makeKeys(random, 8, 8, true) });
+		state.close();
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.seek(16);
+		raf.writeInt(9);
+		raf.close();
+		try {
+			SplitFileStateFile.open(file);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testRemove() throws IOException {
+		Random random = new Random(6060);
+		SplitFileStateFile state = SplitFileStateFile.create(file, new SplitFileSegmentKeys[] { makeKeys(random, 8, 8, true) });
+		state.setStatus(0, 1, SplitFileStateFile.STATUS_SUCCEEDED);
+		state.removeFrom(null);
+		// Unmapped, so it can be deleted straight away even on Windows.
+		assertFalse(file.exists());
+		try {
+			state.getStatus(0, 1);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testRelease() throws IOException {
+		Random random = new Random(7070);
+		SplitFileStateFile state = SplitFileStateFile.create(file, new SplitFileSegmentKeys[] {
+				makeKeys(random, 8, 8, true), makeKeys(random, 4, 4, true) });
+		state.release(null);
+		assertTrue(file.exists());
+		assertEquals(1, state.incrementRetries(1, 7));
+		state.release(null);
+		assertFalse(file.exists());
+	}
+
+	public void testInsertKeys() throws IOException {
+		Random random = new Random(8080);
+		SplitFileSegmentKeys keys = makeKeys(random, 10, 6, false);
+		SplitFileStateFile state = SplitFileStateFile.createForInsert(file, new int[] { 10, 4 }, new int[] { 6, 4 });
+		assertEquals(0, state.countKeys(0));
+		assertNull(state.getKey(0, 3));
+		for(int i=0;i<16;i++)
+			state.setKey(0, i, keys.getKey(i, null, false));
+		state.setKey(1, 7, keys.getKey(2, null, false));
+		state.setStatus(0, 3, SplitFileStateFile.STATUS_SUCCEEDED);
+		assertEquals(1, state.incrementRetries(0, 4));
+		state.close();
+
+		state = SplitFileStateFile.open(file);
+		assertEquals(16, state.countKeys(0));
+		assertEquals(1, state.countKeys(1));
+		for(int i=0;i<16;i++)
+			assertEquals(keys.getKey(i, null, false), state.getKey(0, i));
+		assertEquals(keys.getKey(2, null, false), state.getKey(1, 7));
+		assertNull(state.getKey(1, 6));
+		assertEquals(SplitFileStateFile.STATUS_SUCCEEDED, state.getStatus(0, 3));
+		assertEquals(1, state.getRetries(0, 4));
+		state.close();
+	}
+
+	public void testCorruptInsertKey() throws IOException {
+		Random random = new Random(9090);
+		SplitFileSegmentKeys keys = makeKeys(random, 2, 2, false);
+		SplitFileStateFile state = SplitFileStateFile.createForInsert(file, new int[] { 2 }, new int[] { 2 });
+		for(int i=0;i<4;i++)
+			state.setKey(0, i, keys.getKey(i, null, false));
+		state.close();
+		// Flip a bit in the routing key of block 1, as if we crashed while writing it.
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		long offset = file.length() - 4 * SplitFileStateFile.RECORD_LENGTH - 4 * (32 + 32 + 5) + 32;
+		raf.seek(offset);
+		int b = raf.read();
+		raf.seek(offset);
+		raf.write(b ^ 1);
+		raf.close();
+
+		state = SplitFileStateFile.open(file);
+		assertEquals(3, state.countKeys(0));
+		assertNull(state.getKey(0, 1));
+		assertEquals(keys.getKey(0, null, false), state.getKey(0, 0));
+		assertEquals(keys.getKey(2, null, false), state.getKey(0, 2));
+		state.close();
+	}
+
+	public void testKeysOnlyForInserts() throws IOException {
+		Random random = new Random(1212);
+		SplitFileSegmentKeys keys = makeKeys(random, 2, 2, true);
+		SplitFileStateFile state = SplitFileStateFile.create(file, new SplitFileSegmentKeys[] { keys });
+		try {
+			state.setKey(0, 0, keys.getKey(0, null, false));
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+		state.close();
+	}
+
+	/** Block state updates per second, for a splitfile of about 10GB. */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK)
+			return;
+
+		Random random = new Random(1);
+		SplitFileSegmentKeys[] segments = new SplitFileSegmentKeys[1280];
+		SplitFileSegmentKeys keys = makeKeys(random, 128, 128, true);
+		for(int i=0;i<segments.length;i++)
+			segments[i] = keys;
+		long start = System.currentTimeMillis();
+		SplitFileStateFile state = SplitFileStateFile.create(file, segments);
+		System.out.println("Created "+file.length()+" bytes state file in "+(System.currentTimeMillis()-start)+"ms");
+		for(int pass=0;pass<3;pass++) {
+			int updates = 1000000;
+			start = System.nanoTime();
+			for(int i=0;i<updates;i++) {
+				int segment = random.nextInt(segments.length);
+				int block = random.nextInt(256);
+				if(state.incrementRetries(segment, block) > 3)
+					state.setStatus(segment, block, SplitFileStateFile.STATUS_FAILED);
+			}
+			long time = System.nanoTime() - start;
+			System.out.println((updates * 1000000000L / time)+" updates/sec");
+		}
+		state.close();
+		start = System.currentTimeMillis();
+		SplitFileStateFile.open(file).close();
+		System.out.println("Opened in "+(System.currentTimeMillis()-start)+"ms");
+	}
+
+}
@@ -17,6 +17,7 @@ package freenet.crypt;
 
 import java.math.BigInteger;
 import junit.framework.TestCase;
+import freenet.support.TestProperty;
 import net.i2p.util.NativeBigInteger;
 
 /**
@@ -113,6 +114,85 @@ public class DSATest extends TestCase{
         assertEquals(firstSignature.getS(),secondSignature.getS());
     }
 
+    /**
+     * Test verify(DSAPublicKey kp, byte[] pubkeyHash, DSASignature sig,
+     * BigInteger m, boolean forceMod) for many signatures with the same key,
+     * so it precomputes a table for the key, comparing it with verifying
+     * without any precomputation */
+    public void testVerifyWithPrecomputation() {
+        DSAPrecomputation.clear();
+        DSAGroup group = Global.DSAgroupBigA;
+        DSAPrivateKey privKey = new DSAPrivateKey(group, randomSource);
+        DSAPublicKey pubKey = new DSAPublicKey(group, privKey);
+        byte[] hash = pubKey.asBytesHash();
+        for(int i = 0; i < 10; i++) {
+            BigInteger m = new BigInteger(255, randomSource);
+            DSASignature sig = DSA.sign(group, privKey, m, randomSource);
+            assertTrue(referenceVerify(pubKey, sig, m));
+            assertTrue(DSA.verify(pubKey, hash, sig, m, false));
+            assertTrue(DSA.verify(pubKey, sig, m, false));
+            BigInteger wrong = m.add(BigInteger.ONE);
+            assertFalse(referenceVerify(pubKey, sig, wrong));
+            assertFalse(DSA.verify(pubKey, hash, sig, wrong, false));
+            assertFalse(DSA.verify(pubKey, sig, wrong, false));
+        }
+        // A different key claiming the same hash must not use the first key's table.
+        DSAPrivateKey otherPrivKey = new DSAPrivateKey(group, randomSource);
+        DSAPublicKey otherPubKey = new DSAPublicKey(group, otherPrivKey);
+        BigInteger m = new BigInteger(255, randomSource);
+        DSASignature sig = DSA.sign(group, otherPrivKey, m, randomSource);
+        assertTrue(DSA.verify(otherPubKey, hash, sig, m, false));
+        assertFalse(DSA.verify(pubKey, hash, sig, m, false));
+        DSAPrecomputation.forget(hash);
+        assertTrue(DSA.verify(otherPubKey, hash, sig, m, false));
+    }
+
+    /** Verify the way DSA.verify() did before DSAPrecomputation. */
+    private static boolean referenceVerify(DSAPublicKey kp, DSASignature sig, BigInteger m) {
+        m = m.and(DSA.SIGNATURE_MASK);
+        BigInteger w=sig.getS().modInverse(kp.getQ());
+        BigInteger u1=m.multiply(w).mod(kp.getQ());
+        BigInteger u2=sig.getR().multiply(w).mod(kp.getQ());
+        BigInteger v1=kp.getG().modPow(u1, kp.getP());
+        BigInteger v2=kp.getY().modPow(u2, kp.getP());
+        BigInteger v=v1.multiply(v2).mod(kp.getP()).mod(kp.getQ());
+        return v.equals(sig.getR());
+    }
+
+    /**
+     * Signatures verified per second without precomputation, with a table for
+     * the group only, and with tables for the group and the key */
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK)
+            return;
+
+        DSAGroup group = Global.DSAgroupBigA;
+        DSAPrivateKey privKey = new DSAPrivateKey(group, randomSource);
+        DSAPublicKey pubKey = new DSAPublicKey(group, privKey);
+        byte[] hash = pubKey.asBytesHash();
+        BigInteger[] messages = new BigInteger[200];
+        DSASignature[] sigs = new DSASignature[messages.length];
+        for(int i = 0; i < messages.length; i++) {
+            messages[i] = new BigInteger(255, randomSource);
+            sigs[i] = DSA.sign(group, privKey, messages[i], randomSource);
+        }
+        for(int pass = 0; pass < 3; pass++) {
+            for(int mode = 0; mode < 3; mode++) {
+                long start = System.nanoTime();
+                for(int i = 0; i < messages.length; i++) {
+                    boolean ok;
+                    if(mode == 0) ok = referenceVerify(pubKey, sigs[i], messages[i]);
+                    else if(mode == 1) ok = DSA.verify(pubKey, sigs[i], messages[i], false);
+                    else ok = DSA.verify(pubKey, hash, sigs[i], messages[i], false);
+                    assertTrue(ok);
+                }
+                long time = System.nanoTime() - start;
+                System.out.println((mode == 0 ? "No precomputation" : mode == 1 ? "Group table" : "Group and key tables") +
+                        ": " + ((long) messages.length * 1000 * 1000 * 1000 / time) + " verifies/sec");
+            }
+        }
+    }
+
     /**
      * Test sign(DSAGroup g, DSAPrivateKey x, BigInteger m,RandomSource r)
      * method, using a q value that is too small [shorter than DSAGroup.Q_BIT_LENGTH]
@@ -0,0 +1,108 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+
+public class FixedBaseModPowTest extends TestCase {
+
+	private static final DSAGroup GROUP = Global.DSAgroupBigA;
+
+	public void testSameAsModPow() {
+		Random random = new Random(4242);
+		BigInteger p = GROUP.getP();
+		int qBits = GROUP.getQ().bitLength();
+		for(int window = 1; window <= 6; window++) {
+			BigInteger base = new BigInteger(p.bitLength() - 1, random);
+			FixedBaseModPow table = new FixedBaseModPow(base, p, qBits, window);
+			for(int i = 0; i < 20; i++) {
+				BigInteger e = new BigInteger(qBits, random);
+				assertEquals(base.modPow(e, p), table.pow(e));
+				BigInteger x = new BigInteger(p.bitLength() - 1, random);
+				assertEquals(base.modPow(e, p).multiply(x).mod(p), table.powTimes(e, x));
+			}
+		}
+	}
+
+	public void testEdgeCases() {
+		Random random = new Random(1717);
+		BigInteger p = GROUP.getP();
+		int qBits = GROUP.getQ().bitLength();
+		BigInteger base = GROUP.getG();
+		FixedBaseModPow table = new FixedBaseModPow(base, p, qBits, 5);
+		assertEquals(BigInteger.ONE, table.pow(BigInteger.ZERO));
+		assertEquals(base, table.pow(BigInteger.ONE));
+		BigInteger max = BigInteger.ONE.shiftLeft(qBits).subtract(BigInteger.ONE);
+		assertEquals(base.modPow(max, p), table.pow(max));
+		// Too big for the table, falls back to modPow().
+		BigInteger big = new BigInteger(qBits + 40, random);
+		assertEquals(base.modPow(big, p), table.pow(big));
+		// Not a multiple of the window size.
+		FixedBaseModPow odd = new FixedBaseModPow(base, p, 100, 7);
+		BigInteger e = new BigInteger(100, random);
+		assertEquals(base.modPow(e, p), odd.pow(e));
+		try {
+			new FixedBaseModPow(base, p.subtract(BigInteger.ONE), qBits, 4);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			// Expected.
+		}
+		try {
+			new FixedBaseModPow(p, p, qBits, 4);
+			fail();
+		} catch (IllegalArgumentException ex) {
+			// Expected.
+		}
+	}
+
+	public void testProduct() {
+		Random random = new Random(9191);
+		BigInteger p = GROUP.getP();
+		int qBits = GROUP.getQ().bitLength();
+		BigInteger y = new BigInteger(p.bitLength() - 1, random);
+		FixedBaseModPow gTable = new FixedBaseModPow(GROUP.getG(), p, qBits, 6);
+		FixedBaseModPow yTable = new FixedBaseModPow(y, p, qBits, 4);
+		for(int i = 0; i < 50; i++) {
+			BigInteger a = new BigInteger(qBits, random);
+			BigInteger b = new BigInteger(qBits, random);
+			BigInteger expected = GROUP.getG().modPow(a, p).multiply(y.modPow(b, p)).mod(p);
+			assertEquals(expected, gTable.powProduct(a, yTable, b));
+		}
+		assertEquals(BigInteger.ONE, gTable.powProduct(BigInteger.ZERO, yTable, BigInteger.ZERO));
+	}
+
+	/** Exponentiations per second with modPow() and with tables of different window sizes. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK)
+			return;
+
+		Random random = new Random(1);
+		BigInteger p = GROUP.getP();
+		int qBits = GROUP.getQ().bitLength();
+		BigInteger base = GROUP.getG();
+		BigInteger[] exponents = new BigInteger[500];
+		for(int i = 0; i < exponents.length; i++)
+			exponents[i] = new BigInteger(qBits, random);
+		int[] windows = new int[] { 0, 4, 5, 6 };
+		for(int pass = 0; pass < 3; pass++) {
+			for(int window : windows) {
+				long start = System.nanoTime();
+				FixedBaseModPow table = window == 0 ? null : new FixedBaseModPow(base, p, qBits, window);
+				long built = System.nanoTime();
+				for(BigInteger e : exponents) {
+					if(table == null) base.modPow(e, p);
+					else table.pow(e);
+				}
+				long time = System.nanoTime() - built;
+				System.out.println((window == 0 ? "modPow" : ("window " + window + " (built in " + (built - start) / 1000000 + "ms)")) +
+						": " + (time / 1000 / exponents.length) + "us per exponentiation");
+			}
+		}
+	}
+
+}
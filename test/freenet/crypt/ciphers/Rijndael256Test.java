@@ -0,0 +1,163 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.crypt.ciphers;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+
+public class Rijndael256Test extends TestCase {
+
+	private static final int BLOCK = Rijndael256.BLOCK_SIZE;
+
+	/** Compare with Rijndael_Algorithm for random keys of every size and random blocks. */
+	public void testSameAsRijndaelAlgorithm() throws Exception {
+		Random random = new Random(31415);
+		int[] keySizes = new int[] { 16, 24, 32 };
+		for(int keySize : keySizes) {
+			for(int i = 0; i < 200; i++) {
+				byte[] key = new byte[keySize];
+				random.nextBytes(key);
+				Object sessionKey = Rijndael_Algorithm.makeKey(key, BLOCK);
+				Rijndael256 fast = new Rijndael256(key);
+				for(int j = 0; j < 10; j++) {
+					byte[] plain = new byte[BLOCK];
+					random.nextBytes(plain);
+					byte[] expected = new byte[BLOCK];
+					Rijndael_Algorithm.blockEncrypt(plain, expected, 0, sessionKey, BLOCK);
+					byte[] cipher = new byte[BLOCK];
+					fast.encrypt(plain, 0, cipher, 0);
+					assertTrue(Arrays.equals(expected, cipher));
+					byte[] decrypted = new byte[BLOCK];
+					Rijndael_Algorithm.blockDecrypt(plain, expected, 0, sessionKey, BLOCK);
+					fast.decrypt(plain, 0, decrypted, 0);
+					assertTrue(Arrays.equals(expected, decrypted));
+					fast.decrypt(cipher, 0, decrypted, 0);
+					assertTrue(Arrays.equals(plain, decrypted));
+				}
+			}
+		}
+	}
+
+	public void testInPlaceAndOffsets() throws Exception {
+		Random random = new Random(27182);
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		Rijndael256 fast = new Rijndael256(key);
+		byte[] plain = new byte[BLOCK];
+		random.nextBytes(plain);
+		byte[] expected = new byte[BLOCK];
+		fast.encrypt(plain, 0, expected, 0);
+		byte[] buf = new byte[BLOCK + 7];
+		System.arraycopy(plain, 0, buf, 3, BLOCK);
+		fast.encrypt(buf, 3, buf, 3);
+		assertBlockAt(expected, buf, 3);
+		fast.decrypt(buf, 3, buf, 5);
+		assertBlockAt(plain, buf, 5);
+	}
+
+	private static void assertBlockAt(byte[] expected, byte[] buf, int offset) {
+		for(int i = 0; i < expected.length; i++)
+			assertEquals(expected[i], buf[offset + i]);
+	}
+
+	public void testInvalidKey() {
+		try {
+			new Rijndael256(new byte[20]);
+			fail();
+		} catch (java.security.InvalidKeyException e) {
+			// Expected.
+		}
+	}
+
+	/** Rijndael(256, 256) uses Rijndael256, and several threads can share one. */
+	public void testConcurrent() throws Exception {
+		Random random = new Random(16180);
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		final Rijndael cipher = new Rijndael(256, 256);
+		cipher.initialize(key);
+		Object sessionKey = Rijndael_Algorithm.makeKey(key, BLOCK);
+		final byte[][] plain = new byte[100][BLOCK];
+		final byte[][] expected = new byte[100][BLOCK];
+		for(int i = 0; i < plain.length; i++) {
+			random.nextBytes(plain[i]);
+			Rijndael_Algorithm.blockEncrypt(plain[i], expected[i], 0, sessionKey, BLOCK);
+		}
+		final boolean[] failed = new boolean[1];
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					byte[] result = new byte[BLOCK];
+					for(int j = 0; j < 10000; j++) {
+						int x = j % plain.length;
+						cipher.encipher(plain[x], result);
+						if(!Arrays.equals(expected[x], result)) failed[0] = true;
+						cipher.decipher(result, result);
+						if(!Arrays.equals(plain[x], result)) failed[0] = true;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertFalse(failed[0]);
+	}
+
+	/** Blocks per second per core, with Rijndael_Algorithm and with Rijndael256. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK)
+			return;
+
+		final int blocks = 1000000;
+		final byte[] key = new byte[32];
+		new Random(1).nextBytes(key);
+		int cores = Runtime.getRuntime().availableProcessors();
+		int[] threadCounts = cores > 1 ? new int[] { 1, cores } : new int[] { 1 };
+		for(int pass = 0; pass < 3; pass++) {
+			for(int threads : threadCounts) {
+				for(int mode = 0; mode < 4; mode++) {
+					final boolean fast = mode >= 2;
+					final boolean decrypt = (mode % 2) == 1;
+					final Object sessionKey = Rijndael_Algorithm.makeKey(key, BLOCK);
+					final Rijndael256 fastKey = new Rijndael256(key);
+					Thread[] workers = new Thread[threads];
+					long start = System.nanoTime();
+					for(int t = 0; t < threads; t++) {
+						workers[t] = new Thread() {
+							@Override
+							public void run() {
+								byte[] buf = new byte[BLOCK];
+								int[] a = new int[BLOCK / 4];
+								int[] tmp = new int[BLOCK / 4];
+								for(int i = 0; i < blocks; i++) {
+									if(fast) {
+										if(decrypt) fastKey.decrypt(buf, 0, buf, 0);
+										else fastKey.encrypt(buf, 0, buf, 0);
+									} else {
+										if(decrypt) Rijndael_Algorithm.blockDecrypt(buf, buf, 0, sessionKey, BLOCK);
+										else Rijndael_Algorithm.blockEncrypt(buf, buf, 0, sessionKey, BLOCK, a, tmp);
+									}
+								}
+							}
+						};
+						workers[t].start();
+					}
+					for(Thread t : workers)
+						t.join();
+					long time = System.nanoTime() - start;
+					long perCore = (long) blocks * 1000 * 1000 * 1000 / time;
+					System.out.println((fast ? "Rijndael256 " : "Rijndael_Algorithm ") + (decrypt ? "decrypt" : "encrypt") +
+							" " + threads + " threads: " + perCore + " blocks/sec per core (" + (perCore * BLOCK / (1024 * 1024)) + "MB/sec)");
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,172 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+
+public class MessageCoreTest extends TestCase {
+
+	private static final MessageType typeA = new MessageType("MessageCoreTestA", (short) 0);
+	private static final MessageType typeB = new MessageType("MessageCoreTestB", (short) 0);
+
+	static {
+		typeA.addField(DMT.UID, Long.class);
+		typeB.addField(DMT.UID, Long.class);
+	}
+
+	private MessageCore core;
+
+	@Override
+	protected void setUp() {
+		core = new MessageCore(new PooledExecutor());
+	}
+
+	private static Message message(MessageType type, long uid) {
+		Message m = new Message(type);
+		m.set(DMT.UID, uid);
+		return m;
+	}
+
+	private static MessageFilter filter(MessageType type, long uid, int timeout) {
+		return MessageFilter.create().setType(type).setField(DMT.UID, uid).setTimeout(timeout);
+	}
+
+	private static class Callback implements AsyncMessageFilterCallback {
+		final ArrayList<Message> matched = new ArrayList<Message>();
+		boolean timedOut;
+		boolean shouldTimeout;
+
+		public synchronized void onMatched(Message m) {
+			matched.add(m);
+		}
+
+		public synchronized boolean shouldTimeout() {
+			return shouldTimeout;
+		}
+
+		public synchronized void onTimeout() {
+			timedOut = true;
+		}
+
+		public void onDisconnect(PeerContext ctx) {
+			fail();
+		}
+
+		public void onRestarted(PeerContext ctx) {
+			fail();
+		}
+	}
+
+	public void testMatchByUID() throws DisconnectedException {
+		Callback cb1 = new Callback();
+		Callback cb2 = new Callback();
+		core.addAsyncFilter(filter(typeA, 1, 10000), cb1, null);
+		core.addAsyncFilter(filter(typeA, 2, 10000), cb2, null);
+		Message m = message(typeA, 2);
+		core.checkFilters(m, null);
+		assertTrue(cb1.matched.isEmpty());
+		assertEquals(1, cb2.matched.size());
+		assertSame(m, cb2.matched.get(0));
+		// Other type, same UID
+		core.checkFilters(message(typeB, 1), null);
+		assertTrue(cb1.matched.isEmpty());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	public void testNearestTimeoutFirst() throws DisconnectedException {
+		Callback late = new Callback();
+		Callback early = new Callback();
+		core.addAsyncFilter(filter(typeA, 1, 20000), late, null);
+		core.addAsyncFilter(filter(typeA, 1, 10000), early, null);
+		core.checkFilters(message(typeA, 1), null);
+		assertEquals(1, early.matched.size());
+		assertTrue(late.matched.isEmpty());
+		core.checkFilters(message(typeA, 1), null);
+		assertEquals(1, early.matched.size());
+		assertEquals(1, late.matched.size());
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testOrChainMatchesOnce() throws DisconnectedException {
+		Callback cb = new Callback();
+		MessageFilter f = filter(typeA, 1, 10000).or(filter(typeB, 1, 10000));
+		core.addAsyncFilter(f, cb, null);
+		Message m = message(typeB, 1);
+		core.checkFilters(m, null);
+		assertEquals(1, cb.matched.size());
+		assertSame(m, cb.matched.get(0));
+		// The other half of the chain has gone too.
+		core.checkFilters(message(typeA, 1), null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	public void testUntypedFilter() throws DisconnectedException {
+		Callback cb = new Callback();
+		core.addAsyncFilter(MessageFilter.create().setField(DMT.UID, 3L).setTimeout(10000), cb, null);
+		core.checkFilters(message(typeB, 3), null);
+		assertEquals(1, cb.matched.size());
+	}
+
+	public void testUnclaimed() throws DisconnectedException {
+		Message m = message(typeA, 5);
+		core.checkFilters(message(typeB, 5), null);
+		core.checkFilters(m, null);
+		assertEquals(2, core.getUnclaimedFIFOSize());
+		assertSame(m, core.waitFor(filter(typeA, 5, 10000), null));
+		assertEquals(1, core.getUnclaimedFIFOSize());
+		Callback cb = new Callback();
+		core.addAsyncFilter(filter(typeB, 5, 10000), cb, null);
+		assertEquals(1, cb.matched.size());
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testTimeout() throws DisconnectedException, InterruptedException {
+		Callback cb = new Callback();
+		core.addAsyncFilter(filter(typeA, 1, 50), cb, null);
+		Thread.sleep(300);
+		core.removeTimedOutFilters(false);
+		assertTrue(cb.timedOut);
+		core.checkFilters(message(typeA, 1), null);
+		assertTrue(cb.matched.isEmpty());
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	public void testCallbackTimeout() throws DisconnectedException {
+		Callback cb = new Callback();
+		core.addAsyncFilter(filter(typeA, 1, 100000), cb, null);
+		core.removeTimedOutFilters(true);
+		assertFalse(cb.timedOut);
+		cb.shouldTimeout = true;
+		core.removeTimedOutFilters(true);
+		assertTrue(cb.timedOut);
+	}
+
+	public void testWaitForTimeout() throws DisconnectedException {
+		assertNull(core.waitFor(filter(typeA, 1, 50), null));
+		// Not matched by a stale filter
+		core.checkFilters(message(typeA, 1), null);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	public void testWaitFor() throws DisconnectedException {
+		final Message m = message(typeA, 7);
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+				core.checkFilters(m, null);
+			}
+		}.start();
+		assertSame(m, core.waitFor(filter(typeA, 7, 10000), null));
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+}
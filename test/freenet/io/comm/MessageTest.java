@@ -0,0 +1,224 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.NodeCHK;
+import freenet.keys.NodeSSK;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.Serializer;
+import freenet.support.TestProperty;
+
+public class MessageTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	private byte[] bytes(int length) {
+		byte[] buf = new byte[length];
+		random.nextBytes(buf);
+		return buf;
+	}
+
+	/** The most common messages on a busy node. */
+	private Message[] commonMessages() {
+		long uid = random.nextLong();
+		NodeCHK chk = new NodeCHK(bytes(32), (byte) 1);
+		NodeSSK ssk = new NodeSSK(bytes(32), bytes(32), (byte) 2);
+		BitArray sent = new BitArray(32);
+		sent.setBit(3, true);
+		Message withSub = DMT.createFNPCHKDataRequest(uid, (short) 18, chk);
+		withSub.addSubMessage(DMT.createFNPRealTimeFlag(true));
+		return new Message[] {
+			withSub,
+			DMT.createFNPSSKDataRequest(uid, (short) 18, ssk, true),
+			DMT.createFNPAccepted(uid),
+			DMT.createFNPRejectedLoop(uid),
+			DMT.createFNPRejectedOverload(uid, false, true, true),
+			DMT.createFNPRouteNotFound(uid, (short) 5),
+			DMT.createFNPDataNotFound(uid),
+			DMT.createFNPRecentlyFailed(uid, 60000),
+			DMT.createFNPCHKDataFound(uid, bytes(36)),
+			DMT.createFNPInsertRequest(uid, (short) 18, chk),
+			DMT.createFNPInsertReply(uid),
+			DMT.createFNPDataInsert(uid, bytes(36)),
+			DMT.createFNPInsertTransfersCompleted(uid, false),
+			DMT.createPacketTransmit(uid, 7, sent, new Buffer(bytes(1024)), false),
+			DMT.createAllSent(uid, true),
+			DMT.createFNPBulkPacketSend(uid, 3, bytes(1024), false),
+			DMT.createFNPSSKAccepted(uid, false),
+			DMT.createFNPSwapRequest(uid, bytes(32), 10),
+			DMT.createFNPLocChangeNotificationNew(0.25, new double[] { 0.1, 0.2, 0.9 }),
+			DMT.createFNPRoutedPing(uid, 0.5, (short) 10, 3, bytes(32)),
+			DMT.createFNPSentPackets(new int[] { 1, 2, 3 }, new long[] { 4, 5, 6 }, 1000L),
+		};
+	}
+
+	/** The encoding used before MessageCodec. */
+	private static byte[] legacyEncode(Message m) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		legacyEncode(m, dos);
+		Message sub = m.getSubMessage(DMT.FNPRealTimeFlag);
+		if (sub != null) {
+			ByteArrayOutputStream subBytes = new ByteArrayOutputStream();
+			legacyEncode(sub, new DataOutputStream(subBytes));
+			dos.writeShort(subBytes.size());
+			dos.write(subBytes.toByteArray());
+		}
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	private static void legacyEncode(Message m, DataOutputStream dos) throws IOException {
+		MessageType spec = m.getSpec();
+		dos.writeInt(spec.getName().hashCode());
+		for (String name : spec.getOrderedFields())
+			Serializer.writeToDataOutputStream(m.getObject(name), dos);
+	}
+
+	public void testEncodingUnchanged() throws IOException {
+		for (Message m : commonMessages()) {
+			byte[] expected = legacyEncode(m);
+			assertEquals(m.getSpec().getName(), expected.length, m.getEncodedLength());
+			assertTrue(m.getSpec().getName(), Arrays.equals(expected, m.encodeToPacket()));
+		}
+	}
+
+	public void testRoundTrip() throws IOException {
+		for (Message m : commonMessages()) {
+			byte[] buf = m.encodeToPacket();
+			Message decoded = Message.decodeMessageLax(buf, null, 0);
+			assertNotNull(m.getSpec().getName(), decoded);
+			assertSame(m.getSpec(), decoded.getSpec());
+			for (String name : m.getSpec().getOrderedFields()) {
+				Object expected = m.getObject(name);
+				Object actual = decoded.getObject(name);
+				assertEquals(name, expected, actual);
+				assertTrue(name, decoded.fieldEquals(name, expected));
+			}
+			assertEquals(m.getSubMessage(DMT.FNPRealTimeFlag) != null, decoded.getSubMessage(DMT.FNPRealTimeFlag) != null);
+			assertTrue(Arrays.equals(buf, decoded.encodeToPacket()));
+		}
+	}
+
+	public void testPrimitiveAccessors() {
+		Message m = DMT.createFNPRejectedOverload(42, true, false, true);
+		assertEquals(42, m.getLong(DMT.UID));
+		assertTrue(m.getBoolean(DMT.IS_LOCAL));
+		assertEquals(Long.valueOf(42), m.getObject(DMT.UID));
+		assertTrue(m.fieldEquals(DMT.UID, Long.valueOf(42)));
+		assertFalse(m.fieldEquals(DMT.UID, Integer.valueOf(42)));
+		try {
+			m.getInt(DMT.UID);
+			fail();
+		} catch (ClassCastException e) {
+			// Expected
+		}
+		try {
+			m.set(DMT.UID, 42);
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected
+		}
+		Message empty = new Message(DMT.FNPAccepted);
+		assertFalse(empty.isSet(DMT.UID));
+		assertNull(empty.getObject(DMT.UID));
+		try {
+			empty.getLong(DMT.UID);
+			fail();
+		} catch (NullPointerException e) {
+			// Expected
+		}
+		try {
+			empty.encodeToPacket();
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	public void testDoubleBits() {
+		Message m = DMT.createFNPLocChangeNotificationNew(Double.NaN, new double[0]);
+		assertTrue(Double.isNaN(m.getDouble(DMT.LOCATION)));
+		assertTrue(m.fieldEquals(DMT.LOCATION, Double.valueOf(Double.NaN)));
+		Message decoded = Message.decodeMessageLax(m.encodeToPacket(), null, 0);
+		assertTrue(Double.isNaN(decoded.getDouble(DMT.LOCATION)));
+	}
+
+	public void testEncodeToBuffer() {
+		Message m = DMT.createFNPCHKDataFound(1, bytes(36));
+		ByteBuffer buf = ByteBuffer.allocate(m.getEncodedLength() + 10);
+		buf.position(10);
+		assertEquals(m.getEncodedLength(), m.encodeToBuffer(buf));
+		assertFalse(buf.hasRemaining());
+		buf.position(10);
+		Message decoded = Message.decodeMessageFromBuffer(buf, null, 0);
+		assertNotNull(decoded);
+		assertEquals(m.getObject(DMT.BLOCK_HEADERS), decoded.getObject(DMT.BLOCK_HEADERS));
+		try {
+			m.encodeToBuffer(ByteBuffer.allocate(m.getEncodedLength() - 1));
+			fail();
+		} catch (BufferOverflowException e) {
+			// Expected
+		}
+	}
+
+	public void testTruncated() {
+		byte[] buf = DMT.createFNPCHKDataFound(1, bytes(36)).encodeToPacket();
+		for (int i = 0; i < buf.length; i++)
+			assertNull(Message.decodeMessageLax(Arrays.copyOf(buf, i), null, 0));
+	}
+
+	public void testBenchmark() throws IOException {
+		if (!TestProperty.BENCHMARK)
+			return;
+
+		Message[] messages = commonMessages();
+		byte[][] encoded = new byte[messages.length][];
+		for (int i = 0; i < messages.length; i++)
+			encoded[i] = messages[i].encodeToPacket();
+		final int rounds = 200000;
+		ByteBuffer buf = ByteBuffer.allocate(2048);
+		for (int pass = 0; pass < 2; pass++) {
+			// First pass is the warm up
+			long start = System.currentTimeMillis();
+			int total = 0;
+			for (int i = 0; i < rounds; i++) {
+				for (Message m : messages)
+					total += legacyEncode(m).length;
+			}
+			long legacy = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			for (int i = 0; i < rounds; i++) {
+				for (Message m : messages) {
+					buf.clear();
+					total += m.encodeToBuffer(buf);
+				}
+			}
+			long encode = System.currentTimeMillis() - start;
+			start = System.currentTimeMillis();
+			for (int i = 0; i < rounds; i++) {
+				for (byte[] b : encoded)
+					if (Message.decodeMessageLax(b, null, 0) != null)
+						total++;
+			}
+			long decode = System.currentTimeMillis() - start;
+			if (pass == 0)
+				continue;
+			int count = rounds * messages.length;
+			System.out.println("Message codec, " + count + " messages: legacy encode " + legacy + "ms, encode "
+			        + encode + "ms (" + (count * 1000L / Math.max(1, encode)) + "/sec), decode " + decode + "ms ("
+			        + (count * 1000L / Math.max(1, decode)) + "/sec) " + total);
+		}
+	}
+}
@@ -0,0 +1,198 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.keys;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.crypt.PCFBMode;
+import freenet.crypt.SHA256;
+import freenet.crypt.ciphers.Rijndael;
+import freenet.support.TestProperty;
+
+public class CHKBlockCryptoTest extends TestCase {
+
+	private static final int BLOCKS = 16;
+
+	public void testEncodeSameAsInnerEncode() throws Exception {
+		Random random = new Random(1234);
+		CHKBlockCrypto crypto = new CHKBlockCrypto();
+		byte[] sharedKey = new byte[32];
+		random.nextBytes(sharedKey);
+		for(int i = 0; i < BLOCKS; i++) {
+			byte[] data = randomBlock(random);
+			// Alternate between a shared key, a per-block key and the hash of the data.
+			byte[] cryptoKey;
+			if(i % 3 == 0) cryptoKey = sharedKey;
+			else if(i % 3 == 1) cryptoKey = null;
+			else {
+				cryptoKey = new byte[32];
+				random.nextBytes(cryptoKey);
+			}
+			byte[] copy = data.clone();
+			ClientCHKBlock block = crypto.encodeSplitfileBlock(data, cryptoKey, Key.ALGO_AES_PCFB_256_SHA256);
+			ClientCHKBlock expected = ClientCHKBlock.innerEncode(copy, CHKBlock.DATA_LENGTH, SHA256.getMessageDigest(),
+					cryptoKey == null ? SHA256.digest(copy) : cryptoKey, false, (short)-1, Key.ALGO_AES_PCFB_256_SHA256);
+			assertTrue(Arrays.equals(expected.getHeaders(), block.getHeaders()));
+			assertTrue(Arrays.equals(expected.getData(), block.getData()));
+			assertEquals(expected.getClientKey(), block.getClientKey());
+			// And it verifies.
+			new CHKBlock(block.getData(), block.getHeaders(), block.getClientKey().getNodeCHK(), true, Key.ALGO_AES_PCFB_256_SHA256);
+		}
+	}
+
+	public void testDecrypt() throws Exception {
+		Random random = new Random(5678);
+		CHKBlockCrypto crypto = new CHKBlockCrypto();
+		byte[] cryptoKey = new byte[32];
+		random.nextBytes(cryptoKey);
+		byte[][] plain = new byte[BLOCKS][];
+		ClientCHKBlock[] blocks = new ClientCHKBlock[BLOCKS];
+		for(int i = 0; i < BLOCKS; i++) {
+			plain[i] = randomBlock(random);
+			blocks[i] = crypto.encodeSplitfileBlock(plain[i].clone(), (i % 2 == 0) ? cryptoKey : null, Key.ALGO_AES_PCFB_256_SHA256);
+		}
+		byte[] out = new byte[CHKBlock.DATA_LENGTH];
+		// A fresh context for each block, as decode() used to do, and the same one reused.
+		for(int i = 0; i < BLOCKS; i++) {
+			assertEquals(CHKBlock.DATA_LENGTH, new CHKBlockCrypto().decrypt(blocks[i], out));
+			assertTrue(Arrays.equals(plain[i], out));
+			assertTrue(Arrays.equals(plain[i], referenceDecrypt(blocks[i])));
+			Arrays.fill(out, (byte)0);
+			assertEquals(CHKBlock.DATA_LENGTH, crypto.decrypt(blocks[i], out));
+			assertTrue(Arrays.equals(plain[i], out));
+		}
+	}
+
+	public void testBatch() throws Exception {
+		Random random = new Random(9012);
+		CHKBlockCrypto crypto = new CHKBlockCrypto();
+		byte[] cryptoKey = new byte[32];
+		random.nextBytes(cryptoKey);
+		byte[][] data = new byte[BLOCKS][];
+		byte[][] plain = new byte[BLOCKS][];
+		for(int i = 0; i < BLOCKS; i++) {
+			data[i] = randomBlock(random);
+			plain[i] = data[i].clone();
+		}
+		ClientCHKBlock[] blocks = new ClientCHKBlock[BLOCKS];
+		crypto.encodeSplitfileBlocks(data, cryptoKey, Key.ALGO_AES_PCFB_256_SHA256, blocks);
+		for(int i = 0; i < BLOCKS; i++) {
+			// Encrypted in place.
+			assertSame(data[i], blocks[i].getData());
+			assertTrue(Arrays.equals(cryptoKey, blocks[i].getClientKey().cryptoKey));
+		}
+		// Give one block the wrong key: it must fail the IV check, and not affect the others.
+		byte[] wrongKey = new byte[32];
+		random.nextBytes(wrongKey);
+		ClientCHK key = blocks[3].getClientKey();
+		blocks[3] = new ClientCHKBlock(blocks[3].getData(), blocks[3].getHeaders(),
+				new ClientCHK(key.getRoutingKey(), wrongKey, false, key.cryptoAlgorithm, key.compressionAlgorithm), false);
+		byte[][] out = new byte[BLOCKS][CHKBlock.DATA_LENGTH];
+		int[] lengths = new int[BLOCKS];
+		assertEquals(BLOCKS - 1, crypto.decrypt(blocks, out, lengths));
+		for(int i = 0; i < BLOCKS; i++) {
+			if(i == 3) {
+				assertEquals(-1, lengths[i]);
+			} else {
+				assertEquals(CHKBlock.DATA_LENGTH, lengths[i]);
+				assertTrue(Arrays.equals(plain[i], out[i]));
+			}
+		}
+	}
+
+	/**
+	 * Encode and decode splitfile blocks with a shared key, the way ClientCHKBlock did before
+	 * CHKBlockCrypto, and with a context per thread, on one thread and on every core.
+	 */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK)
+			return;
+
+		final int blocks = 256;
+		Random random = new Random(3456);
+		final byte[] cryptoKey = new byte[32];
+		random.nextBytes(cryptoKey);
+		final byte[][] plain = new byte[blocks][];
+		final ClientCHKBlock[] encoded = new ClientCHKBlock[blocks];
+		for(int i = 0; i < blocks; i++) {
+			plain[i] = randomBlock(random);
+			encoded[i] = new CHKBlockCrypto().encodeSplitfileBlock(plain[i].clone(), cryptoKey, Key.ALGO_AES_PCFB_256_SHA256);
+		}
+		int cores = Runtime.getRuntime().availableProcessors();
+		int[] threadCounts = cores > 1 ? new int[] { 1, cores } : new int[] { 1 };
+		for(int pass = 0; pass < 3; pass++) {
+			for(int threads : threadCounts) {
+				for(int mode = 0; mode < 4; mode++) {
+					final boolean reuse = mode >= 2;
+					final boolean decode = (mode % 2) == 1;
+					Thread[] workers = new Thread[threads];
+					final Exception[] failed = new Exception[1];
+					long start = System.nanoTime();
+					for(int t = 0; t < threads; t++) {
+						workers[t] = new Thread() {
+							@Override
+							public void run() {
+								try {
+									CHKBlockCrypto crypto = new CHKBlockCrypto();
+									byte[] buf = new byte[CHKBlock.DATA_LENGTH];
+									for(int i = 0; i < blocks; i++) {
+										if(decode) {
+											if(reuse) crypto.decrypt(encoded[i], buf);
+											else referenceDecrypt(encoded[i]);
+										} else {
+											System.arraycopy(plain[i], 0, buf, 0, buf.length);
+											if(reuse) crypto.encodeSplitfileBlock(buf, cryptoKey, Key.ALGO_AES_PCFB_256_SHA256);
+											else ClientCHKBlock.innerEncode(buf, CHKBlock.DATA_LENGTH, SHA256.getMessageDigest(),
+													cryptoKey, false, (short)-1, Key.ALGO_AES_PCFB_256_SHA256);
+										}
+									}
+								} catch (Exception e) {
+									failed[0] = e;
+								}
+							}
+						};
+						workers[t].start();
+					}
+					for(Thread t : workers)
+						t.join();
+					long time = System.nanoTime() - start;
+					assertNull(failed[0]);
+					double perCore = (double) blocks * threads * 1000 * 1000 * 1000 / time / threads;
+					System.out.println((decode ? "Decode" : "Encode") + (reuse ? " CHKBlockCrypto" : " per block") +
+							" " + threads + " threads: " + (int) perCore + " blocks/sec per core");
+				}
+			}
+		}
+	}
+
+	private static byte[] randomBlock(Random random) {
+		byte[] data = new byte[CHKBlock.DATA_LENGTH];
+		random.nextBytes(data);
+		return data;
+	}
+
+	/** Decrypt a block the way ClientCHKBlock.decode() did before CHKBlockCrypto. */
+	private static byte[] referenceDecrypt(ClientCHKBlock block) throws Exception {
+		Rijndael cipher = new Rijndael(256, 256);
+		cipher.initialize(block.key.cryptoKey);
+		PCFBMode pcfb = PCFBMode.create(cipher);
+		byte[] hbuf = new byte[block.headers.length-2];
+		System.arraycopy(block.headers, 2, hbuf, 0, hbuf.length);
+		byte[] dbuf = block.data.clone();
+		pcfb.blockDecipher(hbuf, 0, hbuf.length);
+		pcfb.blockDecipher(dbuf, 0, dbuf.length);
+		MessageDigest md256 = SHA256.getMessageDigest();
+		md256.digest(dbuf);
+		byte[] predIV = md256.digest(block.key.cryptoKey);
+		SHA256.returnMessageDigest(md256);
+		byte[] iv = new byte[32];
+		System.arraycopy(hbuf, 0, iv, 0, 32);
+		assertTrue(Arrays.equals(iv, predIV));
+		return dbuf;
+	}
+
+}
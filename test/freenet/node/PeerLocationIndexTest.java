@@ -0,0 +1,155 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+
+public class PeerLocationIndexTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	/** Random locations for each peer: its own, and up to maxFOAF of its peers. */
+	private double[][] makeLocations(int peers, int maxFOAF) {
+		double[][] locations = new double[peers][];
+		for(int i = 0; i < peers; i++) {
+			locations[i] = new double[1 + random.nextInt(maxFOAF + 1)];
+			for(int j = 0; j < locations[i].length; j++)
+				locations[i][j] = random.nextDouble();
+		}
+		return locations;
+	}
+
+	private static double closest(double[] locations, double target) {
+		double best = Double.MAX_VALUE;
+		for(double l : locations)
+			best = Math.min(best, Location.distance(l, target));
+		return best;
+	}
+
+	public void testWalk() {
+		for(int peers = 0; peers < 20; peers++) {
+			double[][] locations = makeLocations(peers, 3);
+			PeerLocationIndex index = new PeerLocationIndex(new PeerNode[peers], 0, locations);
+			for(int t = 0; t < 50; t++) {
+				double target = t < 2 ? t : random.nextDouble();
+				PeerLocationIndex.Walk walk = index.walk(target);
+				BitSet seen = new BitSet();
+				double last = 0.0;
+				int visited = 0;
+				int i;
+				while((i = walk.next()) != -1) {
+					visited++;
+					assertTrue(walk.distance() >= last);
+					last = walk.distance();
+					if(!seen.get(i)) {
+						// First visit is for the peer's closest location.
+						assertEquals(closest(locations[i], target), walk.distance());
+						seen.set(i);
+					}
+				}
+				assertEquals(index.size(), visited);
+				assertEquals(peers, seen.cardinality());
+			}
+		}
+	}
+
+	public void testInvalidLocations() {
+		double[][] locations = new double[][] { { -1.0 }, { 0.5, 2.0 } };
+		PeerLocationIndex index = new PeerLocationIndex(new PeerNode[2], 0, locations);
+		assertEquals(1, index.size());
+		PeerLocationIndex.Walk walk = index.walk(0.1);
+		assertEquals(1, walk.next());
+		assertEquals(-1, walk.next());
+	}
+
+	/** The closest peer which is not excluded, looking at every location of every peer. */
+	private static int scan(double[][] locations, double target, BitSet excluded) {
+		int best = -1;
+		double bestDistance = Double.MAX_VALUE;
+		for(int i = 0; i < locations.length; i++) {
+			if(excluded.get(i)) continue;
+			double diff = closest(locations[i], target);
+			if(diff < bestDistance) {
+				bestDistance = diff;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/** The closest peer which is not excluded, walking the index as closerPeer() does. */
+	private static int walk(PeerLocationIndex index, double[][] locations, double target, BitSet excluded, BitSet visited) {
+		int best = -1;
+		double bestDistance = Double.MAX_VALUE;
+		visited.clear();
+		PeerLocationIndex.Walk walk = index.walk(target);
+		int i;
+		while((i = walk.next()) != -1) {
+			if(best != -1 && walk.distance() > bestDistance) break;
+			if(visited.get(i)) continue;
+			visited.set(i);
+			if(excluded.get(i)) continue;
+			// closerPeer() recomputes the distance for the peers it visits.
+			double diff = closest(locations[i], target);
+			if(diff < bestDistance) {
+				bestDistance = diff;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Replay routing decisions for 500 peers, each with up to 50 FOAF locations, a fifth of
+	 * them backed off or timed out, choosing the closest of the rest by scanning all of them
+	 * and by walking the index.
+	 */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK)
+			return;
+
+		final int peers = 500;
+		final int decisions = 100000;
+		double[][] locations = makeLocations(peers, 50);
+		double[] targets = new double[decisions];
+		BitSet[] excluded = new BitSet[64];
+		for(int i = 0; i < decisions; i++)
+			targets[i] = random.nextDouble();
+		for(int i = 0; i < excluded.length; i++) {
+			excluded[i] = new BitSet(peers);
+			for(int j = 0; j < peers; j++)
+				if(random.nextInt(5) == 0) excluded[i].set(j);
+		}
+
+		long start = System.nanoTime();
+		PeerLocationIndex index = new PeerLocationIndex(new PeerNode[peers], 0, locations);
+		long buildTime = System.nanoTime() - start;
+		System.out.println("Built index of " + index.size() + " locations in " + (buildTime / 1000) + "us");
+
+		int[] expected = new int[decisions];
+		BitSet visited = new BitSet(peers);
+		for(int pass = 0; pass < 4; pass++) {
+			boolean useIndex = (pass % 2) == 1;
+			start = System.nanoTime();
+			for(int i = 0; i < decisions; i++) {
+				BitSet e = excluded[i % excluded.length];
+				if(useIndex) {
+					int chosen = walk(index, locations, targets[i], e, visited);
+					assertEquals(expected[i], chosen);
+				} else
+					expected[i] = scan(locations, targets[i], e);
+			}
+			long time = System.nanoTime() - start;
+			// First two passes are the warm up.
+			if(pass < 2) continue;
+			System.out.println((useIndex ? "Walking index" : "Scanning peers") + ": " + decisions + " decisions in "
+			        + (time / 1000000) + "ms (" + (time / decisions) + "ns each)");
+		}
+	}
+
+}
@@ -0,0 +1,214 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+
+public class UIDTrackerTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	private UIDTag makeTag(int type, boolean ssk, boolean realTime, long uid) {
+		switch(type) {
+		case 0:
+			return new RequestTag(ssk, RequestTag.START.LOCAL, null, realTime, uid, null);
+		case 1:
+			return new InsertTag(ssk, InsertTag.START.LOCAL, null, realTime, uid, null);
+		default:
+			return new OfferReplyTag(ssk, null, realTime, uid, null);
+		}
+	}
+
+	private static boolean lock(UIDTracker tracker, UIDTag tag) {
+		return tracker.lock(tag.uid, tag.isSSK(), tag.isInsert(), tag.isOfferReply(), tag.wasLocal(), tag.realTimeFlag, tag);
+	}
+
+	private static void unlock(UIDTracker tracker, UIDTag tag) {
+		tracker.unlock(tag.uid, tag.isSSK(), tag.isInsert(), tag.isOfferReply(), tag.wasLocal(), tag.realTimeFlag, tag, false);
+	}
+
+	/** Compare the running totals with the sum over the tags, for every category. */
+	private void checkTotals(UIDTracker tracker) {
+		UIDTracker.RunningCounts totals = tracker.getTotals();
+		for(int type = 0; type < 3; type++) {
+			for(int flags = 0; flags < 8; flags++) {
+				boolean ssk = (flags & 1) != 0;
+				boolean local = (flags & 2) != 0;
+				boolean realTime = (flags & 4) != 0;
+				boolean insert = type == 1;
+				boolean offer = type == 2;
+				if(offer && local) continue;
+				int category = UIDTracker.category(ssk, insert, offer, local, realTime);
+				ArrayList<UIDTag> tags = tracker.getTags(ssk, insert, offer, local, realTime);
+				assertEquals(tags.size(), totals.count(category));
+				assertEquals(tags.size(), tracker.count(ssk, insert, offer, local, realTime));
+				for(int transfersPerInsert = 1; transfersPerInsert <= 2; transfersPerInsert++) {
+					for(int i = 0; i < 2; i++) {
+						boolean ignoreLocalVsRemote = i == 0;
+						int in = 0;
+						int out = 0;
+						for(UIDTag tag : tags) {
+							in += tag.expectedTransfersIn(ignoreLocalVsRemote, transfersPerInsert);
+							out += tag.expectedTransfersOut(ignoreLocalVsRemote, transfersPerInsert);
+						}
+						assertEquals(in, totals.expectedTransfersIn(category, ignoreLocalVsRemote, transfersPerInsert));
+						assertEquals(out, totals.expectedTransfersOut(category, ignoreLocalVsRemote, transfersPerInsert));
+					}
+				}
+			}
+		}
+	}
+
+	public void testLockUnlock() {
+		UIDTracker tracker = new UIDTracker();
+		UIDTag tag = makeTag(0, false, true, 1);
+		assertTrue(lock(tracker, tag));
+		assertFalse(lock(tracker, makeTag(1, false, true, 1)));
+		assertEquals(1, tracker.getTotalRunningUIDs());
+		assertEquals(1, tracker.getTotalRunningUIDsAlt());
+		assertEquals(1, tracker.count(false, false, false, true, true));
+		assertEquals(0, tracker.count(false, false, false, true, false));
+		// Wrong tag
+		tracker.unlock(1, false, false, false, true, true, makeTag(0, false, true, 1), true);
+		assertEquals(1, tracker.getTotalRunningUIDs());
+		unlock(tracker, tag);
+		assertEquals(0, tracker.getTotalRunningUIDs());
+		assertEquals(0, tracker.getTotalRunningUIDsAlt());
+		try {
+			unlock(tracker, tag);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	public void testRunningTotals() {
+		UIDTracker tracker = new UIDTracker();
+		ArrayList<UIDTag> running = new ArrayList<UIDTag>();
+		for(int i = 0; i < 5000; i++) {
+			int op = random.nextInt(4);
+			if(op < 2 || running.isEmpty()) {
+				UIDTag tag = makeTag(random.nextInt(3), random.nextBoolean(), random.nextBoolean(), random.nextLong());
+				assertTrue(lock(tracker, tag));
+				running.add(tag);
+			} else if(op == 2) {
+				running.get(random.nextInt(running.size())).setNotRoutedOnwards();
+			} else {
+				unlock(tracker, running.remove(random.nextInt(running.size())));
+			}
+			if(i % 500 == 0) checkTotals(tracker);
+		}
+		checkTotals(tracker);
+		for(UIDTag tag : running)
+			unlock(tracker, tag);
+		checkTotals(tracker);
+		assertEquals(0, tracker.getTotalRunningUIDsAlt());
+	}
+
+	/** Output bandwidth liability, walking the running requests as the old code did. All the
+	 * tags are local, so count them as remote. */
+	private static double walkLiability(UIDTracker tracker, boolean realTime) {
+		int[] in = new int[2];
+		int[] out = new int[2];
+		for(int type = 0; type < 3; type++) {
+			for(int flags = 0; flags < 4; flags++) {
+				boolean ssk = (flags & 1) != 0;
+				boolean local = (flags & 2) != 0;
+				if(type == 2 && local) continue;
+				for(UIDTag tag : tracker.getTags(ssk, type == 1, type == 2, local, realTime)) {
+					in[ssk ? 1 : 0] += tag.expectedTransfersIn(true, 1);
+					out[ssk ? 1 : 0] += tag.expectedTransfersOut(true, 1);
+				}
+			}
+		}
+		return NodeStats.bandwidthLiability(in[0], in[1], out[0], out[1], false);
+	}
+
+	private static double countedLiability(UIDTracker tracker, boolean realTime) {
+		UIDTracker.RunningCounts totals = tracker.getTotals();
+		int[] in = new int[2];
+		int[] out = new int[2];
+		for(int type = 0; type < 3; type++) {
+			for(int flags = 0; flags < 4; flags++) {
+				boolean ssk = (flags & 1) != 0;
+				boolean local = (flags & 2) != 0;
+				if(type == 2 && local) continue;
+				int category = UIDTracker.category(ssk, type == 1, type == 2, local, realTime);
+				in[ssk ? 1 : 0] += totals.expectedTransfersIn(category, true, 1);
+				out[ssk ? 1 : 0] += totals.expectedTransfersOut(category, true, 1);
+			}
+		}
+		return NodeStats.bandwidthLiability(in[0], in[1], out[0], out[1], false);
+	}
+
+	private static class Completion implements Comparable<Completion> {
+		final long time;
+		final UIDTag tag;
+		Completion(long time, UIDTag tag) {
+			this.time = time;
+			this.tag = tag;
+		}
+		public int compareTo(Completion o) {
+			return time < o.time ? -1 : (time > o.time ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Replay a request arrival trace through the output bandwidth liability check, counting
+	 * the running requests by walking them and from the running totals.
+	 */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK)
+			return;
+
+		// Trace: Poisson arrivals at 200/sec, mostly bulk CHK requests, 10-60 seconds each.
+		final int events = 30000;
+		long[] arrival = new long[events];
+		long[] duration = new long[events];
+		int[] type = new int[events];
+		boolean[] ssk = new boolean[events];
+		boolean[] realTime = new boolean[events];
+		long now = 0;
+		for(int i = 0; i < events; i++) {
+			now += (long) (-Math.log(1.0 - random.nextDouble()) * 5);
+			arrival[i] = now;
+			duration[i] = 10000 + random.nextInt(50000);
+			int r = random.nextInt(100);
+			type[i] = r < 80 ? 0 : (r < 95 ? 1 : 2);
+			ssk[i] = random.nextInt(4) == 0;
+			realTime[i] = random.nextInt(10) == 0;
+		}
+		// Enough for ~5000 requests running at once.
+		final double limit = NodeStats.bandwidthLiability(0, 0, 5000, 0, false);
+
+		for(int pass = 0; pass < 4; pass++) {
+			boolean walk = (pass % 2) == 0;
+			UIDTracker tracker = new UIDTracker();
+			PriorityQueue<Completion> completions = new PriorityQueue<Completion>();
+			int accepted = 0;
+			long start = System.nanoTime();
+			for(int i = 0; i < events; i++) {
+				while(!completions.isEmpty() && completions.peek().time <= arrival[i])
+					unlock(tracker, completions.poll().tag);
+				double liability = walk ? walkLiability(tracker, realTime[i]) : countedLiability(tracker, realTime[i]);
+				if(liability > limit) continue;
+				UIDTag tag = makeTag(type[i], ssk[i], realTime[i], random.nextLong());
+				lock(tracker, tag);
+				completions.add(new Completion(arrival[i] + duration[i], tag));
+				accepted++;
+			}
+			long time = System.nanoTime() - start;
+			// First two passes are the warm up.
+			if(pass < 2) continue;
+			System.out.println((walk ? "Walking tags" : "Running totals") + ": " + events + " decisions in "
+			        + (time / 1000000) + "ms (" + (time / events) + "ns each), accepted " + accepted);
+		}
+	}
+
+}
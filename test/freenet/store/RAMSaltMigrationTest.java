@@ -95,7 +95,7 @@ public class RAMSaltMigrationTest extends TestCase {
 
 	public void testSaltedStore() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
 		CHKStore store = new CHKStore();
-		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", store, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", store, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, false);
 		saltStore.start(null, true);
 
 		for(int i=0;i<5;i++) {
@@ -115,7 +115,7 @@ public class RAMSaltMigrationTest extends TestCase {
 
 	public void testSaltedStoreOldBlocks() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
 		CHKStore store = new CHKStore();
-		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", store, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", store, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, false);
 		saltStore.start(null, true);
 
 		for(int i=0;i<5;i++) {
@@ -143,6 +143,72 @@ public class RAMSaltMigrationTest extends TestCase {
 		}
 	}
 
+	public void testSaltedStoreMmap() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", store, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, true);
+		saltStore.start(null, true);
+
+		ClientCHK[] keys = new ClientCHK[5];
+		for(int i=0;i<5;i++) {
+			
+			// Encode a block
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlock(test);
+			store.put(block, false);
+			
+			keys[i] = block.getClientKey();
+			
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			String data = decodeBlock(verify, keys[i]);
+			assertEquals(test, data);
+		}
+		saltStore.close();
+
+		// Reopen with normal file access, the data must be on disk.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", store, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, false);
+		saltStore.start(null, true);
+		for(int i=0;i<5;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlock(verify, keys[i]));
+		}
+		saltStore.close();
+	}
+
+	public void testSaltedStoreWriteBehind() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", store, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, false);
+		saltStore.start(null, true);
+		saltStore.setWriteBehind(true);
+
+		ClientCHK[] keys = new ClientCHK[5];
+		for(int i=0;i<5;i++) {
+			
+			// Encode a block
+			String test = "test" + i;
+			ClientCHKBlock block = encodeBlock(test);
+			store.put(block, false);
+			
+			keys[i] = block.getClientKey();
+			
+			// Visible immediately, whether or not it has been written yet.
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			String data = decodeBlock(verify, keys[i]);
+			assertEquals(test, data);
+		}
+		// Flushes the queue.
+		saltStore.close();
+
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", store, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, false);
+		saltStore.start(null, true);
+		for(int i=0;i<5;i++) {
+			CHKBlock verify = store.fetch(keys[i].getNodeCHK(), false, false, null);
+			assertEquals("test" + i, decodeBlock(verify, keys[i]));
+		}
+		saltStore.close();
+	}
+
 	public void testMigrate() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
 		CHKStore store = new CHKStore();
 		RAMFreenetStore<CHKBlock> ramStore = new RAMFreenetStore<CHKBlock>(store, 10);
@@ -159,7 +225,7 @@ public class RAMSaltMigrationTest extends TestCase {
 		assertEquals(test, data);
 
 		CHKStore newStore = new CHKStore();
-		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", newStore, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", newStore, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, null, false);
 		saltStore.start(null, true);
 
 		ramStore.migrateTo(newStore, false);
@@ -189,7 +255,7 @@ public class RAMSaltMigrationTest extends TestCase {
 		strongPRNG.nextBytes(storeKey);
 
 		CHKStore newStore = new CHKStore();
-		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", newStore, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, storeKey);
+		SaltedHashFreenetStore saltStore = SaltedHashFreenetStore.construct(new File(tempDir, "saltstore"), "teststore", newStore, weakPRNG, 10, 0, false, SemiOrderedShutdownHook.get(), true, true, ticker, storeKey, false);
 		saltStore.start(null, true);
 
 		ramStore.migrateTo(newStore, false);
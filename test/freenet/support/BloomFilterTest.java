@@ -1,5 +1,7 @@
 package freenet.support;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -45,9 +47,31 @@ public class BloomFilterTest extends TestCase {
 		_testFilterPositive(filter);
 	}
 
+	public void testDoubleHashCountingFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = new DoubleHashBloomFilter(FILTER_SIZE, K, true);
+		_testFilterPositive(filter);
+	}
+
+	public void testDoubleHashBinaryFilterPositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		BloomFilter filter = new DoubleHashBloomFilter(FILTER_SIZE, K, false);
+		_testFilterPositive(filter);
+	}
+
 	public void testCountingFilterRemove() {
 		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, true);
+		_testCountingFilterRemove(filter);
+	}
+
+	public void testDoubleHashCountingFilterRemove() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		BloomFilter filter = new DoubleHashBloomFilter(FILTER_SIZE, K, true);
+		_testCountingFilterRemove(filter);
+	}
+
+	private void _testCountingFilterRemove(BloomFilter filter) {
 
 		Map<ByteArrayWrapper, byte[]> baseList = new HashMap<ByteArrayWrapper, byte[]>();
 
@@ -149,4 +173,157 @@ public class BloomFilterTest extends TestCase {
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
 		_testFilterFalsePositive(filter);
 	}
+
+	public void testDoubleHashCountingFilterFalsePositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		BloomFilter filter = new DoubleHashBloomFilter(FILTER_SIZE, K, true);
+		_testFilterFalsePositive(filter);
+	}
+
+	public void testDoubleHashBinaryFilterFalsePositive() {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		BloomFilter filter = new DoubleHashBloomFilter(FILTER_SIZE, K, false);
+		_testFilterFalsePositive(filter);
+	}
+
+	/** The double hash filter must use exactly the same bit layout as the old filters. */
+	private void _testSameLayout(boolean counting) throws IOException {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		File file = File.createTempFile("bloomtest-", ".bloom");
+		file.deleteOnExit();
+		try {
+			DoubleHashBloomFilter filter = new DoubleHashBloomFilter(file, FILTER_SIZE, K, counting);
+			byte[][] list = new byte[PASS_POS][];
+			for (int i = 0; i < PASS_POS; i++) {
+				list[i] = new byte[32];
+				rand.nextBytes(list[i]);
+				filter.addKey(list[i]);
+			}
+			if (counting) {
+				// Bump some counters past 1.
+				for (int i = 0; i < PASS_POS / 4; i++)
+					filter.addKey(list[i]);
+			}
+			filter.close();
+
+			BloomFilter old = BloomFilter.createFilter(file, FILTER_SIZE, K, counting);
+			assertFalse(old.needRebuild());
+			DoubleHashBloomFilter reloaded = new DoubleHashBloomFilter(file, FILTER_SIZE, K, counting);
+			for (int i = 0; i < FILTER_SIZE; i++)
+				assertEquals("slot " + i, old.getBit(i), reloaded.getBit(i));
+			for (byte[] b : list)
+				assertTrue(reloaded.checkFilter(b));
+			old.close();
+			reloaded.close();
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testDoubleHashBinarySameLayout() throws IOException {
+		_testSameLayout(false);
+	}
+
+	public void testDoubleHashCountingSameLayout() throws IOException {
+		_testSameLayout(true);
+	}
+
+	/** Shared hashes must give the same answers as checking each filter on its own. */
+	public void testSharedKeyHashes() {
+		int[] lengths = new int[] { FILTER_SIZE, 3000, 4104, 77776 };
+		BloomFilter[] filters = new BloomFilter[lengths.length * 2];
+		for (int i = 0; i < lengths.length; i++) {
+			int K = BloomFilter.optimialK(lengths[i], PASS / 4);
+			filters[i * 2] = BloomFilter.createFilter(lengths[i], K, false);
+			filters[i * 2 + 1] = BloomFilter.createFilter(lengths[i], K + i, true);
+		}
+		byte[][] added = new byte[PASS / 4][];
+		for (int i = 0; i < added.length; i++) {
+			added[i] = new byte[32];
+			rand.nextBytes(added[i]);
+			filters[rand.nextInt(filters.length)].addKey(added[i]);
+		}
+		int hits = 0;
+		for (int i = 0; i < PASS_FALSE; i++) {
+			byte[] key;
+			if (i < added.length) {
+				key = added[i];
+			} else {
+				key = new byte[32];
+				rand.nextBytes(key);
+			}
+			BloomFilter.KeyHashes hashes = new BloomFilter.KeyHashes(key);
+			for (BloomFilter filter : filters) {
+				boolean expected = filter.checkFilter(key);
+				assertEquals(expected, filter.checkFilter(hashes));
+				if (expected)
+					hits++;
+			}
+		}
+		assertTrue(hits >= added.length);
+	}
+
+	/** Keys added while a forked filter is being merged must not be lost. */
+	public void testDoubleHashMergeConcurrentAdd() throws InterruptedException {
+		final int K = BloomFilter.optimialK(FILTER_SIZE, PASS);
+		for (int round = 0; round < 50; round++) {
+			final DoubleHashBloomFilter filter = new DoubleHashBloomFilter(FILTER_SIZE, K, false);
+			filter.fork(K);
+			final byte[][] keys = new byte[PASS / 4][];
+			for (int i = 0; i < keys.length; i++) {
+				keys[i] = new byte[32];
+				rand.nextBytes(keys[i]);
+			}
+			Thread adder = new Thread() {
+				@Override
+				public void run() {
+					for (byte[] key : keys)
+						filter.addKey(key);
+				}
+			};
+			adder.start();
+			Thread.yield();
+			filter.merge();
+			adder.join();
+			for (byte[] key : keys)
+				assertTrue(filter.checkFilter(key));
+		}
+	}
+
+	public void testBenchmark() {
+		if (!TestProperty.BENCHMARK)
+			return;
+
+		final int size = 16 * 1024 * 1024;
+		final int keys = 1024 * 1024;
+		final int lookups = 4 * 1024 * 1024;
+		int K = BloomFilter.optimialK(size, keys);
+		byte[][] list = new byte[4096][];
+		for (int i = 0; i < list.length; i++) {
+			list[i] = new byte[32];
+			rand.nextBytes(list[i]);
+		}
+
+		BloomFilter[] filters = new BloomFilter[] {
+				BloomFilter.createFilter(size, K, false),
+				new DoubleHashBloomFilter(size, K, false),
+				BloomFilter.createFilter(size, K, true),
+				new DoubleHashBloomFilter(size, K, true) };
+		for (BloomFilter filter : filters) {
+			for (int i = 0; i < keys; i++)
+				filter.addKey(list[i % list.length]);
+			// Warm up
+			int hits = 0;
+			for (int i = 0; i < lookups / 4; i++)
+				if (filter.checkFilter(list[i % list.length]))
+					hits++;
+			long start = System.currentTimeMillis();
+			for (int i = 0; i < lookups; i++)
+				if (filter.checkFilter(list[i % list.length]))
+					hits++;
+			long end = System.currentTimeMillis();
+			System.out.println(filter.getClass().getSimpleName() + " (k=" + K + "): " + lookups + " lookups in "
+			        + (end - start) + "ms (" + (lookups * 1000L / Math.max(1, end - start)) + "/sec), hits " + hits);
+		}
+	}
 }
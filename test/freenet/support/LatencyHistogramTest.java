@@ -0,0 +1,79 @@
+package freenet.support;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+	public void testBuckets() {
+		int last = -1;
+		for(long v = 0; v < 1000000; v++) {
+			int index = LatencyHistogram.bucketIndex(v);
+			assertTrue(v + " in bucket " + index, LatencyHistogram.lowestValue(index) <= v);
+			assertTrue(v + " in bucket " + index, LatencyHistogram.highestValue(index) >= v);
+			// Contiguous.
+			assertTrue(index == last || index == last + 1);
+			last = index;
+		}
+		for(long v = 0; v < LatencyHistogram.SUB_BUCKETS; v++)
+			assertEquals(v, LatencyHistogram.highestValue(LatencyHistogram.bucketIndex(v)));
+		// Within about 6% at the top of the range too.
+		int index = LatencyHistogram.bucketIndex(LatencyHistogram.MAX_VALUE);
+		long low = LatencyHistogram.lowestValue(index);
+		long high = LatencyHistogram.highestValue(index);
+		assertTrue(low <= LatencyHistogram.MAX_VALUE && high >= LatencyHistogram.MAX_VALUE);
+		assertTrue((double) (high - low) / low < 0.07);
+	}
+
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		for(int i = 1; i <= 1000; i++)
+			histogram.report(i);
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000, histogram.getMax());
+		assertEquals(500.5, histogram.getMean(), 0.001);
+		assertWithin(500, histogram.getValueAtPercentile(50));
+		assertWithin(900, histogram.getValueAtPercentile(90));
+		assertWithin(990, histogram.getValueAtPercentile(99));
+		assertEquals(1000, histogram.getValueAtPercentile(100));
+		assertEquals(1, histogram.getValueAtPercentile(0));
+	}
+
+	public void testOutOfRange() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.report(-5);
+		histogram.report(Long.MAX_VALUE);
+		assertEquals(2, histogram.getCount());
+		assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+		assertEquals(LatencyHistogram.MAX_VALUE, histogram.getValueAtPercentile(100));
+	}
+
+	public void testConcurrent() throws InterruptedException {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		Thread[] threads = new Thread[4];
+		for(int i = 0; i < threads.length; i++) {
+			final long seed = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					Random random = new Random(seed);
+					for(int j = 0; j < 10000; j++)
+						histogram.report(random.nextInt(60000));
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(40000, histogram.getCount());
+		assertWithin(30000, histogram.getValueAtPercentile(50));
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue("Expected about " + expected + " but got " + actual, Math.abs(actual - expected) <= expected * 0.07);
+	}
+
+}
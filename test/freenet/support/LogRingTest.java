@@ -0,0 +1,110 @@
+package freenet.support;
+
+import junit.framework.TestCase;
+
+public class LogRingTest extends TestCase {
+
+	private static final int THREADS = 4;
+	private static final int MESSAGES = 20000;
+
+	public void testSize() {
+		assertEquals(16, new LogRing(10, false).capacity());
+		assertEquals(16, new LogRing(16, false).capacity());
+	}
+
+	public void testDropWhenFull() {
+		LogRing ring = new LogRing(4, true);
+		// No writer yet, so we drop rather than block even though blockWhenFull is set.
+		for(int i = 0; i < 6; i++) {
+			long seq = ring.claim();
+			if(i < 4) {
+				assertEquals(i, seq);
+				ring.get(seq).msg = Integer.toString(i);
+				ring.publish(seq);
+			} else
+				assertEquals(-1, seq);
+		}
+		assertEquals(2, ring.getDropped());
+		for(int i = 0; i < 4; i++) {
+			LogRing.Entry entry = ring.peek();
+			assertEquals(Integer.toString(i), entry.msg);
+			ring.release(entry);
+			assertNull(entry.msg);
+		}
+		assertNull(ring.peek());
+		assertEquals(4, ring.claim());
+	}
+
+	public void testBlockWhenFull() throws InterruptedException {
+		LogRing ring = new LogRing(64, true);
+		assertEquals(THREADS * MESSAGES, runWriters(ring));
+		assertEquals(0, ring.getDropped());
+	}
+
+	public void testDropConcurrent() throws InterruptedException {
+		LogRing ring = new LogRing(64, false);
+		int read = runWriters(ring);
+		assertEquals(THREADS * MESSAGES, read + ring.getDropped());
+	}
+
+	/** Log from several threads while another thread reads, in order for each thread.
+	 * @return The number of messages read. */
+	private int runWriters(final LogRing ring) throws InterruptedException {
+		final int[] read = new int[1];
+		final boolean[] failed = new boolean[1];
+		final boolean[] done = new boolean[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				int[] last = new int[THREADS];
+				for(int i = 0; i < THREADS; i++) last[i] = -1;
+				while(true) {
+					boolean finished;
+					synchronized(done) {
+						finished = done[0];
+					}
+					LogRing.Entry entry;
+					while((entry = ring.peek()) != null) {
+						int thread = entry.hashCode;
+						int seq = Integer.parseInt(entry.msg);
+						if(seq <= last[thread]) failed[0] = true;
+						last[thread] = seq;
+						ring.release(entry);
+						read[0]++;
+					}
+					if(finished) return;
+					ring.await(10);
+				}
+			}
+		};
+		ring.setWriter(reader);
+		reader.start();
+		Thread[] writers = new Thread[THREADS];
+		for(int i = 0; i < THREADS; i++) {
+			final int thread = i;
+			writers[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j = 0; j < MESSAGES; j++) {
+						long seq = ring.claim();
+						if(seq < 0) continue;
+						LogRing.Entry entry = ring.get(seq);
+						entry.hashCode = thread;
+						entry.msg = Integer.toString(j);
+						ring.publish(seq);
+					}
+				}
+			};
+			writers[i].start();
+		}
+		for(Thread t : writers)
+			t.join();
+		synchronized(done) {
+			done[0] = true;
+		}
+		reader.join();
+		assertFalse(failed[0]);
+		return read[0];
+	}
+
+}
@@ -86,9 +86,11 @@ public class PrioritizedSerialExecutorTest extends TestCase {
 		Thread.sleep(10);
 
 		assertTrue(completedJobs.isEmpty()); // not started yet!
+		assertEquals(4, exec.getTotalQueueSize());
 
 		exec.start(realExec, "testRun"); // start !
 		waitFor(4);
+		assertEquals(0, exec.getTotalQueueSize());
 
 		assertTrue(completedJobs.contains("J1"));
 		assertTrue(completedJobs.contains("J2"));
@@ -0,0 +1,107 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class StripedLongHashMapTest extends TestCase {
+
+	public void testBasic() {
+		StripedLongHashMap<String> map = new StripedLongHashMap<String>(4);
+		assertNull(map.get(0));
+		assertNull(map.putIfAbsent(0, "zero"));
+		assertEquals("zero", map.putIfAbsent(0, "other"));
+		assertEquals("zero", map.get(0));
+		assertNull(map.put(Long.MIN_VALUE, "min"));
+		assertEquals("min", map.put(Long.MIN_VALUE, "MIN"));
+		assertEquals(2, map.size());
+		String other = new String("zero");
+		assertFalse(map.remove(0, other));
+		assertTrue(map.containsKey(0));
+		assertEquals("MIN", map.remove(Long.MIN_VALUE));
+		assertNull(map.remove(Long.MIN_VALUE));
+		assertEquals(1, map.size());
+		try {
+			map.put(1, null);
+			fail();
+		} catch (NullPointerException e) {
+			// Expected
+		}
+	}
+
+	/** Random operations, checked against a HashMap. Sequential keys cluster in the table. */
+	public void testRandom() {
+		Random random = new Random(1234);
+		StripedLongHashMap<Long> map = new StripedLongHashMap<Long>(16);
+		HashMap<Long, Long> expected = new HashMap<Long, Long>();
+		for(int i = 0; i < 200000; i++) {
+			long key = (i % 2 == 0) ? random.nextInt(5000) : random.nextLong();
+			if(i % 3 == 0)
+				key = random.nextInt(5000) << 20;
+			Long value = Long.valueOf(i);
+			switch(random.nextInt(3)) {
+			case 0:
+				assertEquals(expected.put(key, value), map.put(key, value));
+				break;
+			case 1:
+				Long old = expected.get(key);
+				if(old == null) expected.put(key, value);
+				assertEquals(old, map.putIfAbsent(key, value));
+				break;
+			case 2:
+				assertEquals(expected.remove(key), map.remove(key));
+				break;
+			}
+			if(i % 10000 == 0) {
+				// Grow and shrink
+				for(long k : new ArrayList<Long>(expected.keySet()))
+					if(random.nextBoolean()) {
+						assertNotNull(map.remove(k));
+						expected.remove(k);
+					}
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		for(Map.Entry<Long, Long> entry : expected.entrySet())
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+		HashSet<Long> keys = new HashSet<Long>();
+		ArrayList<Long> list = new ArrayList<Long>();
+		map.addKeys(list);
+		keys.addAll(list);
+		assertEquals(expected.keySet(), keys);
+		assertEquals(new HashSet<Long>(expected.values()), new HashSet<Long>(map.values()));
+	}
+
+	public void testConcurrent() throws InterruptedException {
+		final StripedLongHashMap<Object> map = new StripedLongHashMap<Object>(8);
+		final int perThread = 20000;
+		Thread[] threads = new Thread[8];
+		for(int t = 0; t < threads.length; t++) {
+			final long base = (long) t * perThread;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					Object value = new Object();
+					for(long i = base; i < base + perThread; i++)
+						assertNull(map.putIfAbsent(i, value));
+					for(long i = base; i < base + perThread; i += 2)
+						assertTrue(map.remove(i, value));
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(threads.length * perThread / 2, map.size());
+		for(long i = 0; i < threads.length * perThread; i++)
+			assertEquals(i % 2 == 1, map.containsKey(i));
+	}
+
+}
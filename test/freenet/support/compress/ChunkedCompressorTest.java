@@ -0,0 +1,178 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+* Public License, version 2 (or at your option any later version). See
+* http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import junit.framework.TestCase;
+import freenet.support.TestProperty;
+
+/**
+ * Test case for {@link freenet.support.compress.ChunkedCompressor} class.
+ */
+public class ChunkedCompressorTest extends TestCase {
+
+	private final Random random = new Random(1234);
+
+	/** Compressible data: random words from a small vocabulary. */
+	private byte[] makeData(int length) {
+		byte[] data = new byte[length];
+		for(int i = 0; i < length; i++)
+			data[i] = (byte) ('a' + random.nextInt(8));
+		return data;
+	}
+
+	private static byte[] compress(Compressor c, byte[] data, long maxWriteLength) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		c.compress(new ByteArrayInputStream(data), baos, data.length, maxWriteLength);
+		return baos.toByteArray();
+	}
+
+	private static byte[] decompress(Compressor c, byte[] data, long maxLength) throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		c.decompress(new ByteArrayInputStream(data), baos, maxLength, -1);
+		return baos.toByteArray();
+	}
+
+	public void testChunkedCompressor() {
+		Compressor compressor = Compressor.COMPRESSOR_TYPE.getCompressorByMetadataID((short)4);
+		assertEquals(Compressor.COMPRESSOR_TYPE.LZMA_NEW_CHUNKED, compressor);
+	}
+
+	public void testNotDefault() throws InvalidCompressionCodecException {
+		for(boolean pre1254 : new boolean[] { false, true })
+			assertFalse(Arrays.asList(Compressor.COMPRESSOR_TYPE.getCompressorsArray(null, pre1254)).contains(Compressor.COMPRESSOR_TYPE.LZMA_NEW_CHUNKED));
+		assertEquals(Compressor.COMPRESSOR_TYPE.LZMA_NEW_CHUNKED, Compressor.COMPRESSOR_TYPE.getCompressorsArray("LZMA_NEW_CHUNKED", false)[0]);
+	}
+
+	public void testRoundTrip() throws IOException {
+		for(int threads = 1; threads <= 4; threads++) {
+			ChunkedCompressor c = new ChunkedCompressor(new GzipCompressor(), 1000, threads, new Semaphore(threads - 1));
+			for(int length : new int[] { 0, 1, 999, 1000, 1001, 25000, 25500 }) {
+				byte[] data = makeData(length);
+				byte[] compressed = compress(c, data, Long.MAX_VALUE);
+				assertTrue(compressed.length < length || length < 1000);
+				assertTrue(Arrays.equals(data, decompress(c, compressed, length)));
+			}
+		}
+	}
+
+	/** Extra threads need a permit each; with none left, a stream still works on one thread. */
+	public void testPermits() throws IOException, InterruptedException {
+		Semaphore permits = new Semaphore(0);
+		ChunkedCompressor c = new ChunkedCompressor(new GzipCompressor(), 1000, 4, permits);
+		byte[] data = makeData(25000);
+		assertTrue(Arrays.equals(data, decompress(c, compress(c, data, Long.MAX_VALUE), data.length)));
+		permits.release(2);
+		assertTrue(Arrays.equals(data, decompress(c, compress(c, data, Long.MAX_VALUE), data.length)));
+		// The workers give their permits back when they exit, just after the stream finishes.
+		for(int i = 0; i < 100 && permits.availablePermits() < 2; i++)
+			Thread.sleep(10);
+		assertEquals(2, permits.availablePermits());
+	}
+
+	public void testByteArrayDecompress() throws IOException {
+		ChunkedCompressor c = new ChunkedCompressor(new GzipCompressor(), 1000, 2, new Semaphore(1));
+		byte[] data = makeData(5000);
+		byte[] compressed = compress(c, data, Long.MAX_VALUE);
+		byte[] output = new byte[data.length];
+		assertEquals(data.length, c.decompress(compressed, 0, compressed.length, output));
+		assertTrue(Arrays.equals(data, output));
+	}
+
+	public void testCompressException() throws IOException {
+		ChunkedCompressor c = new ChunkedCompressor(new GzipCompressor(), 1000, 2, new Semaphore(1));
+		try {
+			compress(c, makeData(20000), 100);
+			fail("did not throw expected CompressionOutputSizeException");
+		} catch (CompressionOutputSizeException e) {
+			// expect this
+		}
+	}
+
+	public void testDecompressException() throws IOException {
+		ChunkedCompressor c = new ChunkedCompressor(new GzipCompressor(), 1000, 2, new Semaphore(1));
+		byte[] compressed = compress(c, makeData(5000), Long.MAX_VALUE);
+		try {
+			decompress(c, compressed, 4096);
+			fail("did not throw expected CompressionOutputSizeException");
+		} catch (CompressionOutputSizeException e) {
+			// expect this
+		}
+	}
+
+	public void testInvalidData() throws IOException {
+		ChunkedCompressor c = new ChunkedCompressor(new GzipCompressor(), 1000, 2, new Semaphore(1));
+		byte[] compressed = compress(c, makeData(5000), Long.MAX_VALUE);
+		// Truncated
+		byte[] truncated = new byte[compressed.length - 4];
+		System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+		try {
+			decompress(c, truncated, 5000);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// expect this
+		}
+		// Chunk too big to decompress in bounded memory
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.writeInt(ChunkedCompressor.MAX_CHUNK_SIZE + 1);
+		dos.writeInt(10);
+		dos.write(new byte[10]);
+		dos.writeInt(0);
+		try {
+			decompress(c, baos.toByteArray(), Long.MAX_VALUE);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// expect this
+		}
+		// Chunk decompresses to the wrong length
+		byte[] data = makeData(500);
+		byte[] chunk = compress(new GzipCompressor(), data, Long.MAX_VALUE);
+		baos = new ByteArrayOutputStream();
+		dos = new DataOutputStream(baos);
+		dos.writeInt(600);
+		dos.writeInt(chunk.length);
+		dos.write(chunk);
+		dos.writeInt(0);
+		try {
+			decompress(c, baos.toByteArray(), Long.MAX_VALUE);
+			fail();
+		} catch (InvalidCompressedDataException e) {
+			// expect this
+		}
+	}
+
+	/** Compression throughput against the number of threads. */
+	public void testBenchmark() throws IOException {
+		if(!TestProperty.BENCHMARK)
+			return;
+
+		byte[] data = makeData(32 * 1024 * 1024);
+		int cores = Runtime.getRuntime().availableProcessors();
+		for(int pass = 0; pass < 2; pass++) {
+			for(int threads = 1; threads <= cores; threads *= 2) {
+				ChunkedCompressor c = new ChunkedCompressor(new GzipCompressor(), 1024 * 1024, threads, new Semaphore(threads - 1));
+				long start = System.nanoTime();
+				byte[] compressed = compress(c, data, Long.MAX_VALUE);
+				long compressTime = System.nanoTime() - start;
+				start = System.nanoTime();
+				byte[] output = decompress(c, compressed, data.length);
+				long decompressTime = System.nanoTime() - start;
+				assertTrue(Arrays.equals(data, output));
+				// First pass is the warm up.
+				if(pass == 0) continue;
+				System.out.println(threads + " threads: compressed " + (data.length >> 20) + "MiB to " + compressed.length
+				        + " bytes in " + (compressTime / 1000000) + "ms, decompressed in " + (decompressTime / 1000000) + "ms");
+			}
+		}
+	}
+
+}
@@ -5,6 +5,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 import com.db4o.Db4o;
@@ -202,6 +209,149 @@ public class PersistentBlobTempBucketTest extends TestCase {
 		container.close();
 	}
 	
+	/** A FileChannel which moves the bucket to another slot just after the first read. */
+	private static class MovingChannel extends FileChannel {
+
+		private final FileChannel channel;
+		private PersistentBlobTempBucket bucket;
+		private long moveTo;
+
+		MovingChannel(FileChannel channel) {
+			this.channel = channel;
+		}
+
+		@Override
+		public int read(ByteBuffer dst, long position) throws IOException {
+			int read = channel.read(dst, position);
+			if(bucket != null) {
+				bucket.setIndex(moveTo);
+				bucket = null;
+			}
+			return read;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			return channel.read(dst);
+		}
+
+		@Override
+		public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+			return channel.read(dsts, offset, length);
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			return channel.write(src);
+		}
+
+		@Override
+		public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+			return channel.write(srcs, offset, length);
+		}
+
+		@Override
+		public int write(ByteBuffer src, long position) throws IOException {
+			return channel.write(src, position);
+		}
+
+		@Override
+		public long position() throws IOException {
+			return channel.position();
+		}
+
+		@Override
+		public FileChannel position(long newPosition) throws IOException {
+			channel.position(newPosition);
+			return this;
+		}
+
+		@Override
+		public long size() throws IOException {
+			return channel.size();
+		}
+
+		@Override
+		public FileChannel truncate(long size) throws IOException {
+			channel.truncate(size);
+			return this;
+		}
+
+		@Override
+		public void force(boolean metaData) throws IOException {
+			channel.force(metaData);
+		}
+
+		@Override
+		public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+			return channel.transferTo(position, count, target);
+		}
+
+		@Override
+		public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+			return channel.transferFrom(src, position, count);
+		}
+
+		@Override
+		public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+			return channel.map(mode, position, size);
+		}
+
+		@Override
+		public FileLock lock(long position, long size, boolean shared) throws IOException {
+			return channel.lock(position, size, shared);
+		}
+
+		@Override
+		public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+			return channel.tryLock(position, size, shared);
+		}
+
+		@Override
+		protected void implCloseChannel() throws IOException {
+			channel.close();
+		}
+
+	}
+
+	/** A read that races with defrag must retry into the caller's range only. */
+	public void testMovedDuringRead() throws IOException {
+		int blockSize = 1024;
+		File store = File.createTempFile("persistent-blob-test", ".blob");
+		MersenneTwister fastWeakRandom = new MersenneTwister(1234);
+		byte[] data = new byte[blockSize];
+		byte[] other = new byte[blockSize];
+		fastWeakRandom.nextBytes(data);
+		fastWeakRandom.nextBytes(other);
+		// Slot 2 is where defrag moved the bucket to, the others belong to other buckets.
+		RandomAccessFile raf = new RandomAccessFile(store, "rw");
+		raf.write(data);
+		raf.write(other);
+		raf.write(data);
+		raf.write(other);
+		PersistentBlobTempBucketFactory factory = new PersistentBlobTempBucketFactory(blockSize, -1, store);
+		MovingChannel channel = new MovingChannel(raf.getChannel());
+		factory.channel = channel;
+		PersistentBlobTempBucket bucket = new PersistentBlobTempBucket(factory, blockSize, 0, null, true);
+		bucket.size = blockSize;
+		channel.bucket = bucket;
+		channel.moveTo = 2;
+
+		InputStream is = bucket.getInputStream();
+		byte[] buf = new byte[blockSize * 3];
+		assertEquals(blockSize, is.read(buf, blockSize, blockSize));
+		assertEquals(-1, is.read(buf, blockSize, blockSize));
+		is.close();
+		for(int i=0;i<buf.length;i++) {
+			if(i >= blockSize && i < blockSize * 2)
+				assertEquals(data[i - blockSize], buf[i]);
+			else
+				assertEquals("Wrote outside the range at "+i, 0, buf[i]);
+		}
+		raf.close();
+		store.delete();
+	}
+
 	public void testDefragStillOpen() throws IOException, DatabaseDisabledException {
 		checkDefragStillOpen(1024, 1024, 10);
 	}
@@ -0,0 +1,96 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.api.Bucket;
+
+public class SlabBucketTest extends BucketTestBase {
+
+	private SlabAllocator allocator = new SlabAllocator(4 * SlabAllocator.SLAB_SIZE);
+
+	@Override
+	protected Bucket makeBucket(long size) throws IOException {
+		return SlabBucket.create(allocator, size);
+	}
+
+	@Override
+	protected void freeBucket(Bucket bucket) throws IOException {
+		bucket.free();
+	}
+
+	public void testAccounting() throws IOException {
+		SlabBucket small = SlabBucket.create(allocator, 100);
+		assertEquals(SlabAllocator.SLAB_SIZE, allocator.getSlabBytes());
+		assertEquals(SlabAllocator.CHUNK_SIZES[0], allocator.getUsedBytes());
+		SlabBucket block = SlabBucket.create(allocator, 32768);
+		assertEquals(2 * SlabAllocator.SLAB_SIZE, allocator.getSlabBytes());
+		assertEquals(SlabAllocator.CHUNK_SIZES[0] + 32768, allocator.getUsedBytes());
+		// Goes over the first chunk, the rest are CHK blocks.
+		OutputStream os = small.getOutputStream();
+		os.write(new byte[SlabAllocator.CHUNK_SIZES[0] + 1]);
+		os.close();
+		assertEquals(SlabAllocator.CHUNK_SIZES[0] + 2 * 32768, allocator.getUsedBytes());
+		small.free();
+		block.free();
+		assertEquals(0, allocator.getUsedBytes());
+		assertEquals(2 * SlabAllocator.SLAB_SIZE, allocator.getSlabBytes());
+		assertEquals(2 * SlabAllocator.SLAB_SIZE, allocator.releaseEmptySlabs());
+		assertEquals(0, allocator.getSlabBytes());
+	}
+
+	public void testLimit() throws IOException {
+		SlabAllocator allocator = new SlabAllocator(SlabAllocator.SLAB_SIZE);
+		int chunks = SlabAllocator.SLAB_SIZE / 32768;
+		SlabBucket[] buckets = new SlabBucket[chunks];
+		for(int i = 0; i < chunks; i++) {
+			buckets[i] = SlabBucket.create(allocator, 32768);
+			assertNotNull(buckets[i]);
+		}
+		assertNull(SlabBucket.create(allocator, 32768));
+		// Can't grow either.
+		OutputStream os = buckets[0].getOutputStream();
+		os.write(new byte[32768]);
+		try {
+			os.write(0);
+			fail();
+		} catch (IOException e) {
+			// Ok.
+		}
+		assertFalse(buckets[0].ensureCapacity(32769));
+		// Empty slabs of another size class are released to make room.
+		for(SlabBucket bucket : buckets)
+			bucket.free();
+		assertNotNull(SlabBucket.create(allocator, 100));
+		assertEquals(SlabAllocator.SLAB_SIZE, allocator.getSlabBytes());
+	}
+
+	public void testCopyTo() throws IOException {
+		byte[] data = new byte[100000];
+		new Random(1234).nextBytes(data);
+		SlabBucket bucket = SlabBucket.create(allocator, 1000);
+		OutputStream os = bucket.getOutputStream();
+		os.write(data);
+		// Readable before closing.
+		byte[] read = new byte[data.length];
+		new DataInputStream(bucket.getInputStream()).readFully(read);
+		assertTrue(Arrays.equals(data, read));
+		os.close();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		bucket.copyTo(baos, 50000);
+		byte[] copied = baos.toByteArray();
+		assertEquals(50000, copied.length);
+		for(int i = 0; i < copied.length; i++)
+			assertEquals(data[i], copied[i]);
+		bucket.free();
+		assertEquals(0, allocator.getUsedBytes());
+	}
+
+}
@@ -140,6 +140,33 @@ public class TempBucketTest extends TestSuite {
 			os.close();
 		}
 		
+		public void testOffHeapConversionWhileReading() throws IOException {
+			TempBucketFactory tbf = new TempBucketFactory(exec, fg, 65536, 4*1024*1024, strongPRNG, weakPRNG, false);
+			tbf.setOffHeap(true);
+			
+			TempBucket bucket = (TempBucket) tbf.makeBucket(2048);
+			assertTrue(bucket.isRAMBucket());
+			assertTrue(tbf.getOffHeapBytes() > 0);
+			OutputStream os = bucket.getOutputStream();
+			byte[] data = new byte[50000];
+			new Random(89).nextBytes(data);
+			os.write(data);
+			InputStream is = bucket.getInputStream();
+			bucket.migrateToFileBucket();
+			assertFalse(bucket.isRAMBucket());
+			os.write(data);
+			byte[] readTo = new byte[data.length];
+			DataInputStream dis = new DataInputStream(is);
+			for(int i=0;i<2;i++) {
+				dis.readFully(readTo);
+				for(int j=0;j<readTo.length;j++)
+					assertTrue(readTo[j] == data[j]);
+			}
+			is.close();
+			os.close();
+			bucket.free();
+		}
+		
 	}
 
 	// Private because we only use it as a base class for the actual tests.
@@ -152,8 +179,13 @@ public class TempBucketTest extends TestSuite {
 		private TempBucketFactory tbf;
 
 		public RealTempBucketTest_(int maxRamSize, int maxTotalRamSize, boolean encrypted) throws IOException {
+			this(maxRamSize, maxTotalRamSize, encrypted, false);
+		}
+
+		public RealTempBucketTest_(int maxRamSize, int maxTotalRamSize, boolean encrypted, boolean offHeap) throws IOException {
 			fg = new FilenameGenerator(weakPRNG, false, null, "junit");
 			tbf = new TempBucketFactory(exec, fg, maxRamSize, maxTotalRamSize, strongPRNG, weakPRNG, encrypted);
+			tbf.setOffHeap(offHeap);
 
 			canOverwrite = false;
 		}
@@ -199,6 +231,18 @@ public class TempBucketTest extends TestSuite {
 		}
 	}
 
+	public static class RealTempBucketTest_64k_4m_F_OffHeap extends RealTempBucketTest_ {
+		public RealTempBucketTest_64k_4m_F_OffHeap() throws IOException {
+			super(64 * 1024, 4 * 1024 * 1024, false, true);
+		}
+	}
+
+	public static class RealTempBucketTest_64k_4m_T_OffHeap extends RealTempBucketTest_ {
+		public RealTempBucketTest_64k_4m_T_OffHeap() throws IOException {
+			super(64 * 1024, 4 * 1024 * 1024, true, true);
+		}
+	}
+
     public TempBucketTest() {
 		super("TempBucketTest");
 		addTest(new TestSuite(RealTempBucketTest_8_16_F.class));
@@ -206,6 +250,8 @@ public class TempBucketTest extends TestSuite {
 		addTest(new TestSuite(RealTempBucketTest_64k_128k_F.class));
 		addTest(new TestSuite(RealTempBucketTest_8_16_T.class));
 		addTest(new TestSuite(RealTempBucketTest_64k_128k_T.class));
+		addTest(new TestSuite(RealTempBucketTest_64k_4m_F_OffHeap.class));
+		addTest(new TestSuite(RealTempBucketTest_64k_4m_T_OffHeap.class));
 		addTest(new TestSuite(TempBucketMigrationTest.class));
 	}
 
@@ -216,6 +262,8 @@ public class TempBucketTest extends TestSuite {
 		suite.addTest(new TestSuite(RealTempBucketTest_64k_128k_F.class));
 		suite.addTest(new TestSuite(RealTempBucketTest_8_16_T.class));
 		suite.addTest(new TestSuite(RealTempBucketTest_64k_128k_T.class));
+		suite.addTest(new TestSuite(RealTempBucketTest_64k_4m_F_OffHeap.class));
+		suite.addTest(new TestSuite(RealTempBucketTest_64k_4m_T_OffHeap.class));
 		suite.addTest(new TestSuite(TempBucketMigrationTest.class));
 		return suite;
 	}